@@ -0,0 +1,102 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.io.ObjectStreamReader;
+import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.BinaryReaderWriter;
+
+import freenet.keys.FreenetURI;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+/**
+** Benchmarks round-trips of a B-tree node full of {@link TermPageEntry}s
+** through the on-disk formats.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialisationBench {
+
+	/**
+	** Number of entries in the node.
+	*/
+	@Param({"64", "1024"})
+	public int entries;
+
+	/**
+	** Number of positions in each entry.
+	*/
+	@Param({"0", "16"})
+	public int positions;
+
+	final YamlReaderWriter yamlrw = new YamlReaderWriter();
+	final BinaryReaderWriter binrw = new BinaryReaderWriter();
+	final TermEntryReaderWriter termrw = TermEntryReaderWriter.getInstance();
+
+	List<TermEntry> list;
+	Map<String, Object> node;
+
+	@Setup(Level.Trial)
+	public void setUp() throws MalformedURLException {
+		Random rand = new Random(0);
+		list = new ArrayList<TermEntry>(entries);
+		for (int i=0; i<entries; ++i) {
+			Map<Integer, String> pos = new HashMap<Integer, String>(positions<<1);
+			for (int j=0; j<positions; ++j) { pos.put(rand.nextInt(0x10000), null); }
+			list.add(new TermPageEntry("term", rand.nextFloat(), new FreenetURI("CHK@" + Long.toHexString(rand.nextLong()) + i), pos));
+		}
+		node = new HashMap<String, Object>();
+		node.put("lkey", null);
+		node.put("rkey", null);
+		node.put("entries", list);
+	}
+
+	protected static Object roundTrip(ObjectStreamWriter w, ObjectStreamReader r, Object o) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		w.writeObject(o, bos);
+		return r.readObject(new ByteArrayInputStream(bos.toByteArray()));
+	}
+
+	@Benchmark
+	public Object yaml() throws IOException {
+		return roundTrip(yamlrw, yamlrw, node);
+	}
+
+	@Benchmark
+	public Object binary() throws IOException {
+		return roundTrip(binrw, binrw, node);
+	}
+
+	@Benchmark
+	public List<TermEntry> termEntries() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		for (TermEntry en: list) { termrw.writeObject(en, dos); }
+		dos.close();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		List<TermEntry> out = new ArrayList<TermEntry>(entries);
+		for (int i=0; i<entries; ++i) { out.add(termrw.readObject(dis)); }
+		return out;
+	}
+
+}
@@ -0,0 +1,116 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+
+import freenet.keys.FreenetURI;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.net.MalformedURLException;
+
+/**
+** Benchmarks {@link plugins.Library.util.SkeletonBTreeMap#update(SortedSet,
+** SortedSet, Closure)} on the term table of an index stored on local disk,
+** like {@code BIndexTest.testUpdateLatency()}. Each invocation merges a few
+** new terms into the index, so this times the pulling, merging and pushing
+** of every node along the way.
+**
+** {@link plugins.Library.io.serial.FileArchiver} writes to the current
+** directory, so this should be run from a temporary directory; {@code ant
+** bench} does this.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateBench {
+
+	final public static int NODE_MIN = 0x04;
+
+	/**
+	** Number of terms in the index before the first update.
+	*/
+	@Param({"256", "4096"})
+	public int terms;
+
+	/**
+	** Number of terms added by each update.
+	*/
+	@Param({"8"})
+	public int update_size;
+
+	final Random rand = new Random(0);
+	final ProtoIndexComponentSerialiser csrl = ProtoIndexComponentSerialiser.get(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL);
+	ProtoIndex idx;
+
+	final Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo = new
+	Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+		/*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> entry) throws TaskAbortException {
+			SkeletonBTreeSet<TermEntry> tree = entry.getValue();
+			if (tree == null) {
+				entry.setValue(tree = makeEntryTree());
+			}
+			SortedSet<TermEntry> add = new TreeSet<TermEntry>();
+			add.add(rndEntry(entry.getKey()));
+			tree.update(add, null);
+		}
+	};
+
+	protected String rndKey() {
+		return Integer.toHexString(rand.nextInt());
+	}
+
+	protected TermPageEntry rndEntry(String key) {
+		try {
+			return new TermPageEntry(key, rand.nextFloat(), new FreenetURI("CHK@" + Long.toHexString(rand.nextLong())), null);
+		} catch (MalformedURLException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	protected SkeletonBTreeSet<TermEntry> makeEntryTree() {
+		SkeletonBTreeSet<TermEntry> tree = new SkeletonBTreeSet<TermEntry>(NODE_MIN);
+		csrl.setSerialiserFor(tree);
+		return tree;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws MalformedURLException, TaskAbortException {
+		ProtoIndex.BTREE_NODE_MIN = NODE_MIN;
+		idx = new ProtoIndex(new FreenetURI("CHK@yeah"), "bench");
+		csrl.setSerialiserFor(idx);
+		for (int i=0; i<terms; ++i) {
+			String key = rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			entries.add(rndEntry(key));
+			idx.ttab.put(key, entries);
+		}
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+	}
+
+	@Benchmark
+	public ProtoIndex update() throws TaskAbortException {
+		SortedSet<String> putkey = new TreeSet<String>();
+		for (int i=0; i<update_size; ++i) {
+			putkey.add(rndKey());
+		}
+		idx.ttab.update(putkey, null, clo);
+		return idx;
+	}
+
+}
@@ -0,0 +1,78 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.TaskAbortException;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Benchmarks the bin-packing done by {@link Packer#push(Map, Object)}. The
+** bins are passed to a serialiser that throws them away, so this only times
+** the packing itself.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackerBench {
+
+	final public static int BIN_MAX = 0x100;
+
+	/**
+	** Number of elements to pack.
+	*/
+	@Param({"64", "4096"})
+	public int tasks;
+
+	final Packer<String, HashSet<Integer>> packer = new Packer<String, HashSet<Integer>>(
+		new IterableSerialiser<Map<String, HashSet<Integer>>>() {
+			public void pull(Iterable<PullTask<Map<String, HashSet<Integer>>>> t) { }
+			public void push(Iterable<PushTask<Map<String, HashSet<Integer>>>> t) { }
+			public void pull(PullTask<Map<String, HashSet<Integer>>> t) { }
+			public void push(PushTask<Map<String, HashSet<Integer>>> t) { }
+		},
+		new Packer.Scale<HashSet<Integer>>() {
+			@Override public int weigh(HashSet<Integer> elem) {
+				return elem.size();
+			}
+		},
+		BIN_MAX
+	);
+
+	final Random rand = new Random(0);
+	Map<String, PushTask<HashSet<Integer>>> input;
+
+	/**
+	** Generates elements of random weights, mostly small with a few large,
+	** as for the term entries of a real index. push() consumes its input, so
+	** this is done for every invocation.
+	*/
+	@Setup(Level.Invocation)
+	public void generateTasks() {
+		input = new HashMap<String, PushTask<HashSet<Integer>>>(tasks<<1);
+		for (int i=0; i<tasks; ++i) {
+			int size = (rand.nextInt(8) == 0)? rand.nextInt(BIN_MAX) + 1: rand.nextInt(8) + 1;
+			HashSet<Integer> hs = new HashSet<Integer>(size<<1);
+			for (int j=0; j<size; ++j) { hs.add(j); }
+			input.put(Integer.toHexString(rand.nextInt()) + i, new PushTask<HashSet<Integer>>(hs, "dummy metadata"));
+		}
+	}
+
+	@Benchmark
+	public Map<String, PushTask<HashSet<Integer>>> push() throws TaskAbortException {
+		packer.push(input, null);
+		return input;
+	}
+
+}
@@ -0,0 +1,108 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.net.MalformedURLException;
+
+/**
+ * Benchmarks the set operations of {@link ResultSet} on two terms whose
+ * results overlap by about half.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultSetBench {
+
+	/**
+	 * Number of results for each term
+	 */
+	@Param({"1000", "100000"})
+	public int results;
+
+	@Param({"INTERSECTION", "UNION", "REMOVE", "PHRASE"})
+	public ResultSet.ResultOperation operation;
+
+	/**
+	 * Keep only this many results, or 0 to keep all of them
+	 */
+	@Param({"0", "1000"})
+	public int maxResults;
+
+	Set<TermEntry> first, second;
+
+	/**
+	 * A subsearch which has already finished with the given result
+	 */
+	static class Finished extends AbstractExecution<Set<TermEntry>> {
+		Finished(String subject, Set<TermEntry> result) {
+			super(subject);
+			setResult(result);
+		}
+
+		public String getStatus() {
+			return "done";
+		}
+
+		public ProgressParts getParts() {
+			return ProgressParts.normalise(1, 1, 1, ProgressParts.TOTAL_FINALIZED);
+		}
+	}
+
+	/**
+	 * Makes results for the pages with ids [start, start+results), each with a
+	 * few positions. Half the positions are shifted by offset, so that every
+	 * page in both results is also a phrase match.
+	 */
+	Set<TermEntry> makeResults(String term, int start, int offset, Random rand) throws MalformedURLException {
+		Set<TermEntry> set = new HashSet<TermEntry>(results<<1);
+		for (int i=start; i<start+results; ++i) {
+			Map<Integer, String> pos = new HashMap<Integer, String>();
+			for (int j=0; j<4; ++j) {
+				pos.put(((i * 31 + j * 97) & 0xFFF) + ((j % 2 == 0)? offset: 0x1000), null);
+			}
+			set.add(new TermPageEntry(term, rand.nextFloat(), new FreenetURI("CHK@page" + i), pos));
+		}
+		return set;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws MalformedURLException {
+		Random rand = new Random(0);
+		first = makeResults("first", 0, 0, rand);
+		second = makeResults("second", results>>1, 1, rand);
+	}
+
+	@Benchmark
+	public ResultSet run() throws TaskAbortException {
+		List<Execution<Set<TermEntry>>> subRequests = new ArrayList<Execution<Set<TermEntry>>>(2);
+		subRequests.add(new Finished("first", first));
+		subRequests.add(new Finished("second", second));
+		ResultSet result = new ResultSet("first second", operation, subRequests, maxResults);
+		result.run();
+		return result;
+	}
+
+}
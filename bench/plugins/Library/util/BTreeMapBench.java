@@ -0,0 +1,74 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Benchmarks for the basic operations of an in-memory {@link BTreeMap}.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BTreeMapBench {
+
+	@Param({"4", "64"})
+	public int node_min;
+
+	@Param({"4096", "262144"})
+	public int size;
+
+	/**
+	** Keys in random order.
+	*/
+	Integer[] keys;
+	BTreeMap<Integer, Integer> map;
+	int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random rand = new Random(0);
+		keys = new Integer[size];
+		for (int i=0; i<size; ++i) { keys[i] = i; }
+		for (int i=size-1; i>0; --i) {
+			int j = rand.nextInt(i+1);
+			Integer k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+		}
+		map = new BTreeMap<Integer, Integer>(node_min);
+		for (Integer k: keys) { map.put(k, k); }
+	}
+
+	/**
+	** Fills an empty tree with every key, in random order.
+	*/
+	@Benchmark
+	public BTreeMap<Integer, Integer> put() {
+		BTreeMap<Integer, Integer> m = new BTreeMap<Integer, Integer>(node_min);
+		for (Integer k: keys) { m.put(k, k); }
+		return m;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Integer get() {
+		if (++next == size) { next = 0; }
+		return map.get(keys[next]);
+	}
+
+	@Benchmark
+	public void iterate(Blackhole bh) {
+		for (Map.Entry<Integer, Integer> en: map.entrySet()) {
+			bh.consume(en.getValue());
+		}
+	}
+
+}
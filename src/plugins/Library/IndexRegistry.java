@@ -0,0 +1,411 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import plugins.Library.index.DeferredIndex;
+import plugins.Library.index.xml.XMLIndex;
+import plugins.Library.search.InvalidSearchException;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+** Registry of the read-indexes that have been loaded, keyed by the index
+** specifier that each was loaded from.
+**
+** * Concurrent requests for an index that is not yet loaded share a single
+**   load; the first caller does the work, and the others wait for it.
+** * Indexes that have not been used for a while are evicted, as are the
+**   least-recently-used ones once there are too many, or they are estimated
+**   to take up too much memory. An evicted index is simply loaded again the
+**   next time it is asked for.
+** * When a bookmark moves to a new edition, the new edition is loaded in the
+**   background by {@link #refresh(String, String, String)}, and requests for
+**   it are served with the old edition until it is ready.
+**
+** Indexes are retrieved as a {@link DeferredIndex} where possible; the entry
+** is replaced by the real index once its root has been retrieved, or removed
+** if that fails, so that a later request can try again.
+*/
+public class IndexRegistry {
+
+	/**
+	** Loads an index given its specifier.
+	*/
+	public interface Loader {
+
+		/**
+		** @param indexuri The index specifier
+		** @param name The bookmark that the index was reached through, or
+		**        {@code null}
+		*/
+		public Index load(String indexuri, String name) throws InvalidSearchException, TaskAbortException;
+
+	}
+
+	/**
+	** Rough estimate of the memory used by a loaded index, apart from any
+	** data accounted for elsewhere. For a {@link plugins.Library.index.ProtoIndex}
+	** this is everything, since its nodes are bounded by its {@link
+	** plugins.Library.util.ResidencyManager}.
+	*/
+	final public static int INDEX_BYTES = 0x1000;
+
+	/**
+	** Minimum time between two sweeps for idle indexes, in milliseconds.
+	*/
+	final public static long TRIM_INTERVAL = 60 * 1000;
+
+	final protected Loader loader;
+	final protected Executor exec;
+
+	/**
+	** Maximum number of indexes to keep loaded.
+	*/
+	final protected int max_indexes;
+
+	/**
+	** Maximum estimated size of all loaded indexes, in bytes.
+	*/
+	final protected long max_bytes;
+
+	/**
+	** Time after which an unused index is evicted, in milliseconds.
+	*/
+	final protected long max_idle;
+
+	final protected ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+	/**
+	** Editions being refreshed in the background; maps the specifier of the
+	** new edition to that of the old one.
+	*/
+	final protected ConcurrentMap<String, String> refreshing = new ConcurrentHashMap<String, String>();
+
+	private volatile long last_trim = System.currentTimeMillis();
+
+	/**
+	** Create a new registry with the given bounds. Use {@link
+	** Integer#MAX_VALUE} or {@link Long#MAX_VALUE} to not bound the respective
+	** quantity.
+	**
+	** @param l The loader for indexes not in the registry
+	** @param x The executor to run background refreshes on
+	** @param indexes Maximum number of indexes to keep loaded
+	** @param size Maximum estimated size of the indexes to keep loaded, in
+	**        bytes
+	** @param idle Time after which an unused index is evicted, in milliseconds
+	** @throws IllegalArgumentException if any bound is not positive
+	*/
+	public IndexRegistry(Loader l, Executor x, int indexes, long size, long idle) {
+		if (l == null || x == null) { throw new NullPointerException(); }
+		if (indexes < 1 || size < 1 || idle < 1) {
+			throw new IllegalArgumentException("Bounds must be positive: " + indexes + ", " + size + ", " + idle);
+		}
+		loader = l;
+		exec = x;
+		max_indexes = indexes;
+		max_bytes = size;
+		max_idle = idle;
+	}
+
+	/**
+	** Returns the index for the given specifier, loading it if necessary. If
+	** another thread is already loading it, this waits for that load rather
+	** than starting another.
+	**
+	** @param indexuri The index specifier
+	** @param name The bookmark that the index was reached through, or {@code
+	**        null}
+	*/
+	public Index get(String indexuri, String name) throws InvalidSearchException, TaskAbortException {
+		Slot slot = slots.get(indexuri);
+		if (slot == null) {
+			Slot s = new Slot();
+			slot = slots.putIfAbsent(indexuri, s);
+			if (slot == null) {
+				slot = s;
+				load(indexuri, name, s);
+			}
+		}
+
+		if (!slot.isReady()) {
+			// serve the previous edition while this one is loading
+			String old = refreshing.get(indexuri);
+			Slot prev = (old == null)? null: slots.get(old);
+			if (prev != null && prev.isReady()) {
+				slot = prev;
+			}
+		}
+
+		slot.touch();
+		Index index = slot.get();
+		if (System.currentTimeMillis() - last_trim > TRIM_INTERVAL) { trim(); }
+		return index;
+	}
+
+	/**
+	** Start loading the new edition of an index in the background, if the old
+	** edition is loaded; once the new one is ready, the old one is dropped.
+	** Until then, {@link #get(String, String)} serves the old edition for the
+	** new specifier.
+	**
+	** @param olduri The specifier of the old edition
+	** @param newuri The specifier of the new edition
+	** @param name The bookmark that the index is reached through
+	*/
+	public void refresh(final String olduri, final String newuri, final String name) {
+		if (olduri.equals(newuri) || !slots.containsKey(olduri)) { return; }
+		if (refreshing.putIfAbsent(newuri, olduri) != null) { return; }
+		// claim the slot now, so that requests for the new edition don't start
+		// another load before the background one does
+		final Slot slot = new Slot();
+		if (slots.putIfAbsent(newuri, slot) != null) {
+			refreshing.remove(newuri, olduri);
+			return;
+		}
+		exec.execute(new Runnable() {
+			/*@Override**/ public void run() {
+				try {
+					load(newuri, name, slot);
+				} catch (InvalidSearchException e) {
+					Logger.error(IndexRegistry.this, "Could not refresh " + olduri + " to " + newuri, e);
+				} catch (TaskAbortException e) {
+					Logger.error(IndexRegistry.this, "Could not refresh " + olduri + " to " + newuri, e);
+				} catch (RuntimeException e) {
+					Logger.error(IndexRegistry.this, "Could not refresh " + olduri + " to " + newuri, e);
+				}
+			}
+		});
+	}
+
+	/**
+	** Returns a snapshot of the indexes that are currently loaded.
+	*/
+	public List<Index> indexes() {
+		List<Index> indexes = new ArrayList<Index>(slots.size());
+		for (Slot slot: slots.values()) {
+			Index index = slot.index;
+			if (index != null) { indexes.add(index); }
+		}
+		return indexes;
+	}
+
+	/**
+	** @return Number of indexes that are loaded or being loaded
+	*/
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	** @return Estimated size of all loaded indexes, in bytes
+	*/
+	public long estimatedBytes() {
+		long bytes = 0;
+		for (Slot slot: slots.values()) {
+			Index index = slot.index;
+			if (index != null) { bytes += estimateBytes(index); }
+		}
+		return bytes;
+	}
+
+	/**
+	** Drop the given index from the registry.
+	**
+	** @return Whether it was in the registry
+	*/
+	public boolean remove(String indexuri) {
+		return slots.remove(indexuri) != null;
+	}
+
+	/**
+	** Estimate the memory used by the given index.
+	*/
+	protected long estimateBytes(Index index) {
+		if (index instanceof XMLIndex) {
+			return INDEX_BYTES + ((XMLIndex)index).estimateBytes();
+		}
+		return INDEX_BYTES;
+	}
+
+	/**
+	** Evict the indexes that have been idle for too long, then the
+	** least-recently-used ones until the bounds are met. Indexes that are
+	** still being loaded, or that are being refreshed, are never evicted.
+	*/
+	public synchronized void trim() {
+		long now = System.currentTimeMillis();
+		last_trim = now;
+
+		List<Map.Entry<String, Slot>> loaded = new ArrayList<Map.Entry<String, Slot>>();
+		long bytes = 0;
+		for (Map.Entry<String, Slot> en: slots.entrySet()) {
+			Slot slot = en.getValue();
+			if (slot.index == null) { continue; }
+			if (now - slot.last_access > max_idle && !refreshing.containsValue(en.getKey())) {
+				if (slots.remove(en.getKey(), slot)) {
+					Logger.normal(this, "Evicting idle index " + en.getKey());
+				}
+				continue;
+			}
+			slot.bytes = estimateBytes(slot.index);
+			bytes += slot.bytes;
+			loaded.add(en);
+		}
+
+		if (slots.size() <= max_indexes && bytes <= max_bytes) { return; }
+
+		Collections.sort(loaded, new Comparator<Map.Entry<String, Slot>>() {
+			/*@Override**/ public int compare(Map.Entry<String, Slot> e1, Map.Entry<String, Slot> e2) {
+				long t1 = e1.getValue().last_access, t2 = e2.getValue().last_access;
+				return (t1 < t2)? -1: (t1 > t2)? 1: 0;
+			}
+		});
+		for (Map.Entry<String, Slot> en: loaded) {
+			if (slots.size() <= max_indexes && bytes <= max_bytes) { break; }
+			if (refreshing.containsValue(en.getKey())) { continue; }
+			if (slots.remove(en.getKey(), en.getValue())) {
+				Logger.normal(this, "Evicting index " + en.getKey() + " to save memory");
+				bytes -= en.getValue().bytes;
+			}
+		}
+	}
+
+	/**
+	** Load an index into the given slot, which the caller has just put into
+	** the registry.
+	*/
+	protected void load(String indexuri, String name, Slot slot) throws InvalidSearchException, TaskAbortException {
+		Index index;
+		try {
+			index = loader.load(indexuri, name);
+		} catch (InvalidSearchException e) {
+			fail(indexuri, slot, e);
+			throw e;
+		} catch (TaskAbortException e) {
+			fail(indexuri, slot, e);
+			throw e;
+		} catch (RuntimeException e) {
+			fail(indexuri, slot, e);
+			throw e;
+		}
+
+		slot.set(index);
+		if (index instanceof DeferredIndex) {
+			watchDeferredIndex(indexuri, slot, (DeferredIndex<?>)index);
+		} else {
+			ready(indexuri);
+		}
+		trim();
+	}
+
+	/**
+	** Once the root of a {@link DeferredIndex} has been retrieved, replace the
+	** index in its slot with the real index; if retrieval fails, remove the
+	** slot so that a later request can try again.
+	*/
+	private <I extends Index> void watchDeferredIndex(final String indexuri, final Slot slot, final DeferredIndex<I> deferred) {
+		deferred.getRootExecution().addAcceptor(new ExecutionAcceptor<I>() {
+			/*@Override**/ public void acceptStarted(Execution<I> opn) { }
+			/*@Override**/ public void acceptDone(Execution<I> opn, I result) {
+				if (slot.index == deferred) { slot.index = result; }
+				ready(indexuri);
+			}
+			/*@Override**/ public void acceptAborted(Execution<I> opn, TaskAbortException abort) {
+				Logger.error(IndexRegistry.this, "Failed to load index " + indexuri, abort);
+				slots.remove(indexuri, slot);
+				refreshing.remove(indexuri);
+			}
+		});
+	}
+
+	/**
+	** Called when the index for the given specifier is ready; if it is a new
+	** edition, the old one is dropped.
+	*/
+	private void ready(String indexuri) {
+		String old = refreshing.remove(indexuri);
+		if (old != null) {
+			Logger.normal(this, "Refreshed index " + old + " to " + indexuri);
+			slots.remove(old);
+		}
+	}
+
+	private void fail(String indexuri, Slot slot, Exception e) {
+		slots.remove(indexuri, slot);
+		refreshing.remove(indexuri);
+		slot.fail(e);
+	}
+
+
+	/************************************************************************
+	** Entry of the registry. Threads other than the one loading the index
+	** wait on it in {@link #get()} until the load has finished.
+	*/
+	protected static class Slot {
+
+		final private CountDownLatch loaded = new CountDownLatch(1);
+
+		/**
+		** The index; this is {@code null} until it has been loaded, and is
+		** replaced if it was a {@link DeferredIndex} whose root has arrived.
+		*/
+		volatile Index index;
+		volatile Exception error;
+		volatile long last_access = System.currentTimeMillis();
+		/** Estimated size as of the last {@link IndexRegistry#trim()} */
+		long bytes;
+
+		void touch() {
+			last_access = System.currentTimeMillis();
+		}
+
+		void set(Index i) {
+			index = i;
+			loaded.countDown();
+		}
+
+		void fail(Exception e) {
+			error = e;
+			loaded.countDown();
+		}
+
+		/**
+		** Whether the index is loaded and can serve requests without waiting
+		** for its root.
+		*/
+		boolean isReady() {
+			Index i = index;
+			return i != null && !(i instanceof DeferredIndex);
+		}
+
+		Index get() throws InvalidSearchException, TaskAbortException {
+			try {
+				loaded.await();
+			} catch (InterruptedException e) {
+				throw new TaskAbortException("Interrupted whilst waiting for index to load", e);
+			}
+			Exception e = error;
+			if (e == null) { return index; }
+			if (e instanceof InvalidSearchException) { throw (InvalidSearchException)e; }
+			if (e instanceof TaskAbortException) { throw (TaskAbortException)e; }
+			throw (RuntimeException)e;
+		}
+
+	}
+
+}
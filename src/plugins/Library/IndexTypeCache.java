@@ -0,0 +1,238 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import plugins.Library.index.ProtoIndex;
+import plugins.Library.index.xml.XMLIndex;
+
+import freenet.client.FetchException;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+** Remembers the type of index found at each {@link FreenetURI}, so that
+** {@link Library#getIndexType(FreenetURI)} only has to probe the network the
+** first time it sees an index. Entries are keyed by the base of the URI; for
+** a USK, this leaves out the edition, since the type of an index does not
+** change between editions.
+**
+** Entries older than {@link #REVALIDATE_AFTER} are still used, but are probed
+** again in the background. The cache is stored as a map of strings (see
+** {@link #toStrings()}), alongside the bookmarks.
+*/
+public class IndexTypeCache {
+
+	/**
+	** Probes the network for the type of an index.
+	*/
+	public interface Prober {
+
+		public Entry probe(FreenetURI uri) throws FetchException;
+
+	}
+
+	/**
+	** Age after which an entry is probed again, in milliseconds.
+	*/
+	final public static long REVALIDATE_AFTER = 24 * 60 * 60 * 1000; // 1 day
+
+	final protected Prober prober;
+	final protected Executor exec;
+
+	final protected ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	** Keys that are being probed again in the background.
+	*/
+	final protected ConcurrentMap<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	** Called whenever an entry is added or changed, eg. to save the cache.
+	*/
+	protected Runnable onChange;
+
+	/**
+	** @param p The prober for uncached indexes
+	** @param x The executor to probe stale entries on
+	*/
+	public IndexTypeCache(Prober p, Executor x) {
+		if (p == null || x == null) { throw new NullPointerException(); }
+		prober = p;
+		exec = x;
+	}
+
+	public void setOnChange(Runnable r) {
+		onChange = r;
+	}
+
+	/**
+	** Returns the type of index at the given URI, probing for it if it is not
+	** in the cache.
+	*/
+	public Entry get(FreenetURI uri) throws FetchException {
+		final String key = keyFor(uri);
+		Entry en = entries.get(key);
+		if (en == null) {
+			en = prober.probe(uri);
+			put(key, en);
+			return en;
+		}
+
+		if (System.currentTimeMillis() - en.checked > REVALIDATE_AFTER
+		  && revalidating.putIfAbsent(key, Boolean.TRUE) == null) {
+			final FreenetURI u = uri;
+			exec.execute(new Runnable() {
+				/*@Override**/ public void run() {
+					try {
+						Entry fresh = prober.probe(u);
+						Entry old = entries.get(key);
+						if (old != null && !old.sameAs(fresh)) {
+							Logger.normal(IndexTypeCache.this, "Index at " + key + " changed from " + old + " to " + fresh);
+						}
+						put(key, fresh);
+					} catch (FetchException e) {
+						Logger.normal(IndexTypeCache.this, "Could not revalidate index type of " + key + "; keeping " + entries.get(key), e);
+					} catch (RuntimeException e) {
+						Logger.error(IndexTypeCache.this, "Could not revalidate index type of " + key, e);
+					} finally {
+						revalidating.remove(key);
+					}
+				}
+			});
+		}
+		return en;
+	}
+
+	/**
+	** Forget the type of index at the given URI, eg. because it could not be
+	** loaded as that type.
+	*/
+	public void invalidate(FreenetURI uri) {
+		if (entries.remove(keyFor(uri)) != null) { changed(); }
+	}
+
+	protected void put(String key, Entry en) {
+		entries.put(key, en);
+		changed();
+	}
+
+	protected void changed() {
+		Runnable r = onChange;
+		if (r != null) { r.run(); }
+	}
+
+	/**
+	** Returns the key for the given URI: the URI itself, except that the
+	** edition of a USK is zeroed.
+	*/
+	public static String keyFor(FreenetURI uri) {
+		if (uri.isUSK()) { uri = uri.setSuggestedEdition(0); }
+		return uri.toString();
+	}
+
+	/**
+	** Returns the cache as a map of strings, for storage.
+	*/
+	public Map<String, String> toStrings() {
+		Map<String, String> map = new HashMap<String, String>();
+		for (Map.Entry<String, Entry> en: entries.entrySet()) {
+			map.put(en.getKey(), en.getValue().toString());
+		}
+		return map;
+	}
+
+	/**
+	** Adds the entries from a map returned by {@link #toStrings()}. Entries
+	** that can't be parsed are skipped.
+	*/
+	public void fromStrings(Map<String, String> map) {
+		for (Map.Entry<String, String> en: map.entrySet()) {
+			try {
+				entries.put(en.getKey(), Entry.parse(en.getValue()));
+			} catch (IllegalArgumentException e) {
+				Logger.error(this, "Ignoring bad index type cache entry for " + en.getKey() + ": " + en.getValue(), e);
+			}
+		}
+	}
+
+
+	/************************************************************************
+	** The type of an index, and where its root was found.
+	*/
+	public static class Entry {
+
+		/**
+		** {@link ProtoIndex} or {@link XMLIndex}
+		*/
+		final public Class<?> type;
+
+		/**
+		** The metastring that was added to the URI to reach the root of the
+		** index (eg. its default file), or {@code null} if the URI pointed to
+		** it directly.
+		*/
+		final public String file;
+
+		/**
+		** When the type was probed.
+		*/
+		final public long checked;
+
+		public Entry(Class<?> t, String f, long c) {
+			if (t != ProtoIndex.class && t != XMLIndex.class) {
+				throw new IllegalArgumentException("Not an index type: " + t);
+			}
+			type = t;
+			file = f;
+			checked = c;
+		}
+
+		public Entry(Class<?> t, String f) {
+			this(t, f, System.currentTimeMillis());
+		}
+
+		public boolean sameAs(Entry en) {
+			return type == en.type && (file == null? en.file == null: file.equals(en.file));
+		}
+
+		/**
+		** Returns the entry as {@code type:checked:file}, where {@code type} is
+		** the simple name of the class, and {@code :file} is left out if there
+		** is no file.
+		*/
+		@Override public String toString() {
+			return type.getSimpleName() + ":" + checked + (file == null? "": ":" + file);
+		}
+
+		/**
+		** Parses the output of {@link #toString()}.
+		**
+		** @throws IllegalArgumentException if the string is malformed
+		*/
+		public static Entry parse(String s) {
+			String[] parts = s.split(":", 3);
+			if (parts.length < 2) {
+				throw new IllegalArgumentException("Malformed index type: " + s);
+			}
+			Class<?> t;
+			if (parts[0].equals(ProtoIndex.class.getSimpleName())) {
+				t = ProtoIndex.class;
+			} else if (parts[0].equals(XMLIndex.class.getSimpleName())) {
+				t = XMLIndex.class;
+			} else {
+				throw new IllegalArgumentException("Unknown index type: " + parts[0]);
+			}
+			// NumberFormatException is an IllegalArgumentException
+			return new Entry(t, (parts.length > 2)? parts[2]: null, Long.parseLong(parts[1]));
+		}
+
+	}
+
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import plugins.Library.Index;
 import plugins.Library.WriteableIndex;
 import plugins.Library.client.FreenetArchiver;
+import plugins.Library.index.DeferredIndex;
 import plugins.Library.index.ProtoIndex;
 import plugins.Library.index.ProtoIndexSerialiser;
 import plugins.Library.index.xml.URLUpdateHook;
@@ -14,7 +15,13 @@ import plugins.Library.index.xml.XMLIndex;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
 import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.CachingArchiver;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.concurrent.Executors;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.search.InvalidSearchException;
 
 /* KEYEXPLORER
@@ -120,6 +127,7 @@ final public class Library implements URLUpdateHook {
 	private final PluginStore store;
 
 	static final String STOREKEY = "indexuris";
+	static final String TYPES_STOREKEY = "indextypes";
 
 	/**
 	 * Method to setup Library class so it has access to PluginRespirator, and load bookmarks
@@ -131,6 +139,21 @@ final public class Library implements URLUpdateHook {
 			this.exec = pr.getNode().executor;
 		else
 			this.exec = null;
+		java.util.concurrent.Executor bgexec = (exec == null)? Executors.DEFAULT_EXECUTOR: new java.util.concurrent.Executor() {
+			/*@Override**/ public void execute(Runnable r) {
+				exec.execute(r, "Library background index task");
+			}
+		};
+		rtab = new IndexRegistry(new IndexRegistry.Loader() {
+			/*@Override**/ public Index load(String indexuri, String name) throws InvalidSearchException, TaskAbortException {
+				return loadIndex(indexuri, name);
+			}
+		}, bgexec, RTAB_MAX_INDEXES, RTAB_MAX_BYTES, RTAB_MAX_IDLE);
+		types = new IndexTypeCache(new IndexTypeCache.Prober() {
+			/*@Override**/ public IndexTypeCache.Entry probe(FreenetURI uri) throws FetchException {
+				return probeIndexType(uri);
+			}
+		}, bgexec);
 		PluginStore ps;
 		try {
 			ps = pr.getStore();
@@ -146,6 +169,14 @@ final public class Library implements URLUpdateHook {
 				bookmarks.put(name, target);
 			}
 		}
+		if(store != null && store.subStores.containsKey(TYPES_STOREKEY)) {
+			types.fromStrings(store.subStores.get(TYPES_STOREKEY).strings);
+		}
+		types.setOnChange(new Runnable() {
+			/*@Override**/ public void run() {
+				saveState();
+			}
+		});
 
 		File persistentFile = new File("LibraryPersistent");
 		boolean migrated = false;
@@ -207,6 +238,11 @@ final public class Library implements URLUpdateHook {
 		if(inner == null)
 			store.subStores.put(STOREKEY, inner = new PluginStore());
 		inner.strings.putAll(bookmarks);
+		inner = store.subStores.get(TYPES_STOREKEY);
+		if(inner == null)
+			store.subStores.put(TYPES_STOREKEY, inner = new PluginStore());
+		inner.strings.clear();
+		inner.strings.putAll(types.toStrings());
 		try {
 			pr.putStore(store);
 			if(logMINOR) Logger.minor(this, "Stored state to database");
@@ -215,10 +251,30 @@ final public class Library implements URLUpdateHook {
 		}
 	}
 
+	/**
+	** Maximum number of read-indexes to keep loaded.
+	*/
+	final public static int RTAB_MAX_INDEXES = 0x40;
+
+	/**
+	** Maximum estimated size of the read-indexes to keep loaded, in bytes.
+	*/
+	final public static long RTAB_MAX_BYTES = 0x4000000; // 64MiB
+
+	/**
+	** Time after which an unused read-index is unloaded, in milliseconds.
+	*/
+	final public static long RTAB_MAX_IDLE = 60 * 60 * 1000; // 1 hour
+
 	/**
 	** Holds all the read-indexes.
 	*/
-	private Map<String, Index> rtab = new HashMap<String, Index>();
+	final private IndexRegistry rtab;
+
+	/**
+	** Remembers the types of the indexes that have been probed.
+	*/
+	final private IndexTypeCache types;
 
 	/**
 	** Holds all the writeable indexes.
@@ -235,21 +291,40 @@ final public class Library implements URLUpdateHook {
 	/**
 	** Get the index type giving a {@code FreenetURI}. This must not contain
 	** a metastring (end with "/") or be a USK.
+	**
+	** The network is only probed the first time an index is seen; after that,
+	** the type is taken from {@link #types}, and checked again in the
+	** background once in a while.
 	*/
 	public Class<?> getIndexType(FreenetURI indexuri) throws FetchException {
+		return getIndexTypeEntry(indexuri).type;
+	}
+
+	/**
+	** Get the index type of a {@code FreenetURI}, along with the file
+	** through which the root of the index was found; see {@link
+	** #getIndexType(FreenetURI)}.
+	*/
+	protected IndexTypeCache.Entry getIndexTypeEntry(FreenetURI indexuri) throws FetchException {
 		if(indexuri.lastMetaString()!=null && indexuri.lastMetaString().equals(XMLIndex.DEFAULT_FILE))
-			return XMLIndex.class;
+			return new IndexTypeCache.Entry(XMLIndex.class, null);
 
+		return types.get(indexuri);
+	}
+
+	/**
+	** Probe the network for the index type at a {@code FreenetURI}, by trying
+	** the URI itself and then each of the default files in turn.
+	*/
+	protected IndexTypeCache.Entry probeIndexType(FreenetURI indexuri) throws FetchException {
 
 		NodeClientCore core = pr.getNode().clientCore;
 		HighLevelSimpleClient hlsc = core.makeClient(RequestStarter.INTERACTIVE_PRIORITY_CLASS);
 
-		List<FreenetURI> uris = Arrays.asList(indexuri,
-		indexuri.pushMetaString(""),
-		indexuri.pushMetaString(ProtoIndex.DEFAULT_FILE),
-		indexuri.pushMetaString(XMLIndex.DEFAULT_FILE));
+		List<String> files = Arrays.asList(null, "", ProtoIndex.DEFAULT_FILE, XMLIndex.DEFAULT_FILE);
 
-		for (FreenetURI uri: uris) {
+		for (String file: files) {
+			FreenetURI uri = (file == null)? indexuri: indexuri.pushMetaString(file);
 
 			ClientContext cctx = core.clientContext;
 			FetchContext fctx = hlsc.getFetchContext();
@@ -269,11 +344,11 @@ final public class Library implements URLUpdateHook {
 
 			try {
 				FetchResult res = fw.waitForCompletion();
-				return getIndexTypeFromMIME(res.getMimeType());
+				return new IndexTypeCache.Entry(getIndexTypeFromMIME(res.getMimeType()), file);
 
 			} catch (FetchException e) {
 				if (e.getMode() == FetchException.CANCELLED) {
-					return getIndexTypeFromMIME(mime[0]);
+					return new IndexTypeCache.Entry(getIndexTypeFromMIME(mime[0]), file);
 				}
 			}
 
@@ -451,6 +526,10 @@ final public class Library implements URLUpdateHook {
 			}
 			saveState();
 		}
+		if(old != null && !old.equals(uri)) {
+			// load the new edition in the background, if the old one is in use
+			rtab.refresh(old, uri, name);
+		}
 		boolean isSame = false;
 		USKManager uskManager = pr.getNode().clientCore.clientContext.uskManager;
 		if(old != null) {
@@ -564,7 +643,7 @@ final public class Library implements URLUpdateHook {
 	 * Method to get all of the instatiated Indexes
 	 */
 	public final Iterable<Index> getAllIndices() {
-		return rtab.values();
+		return rtab.indexes();
 	}
 
 	public final Index getIndex(String indexuri) throws InvalidSearchException, TaskAbortException {
@@ -591,15 +670,25 @@ final public class Library implements URLUpdateHook {
 		indexuri = indexuri.trim();
 		if (indexuri.startsWith(BOOKMARK_PREFIX)){
 			indexuri = indexuri.substring(BOOKMARK_PREFIX.length());
-			if (bookmarks.containsKey(indexuri))
-				return getIndex(bookmarks.get(indexuri), indexuri);
+			String target = getBookmark(indexuri);
+			if (target != null)
+				return getIndex(target, indexuri);
 			else
 				throw new InvalidSearchException("Index bookmark '"+indexuri+" does not exist");
 		}
 
-		if (rtab.containsKey(indexuri))
-			return rtab.get(indexuri);
+		return rtab.get(indexuri, origIndexName);
+	}
 
+	/**
+	 * Loads the index for the uri specified. This is only called by {@link
+	 * #rtab}, which makes sure that only one load of each uri is in progress.
+	 *
+	 * @param indexuri index specifier
+	 * @param origIndexName the bookmark the index was reached through, or null
+	 * @return Index object
+	 */
+	private Index loadIndex(String indexuri, String origIndexName) throws InvalidSearchException, TaskAbortException {
 		Class<?> indextype;
 		Index index;
 		Object indexkey;
@@ -611,6 +700,8 @@ final public class Library implements URLUpdateHook {
 		}
 
 		long edition = -1;
+		// where the root of the index is pulled from, if it isn't indexkey itself
+		Object rootkey = indexkey;
 
 		try {
 			if (indexkey instanceof File) {
@@ -620,16 +711,32 @@ final public class Library implements URLUpdateHook {
 				FreenetURI uri = (FreenetURI)indexkey;
 				if(uri.isUSK())
 					edition = uri.getEdition();
-				indextype = getIndexType(uri);
+				IndexTypeCache.Entry en = getIndexTypeEntry(uri);
+				indextype = en.type;
+				// pull the root of a ProtoIndex from the file it was found at, rather
+				// than the bare uri. XMLIndex adds its own default file.
+				if (indextype == ProtoIndex.class && en.file != null && en.file.length() > 0)
+					rootkey = uri.pushMetaString(en.file);
 			} else {
 				throw new AssertionError();
 			}
 
 			if (indextype == ProtoIndex.class) {
-				// TODO HIGH this *must* be non-blocking as it fetches the whole index root
-				PullTask<ProtoIndex> task = new PullTask<ProtoIndex>(indexkey);
-				ProtoIndexSerialiser.forIndex(indexkey).pull(task);
-				index = task.data;
+				// fetch the index root in the background; requests made on the
+				// deferred index are queued until it arrives
+				DeferredIndex<ProtoIndex> deferred = new DeferredIndex<ProtoIndex>(ProtoIndexSerialiser.forIndex(rootkey).pullAsync(rootkey));
+				if (indexkey instanceof FreenetURI) {
+					// if the root can't be loaded as the cached type, probe again next time
+					final FreenetURI uri = (FreenetURI)indexkey;
+					deferred.getRootExecution().addAcceptor(new ExecutionAcceptor<ProtoIndex>() {
+						/*@Override**/ public void acceptStarted(Execution<ProtoIndex> opn) { }
+						/*@Override**/ public void acceptDone(Execution<ProtoIndex> opn, ProtoIndex result) { }
+						/*@Override**/ public void acceptAborted(Execution<ProtoIndex> opn, TaskAbortException abort) {
+							types.invalidate(uri);
+						}
+					});
+				}
+				index = deferred;
 
 			} else if (indextype == XMLIndex.class) {
 				index = new XMLIndex(indexuri, edition, pr, this, origIndexName);
@@ -638,7 +745,6 @@ final public class Library implements URLUpdateHook {
 				throw new AssertionError();
 			}
 
-			rtab.put(indexuri, index);
 			Logger.normal(this, "Loaded index type " + indextype.getName() + " at " + indexuri);
 
 			return index;
@@ -659,9 +765,11 @@ final public class Library implements URLUpdateHook {
 			throw new TaskAbortException("Failed to parse index  " + indexuri, e);
 */
 		} catch (UnsupportedOperationException e) {
+			if (indexkey instanceof FreenetURI) { types.invalidate((FreenetURI)indexkey); }
 			throw new TaskAbortException("Failed to parse index  " + indexuri, e);
 
 		} catch (RuntimeException e) {
+			if (indexkey instanceof FreenetURI) { types.invalidate((FreenetURI)indexkey); }
 			throw new TaskAbortException("Failed to load index  " + indexuri, e);
 
 		}
@@ -696,6 +804,52 @@ final public class Library implements URLUpdateHook {
 		return Library.<T>makeArchiver(rw, rw, mime, size);
 	}
 
+	/**
+	** Directory in which to keep local copies of fetched CHKs.
+	*/
+	final public static String CACHE_DIR = "library-cache";
+
+	/**
+	** Maximum size of {@link #CACHE_DIR}, in bytes.
+	*/
+	final public static long CACHE_SIZE = 0x4000000; // 64MiB
+
+	private static CachingArchiver.Store cache;
+	private static boolean cache_failed;
+
+	/**
+	** Returns the store for local copies of fetched CHKs, opening it if
+	** necessary, or {@code null} if it could not be opened.
+	*/
+	private synchronized static CachingArchiver.Store getCache() {
+		if (cache == null && !cache_failed) {
+			try {
+				cache = new CachingArchiver.Store(new File(CACHE_DIR), CACHE_SIZE);
+			} catch (IOException e) {
+				Logger.error(Library.class, "Could not open cache in " + CACHE_DIR + "; fetched data will not be cached", e);
+				cache_failed = true;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	** Create a {@link FreenetArchiver} connected to the core of the
+	** singleton's {@link PluginRespirator}, which keeps local copies of the
+	** CHKs that it transfers in {@link #CACHE_DIR}, and loads them from there
+	** the next time. If the cache can't be opened, the archiver is returned
+	** without it.
+	**
+	** @throws IllegalStateException if the singleton has not been initialised
+	**         or if it does not have a respirator.
+	*/
+	public static <T, S extends ObjectStreamWriter & ObjectStreamReader> LiveArchiver<T, SimpleProgress>
+	makeCachingArchiver(S rw, String mime, int size) {
+		FreenetArchiver<T> arx = Library.<T>makeArchiver(rw, mime, size);
+		CachingArchiver.Store store = getCache();
+		return (store == null)? arx: new CachingArchiver<T>(arx, rw, store);
+	}
+
 	public static String convertToHex(byte[] data) {
 		StringBuilder buf = new StringBuilder();
 		for (int i = 0; i < data.length; i++) {
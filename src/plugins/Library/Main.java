@@ -9,6 +9,7 @@ import freenet.support.api.Bucket;
 import java.io.IOException;
 import java.util.logging.Level;
 import plugins.Library.index.TermEntry;
+import plugins.Library.index.xml.XMLIndex;
 import plugins.Library.search.Search;
 import plugins.Library.ui.WebInterface;
 import plugins.Library.util.concurrent.Executors;
@@ -94,6 +95,7 @@ public class Main implements FredPlugin, FredPluginVersioned, freenet.pluginmana
 		Executor exec = pr.getNode().executor;
 		library = Library.init(pr);
 		Search.setup(library, exec);
+		XMLIndex.setup(exec);
 		Executors.setDefaultExecutor(exec);
 		webinterface = new WebInterface(library, pr);
 		webinterface.load();
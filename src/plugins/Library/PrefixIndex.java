@@ -0,0 +1,23 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.util.exec.Execution;
+
+import java.util.Set;
+
+/**
+** Represents an Index that can look up every term starting with a prefix.
+*/
+public interface PrefixIndex extends Index {
+
+	/**
+	** Non-blocking fetch of the entries associated with every term that
+	** starts with the given prefix. Entries for the same target (eg. the same
+	** page) under different terms are merged into one.
+	*/
+	public Execution<Set<TermEntry>> getTermEntriesForPrefix(String prefix);
+
+}
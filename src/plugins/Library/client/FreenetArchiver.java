@@ -6,24 +6,30 @@ package plugins.Library.client;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.io.serial.AsyncArchiver;
 import plugins.Library.io.serial.LiveArchiver;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 import com.db4o.ObjectContainer;
 
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.ClientMetadata;
-//import freenet.client.FetchContext;
+import freenet.client.FetchContext;
 import freenet.client.FetchException;
 import freenet.client.FetchResult;
 //import freenet.client.FetchWaiter;
 import freenet.client.InsertBlock;
-//import freenet.client.InsertContext;
+import freenet.client.InsertContext;
 import freenet.client.InsertException;
 //import freenet.client.PutWaiter;
-//import freenet.client.async.ClientGetter;
-//import freenet.client.async.ClientPutter;
+import freenet.client.async.BaseClientPutter;
+import freenet.client.async.ClientGetCallback;
+import freenet.client.async.ClientGetter;
+import freenet.client.async.ClientPutCallback;
+import freenet.client.async.ClientPutter;
 import freenet.client.async.ClientContext;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.ClientEvent;
@@ -31,6 +37,7 @@ import freenet.client.events.SplitfileProgressEvent;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestStarter;
 import freenet.node.NodeClientCore;
+import freenet.node.RequestClient;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.io.Closer;
@@ -49,10 +56,13 @@ import java.util.ArrayList;
 ** used to do the hard work once the relevant streams have been established,
 ** from temporary {@link Bucket}s.
 **
+** The {@link AsyncArchiver} methods use the node's asynchronous client API,
+** so that many requests can be in flight without a thread waiting on each.
+**
 ** @author infinity0
 */
 public class FreenetArchiver<T>
-implements LiveArchiver<T, SimpleProgress> {
+implements AsyncArchiver<T, SimpleProgress> {
 
 	final protected NodeClientCore core;
 	final protected ObjectStreamReader reader;
@@ -219,6 +229,133 @@ implements LiveArchiver<T, SimpleProgress> {
 		}
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation expects metdata of type {@link FreenetURI}. The
+	** data is decoded in the thread that delivers the fetch result.
+	*/
+	/*@Override**/ public void pullAsync(final PullTask<T> task, final SimpleProgress progress, final SafeClosure<X2<PullTask<T>, TaskAbortException>> done) {
+		HighLevelSimpleClient hlsc = core.makeClient(RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+
+		try {
+			FreenetURI furi = (FreenetURI)task.meta;
+			if (progress != null) {
+				hlsc.addEventHook(new SimpleProgressUpdater(progress));
+			}
+
+			FetchContext fctx = hlsc.getFetchContext();
+			ClientGetter gu = hlsc.fetch(furi, -1, (RequestClient)hlsc, new ClientGetCallback() {
+				/*@Override**/ public void onSuccess(FetchResult res, ClientGetter state, ObjectContainer container) {
+					Bucket tempB = null; InputStream is = null;
+					TaskAbortException ex = null;
+					try {
+						tempB = res.asBucket();
+						is = tempB.getInputStream();
+						task.data = (T)reader.readObject(is);
+						is.close();
+						if (progress != null) { progress.addPartKnown(0, true); }
+					} catch (IOException e) {
+						ex = fail(progress, new TaskAbortException("Failed to read content from local tempbucket", e, true));
+					} catch (RuntimeException e) {
+						ex = fail(progress, new TaskAbortException("Failed to complete task: ", e));
+					} finally {
+						Closer.close(is);
+						Closer.close(tempB);
+					}
+					done.invoke(X2(task, ex));
+				}
+
+				/*@Override**/ public void onFailure(FetchException e, ClientGetter state, ObjectContainer container) {
+					done.invoke(X2(task, fail(progress, new TaskAbortException("Failed to fetch content", e, true))));
+				}
+
+				/*@Override**/ public void onMajorProgress(ObjectContainer container) { }
+
+			}, fctx);
+			gu.setPriorityClass(RequestStarter.INTERACTIVE_PRIORITY_CLASS, core.clientContext, null);
+
+		} catch (FetchException e) {
+			done.invoke(X2(task, fail(progress, new TaskAbortException("Failed to fetch content", e, true))));
+
+		} catch (RuntimeException e) {
+			done.invoke(X2(task, fail(progress, new TaskAbortException("Failed to complete task: ", e))));
+
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation produces metdata of type {@link FreenetURI}, in the
+	** same way as {@link #pushLive(PushTask, SimpleProgress)}.
+	*/
+	/*@Override**/ public void pushAsync(final PushTask<T> task, final SimpleProgress progress, final SafeClosure<X2<PushTask<T>, TaskAbortException>> done) {
+		HighLevelSimpleClient hlsc = core.makeClient(RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+		Bucket tempB = null; OutputStream os = null;
+
+		try {
+			tempB = core.tempBucketFactory.makeBucket(expected_bytes, 2);
+			os = tempB.getOutputStream();
+			writer.writeObject(task.data, os);
+			os.close(); os = null;
+			tempB.setReadOnly();
+
+			FreenetURI target = (task.meta instanceof FreenetURI)? (FreenetURI)task.meta: FreenetURI.EMPTY_CHK_URI;
+			InsertBlock ib = new InsertBlock(tempB, new ClientMetadata(default_mime), target);
+			tempB = null; // let GC know we don't need to reference this again from this scope
+
+			if (progress != null) {
+				hlsc.addEventHook(new SimpleProgressUpdater(progress));
+			}
+
+			InsertContext ictx = hlsc.getInsertContext(true);
+			ClientPutter pu = hlsc.insert(ib, false, null, false, ictx, new ClientPutCallback() {
+				private volatile FreenetURI uri;
+
+				/*@Override**/ public void onGeneratedURI(FreenetURI u, BaseClientPutter state, ObjectContainer container) {
+					uri = u;
+				}
+
+				/*@Override**/ public void onSuccess(BaseClientPutter state, ObjectContainer container) {
+					task.meta = uri;
+					if (progress != null) { progress.addPartKnown(0, true); }
+					done.invoke(X2(task, (TaskAbortException)null));
+				}
+
+				/*@Override**/ public void onFailure(InsertException e, BaseClientPutter state, ObjectContainer container) {
+					done.invoke(X2(task, fail(progress, new TaskAbortException("Failed to insert content", e, true))));
+				}
+
+				/*@Override**/ public void onFetchable(BaseClientPutter state, ObjectContainer container) { }
+
+				/*@Override**/ public void onMajorProgress(ObjectContainer container) { }
+
+			});
+			pu.setPriorityClass(RequestStarter.INTERACTIVE_PRIORITY_CLASS, core.clientContext, null);
+
+		} catch (InsertException e) {
+			done.invoke(X2(task, fail(progress, new TaskAbortException("Failed to insert content", e, true))));
+
+		} catch (IOException e) {
+			done.invoke(X2(task, fail(progress, new TaskAbortException("Failed to write content to local tempbucket", e, true))));
+
+		} catch (RuntimeException e) {
+			done.invoke(X2(task, fail(progress, new TaskAbortException("Failed to complete task: ", e))));
+
+		} finally {
+			Closer.close(os);
+			Closer.close(tempB);
+		}
+	}
+
+	/**
+	** Aborts the progress, if there is one, and returns the given exception.
+	*/
+	private static TaskAbortException fail(SimpleProgress progress, TaskAbortException e) {
+		return (progress == null)? e: progress.fail(e);
+	}
+
 	/*@Override**/ public void pull(PullTask<T> task) throws TaskAbortException {
 		pullLive(task, null);
 	}
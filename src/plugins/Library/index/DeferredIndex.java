@@ -0,0 +1,202 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.Index;
+import plugins.Library.PrefixIndex;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.ChainedProgress;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Set;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+** An {@link Index} whose data structure is still being retrieved. Requests
+** made on this object are queued until the underlying index is available,
+** and are then passed on to it in the order they were made. If retrieval of
+** the index fails, all queued requests are aborted with the same error.
+**
+** This lets callers start queuing term lookups whilst the index root is
+** still in flight, eg. from {@link ProtoIndexSerialiser#pullAsync(Object)}.
+*/
+public class DeferredIndex<I extends Index> implements PrefixIndex {
+
+	/**
+	** The retrieval of the underlying index.
+	*/
+	final protected Execution<I> root;
+
+	/**
+	** Requests waiting for the underlying index, in the order they were made,
+	** or {@code null} once they have been passed on. These are kept here
+	** rather than added to {@link #root} one by one, since an {@link
+	** AbstractExecution} offers its result to its acceptors in no set order.
+	*/
+	protected List<DeferredExecution<?>> pending = new ArrayList<DeferredExecution<?>>();
+
+	public DeferredIndex(Execution<I> r) {
+		if (r == null) { throw new NullPointerException(); }
+		root = r;
+		root.addAcceptor(new ExecutionAcceptor<I>() {
+			/*@Override**/ public void acceptStarted(Execution<I> opn) { }
+			/*@Override**/ public void acceptDone(Execution<I> opn, I index) {
+				for (DeferredExecution<?> request: takePending()) { request.acceptDone(opn, index); }
+			}
+			/*@Override**/ public void acceptAborted(Execution<I> opn, TaskAbortException abort) {
+				for (DeferredExecution<?> request: takePending()) { request.acceptAborted(opn, abort); }
+			}
+		});
+	}
+
+	/**
+	** Queues the given request until the underlying index is retrieved, or
+	** passes it on straight away if that has already happened.
+	*/
+	protected void defer(DeferredExecution<?> request) {
+		synchronized (this) {
+			if (pending != null) { pending.add(request); return; }
+		}
+		root.addAcceptor(request);
+	}
+
+	protected synchronized List<DeferredExecution<?>> takePending() {
+		List<DeferredExecution<?>> requests = pending;
+		pending = null;
+		return requests;
+	}
+
+	/**
+	** Returns the retrieval of the underlying index.
+	*/
+	public Execution<I> getRootExecution() {
+		return root;
+	}
+
+	/**
+	** Returns the underlying index, or {@code null} if it has not yet been
+	** retrieved.
+	**
+	** @throws TaskAbortException if retrieval of the index failed
+	*/
+	public I getIndex() throws TaskAbortException {
+		return root.getResult();
+	}
+
+	/*========================================================================
+	  public interface Index
+	 ========================================================================*/
+
+	/*@Override**/ public Execution<Set<TermEntry>> getTermEntries(final String term) {
+		DeferredExecution<Set<TermEntry>> request = new DeferredExecution<Set<TermEntry>>(term) {
+			@Override protected Execution<Set<TermEntry>> startOn(I index) {
+				return index.getTermEntries(term);
+			}
+		};
+		defer(request);
+		return request;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The request is aborted if the underlying index turns out not to be a
+	** {@link PrefixIndex}.
+	*/
+	/*@Override**/ public Execution<Set<TermEntry>> getTermEntriesForPrefix(final String prefix) {
+		DeferredExecution<Set<TermEntry>> request = new DeferredExecution<Set<TermEntry>>(prefix + "*") {
+			@Override protected Execution<Set<TermEntry>> startOn(I index) {
+				if (!(index instanceof PrefixIndex)) {
+					throw new UnsupportedOperationException("Index does not support prefix queries: " + index);
+				}
+				return ((PrefixIndex)index).getTermEntriesForPrefix(prefix);
+			}
+		};
+		defer(request);
+		return request;
+	}
+
+	/*@Override**/ public Execution<URIEntry> getURIEntry(final FreenetURI uri) {
+		DeferredExecution<URIEntry> request = new DeferredExecution<URIEntry>(String.valueOf(uri)) {
+			@Override protected Execution<URIEntry> startOn(I index) {
+				return index.getURIEntry(uri);
+			}
+		};
+		defer(request);
+		return request;
+	}
+
+	/**
+	** An {@link Execution} which waits for the underlying index to be
+	** retrieved, then starts the real request on it and passes on its result.
+	*/
+	abstract protected class DeferredExecution<V> extends AbstractExecution<V> implements ChainedProgress, ExecutionAcceptor<I> {
+
+		/**
+		** The real request, or {@code null} if it has not yet been started.
+		*/
+		protected volatile Execution<V> request;
+
+		protected DeferredExecution(String subj) {
+			super(subj);
+		}
+
+		/**
+		** Start the real request on the given index.
+		*/
+		abstract protected Execution<V> startOn(I index);
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			Execution<V> req = request;
+			if (req != null) { return req.getParts(); }
+			getResult(); // throw the error if retrieval of the index failed
+			return ProgressParts.normalise(0, 0, 1, ProgressParts.ESTIMATE_UNKNOWN);
+		}
+
+		@Override public String getStatus() {
+			Execution<V> req = request;
+			return (req != null)? req.getStatus(): "Loading index: " + root.getStatus();
+		}
+
+		/*@Override**/ public Progress getCurrentProgress() {
+			Execution<V> req = request;
+			return (req != null)? req: root;
+		}
+
+		/*@Override**/ public void acceptStarted(Execution<I> opn) { }
+
+		/*@Override**/ public void acceptDone(Execution<I> opn, I index) {
+			Execution<V> req;
+			try {
+				req = startOn(index);
+			} catch (RuntimeException e) {
+				setError(new TaskAbortException("Could not start request on index", e));
+				return;
+			}
+			request = req;
+			req.addAcceptor(new ExecutionAcceptor<V>() {
+				/*@Override**/ public void acceptStarted(Execution<V> opn) { }
+				/*@Override**/ public void acceptDone(Execution<V> opn, V result) {
+					setResult(result);
+				}
+				/*@Override**/ public void acceptAborted(Execution<V> opn, TaskAbortException abort) {
+					setError(abort);
+				}
+			});
+		}
+
+		/*@Override**/ public void acceptAborted(Execution<I> opn, TaskAbortException abort) {
+			setError(abort);
+		}
+
+	}
+
+}
@@ -0,0 +1,288 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.NoSuchElementException;
+
+/**
+** An immutable map of positions in a document to (optional) fragments of text
+** surrounding them, as used by {@link TermPageEntry#pos}.
+**
+** The positions are held as a sorted {@code int[]}, and the fragments as a
+** parallel {@code String[]}, which is dropped altogether if every fragment is
+** {@code null} (as it is for all current indexes). This is a lot more compact
+** than a {@link java.util.HashMap}, which needs a boxed key and an entry object
+** for every position. {@link Integer} keys and {@link Map.Entry} objects are
+** only created if the map is accessed through its {@link Map} interface.
+**
+** Code that needs speed should use {@link #size()}, {@link #positionAt(int)},
+** {@link #fragmentAt(int)} and {@link #indexOf(int)} instead, eg. to merge
+** the positions of two maps in linear time.
+*/
+public class PositionMap extends AbstractMap<Integer, String> {
+
+	final public static PositionMap EMPTY = new PositionMap(new int[0], null, 0);
+
+	/**
+	** Positions, in strictly ascending order. Only the first {@link #size}
+	** elements are used.
+	*/
+	final protected int[] positions;
+
+	/**
+	** Fragments, parallel to {@link #positions}, or {@code null} if there are
+	** no fragments.
+	*/
+	final protected String[] fragments;
+
+	final protected int size;
+
+	/**
+	** Internal constructor; the arrays must already be sorted and must not be
+	** modified afterwards.
+	*/
+	protected PositionMap(int[] p, String[] f, int n) {
+		positions = p;
+		fragments = f;
+		size = n;
+	}
+
+	/**
+	** Creates a map from parallel arrays of positions and fragments. These
+	** need not be sorted; if a position occurs more than once, the last one
+	** wins, as for {@link Map#put(Object, Object)}. The arrays are taken over
+	** by the map and must not be modified afterwards.
+	**
+	** @param p The positions
+	** @param f The fragments, or {@code null} if there are none
+	*/
+	public static PositionMap fromArrays(int[] p, String[] f) {
+		if (f != null) {
+			if (f.length != p.length) {
+				throw new IllegalArgumentException("positions and fragments must be the same length");
+			}
+			if (allNull(f)) { f = null; }
+		}
+		if (p.length == 0) { return EMPTY; }
+
+		int n = p.length;
+		if (isStrictlyAscending(p)) {
+			return new PositionMap(p, f, n);
+		} else if (f == null) {
+			Arrays.sort(p);
+			// remove duplicates
+			n = 1;
+			for (int i=1; i<p.length; ++i) {
+				if (p[i] != p[n-1]) { p[n++] = p[i]; }
+			}
+			return new PositionMap(p, null, n);
+		} else {
+			// uncommon, so don't bother with anything clever
+			TreeMap<Integer, String> sorted = new TreeMap<Integer, String>();
+			for (int i=0; i<p.length; ++i) { sorted.put(p[i], f[i]); }
+			return fromSortedMap(sorted);
+		}
+	}
+
+	/**
+	** Creates a map with the same mappings as the given map. If it is
+	** already a {@code PositionMap}, it is returned as-is.
+	**
+	** @param m The map to copy, or {@code null} for an empty map
+	*/
+	public static PositionMap copyOf(Map<Integer, String> m) {
+		if (m == null) { return EMPTY; }
+		if (m instanceof PositionMap) { return (PositionMap)m; }
+		int[] p = new int[m.size()];
+		String[] f = new String[m.size()];
+		int i = 0;
+		for (Map.Entry<Integer, String> en: m.entrySet()) {
+			p[i] = en.getKey();
+			f[i] = en.getValue();
+			++i;
+		}
+		return fromArrays(p, f);
+	}
+
+	private static PositionMap fromSortedMap(TreeMap<Integer, String> m) {
+		int[] p = new int[m.size()];
+		String[] f = new String[m.size()];
+		int i = 0;
+		for (Map.Entry<Integer, String> en: m.entrySet()) {
+			p[i] = en.getKey();
+			f[i] = en.getValue();
+			++i;
+		}
+		return new PositionMap(p, f, p.length);
+	}
+
+	private static boolean isStrictlyAscending(int[] p) {
+		for (int i=1; i<p.length; ++i) {
+			if (p[i] <= p[i-1]) { return false; }
+		}
+		return true;
+	}
+
+	private static boolean allNull(String[] f) {
+		for (String s: f) {
+			if (s != null) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	** Returns the {@code i}th smallest position.
+	*/
+	public int positionAt(int i) {
+		if (i < 0 || i >= size) { throw new IndexOutOfBoundsException(); }
+		return positions[i];
+	}
+
+	/**
+	** Returns the fragment for the {@code i}th smallest position.
+	*/
+	public String fragmentAt(int i) {
+		if (i < 0 || i >= size) { throw new IndexOutOfBoundsException(); }
+		return (fragments == null)? null: fragments[i];
+	}
+
+	/**
+	** Whether any position has a non-{@code null} fragment.
+	*/
+	public boolean hasFragments() {
+		return fragments != null;
+	}
+
+	/**
+	** Returns the index of the given position, or a negative value if it is
+	** not in this map, as for {@link Arrays#binarySearch(int[], int)}.
+	*/
+	public int indexOf(int position) {
+		int lo = 0, hi = size-1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int v = positions[mid];
+			if (v < position) { lo = mid + 1; }
+			else if (v > position) { hi = mid - 1; }
+			else { return mid; }
+		}
+		return -(lo + 1);
+	}
+
+	/**
+	** Returns a map containing only the positions at the given indexes.
+	**
+	** @param idx Indexes into this map, in ascending order
+	** @param n Number of elements of {@code idx} to use
+	*/
+	public PositionMap subset(int[] idx, int n) {
+		if (n == size) { return this; }
+		if (n == 0) { return EMPTY; }
+		int[] p = new int[n];
+		String[] f = (fragments == null)? null: new String[n];
+		for (int i=0; i<n; ++i) {
+			p[i] = positions[idx[i]];
+			if (f != null) { f[i] = fragments[idx[i]]; }
+		}
+		return new PositionMap(p, (f == null || allNull(f))? null: f, n);
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
+	}
+
+	@Override public boolean containsKey(Object o) {
+		return o instanceof Integer && indexOf((Integer)o) >= 0;
+	}
+
+	@Override public String get(Object o) {
+		if (fragments == null || !(o instanceof Integer)) { return null; }
+		int i = indexOf((Integer)o);
+		return (i < 0)? null: fragments[i];
+	}
+
+	private transient Set<Map.Entry<Integer, String>> entries;
+	@Override public Set<Map.Entry<Integer, String>> entrySet() {
+		if (entries == null) {
+			entries = new AbstractSet<Map.Entry<Integer, String>>() {
+
+				@Override public int size() { return size; }
+
+				@Override public Iterator<Map.Entry<Integer, String>> iterator() {
+					return new Iterator<Map.Entry<Integer, String>>() {
+						int i = 0;
+
+						/*@Override**/ public boolean hasNext() {
+							return i < size;
+						}
+
+						/*@Override**/ public Map.Entry<Integer, String> next() {
+							if (i >= size) { throw new NoSuchElementException(); }
+							return new Entry(i++);
+						}
+
+						/*@Override**/ public void remove() {
+							throw new UnsupportedOperationException("PositionMap is immutable");
+						}
+					};
+				}
+
+			};
+		}
+		return entries;
+	}
+
+	/**
+	** A read-only view of one mapping.
+	*/
+	protected class Entry implements Map.Entry<Integer, String> {
+
+		final protected int i;
+
+		protected Entry(int i) {
+			this.i = i;
+		}
+
+		/*@Override**/ public Integer getKey() {
+			return positions[i];
+		}
+
+		/*@Override**/ public String getValue() {
+			return (fragments == null)? null: fragments[i];
+		}
+
+		/*@Override**/ public String setValue(String v) {
+			throw new UnsupportedOperationException("PositionMap is immutable");
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry<?, ?> en = (Map.Entry<?, ?>)o;
+			String v = getValue();
+			return getKey().equals(en.getKey()) && (v == null? en.getValue() == null: v.equals(en.getValue()));
+		}
+
+		@Override public int hashCode() {
+			String v = getValue();
+			return positions[i] ^ (v == null? 0: v.hashCode());
+		}
+
+		@Override public String toString() {
+			return positions[i] + "=" + getValue();
+		}
+
+	}
+
+}
@@ -4,41 +4,56 @@
 package plugins.Library.index;
 
 import plugins.Library.Index;
+import plugins.Library.PrefixIndex;
+import plugins.Library.WriteableIndex;
 import plugins.Library.io.serial.Serialiser;
+import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.io.serial.ProgressTracker;
 import plugins.Library.util.Skeleton;
 import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
 import plugins.Library.util.DataNotLoadedException;
+import plugins.Library.util.ResidencyManager;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.ChainedProgress;
 import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.AbstractExecution;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
 import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.BoundedExecutor;
 
 import freenet.keys.FreenetURI;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.HashMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.LinkedHashMap;
 import java.util.Date;
+import java.io.File;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
 ** Prototype B-tree based index. DOCUMENT
 **
 ** @author infinity0
 */
-final public class ProtoIndex implements Index {
+final public class ProtoIndex implements WriteableIndex, PrefixIndex {
 
 	final static long serialVersionUID = 0xf8ea40b26c1e5b36L;
 
@@ -49,9 +64,29 @@ final public class ProtoIndex implements Index {
 	/*final*/ public static int BTREE_NODE_MIN = 0x1000;
 	final public static int BTREE_ENT_MAX = (BTREE_NODE_MIN<<1) - 1;
 
-	protected static Executor exec = Executors.DEFAULT_EXECUTOR;
+	/**
+	** Runs searches and updates. These wait on the pulls and pushes that they
+	** start, which run on {@link Executors#DEFAULT_EXECUTOR}, so they must not
+	** run there themselves, or enough of them at once would leave no threads
+	** for their own tasks.
+	*/
+	protected static Executor exec = new BoundedExecutor(Executors.newThreadPerTaskExecutor("ProtoIndex request"), 0x40, Integer.MAX_VALUE);
 	public static void setExecutor(Executor e) { exec = e; }
 
+	/**
+	** Manager for the parts of {@link #ttab} that are pulled in by searches.
+	** This is shared between all indexes, and bounds the memory they use in
+	** total; it only affects indexes constructed after it is set.
+	*/
+	protected static ResidencyManager residency = new ResidencyManager(Integer.MAX_VALUE, 0x4000000);
+	public static void setResidencyManager(ResidencyManager r) { residency = r; }
+
+	/**
+	** Default maximum number of terms that a prefix is expanded to, by {@link
+	** #getTermEntriesForPrefix(String)}.
+	*/
+	final public static int PREFIX_TERMS_MAX = 0x100;
+
 	/**
 	** Request ID for this index
 	*/
@@ -104,6 +139,7 @@ final public class ProtoIndex implements Index {
 		//filtab = f;
 		ttab = t;
 		utab = u;
+		ttab.setResidencyManager(residency);
 	}
 
 	// TODO NORM maybe have more general class than ProtoIndexSerialiser
@@ -123,26 +159,161 @@ final public class ProtoIndex implements Index {
 
 
 
-	private Map<String, Execution<Set<TermEntry>>> getTermEntriesProgress = new
-	HashMap<String, Execution<Set<TermEntry>>>();
-
-	public Execution<Set<TermEntry>> getTermEntries(String term) {
-		Execution<Set<TermEntry>> request = getTermEntriesProgress.get(term);
+	/**
+	** Non-blocking fetch of the entries associated with the given term. The
+	** result is shared with (and may come from) other lookups of the same
+	** term in this edition of the index; see {@link TermEntryCache}.
+	*/
+	public synchronized Execution<Set<TermEntry>> getTermEntries(String term) {
+		TermEntryCache cache = TermEntryCache.getDefault();
+		String index = getCacheKey(), edition = String.valueOf(modified.getTime());
+		Execution<Set<TermEntry>> request = cache.get(index, edition, term);
 		if (request == null) {
-			request = new getTermEntriesHandler(term);
-			getTermEntriesProgress.put(term, request);
-			exec.execute((getTermEntriesHandler)request);
+			getTermEntriesHandler handler = new getTermEntriesHandler(term);
+			cache.put(index, edition, handler);
+			exec.execute(handler);
+			request = handler;
 		}
 		return request;
 	}
 
+	/**
+	** Returns the key that identifies this index in the {@link TermEntryCache}:
+	** the URI it was fetched from, or for a local index, this object.
+	*/
+	protected String getCacheKey() {
+		return (reqID != null)? reqID.toString(): "ProtoIndex@" + Integer.toHexString(System.identityHashCode(this));
+	}
+
 
 
 
+	/**
+	** Non-blocking fetch of the entries associated with every term that starts
+	** with the given prefix, up to {@link #PREFIX_TERMS_MAX} terms.
+	**
+	** @see #getTermEntriesForPrefix(String, int)
+	*/
+	/*@Override**/ public Execution<Set<TermEntry>> getTermEntriesForPrefix(String prefix) {
+		return getTermEntriesForPrefix(prefix, PREFIX_TERMS_MAX);
+	}
+
+	/**
+	** Non-blocking fetch of the entries associated with every term that starts
+	** with the given prefix. The result has one entry for each page (or index,
+	** or term) that any of the terms point to, as for an OR of the terms; see
+	** {@link getPrefixEntriesHandler#merge(TermEntry, TermEntry)}. Only the nodes of {@link #ttab} that overlap the range of terms
+	** with the prefix are pulled, so this costs about as much as a lookup of a
+	** single term, plus that of fetching the entries for each term found.
+	**
+	** @param prefix The prefix
+	** @param max_terms Maximum number of terms to expand the prefix to; terms
+	**        past this (in lexicographic order) are ignored
+	*/
+	public Execution<Set<TermEntry>> getTermEntriesForPrefix(String prefix, int max_terms) {
+		if (max_terms < 1) {
+			throw new IllegalArgumentException("Must expand to at least one term: " + max_terms);
+		}
+		getPrefixEntriesHandler request = new getPrefixEntriesHandler(prefix, max_terms);
+		exec.execute(request);
+		return request;
+	}
+
+	/**
+	** Returns the least string greater than every string that starts with the
+	** given prefix, or {@code null} if there is no such string.
+	*/
+	protected static String prefixBound(String prefix) {
+		for (int i=prefix.length()-1; i>=0; --i) {
+			char c = prefix.charAt(i);
+			if (c != Character.MAX_VALUE) {
+				return prefix.substring(0, i) + (char)(c+1);
+			}
+		}
+		return null;
+	}
+
 	public Execution<URIEntry> getURIEntry(FreenetURI uri) {
 		throw new UnsupportedOperationException("not implemented");
 	}
 
+	/**
+	** Held for writing by an update, since {@link SkeletonBTreeMap#update(
+	** SortedSet, SortedSet, Closure)} does not support concurrent updates, and
+	** changes the nodes of the tables in place; held for reading by searches
+	** whilst they walk {@link #ttab}, so they wait for any update to finish.
+	*/
+	final protected ReadWriteLock update_lock = new ReentrantReadWriteLock();
+
+	/**
+	** Loads the data that a search found missing from {@link #ttab}. The
+	** values of a node are pulled together, so another search could be
+	** loading the same ones; as in {@link SkeletonBTreeMap#inflate()}, this
+	** is done whilst holding the node's entries.
+	*/
+	protected static void inflateMissing(DataNotLoadedException d) throws TaskAbortException {
+		Skeleton p = d.getParent();
+		if (p instanceof SkeletonTreeMap) {
+			synchronized (p) { p.inflate(d.getKey()); }
+		} else {
+			p.inflate(d.getKey());
+		}
+	}
+
+	/**
+	** Non-blocking merge of the given entries into the index. See {@link
+	** UpdateHandler} for details.
+	*/
+	/*@Override**/ public Execution<FreenetURI> putTermEntries(Collection<TermEntry> entries) {
+		return startUpdate(new UpdateHandler("Adding " + entries.size() + " term entries", entries, null, null, null));
+	}
+
+	/**
+	** Non-blocking removal of the given entries from the index. See {@link
+	** UpdateHandler} for details.
+	*/
+	/*@Override**/ public Execution<FreenetURI> remTermEntries(Collection<TermEntry> entries) {
+		return startUpdate(new UpdateHandler("Removing " + entries.size() + " term entries", null, entries, null, null));
+	}
+
+	/**
+	** Non-blocking merge of the given entries into the index. See {@link
+	** UpdateHandler} for details.
+	*/
+	/*@Override**/ public Execution<FreenetURI> putURIEntries(Collection<URIEntry> entries) {
+		return startUpdate(new UpdateHandler("Adding " + entries.size() + " uri entries", null, null, entries, null));
+	}
+
+	/**
+	** Non-blocking removal of the given entries from the index. See {@link
+	** UpdateHandler} for details.
+	*/
+	/*@Override**/ public Execution<FreenetURI> remURIEntries(Collection<URIEntry> entries) {
+		return startUpdate(new UpdateHandler("Removing " + entries.size() + " uri entries", null, null, null, entries));
+	}
+
+	/**
+	** Non-blocking update of the index with several changes at once. This is
+	** more efficient than calling each of the above methods separately, since
+	** each node that is changed is only pushed once.
+	**
+	** @param putterms Term entries to add, or {@code null}
+	** @param remterms Term entries to remove, or {@code null}
+	** @param puturis URI entries to add, or {@code null}
+	** @param remuris URI entries to remove, or {@code null}
+	*/
+	public Execution<FreenetURI> update(Collection<TermEntry> putterms, Collection<TermEntry> remterms, Collection<URIEntry> puturis, Collection<URIEntry> remuris) {
+		return startUpdate(new UpdateHandler("Updating index", putterms, remterms, puturis, remuris));
+	}
+
+	protected Execution<FreenetURI> startUpdate(UpdateHandler request) {
+		if (serialiser == null) {
+			throw new IllegalStateException("Index has no serialiser; see ProtoIndexComponentSerialiser.setSerialiserFor()");
+		}
+		exec.execute(request);
+		return request;
+	}
+
 
 	public class getTermEntriesHandler extends AbstractExecution<Set<TermEntry>> implements Runnable, ChainedProgress {
 		// TODO NORM have a Runnable field instead of extending Runnable
@@ -180,6 +351,7 @@ final public class ProtoIndex implements Index {
 		// TODO HIGH tidy this - see SkeletonBTreeMap.inflate() for details
 		Progress last = null;
 		/*@Override**/ public void run() {
+			update_lock.readLock().lock();
 			try {
 				// get the root container
 				SkeletonBTreeSet<TermEntry> root;
@@ -190,7 +362,7 @@ final public class ProtoIndex implements Index {
 					} catch (DataNotLoadedException d) {
 						Skeleton p = d.getParent();
 						trackers.put(current_meta = d.getValue(), current_tracker = ((Serialiser.Trackable)p.getSerialiser()).getTracker());
-						p.inflate(d.getKey());
+						inflateMissing(d);
 					}
 				}
 
@@ -200,16 +372,324 @@ final public class ProtoIndex implements Index {
 				}
 				last = root.getProgressInflate(); // REMOVE ME
 				root.inflate();
+				ResidencyManager r = ttab.getResidencyManager();
+				if (r != null) { r.touchValue(ttab, subject, root); }
 				setResult(Collections.unmodifiableSet(root));
 
 			} catch (TaskAbortException e) {
 				setError(e);
 				return;
+			} finally {
+				update_lock.readLock().unlock();
+			}
+		}
+
+	}
+
+
+	/**
+	** Applies a batch of changes to the index, then pushes the new index root.
+	**
+	** The changes are grouped by term (for {@link #ttab}) and by {@link URIKey}
+	** (for {@link #utab}), and merged into each table with a single call to
+	** {@link SkeletonBTreeMap#update(SortedSet, SortedSet, Closure)}, which in
+	** turn updates the B-tree for each key that has changes. Only the nodes
+	** (and bins of root nodes) that are actually changed are pulled and pushed
+	** again; every other node keeps its existing metadata (eg. its CHK), so
+	** the cost of an update depends on the size of the changes, not the size
+	** of the index.
+	**
+	** The result is the {@link FreenetURI} of the new index root, or {@code
+	** null} if the index is stored locally; {@link #getRootMeta()} gives the
+	** metadata of the root in either case.
+	**
+	** Keys whose B-trees are left empty by removals are then removed from the
+	** table in a second (smaller) update.
+	*/
+	public class UpdateHandler extends AbstractExecution<FreenetURI> implements Runnable {
+
+		final protected SortedMap<String, SortedSet<TermEntry>> putterms;
+		final protected SortedMap<String, SortedSet<TermEntry>> remterms;
+		final protected SortedMap<URIKey, SortedMap<FreenetURI, URIEntry>> puturis;
+		final protected SortedMap<URIKey, SortedSet<FreenetURI>> remuris;
+
+		final static int STAGES = 3;
+		volatile int stage;
+		volatile Object root_meta;
+
+		protected UpdateHandler(String subj, Collection<TermEntry> pt, Collection<TermEntry> rt, Collection<URIEntry> pu, Collection<URIEntry> ru) {
+			super(subj);
+			putterms = groupTermEntries(pt);
+			remterms = groupTermEntries(rt);
+			puturis = new TreeMap<URIKey, SortedMap<FreenetURI, URIEntry>>();
+			remuris = new TreeMap<URIKey, SortedSet<FreenetURI>>();
+			try {
+				if (pu != null) {
+					for (URIEntry en: pu) {
+						URIKey key = new URIKey(en.getSubject());
+						SortedMap<FreenetURI, URIEntry> group = puturis.get(key);
+						if (group == null) { puturis.put(key, group = new TreeMap<FreenetURI, URIEntry>()); }
+						group.put(en.getSubject(), en);
+					}
+				}
+				if (ru != null) {
+					for (URIEntry en: ru) {
+						URIKey key = new URIKey(en.getSubject());
+						SortedSet<FreenetURI> group = remuris.get(key);
+						if (group == null) { remuris.put(key, group = new TreeSet<FreenetURI>()); }
+						group.add(en.getSubject());
+					}
+				}
+			} catch (java.net.MalformedURLException e) {
+				throw new IllegalArgumentException("Bad URI in entries", e);
+			}
+		}
+
+		protected SortedMap<String, SortedSet<TermEntry>> groupTermEntries(Collection<TermEntry> entries) {
+			SortedMap<String, SortedSet<TermEntry>> groups = new TreeMap<String, SortedSet<TermEntry>>();
+			if (entries == null) { return groups; }
+			for (TermEntry en: entries) {
+				SortedSet<TermEntry> group = groups.get(en.subj);
+				if (group == null) { groups.put(en.subj, group = new TreeSet<TermEntry>()); }
+				group.add(en);
+			}
+			return groups;
+		}
+
+		/**
+		** Returns the metadata of the pushed index root, or {@code null} if
+		** the update has not finished.
+		*/
+		public Object getRootMeta() {
+			return root_meta;
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			int done = stage;
+			return ProgressParts.normalise(done, (done < STAGES)? done+1: done, STAGES, ProgressParts.TOTAL_FINALIZED);
+		}
+
+		@Override public String getStatus() {
+			switch (stage) {
+			case 0: return "Updating term table";
+			case 1: return "Updating uri table";
+			case 2: return "Pushing index root";
+			default: return "Done";
+			}
+		}
+
+		/*@Override**/ public void run() {
+			update_lock.writeLock().lock();
+			try {
+				try {
+					updateTermTable();
+					stage = 1;
+					updateURITable();
+					stage = 2;
+
+					modified = new Date();
+					// results from before the update won't be asked for again
+					TermEntryCache.getDefault().invalidate(getCacheKey());
+					ProtoIndexSerialiser srl = serialiser.isLocal()? ProtoIndexSerialiser.forIndex((File)null): ProtoIndexSerialiser.forIndex((FreenetURI)null);
+					PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(ProtoIndex.this);
+					srl.push(task);
+					root_meta = task.meta;
+					stage = 3;
+					setResult((task.meta instanceof FreenetURI)? (FreenetURI)task.meta: null);
+
+				} catch (TaskAbortException e) {
+					setError(e);
+				} catch (RuntimeException e) {
+					setError(new TaskAbortException("Could not update index", e));
+				}
+			} finally {
+				update_lock.writeLock().unlock();
+			}
+		}
+
+		protected void updateTermTable() throws TaskAbortException {
+			SortedSet<String> terms = new TreeSet<String>(putterms.keySet());
+			terms.addAll(remterms.keySet());
+			if (terms.isEmpty()) { return; }
+			// only push what searches have not merely read since the last update
+			ttab.deflateChanged();
+
+			final SortedSet<String> emptied = new TreeSet<String>();
+			ttab.update(terms, null, new Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+				/*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> en) throws TaskAbortException {
+					SkeletonBTreeSet<TermEntry> tree = en.getValue();
+					if (tree == null) {
+						tree = new SkeletonBTreeSet<TermEntry>(BTREE_NODE_MIN);
+						serialiser.setSerialiserFor(tree);
+						en.setValue(tree);
+					}
+					SortedSet<TermEntry> put = putterms.get(en.getKey());
+					tree.update((put == null)? new TreeSet<TermEntry>(): put, remterms.get(en.getKey()));
+					if (tree.isEmpty()) {
+						synchronized (emptied) { emptied.add(en.getKey()); }
+					}
+				}
+			});
+
+			if (!emptied.isEmpty()) {
+				ttab.update(new TreeMap<String, SkeletonBTreeSet<TermEntry>>(), emptied);
+			}
+		}
+
+		protected void updateURITable() throws TaskAbortException {
+			SortedSet<URIKey> keys = new TreeSet<URIKey>(puturis.keySet());
+			keys.addAll(remuris.keySet());
+			if (keys.isEmpty()) { return; }
+			utab.deflateChanged();
+
+			final SortedSet<URIKey> emptied = new TreeSet<URIKey>();
+			utab.update(keys, null, new Closure<Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, TaskAbortException>() {
+				/*@Override**/ public void invoke(Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> en) throws TaskAbortException {
+					SkeletonBTreeMap<FreenetURI, URIEntry> tree = en.getValue();
+					if (tree == null) {
+						tree = new SkeletonBTreeMap<FreenetURI, URIEntry>(BTREE_NODE_MIN);
+						serialiser.setSerialiserFor(tree);
+						en.setValue(tree);
+					}
+					SortedMap<FreenetURI, URIEntry> put = puturis.get(en.getKey());
+					tree.update((put == null)? new TreeMap<FreenetURI, URIEntry>(): put, remuris.get(en.getKey()));
+					if (tree.isEmpty()) {
+						synchronized (emptied) { emptied.add(en.getKey()); }
+					}
+				}
+			});
+
+			if (!emptied.isEmpty()) {
+				utab.update(new TreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(), emptied);
 			}
 		}
 
 	}
 
 
+	public class getPrefixEntriesHandler extends AbstractExecution<Set<TermEntry>> implements Runnable {
+
+		final String prefix;
+		final int max_terms;
+
+		volatile int terms_found;
+		volatile int terms_done;
+
+		protected getPrefixEntriesHandler(String p, int max) {
+			super(p + "*");
+			prefix = p;
+			max_terms = max;
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			int done = terms_done;
+			int estimate = (getResult() != null)? ProgressParts.TOTAL_FINALIZED: ProgressParts.ESTIMATE_UNKNOWN;
+			return ProgressParts.normalise(done, done, terms_found, estimate);
+		}
+
+		@Override public String getStatus() {
+			return "Retrieved entries for " + terms_done + " of " + terms_found + " terms found";
+		}
+
+		/*@Override**/ public void run() {
+			update_lock.readLock().lock();
+			try {
+				// find the terms first, which only pulls the nodes covering the prefix
+				List<String> terms = new ArrayList<String>();
+				Iterator<Map.Entry<String, SkeletonBTreeSet<TermEntry>>> it = ttab.range(prefix, prefixBound(prefix)).iterator();
+				for (;;) {
+					try {
+						while (terms.size() < max_terms && it.hasNext()) {
+							terms.add(it.next().getKey());
+							++terms_found;
+						}
+						break;
+					} catch (DataNotLoadedException d) {
+						inflateMissing(d);
+					}
+				}
+
+				Map<List<Object>, TermEntry> merged = new HashMap<List<Object>, TermEntry>();
+				ResidencyManager r = ttab.getResidencyManager();
+				for (String term: terms) {
+					SkeletonBTreeSet<TermEntry> root;
+					for (;;) {
+						try {
+							root = ttab.get(term);
+							break;
+						} catch (DataNotLoadedException d) {
+							// the node might have been evicted since we found the term
+							inflateMissing(d);
+						}
+					}
+					root.inflate();
+					if (r != null) { r.touchValue(ttab, term, root); }
+					for (TermEntry en: root) {
+						List<Object> target = targetOf(en);
+						merged.put(target, merge(merged.get(target), en));
+					}
+					++terms_done;
+				}
+				setResult(Collections.unmodifiableSet(new TreeSet<TermEntry>(merged.values())));
+
+			} catch (TaskAbortException e) {
+				setError(e);
+			} catch (RuntimeException e) {
+				setError(new TaskAbortException("Could not retrieve entries for prefix " + prefix, e));
+			} finally {
+				update_lock.readLock().unlock();
+			}
+		}
+
+		/**
+		** Returns a key that is the same for all entries with the same target,
+		** whatever their subject.
+		*/
+		protected List<Object> targetOf(TermEntry en) {
+			switch (en.entryType()) {
+			case PAGE: return Arrays.<Object>asList(en.entryType(), ((TermPageEntry)en).page);
+			case INDEX: return Arrays.<Object>asList(en.entryType(), ((TermIndexEntry)en).index);
+			case TERM: return Arrays.<Object>asList(en.entryType(), ((TermTermEntry)en).term);
+			default: throw new UnsupportedOperationException("Unknown type: " + en.entryType());
+			}
+		}
+
+		/**
+		** Merge an entry for one of the terms into the entry with the same
+		** target found so far, if any. The result has the subject of this
+		** request, the highest relevance of the two, and for pages, the
+		** positions of both and the first title found.
+		**
+		** @param old The entry found so far, or {@code null}
+		** @param en The entry to merge in
+		*/
+		protected TermEntry merge(TermEntry old, TermEntry en) {
+			float rel = (old == null || en.rel > old.rel)? en.rel: old.rel;
+			switch (en.entryType()) {
+			case PAGE:
+				TermPageEntry page = (TermPageEntry)en;
+				Map<Integer, String> pos = page.pos;
+				String title = page.title;
+				if (old != null) {
+					TermPageEntry prev = (TermPageEntry)old;
+					if (prev.title != null) { title = prev.title; }
+					if (pos == null) {
+						pos = prev.pos;
+					} else if (prev.pos != null) {
+						pos = new HashMap<Integer, String>(prev.pos);
+						pos.putAll(page.pos);
+					}
+				}
+				return new TermPageEntry(subject, rel, page.page, title, pos);
+			case INDEX:
+				return new TermIndexEntry(subject, rel, ((TermIndexEntry)en).index);
+			case TERM:
+				return new TermTermEntry(subject, rel, ((TermTermEntry)en).term);
+			default:
+				throw new UnsupportedOperationException("Unknown type: " + en.entryType());
+			}
+		}
+
+	}
 
 }
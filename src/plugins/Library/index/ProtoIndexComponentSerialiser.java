@@ -4,7 +4,6 @@
 package plugins.Library.index;
 
 import plugins.Library.Library;
-import plugins.Library.client.FreenetArchiver;
 import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
@@ -14,6 +13,8 @@ import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.BaseCompositeProgress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskInProgressException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.io.serial.Serialiser;
 import plugins.Library.io.serial.Translator;
@@ -22,15 +23,20 @@ import plugins.Library.io.serial.Archiver;
 import plugins.Library.io.serial.IterableSerialiser;
 import plugins.Library.io.serial.MapSerialiser;
 import plugins.Library.io.serial.LiveArchiver;
-import plugins.Library.io.serial.ParallelSerialiser;
+import plugins.Library.io.serial.AsyncSerialiser;
 import plugins.Library.io.serial.Packer;
 import plugins.Library.io.serial.Packer.Scale; // WORKAROUND javadoc bug #4464323
 import plugins.Library.io.serial.FileArchiver;
+import plugins.Library.io.serial.PackedFileArchiver;
+import plugins.Library.io.serial.DecodedCache;
 import plugins.Library.io.DataFormatException;
 import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.BinaryReaderWriter;
 
 import freenet.keys.FreenetURI;
 
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Set;
 import java.util.Map;
@@ -41,6 +47,8 @@ import java.util.HashMap;
 import java.util.TreeSet;
 import java.util.TreeMap;
 import java.util.Date;
+import java.io.File;
+import java.net.MalformedURLException;
 
 /**
 ** Serialiser for the components of a ProtoIndex.
@@ -56,6 +64,9 @@ public class ProtoIndexComponentSerialiser {
 
 	final protected static int FMT_FREENET_SIMPLE = 0x2db3c940;
 	final protected static int FMT_FILE_LOCAL = 0xd439e29a;
+	final protected static int FMT_FREENET_BINARY = 0x7e5bd1a3;
+	final protected static int FMT_FILE_BINARY = 0x41c8f62e;
+	final protected static int FMT_FILE_PACKED = 0x6f2a83d5;
 
 	final protected static int FMT_DEFAULT = FMT_FREENET_SIMPLE;
 
@@ -64,6 +75,28 @@ public class ProtoIndexComponentSerialiser {
 	*/
 	final protected static YamlReaderWriter yamlrw = new YamlReaderWriter();
 
+	/**
+	** Converts between a low-level object and a compact binary stream. This
+	** is used instead of {@link #yamlrw} by the binary formats.
+	*/
+	final protected static BinaryReaderWriter binrw = new BinaryReaderWriter();
+
+	/**
+	** Instances of the packed local format, by the absolute path of the file
+	** that they keep their nodes in. Each index in this format has its own
+	** file, so it can't share an instance with others; see {@link
+	** #getPacked(File)}.
+	*/
+	final protected static HashMap<File, ProtoIndexComponentSerialiser>
+	srl_pack = new HashMap<File, ProtoIndexComponentSerialiser>();
+
+	/**
+	** Cache of decoded B-tree nodes and bins, shared between all instances,
+	** and so between every index loaded with them. The limit is a rough count
+	** of the elements held; see {@link DecodedCache#weigh(Object)}.
+	*/
+	final protected static DecodedCache decoded = new DecodedCache(0x40000);
+
 	/**
 	** Translator for the local entries of a node of the ''term table''.
 	*/
@@ -82,8 +115,8 @@ public class ProtoIndexComponentSerialiser {
 	*/
 	final protected static Translator<URIKey, String>
 	utab_keys_ktr = new Translator<URIKey, String>() {
-		public String app(URIKey k) { return k.toString(); }
-		public URIKey rev(String s) { return new URIKey(URIKey.hexToBytes(s)); }
+		public String app(URIKey k) { return (k == null)? null: k.toString(); }
+		public URIKey rev(String s) { return (s == null)? null: new URIKey(URIKey.hexToBytes(s)); }
 	};
 
 	/**
@@ -92,6 +125,48 @@ public class ProtoIndexComponentSerialiser {
 	final protected static Translator<SkeletonTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, Map<String, Object>>
 	utab_keys_mtr = new TreeMapTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(utab_keys_ktr);
 
+	/**
+	** Translator for {@link FreenetURI}.
+	*/
+	final protected static Translator<FreenetURI, String>
+	uri_data_ktr = new Translator<FreenetURI, String>() {
+		public String app(FreenetURI u) { return u.toString(); }
+		public FreenetURI rev(String s) throws DataFormatException {
+			try {
+				return new FreenetURI(s);
+			} catch (MalformedURLException e) {
+				throw new DataFormatException("Invalid FreenetURI: " + s, e, s);
+			}
+		}
+	};
+
+	/**
+	** Translator for the local entries of a node of the ''B-tree'' for a
+	** ''urikey''. The values are the {@link URIEntry}s themselves; see {@link
+	** #uri_dummy}.
+	**
+	** Nodes are written with the {@link String} form of each key. Nodes that
+	** were written with the {@link FreenetURI}s themselves as keys (by older
+	** versions) are still read.
+	*/
+	final protected static Translator<SkeletonTreeMap<FreenetURI, URIEntry>, Map<String, Object>>
+	uri_data_mtr = new TreeMapTranslator<FreenetURI, URIEntry>(uri_data_ktr) {
+		@Override public SkeletonTreeMap<FreenetURI, URIEntry> rev(Map<String, Object> intm) throws DataFormatException {
+			SkeletonTreeMap<FreenetURI, URIEntry> map = new SkeletonTreeMap<FreenetURI, URIEntry>();
+			for (Map.Entry<?, Object> en: ((Map<?, Object>)intm).entrySet()) {
+				Object key = en.getKey();
+				if (key instanceof FreenetURI) {
+					map.putGhost((FreenetURI)key, en.getValue());
+				} else if (key instanceof String) {
+					map.putGhost(ktr.rev((String)key), en.getValue());
+				} else {
+					throw new DataFormatException("Invalid key for a uri-entry mapping: " + key, null, key, intm, null);
+				}
+			}
+			return map;
+		}
+	};
+
 	/**
 	** Serialiser for the ''targets'' of the values stored in a node of the
 	** ''B-tree'' for a ''term''. In this case, the values are the actual
@@ -136,6 +211,9 @@ public class ProtoIndexComponentSerialiser {
 	**         instance (eg. existence of a freenet node) are not met.
 	*/
 	public synchronized static ProtoIndexComponentSerialiser get(int fmtid) {
+		if (fmtid == FMT_FILE_PACKED) {
+			throw new UnsupportedOperationException("The packed format needs a file to keep its nodes in; use getPacked()");
+		}
 		ProtoIndexComponentSerialiser srl = srl_fmt.get(fmtid);
 		if (srl == null) {
 			srl = new ProtoIndexComponentSerialiser(fmtid);
@@ -144,6 +222,21 @@ public class ProtoIndexComponentSerialiser {
 		return srl;
 	}
 
+	/**
+	** Get the instance of the packed local format that keeps its nodes in the
+	** given file. Relative paths are resolved against the current directory,
+	** as for the other local formats.
+	*/
+	public synchronized static ProtoIndexComponentSerialiser getPacked(File f) {
+		File key = f.getAbsoluteFile();
+		ProtoIndexComponentSerialiser srl = srl_pack.get(key);
+		if (srl == null) {
+			srl = new ProtoIndexComponentSerialiser(FMT_FILE_PACKED, f);
+			srl_pack.put(key, srl);
+		}
+		return srl;
+	}
+
 	/**
 	** Get the instance responsible for the default format ID.
 	**
@@ -159,6 +252,12 @@ public class ProtoIndexComponentSerialiser {
 	*/
 	final protected int serialFormatUID;
 
+	/**
+	** File that the packed local format keeps all nodes in, or {@code null}
+	** for the other formats.
+	*/
+	final protected File pack_file;
+
 	/**
 	** Archiver for the lowest level (leaf).
 	*/
@@ -191,13 +290,39 @@ public class ProtoIndexComponentSerialiser {
 	**         instance (eg. existence of a freenet node) are not met.
 	*/
 	protected ProtoIndexComponentSerialiser(int fmtid) {
+		this(fmtid, null);
+	}
+
+	/**
+	** Constructs a new instance using the given format.
+	**
+	** @param pack File to keep all nodes in, for the packed local format
+	** @throws UnsupportedOperationException if the format ID is unrecognised,
+	**         or no file is given for the packed local format
+	** @throws IllegalStateException if the requirements for creating the
+	**         instance (eg. existence of a freenet node) are not met.
+	*/
+	protected ProtoIndexComponentSerialiser(int fmtid, File pack) {
+		pack_file = pack;
 		switch (fmtid) {
 		case FMT_FREENET_SIMPLE:
-			leaf_arx = Library.makeArchiver(yamlrw, ProtoIndex.MIME_TYPE, 0x180 * ProtoIndex.BTREE_NODE_MIN);
+			leaf_arx = Library.makeCachingArchiver(yamlrw, ProtoIndex.MIME_TYPE, 0x180 * ProtoIndex.BTREE_NODE_MIN);
 			break;
 		case FMT_FILE_LOCAL:
 			leaf_arx = new FileArchiver<Map<String, Object>>(yamlrw, true, YamlReaderWriter.FILE_EXTENSION);
 			break;
+		case FMT_FREENET_BINARY:
+			leaf_arx = Library.makeCachingArchiver(binrw, BinaryReaderWriter.MIME_TYPE, 0x100 * ProtoIndex.BTREE_NODE_MIN);
+			break;
+		case FMT_FILE_BINARY:
+			leaf_arx = new FileArchiver<Map<String, Object>>(binrw, true, BinaryReaderWriter.FILE_EXTENSION);
+			break;
+		case FMT_FILE_PACKED:
+			if (pack == null) {
+				throw new UnsupportedOperationException("No file given for the packed format");
+			}
+			leaf_arx = new PackedFileArchiver<Map<String, Object>>(binrw, pack);
+			break;
 		default:
 			throw new UnsupportedOperationException("Unknown serial format id");
 		}
@@ -212,7 +337,8 @@ public class ProtoIndexComponentSerialiser {
 					@Override public SkeletonBTreeSet<TermEntry> rev(Map<String, Object> tree) throws DataFormatException {
 						return setSerialiserFor(super.rev(tree));
 					}
-				}
+				},
+				decoded
 			),
 			term_data_scale,
 			ProtoIndex.BTREE_ENT_MAX
@@ -221,18 +347,34 @@ public class ProtoIndexComponentSerialiser {
 		utab_data = new BTreePacker<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>, EntryGroupSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>>(
 			new EntryGroupSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
 				leaf_arx,
-				null,
-				new SkeletonBTreeMap.TreeTranslator<FreenetURI, URIEntry>(null, null) {
+				utab_keys_ktr,
+				new SkeletonBTreeMap.TreeTranslator<FreenetURI, URIEntry>(null, uri_data_mtr) {
 					@Override public SkeletonBTreeMap<FreenetURI, URIEntry> rev(Map<String, Object> tree) throws DataFormatException {
 						return setSerialiserFor(super.rev(tree));
 					}
-				}
+				},
+				null // URIEntry is mutable, so the decoded entries can't be shared
 			),
 			uri_data_scale,
 			ProtoIndex.BTREE_ENT_MAX
 		);
 	}
 
+	/**
+	** Returns the file that this instance keeps all nodes in, or {@code null}
+	** if it isn't the packed local format.
+	*/
+	public File getPackFile() {
+		return pack_file;
+	}
+
+	/**
+	** Whether this instance stores data on local disk, rather than in Freenet.
+	*/
+	public boolean isLocal() {
+		return serialFormatUID == FMT_FILE_LOCAL || serialFormatUID == FMT_FILE_BINARY || serialFormatUID == FMT_FILE_PACKED;
+	}
+
 	/**
 	** Set the serialisers for the ''uri table'' and the ''term table'' on an
 	** index.
@@ -242,7 +384,8 @@ public class ProtoIndexComponentSerialiser {
 		BTreeNodeSerialiser<String, SkeletonBTreeSet<TermEntry>> ttab_keys = new BTreeNodeSerialiser<String, SkeletonBTreeSet<TermEntry>>(
 			"term listings",
 			leaf_arx,
-			index.ttab.makeNodeTranslator(null, ttab_keys_mtr)
+			index.ttab.makeNodeTranslator(null, ttab_keys_mtr),
+			decoded
 		);
 		index.ttab.setSerialiser(ttab_keys, ttab_data);
 
@@ -250,7 +393,8 @@ public class ProtoIndexComponentSerialiser {
 		BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab_keys = new BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
 			"uri listings",
 			leaf_arx,
-			index.utab.makeNodeTranslator(utab_keys_ktr, utab_keys_mtr)
+			index.utab.makeNodeTranslator(utab_keys_ktr, utab_keys_mtr),
+			decoded
 		);
 		index.utab.setSerialiser(utab_keys, utab_data);
 
@@ -267,7 +411,7 @@ public class ProtoIndexComponentSerialiser {
 		BTreeNodeSerialiser<FreenetURI, URIEntry> uri_keys = new BTreeNodeSerialiser<FreenetURI, URIEntry>(
 			"uri entries",
 			leaf_arx,
-			entries.makeNodeTranslator(null, null) // no translator needed as FreenetURI and URIEntry are both directly serialisable by YamlReaderWriter
+			entries.makeNodeTranslator(null, uri_data_mtr)
 		);
 		entries.setSerialiser(uri_keys, uri_dummy);
 		return entries;
@@ -281,7 +425,8 @@ public class ProtoIndexComponentSerialiser {
 		BTreeNodeSerialiser<TermEntry, TermEntry> term_keys = new BTreeNodeSerialiser<TermEntry, TermEntry>(
 			"term entries",
 			leaf_arx,
-			entries.makeNodeTranslator(null, term_data_mtr)
+			entries.makeNodeTranslator(null, term_data_mtr),
+			decoded
 		);
 		entries.setSerialiser(term_keys, term_dummy);
 		return entries;
@@ -320,13 +465,14 @@ public class ProtoIndexComponentSerialiser {
 	** @author infinity0
 	*/
 	public static class BTreeNodeSerialiser<K, V>
-	extends ParallelSerialiser<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>
+	extends AsyncSerialiser<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>
 	implements Archiver<SkeletonBTreeMap<K, V>.SkeletonNode>,
 	           Serialiser.Translate<SkeletonBTreeMap<K, V>.SkeletonNode, Map<String, Object>>,
 	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
 
 		final protected Translator<SkeletonBTreeMap<K, V>.SkeletonNode, Map<String, Object>> trans;
 		final protected LiveArchiver<Map<String, Object>, SimpleProgress> subsrl;
+		final protected DecodedCache cache;
 
 		protected String name;
 
@@ -338,12 +484,20 @@ public class ProtoIndexComponentSerialiser {
 		**        progress report.
 		** @param t Translator for the node - create this using {@link
 		**        SkeletonBTreeMap#makeNodeTranslator(Translator, Translator)}.
+		** @param c Cache of decoded nodes, or {@code null} not to cache them.
+		**        This must be {@code null} if the translator keeps any part of
+		**        the decoded node as-is.
 		*/
-		public BTreeNodeSerialiser(String n, LiveArchiver<Map<String, Object>, SimpleProgress> s, SkeletonBTreeMap<K, V>.NodeTranslator<?, ?> t) {
+		public BTreeNodeSerialiser(String n, LiveArchiver<Map<String, Object>, SimpleProgress> s, SkeletonBTreeMap<K, V>.NodeTranslator<?, ?> t, DecodedCache c) {
 			super(new ProgressTracker<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>(SimpleProgress.class));
 			subsrl = s;
 			trans = t;
 			name = n;
+			cache = c;
+		}
+
+		public BTreeNodeSerialiser(String n, LiveArchiver<Map<String, Object>, SimpleProgress> s, SkeletonBTreeMap<K, V>.NodeTranslator<?, ?> t) {
+			this(n, s, t, null);
 		}
 
 		/*@Override**/ public Translator<SkeletonBTreeMap<K, V>.SkeletonNode, Map<String, Object>> getTranslator() {
@@ -354,33 +508,68 @@ public class ProtoIndexComponentSerialiser {
 			return subsrl;
 		}
 
-		/*@Override**/ public void pullLive(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
-			p.enteredSerialiser();
+		/*@Override**/ public void pullAsync(final PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, final SimpleProgress p, final SafeClosure<X2<PullTask<SkeletonBTreeMap<K, V>.SkeletonNode>, TaskAbortException>> done) {
 			try {
-				SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap.GhostNode)task.meta;
+				p.enteredSerialiser();
+				final SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap.GhostNode)task.meta;
 				p.setSubject("Pulling " + name + ": " + ghost.getRange());
-				PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(ghost.getMeta());
-				subsrl.pullLive(serialisable, p);
-				ghost.setMeta(serialisable.meta); task.data = trans.rev(serialisable.data);
-				p.exitingSerialiser();
+				Map<String, Object> cached = (cache == null)? null: cache.get(ghost.getMeta());
+				if (cached != null) {
+					try {
+						task.data = trans.rev(cached);
+						p.addPartKnown(0, true);
+						p.exitingSerialiser();
+						done.invoke(X2(task, (TaskAbortException)null));
+					} catch (DataFormatException e) {
+						done.invoke(X2(task, p.fail(new TaskAbortException("Could not pull B-tree node", e))));
+					}
+					return;
+				}
+				final PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(ghost.getMeta());
+				pullChild(subsrl, serialisable, p, new SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>>() {
+					/*@Override**/ public void invoke(X2<PullTask<Map<String, Object>>, TaskAbortException> res) {
+						TaskAbortException ex = res._1;
+						if (ex == null) {
+							try {
+								ghost.setMeta(serialisable.meta); task.data = trans.rev(serialisable.data);
+								if (cache != null) { cache.put(serialisable.meta, serialisable.data); }
+								p.exitingSerialiser();
+							} catch (RuntimeException e) {
+								ex = p.fail(new TaskAbortException("Could not pull B-tree node", e));
+							} catch (DataFormatException e) {
+								ex = p.fail(new TaskAbortException("Could not pull B-tree node", e));
+							}
+						}
+						done.invoke(X2(task, ex));
+					}
+				});
 			} catch (RuntimeException e) {
-				p.abort(new TaskAbortException("Could not pull B-tree node", e));
-			} catch (DataFormatException e) {
-				p.abort(new TaskAbortException("Could not pull B-tree node", e));
+				done.invoke(X2(task, p.fail(new TaskAbortException("Could not pull B-tree node", e))));
 			}
 		}
 
-		/*@Override**/ public void pushLive(PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
-			p.enteredSerialiser();
+		/*@Override**/ public void pushAsync(final PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, final SimpleProgress p, final SafeClosure<X2<PushTask<SkeletonBTreeMap<K, V>.SkeletonNode>, TaskAbortException>> done) {
 			try {
+				p.enteredSerialiser();
 				p.setSubject("Pushing " + name + ": " + task.data.getRange());
 				Map<String, Object> intermediate = trans.app(task.data);
-				PushTask<Map<String, Object>> serialisable = new PushTask<Map<String, Object>>(intermediate, task.meta);
-				subsrl.pushLive(serialisable, p);
-				task.meta = task.data.makeGhost(serialisable.meta);
-				p.exitingSerialiser();
+				final PushTask<Map<String, Object>> serialisable = new PushTask<Map<String, Object>>(intermediate, task.meta);
+				pushChild(subsrl, serialisable, p, new SafeClosure<X2<PushTask<Map<String, Object>>, TaskAbortException>>() {
+					/*@Override**/ public void invoke(X2<PushTask<Map<String, Object>>, TaskAbortException> res) {
+						TaskAbortException ex = res._1;
+						if (ex == null) {
+							try {
+								task.meta = task.data.makeGhost(serialisable.meta);
+								p.exitingSerialiser();
+							} catch (RuntimeException e) {
+								ex = p.fail(new TaskAbortException("Could not push B-tree node", e));
+							}
+						}
+						done.invoke(X2(task, ex));
+					}
+				});
 			} catch (RuntimeException e) {
-				p.abort(new TaskAbortException("Could not push B-tree node", e));
+				done.invoke(X2(task, p.fail(new TaskAbortException("Could not push B-tree node", e))));
 			}
 		}
 
@@ -410,6 +599,22 @@ public class ProtoIndexComponentSerialiser {
 			return tracker;
 		}
 
+		/**
+		** {@inheritDoc}
+		**
+		** The progress of each task is only tracked whilst it is being pulled,
+		** since a value can be ghosted back to the same metadata (eg. by {@link
+		** SkeletonBTreeMap#deflateChanged()}) and then pulled again.
+		*/
+		@Override public void pull(Map<K, PullTask<V>> tasks, Object mapmeta) throws TaskAbortException {
+			List<PullTask<V>> pulled = new ArrayList<PullTask<V>>(tasks.values());
+			try {
+				super.pull(tasks, mapmeta);
+			} finally {
+				for (PullTask<V> task: pulled) { tracker.remPullProgress(task); }
+			}
+		}
+
 		@Override protected void preprocessPullBins(Map<K, PullTask<V>> tasks, Collection<PullTask<Map<K, V>>> bintasks) {
 			for (Map.Entry<K, PullTask<V>> en: tasks.entrySet()) {
 				try {
@@ -446,65 +651,111 @@ public class ProtoIndexComponentSerialiser {
 	** @author infinity0
 	*/
 	public static class EntryGroupSerialiser<K, V>
-	extends ParallelSerialiser<Map<K, V>, SimpleProgress>
+	extends AsyncSerialiser<Map<K, V>, SimpleProgress>
 	implements IterableSerialiser<Map<K, V>>,
 	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
 
 		final protected LiveArchiver<Map<String, Object>, SimpleProgress> subsrl;
 		final protected Translator<K, String> ktr;
 		final protected Translator<V, Map<String, Object>> btr;
+		final protected DecodedCache cache;
 
-		public EntryGroupSerialiser(LiveArchiver<Map<String, Object>, SimpleProgress> s, Translator<K, String> k, Translator<V, Map<String, Object>> b) {
+		/**
+		** @param c Cache of decoded bins, or {@code null} not to cache them.
+		**        This must be {@code null} if the translator keeps any part of
+		**        the decoded root nodes as-is.
+		*/
+		public EntryGroupSerialiser(LiveArchiver<Map<String, Object>, SimpleProgress> s, Translator<K, String> k, Translator<V, Map<String, Object>> b, DecodedCache c) {
 			super(new ProgressTracker<Map<K, V>, SimpleProgress>(SimpleProgress.class));
 			subsrl = s;
 			ktr = k;
 			btr = b;
+			cache = c;
+		}
+
+		public EntryGroupSerialiser(LiveArchiver<Map<String, Object>, SimpleProgress> s, Translator<K, String> k, Translator<V, Map<String, Object>> b) {
+			this(s, k, b, null);
+		}
+
+		/**
+		** Translates a decoded bin into a map of root nodes.
+		*/
+		protected Map<K, V> rev(Map<String, Object> data) throws DataFormatException {
+			Map<K, V> map = new HashMap<K, V>(data.size()<<1);
+			try {
+				for (Map.Entry<String, Object> en: data.entrySet()) {
+					map.put((ktr == null)? (K)en.getKey(): ktr.rev(en.getKey()), btr.rev((Map<String, Object>)en.getValue()));
+				}
+			} catch (ClassCastException e) {
+				// FIXME NORM more meaningful error message
+				throw new DataFormatException("Exception in converting data", e, data, null, null);
+			}
+			return map;
 		}
 
 		/*@Override**/ public LiveArchiver<Map<String, Object>, SimpleProgress> getChildSerialiser() {
 			return subsrl;
 		}
 
-		/*@Override**/ public void pullLive(PullTask<Map<K, V>> task, SimpleProgress p) throws TaskAbortException {
-			p.enteredSerialiser();
+		/*@Override**/ public void pullAsync(final PullTask<Map<K, V>> task, final SimpleProgress p, final SafeClosure<X2<PullTask<Map<K, V>>, TaskAbortException>> done) {
 			try {
+				p.enteredSerialiser();
 				p.setSubject("Pulling root container " + task.meta);
-				PullTask<Map<String, Object>> t = new PullTask<Map<String, Object>>(task.meta);
-				subsrl.pullLive(t, p);
-
-				Map<K, V> map = new HashMap<K, V>(t.data.size()<<1);
-				try {
-					for (Map.Entry<String, Object> en: t.data.entrySet()) {
-						map.put((ktr == null)? (K)en.getKey(): ktr.rev(en.getKey()), btr.rev((Map<String, Object>)en.getValue()));
+				Map<String, Object> cached = (cache == null)? null: cache.get(task.meta);
+				if (cached != null) {
+					try {
+						task.data = rev(cached);
+						p.addPartKnown(0, true);
+						p.exitingSerialiser();
+						done.invoke(X2(task, (TaskAbortException)null));
+					} catch (DataFormatException e) {
+						done.invoke(X2(task, p.fail(new TaskAbortException("Failed task: " + p.getSubject(), e))));
 					}
-				} catch (ClassCastException e) {
-					// FIXME NORM more meaningful error message
-					throw new DataFormatException("Exception in converting data", e, t.data, null, null);
+					return;
 				}
-
-				task.data = map;
-				p.exitingSerialiser();
+				pullChild(subsrl, new PullTask<Map<String, Object>>(task.meta), p, new SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>>() {
+					/*@Override**/ public void invoke(X2<PullTask<Map<String, Object>>, TaskAbortException> res) {
+						TaskAbortException ex = res._1;
+						if (ex == null) {
+							PullTask<Map<String, Object>> t = res._0;
+							try {
+								task.data = rev(t.data);
+								if (cache != null) { cache.put(t.meta, t.data); }
+								p.exitingSerialiser();
+							} catch (RuntimeException e) {
+								ex = p.fail(new TaskAbortException("Failed task: " + p.getSubject(), e));
+							} catch (DataFormatException e) {
+								ex = p.fail(new TaskAbortException("Failed task: " + p.getSubject(), e));
+							}
+						}
+						done.invoke(X2(task, ex));
+					}
+				});
 			} catch (RuntimeException e) {
-				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
-			} catch (DataFormatException e) {
-				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
+				done.invoke(X2(task, p.fail(new TaskAbortException("Failed task: " + p.getSubject(), e))));
 			}
 		}
 
-		/*@Override**/ public void pushLive(PushTask<Map<K, V>> task, SimpleProgress p) throws TaskAbortException {
-			p.enteredSerialiser();
+		/*@Override**/ public void pushAsync(final PushTask<Map<K, V>> task, final SimpleProgress p, final SafeClosure<X2<PushTask<Map<K, V>>, TaskAbortException>> done) {
 			try {
+				p.enteredSerialiser();
 				p.setSubject("Pushing root container for keys " + task.data.keySet());
 				Map<String, Object> conv = new HashMap<String, Object>();
 				for (Map.Entry<K, V> mp: task.data.entrySet()) {
 					conv.put((ktr == null)? (String)mp.getKey(): ktr.app(mp.getKey()), btr.app(mp.getValue()));
 				}
-				PushTask<Map<String, Object>> t = new PushTask<Map<String, Object>>(conv, task.meta);
-				subsrl.pushLive(t, p);
-				task.meta = t.meta;
-				p.exitingSerialiser();
+				pushChild(subsrl, new PushTask<Map<String, Object>>(conv, task.meta), p, new SafeClosure<X2<PushTask<Map<String, Object>>, TaskAbortException>>() {
+					/*@Override**/ public void invoke(X2<PushTask<Map<String, Object>>, TaskAbortException> res) {
+						TaskAbortException ex = res._1;
+						if (ex == null) {
+							task.meta = res._0.meta;
+							p.exitingSerialiser();
+						}
+						done.invoke(X2(task, ex));
+					}
+				});
 			} catch (RuntimeException e) {
-				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
+				done.invoke(X2(task, p.fail(new TaskAbortException("Failed task: " + p.getSubject(), e))));
 			}
 		}
 
@@ -4,14 +4,20 @@
 package plugins.Library.index;
 
 import plugins.Library.Library;
-import plugins.Library.client.FreenetArchiver;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.ChainedProgress;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.io.serial.Serialiser;
 import plugins.Library.io.serial.Translator;
 import plugins.Library.io.serial.Archiver;
+import plugins.Library.io.serial.LiveArchiver;
 import plugins.Library.io.serial.FileArchiver;
 import plugins.Library.io.YamlReaderWriter;
 import plugins.Library.io.DataFormatException;
@@ -39,7 +45,7 @@ import java.io.File;
 */
 public class ProtoIndexSerialiser
 implements Archiver<ProtoIndex>,
-           Serialiser.Composite<Archiver<Map<String, Object>>>, // TODO NORM make this a LiveArchiver
+           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>>,
            Serialiser.Translate<ProtoIndex, Map<String, Object>>/*,
            Serialiser.Trackable<Index>*/ {
 
@@ -49,10 +55,10 @@ implements Archiver<ProtoIndex>,
 	final protected static Translator<ProtoIndex, Map<String, Object>>
 	trans = new IndexTranslator();
 
-	final protected Archiver<Map<String, Object>>
+	final protected LiveArchiver<Map<String, Object>, SimpleProgress>
 	subsrl;
 
-	public ProtoIndexSerialiser(Archiver<Map<String, Object>> s) {
+	public ProtoIndexSerialiser(LiveArchiver<Map<String, Object>, SimpleProgress> s) {
 		subsrl = s;
 	}
 
@@ -73,7 +79,7 @@ implements Archiver<ProtoIndex>,
 		ProtoIndexSerialiser srl = srl_cls.get(FreenetURI.class);
 		if (srl == null) {
 			// java's type-inference isn't that smart, see
-			FreenetArchiver<Map<String, Object>> arx = Library.makeArchiver(ProtoIndexComponentSerialiser.yamlrw, MIME_TYPE, 0x80 * ProtoIndex.BTREE_NODE_MIN);
+			LiveArchiver<Map<String, Object>, SimpleProgress> arx = Library.makeCachingArchiver(ProtoIndexComponentSerialiser.yamlrw, MIME_TYPE, 0x80 * ProtoIndex.BTREE_NODE_MIN);
 			srl_cls.put(FreenetURI.class, srl = new ProtoIndexSerialiser(arx));
 		}
 		return srl;
@@ -87,7 +93,7 @@ implements Archiver<ProtoIndex>,
 		return srl;
 	}
 
-	/*@Override**/ public Archiver<Map<String, Object>> getChildSerialiser() {
+	/*@Override**/ public LiveArchiver<Map<String, Object>, SimpleProgress> getChildSerialiser() {
 		return subsrl;
 	}
 
@@ -96,8 +102,20 @@ implements Archiver<ProtoIndex>,
 	}
 
 	/*@Override**/ public void pull(PullTask<ProtoIndex> task) throws TaskAbortException {
+		pullLive(task, null);
+	}
+
+	/**
+	** Executes a {@link PullTask}, updating the given progress object as the
+	** index root is retrieved (if it is not {@code null}).
+	*/
+	protected void pullLive(PullTask<ProtoIndex> task, SimpleProgress progress) throws TaskAbortException {
 		PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(task.meta);
-		subsrl.pull(serialisable);
+		if (progress == null) {
+			subsrl.pull(serialisable);
+		} else {
+			subsrl.pullLive(serialisable, progress);
+		}
 		task.meta = serialisable.meta;
 		if (task.meta instanceof FreenetURI) { // if not FreenetURI, skip this silently so we can test on local files
 			serialisable.data.put("reqID", task.meta);
@@ -109,6 +127,19 @@ implements Archiver<ProtoIndex>,
 		}
 	}
 
+	/**
+	** Non-blocking version of {@link #pull(PullTask)}. The index root is
+	** retrieved in the background, and the returned {@link Execution} tracks
+	** the progress of this, and holds the index once it has been retrieved.
+	**
+	** @param meta The metadata for the index, eg. a {@link FreenetURI}
+	*/
+	public Execution<ProtoIndex> pullAsync(Object meta) {
+		PullExecution request = new PullExecution(meta);
+		ProtoIndex.exec.execute(request);
+		return request;
+	}
+
 	/*@Override**/ public void push(PushTask<ProtoIndex> task) throws TaskAbortException {
 		PushTask<Map<String, Object>> serialisable = new PushTask<Map<String, Object>>(trans.app(task.data));
 		serialisable.meta = serialisable.data.remove("insID");
@@ -116,6 +147,47 @@ implements Archiver<ProtoIndex>,
 		task.meta = serialisable.meta;
 	}
 
+	/**
+	** Retrieves an index root in the background. See {@link
+	** #pullAsync(Object)}.
+	*/
+	protected class PullExecution extends AbstractExecution<ProtoIndex> implements Runnable, ChainedProgress {
+
+		final Object meta;
+		final SimpleProgress progress = new SimpleProgress();
+
+		protected PullExecution(Object m) {
+			super(String.valueOf(m));
+			meta = m;
+			progress.setSubject("Retrieving index root");
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			return (getResult() != null)? ProgressParts.normalise(1, 1): progress.getParts();
+		}
+
+		@Override public String getStatus() {
+			return progress.getStatus();
+		}
+
+		/*@Override**/ public Progress getCurrentProgress() {
+			return progress;
+		}
+
+		/*@Override**/ public void run() {
+			try {
+				PullTask<ProtoIndex> task = new PullTask<ProtoIndex>(meta);
+				pullLive(task, progress);
+				setResult(task.data);
+			} catch (TaskAbortException e) {
+				setError(e);
+			} catch (RuntimeException e) {
+				setError(new TaskAbortException("Could not retrieve index root", e));
+			}
+		}
+
+	}
+
 	public static class IndexTranslator
 	implements Translator<ProtoIndex, Map<String, Object>> {
 
@@ -130,8 +202,9 @@ implements Archiver<ProtoIndex>,
 		** URI-table translator
 		*/
 		Translator<SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, Map<String, Object>> utrans = new
-		SkeletonBTreeMap.TreeTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(null, new
-		ProtoIndexComponentSerialiser.TreeMapTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(null));
+		SkeletonBTreeMap.TreeTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
+		ProtoIndexComponentSerialiser.utab_keys_ktr,
+		ProtoIndexComponentSerialiser.utab_keys_mtr);
 
 		/**
 		** {@inheritDoc}
@@ -152,6 +225,9 @@ implements Archiver<ProtoIndex>,
 			Map<String, Object> map = new LinkedHashMap<String, Object>();
 			map.put("serialVersionUID", idx.serialVersionUID);
 			map.put("serialFormatUID", idx.serialFormatUID);
+			if (idx.serialiser != null && idx.serialiser.getPackFile() != null) {
+				map.put("packFile", idx.serialiser.getPackFile().getPath());
+			}
 			map.put("insID", idx.insID);
 			map.put("name", idx.name);
 			map.put("modified", idx.modified);
@@ -166,7 +242,10 @@ implements Archiver<ProtoIndex>,
 
 			if (magic == ProtoIndex.serialVersionUID) {
 				try {
-					ProtoIndexComponentSerialiser cmpsrl = ProtoIndexComponentSerialiser.get((Integer)map.get("serialFormatUID"));
+					String pack = (String)map.get("packFile");
+					ProtoIndexComponentSerialiser cmpsrl = (pack == null)?
+						ProtoIndexComponentSerialiser.get((Integer)map.get("serialFormatUID")):
+						ProtoIndexComponentSerialiser.getPacked(new File(pack));
 					FreenetURI reqID = (FreenetURI)map.get("reqID");
 					String name = (String)map.get("name");
 					Date modified = (Date)map.get("modified");
@@ -2,9 +2,8 @@
  * Public License, version 2 (or at your option any later version). See
  * http://www.gnu.org/ for further details of the GPL. */
 
-package plugins.Library.ui;
+package plugins.Library.index;
 
-import plugins.Library.index.TermEntry;
 import plugins.Library.util.IdentityComparator;
 
 /**
@@ -0,0 +1,254 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+** Caches the results of {@link plugins.Library.Index#getTermEntries(String)},
+** so that different searches on the same index that share a term (eg. "freenet
+** anonymity" and "freenet privacy") only fetch the entries for that term once.
+** Lookups that are still running are shared too.
+**
+** Results are cached per index and term. Each result is also tagged with the
+** edition of the index that it was looked up in; it is only returned for that
+** edition, and is replaced by the result from a later edition. The cache keeps
+** a copy of each result, so it does not hold on to the index's data structures
+** (eg. those managed by a {@link plugins.Library.util.ResidencyManager}), and
+** drops the least-recently-used results once there are too many of them.
+**
+** One cache is shared by all indexes; see {@link #getDefault()}.
+*/
+public class TermEntryCache {
+
+	/**
+	** Rough estimate of the memory used by a cached result, excluding its
+	** entries.
+	*/
+	final public static int RESULT_BYTES = 0x100;
+
+	/**
+	** Rough estimate of the memory used by an entry of a cached result.
+	*/
+	final public static int ENTRY_BYTES = 0x80;
+
+	protected static TermEntryCache cache = new TermEntryCache(0x1000, 0x1000000);
+	public static TermEntryCache getDefault() { return cache; }
+	public static void setDefault(TermEntryCache c) { cache = c; }
+
+	/**
+	** Maximum number of cached results.
+	*/
+	final protected int max_results;
+
+	/**
+	** Maximum estimated size of all cached results, in bytes.
+	*/
+	final protected long max_bytes;
+
+	/**
+	** Estimated size of all cached results, in bytes.
+	*/
+	protected long bytes;
+
+	/**
+	** Cached results, in least-recently-used order.
+	*/
+	final protected LinkedHashMap<Key, Result> results = new LinkedHashMap<Key, Result>(0x40, 0.75f, true);
+
+	/**
+	** Lookups that are still running.
+	*/
+	final protected Map<Key, Pending> pending = new HashMap<Key, Pending>();
+
+	/**
+	** Create a new cache with the given bounds. Use {@link Integer#MAX_VALUE}
+	** or {@link Long#MAX_VALUE} to not bound the respective quantity.
+	**
+	** @param items Maximum number of results to keep
+	** @param size Maximum estimated size of the results to keep, in bytes
+	*/
+	public TermEntryCache(int items, long size) {
+		if (items < 0 || size < 0) {
+			throw new IllegalArgumentException("Bounds must be non-negative: " + items + ", " + size);
+		}
+		max_results = items;
+		max_bytes = size;
+	}
+
+	/**
+	** Returns the cached or running lookup of the given term in the given
+	** edition of an index, or {@code null} if there is none.
+	**
+	** @param index Identifies the index, eg. its URI
+	** @param edition Identifies the current state of the index
+	** @param term The term
+	*/
+	public synchronized Execution<Set<TermEntry>> get(String index, String edition, String term) {
+		Key key = new Key(index, term);
+		Pending p = pending.get(key);
+		if (p != null && p.edition.equals(edition)) { return p.request; }
+		Result r = results.get(key);
+		if (r == null) { return null; }
+		if (!r.edition.equals(edition)) {
+			// from an older (or newer) edition, which will not be asked for again
+			// for a while, if ever
+			results.remove(key);
+			bytes -= r.bytes;
+			return null;
+		}
+		return new Hit(term, r.entries);
+	}
+
+	/**
+	** Registers a lookup of a term in the given edition of an index, so that
+	** {@link #get(String, String, String)} returns it whilst it runs, and its
+	** result when it is done. Lookups that are aborted are not cached.
+	**
+	** @param index Identifies the index, eg. its URI
+	** @param edition Identifies the current state of the index
+	** @param request The lookup; its subject must be the term
+	*/
+	public void put(String index, String edition, Execution<Set<TermEntry>> request) {
+		final Key key = new Key(index, request.getSubject());
+		final Pending p = new Pending(edition, request);
+		synchronized (this) {
+			pending.put(key, p);
+		}
+		// don't hold our lock here, since the acceptor takes it whilst holding
+		// the lock of the request
+		request.addAcceptor(new ExecutionAcceptor<Set<TermEntry>>() {
+			/*@Override**/ public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+			/*@Override**/ public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+				// copy the result, since it may be backed by data that gets unloaded
+				Set<TermEntry> entries = Collections.unmodifiableSet(new TreeSet<TermEntry>(result));
+				synchronized (TermEntryCache.this) {
+					if (pending.get(key) == p) { pending.remove(key); }
+					add(key, new Result(p.edition, entries));
+				}
+			}
+			/*@Override**/ public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+				synchronized (TermEntryCache.this) {
+					if (pending.get(key) == p) { pending.remove(key); }
+				}
+			}
+		});
+	}
+
+	/**
+	** Drops every cached result for the given index.
+	*/
+	public synchronized void invalidate(String index) {
+		for (Iterator<Map.Entry<Key, Result>> it = results.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Key, Result> en = it.next();
+			if (en.getKey().index.equals(index)) {
+				bytes -= en.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	public synchronized long estimatedBytes() {
+		return bytes;
+	}
+
+	protected void add(Key key, Result r) {
+		Result old = results.put(key, r);
+		if (old != null) { bytes -= old.bytes; }
+		bytes += r.bytes;
+		for (Iterator<Result> it = results.values().iterator();
+		     it.hasNext() && (results.size() > max_results || bytes > max_bytes);) {
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+
+	protected static class Key {
+
+		final String index;
+		final String term;
+
+		Key(String i, String t) {
+			if (i == null || t == null) { throw new NullPointerException(); }
+			index = i;
+			term = t;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Key)) { return false; }
+			Key k = (Key)o;
+			return index.equals(k.index) && term.equals(k.term);
+		}
+
+		@Override public int hashCode() {
+			return index.hashCode() * 31 + term.hashCode();
+		}
+
+	}
+
+	protected static class Pending {
+
+		final String edition;
+		final Execution<Set<TermEntry>> request;
+
+		Pending(String e, Execution<Set<TermEntry>> r) {
+			if (e == null) { throw new NullPointerException(); }
+			edition = e;
+			request = r;
+		}
+
+	}
+
+	protected static class Result {
+
+		final String edition;
+		final Set<TermEntry> entries;
+		final long bytes;
+
+		Result(String e, Set<TermEntry> s) {
+			edition = e;
+			entries = s;
+			bytes = RESULT_BYTES + (long)s.size() * ENTRY_BYTES;
+		}
+
+	}
+
+	/**
+	** A lookup that was answered from the cache, and so is already done.
+	*/
+	protected static class Hit extends AbstractExecution<Set<TermEntry>> {
+
+		Hit(String term, Set<TermEntry> entries) {
+			super(term);
+			setResult(entries);
+		}
+
+		@Override public String getStatus() {
+			return "Cached";
+		}
+
+		@Override public ProgressParts getParts() {
+			return ProgressParts.normalise(1, 1, 1, ProgressParts.TOTAL_FINALIZED);
+		}
+
+	}
+
+}
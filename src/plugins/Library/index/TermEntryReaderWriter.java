@@ -9,8 +9,6 @@ import plugins.Library.io.ObjectStreamWriter;
 
 import freenet.keys.FreenetURI;
 
-import java.util.Map;
-import java.util.HashMap;
 
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -62,11 +60,13 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 				title = dis.readUTF();
 				size = ~size;
 			}
-			Map<Integer, String> pos = new HashMap<Integer, String>(size<<1);
+			int[] pos = new int[size];
+			String[] frag = new String[size];
 			for (int i=0; i<size; ++i) {
-				pos.put(dis.readInt(), dis.readUTF());
+				pos[i] = dis.readInt();
+				frag[i] = dis.readUTF();
 			}
-			return new TermPageEntry(subj, rel, page, title, pos);
+			return new TermPageEntry(subj, rel, page, title, PositionMap.fromArrays(pos, frag));
 		default:
 			throw new AssertionError();
 		}
@@ -91,16 +91,17 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 			return;
 		case PAGE:
 			TermPageEntry enn = (TermPageEntry)en;
+			PositionMap pos = enn.positions();
 			enn.page.writeFullBinaryKeyWithLength(dos);
 			if (enn.title == null) {
-				dos.writeInt(enn.pos.size());
+				dos.writeInt(pos.size());
 			} else {
-				dos.writeInt(~enn.pos.size()); // invert bits to signify title is set
+				dos.writeInt(~pos.size()); // invert bits to signify title is set
 				dos.writeUTF(enn.title);
 			}
-			for (Map.Entry<Integer, String> p: enn.pos.entrySet()) {
-				dos.writeInt(p.getKey());
-				dos.writeUTF(p.getValue());
+			for (int i=0; i<pos.size(); ++i) {
+				dos.writeInt(pos.positionAt(i));
+				dos.writeUTF(pos.fragmentAt(i));
 			}
 			return;
 		}
@@ -7,8 +7,6 @@ import plugins.Library.index.TermEntry.EntryType;
 
 import freenet.keys.FreenetURI;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -26,7 +24,8 @@ public class TermPageEntry extends TermEntry {
 
 	/**
 	** Positions in the document where the term occurs, and an optional
-	** fragment of text surrounding this.
+	** fragment of text surrounding this. This is always a {@link PositionMap};
+	** use {@link #positions()} for direct access to it.
 	*/
 	final public Map<Integer, String> pos;
 
@@ -66,7 +65,14 @@ public class TermPageEntry extends TermEntry {
 		}
 		page = u; // OPT LOW make the translator use the same URI object as from the URI table?
 		title = t;
-		pos = (p == null)? Collections.<Integer, String>emptyMap(): Collections.unmodifiableMap(p); // OPT NORM could be more efficient...
+		pos = PositionMap.copyOf(p);
+	}
+
+	/**
+	** Returns {@link #pos} as a {@link PositionMap}.
+	*/
+	public PositionMap positions() {
+		return (PositionMap)pos;
 	}
 
 	/*========================================================================
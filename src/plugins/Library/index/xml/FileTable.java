@@ -0,0 +1,491 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the <tt>&lt;files&gt;</tt> section of a subindex. It is built by a
+ * bulk scan of the raw bytes of the subindex, while the rest of the document
+ * streams through {@link #filter(InputStream)} to the SAX parser, which never
+ * sees the section at all. The offset of each <tt>&lt;file&gt;</tt> tag is
+ * recorded by id, so that the few tags a search needs can be read back
+ * directly with {@link #lookup(InputStream, Collection)}.
+ *
+ * Once built, the index is kept, and later passes skip the section without
+ * scanning it. It is not thread-safe; the owning subindex parses one batch of
+ * requests at a time.
+ *
+ * The subindex is assumed to be encoded in UTF-8, as written by XMLSpider.
+ */
+class FileTable {
+
+	final static int BUFFER_SIZE = 0x10000;
+
+	/**
+	 * Rough estimate of the memory used by an entry of the table.
+	 */
+	final static int ENTRY_BYTES = 0x40;
+
+	final private static byte[] FILES_START = bytes("<files");
+	final private static byte[] FILES_END = bytes("</files>");
+	final private static byte[] FILE_START = bytes("<file");
+
+	/** file id -> offset of its tag in the subindex */
+	final private Map<String, Long> offsets = new HashMap<String, Long>();
+
+	/** Offset of the start of the section */
+	private long start = -1;
+	/** Offset just past the end of the section */
+	private long end = -1;
+	/** Whether the whole section has been scanned */
+	private boolean complete;
+
+	private int totalFileCount = -1;
+
+	/**
+	 * @return The <tt>totalFileCount</tt> attribute of the section, or -1 if
+	 *         it did not have one (or has not been scanned yet)
+	 */
+	int getTotalFileCount() {
+		return totalFileCount;
+	}
+
+	/**
+	 * @return Whether the section has been found and scanned
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return The number of file ids in the table
+	 */
+	int size() {
+		return offsets.size();
+	}
+
+	/**
+	 * Returns a stream which passes through the given (whole) subindex, except
+	 * for its <tt>&lt;files&gt;</tt> section, which is indexed into this table
+	 * as it is read (or skipped, if it already has been).
+	 *
+	 * @param in The raw subindex
+	 */
+	InputStream filter(InputStream in) {
+		return new Filter(in);
+	}
+
+	/**
+	 * Reads the attributes of the <tt>&lt;file&gt;</tt> tags with the given
+	 * ids, in a single forward pass over the subindex. Ids not in the table are
+	 * left out of the result.
+	 *
+	 * @param in The raw subindex
+	 * @param ids The file ids to look up
+	 * @return A map of file ids to the attributes of their tags
+	 */
+	Map<String, Map<String, String>> lookup(InputStream in, Collection<String> ids) throws IOException {
+		Map<String, Map<String, String>> found = new HashMap<String, Map<String, String>>();
+		final Map<String, Long> wanted = new HashMap<String, Long>();
+		for (String id : ids) {
+			Long off = offsets.get(id);
+			if (off != null)
+				wanted.put(id, off);
+		}
+		List<String> order = new ArrayList<String>(wanted.keySet());
+		Collections.sort(order, new Comparator<String>() {
+			/*@Override**/ public int compare(String a, String b) {
+				return wanted.get(a).compareTo(wanted.get(b));
+			}
+		});
+
+		Scanner sc = new Scanner(in);
+		for (String id : order) {
+			sc.skipTo(wanted.get(id));
+			found.put(id, parseAttributes(sc.readTag(), sc.tagLength));
+		}
+		return found;
+	}
+
+	/**
+	 * Buffered reader over a raw subindex, which keeps track of the offset of
+	 * its buffer so that tags can be located and revisited.
+	 */
+	private static class Scanner {
+
+		final InputStream in;
+		final byte[] buf = new byte[BUFFER_SIZE];
+		/** Stream offset of buf[0] */
+		long base;
+		int pos, lim;
+		boolean eof;
+
+		byte[] tag = new byte[0x100];
+		int tagLength;
+
+		Scanner(InputStream in) {
+			this.in = in;
+		}
+
+		long offset() {
+			return base + pos;
+		}
+
+		/**
+		 * Makes at least n bytes available from pos, moving the remaining bytes
+		 * to the front of the buffer if necessary.
+		 *
+		 * @return Whether n bytes are available; false only at the end of the stream
+		 */
+		boolean fill(int n) throws IOException {
+			if (lim - pos >= n)
+				return true;
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, lim - pos);
+				base += pos;
+				lim -= pos;
+				pos = 0;
+			}
+			while (lim < n && !eof) {
+				int r = in.read(buf, lim, buf.length - lim);
+				if (r < 0)
+					eof = true;
+				else
+					lim += r;
+			}
+			return lim - pos >= n;
+		}
+
+		int indexOf(byte b, int from) {
+			for (int i = from; i < lim; i++)
+				if (buf[i] == b)
+					return i;
+			return -1;
+		}
+
+		/**
+		 * Whether the bytes at pos match the given ones. The caller must make
+		 * sure they are in the buffer.
+		 */
+		boolean matches(byte[] s) {
+			if (lim - pos < s.length)
+				return false;
+			for (int i = 0; i < s.length; i++)
+				if (buf[pos + i] != s[i])
+					return false;
+			return true;
+		}
+
+		/**
+		 * Whether the bytes at pos are the start of a tag with the given name
+		 * (including the <tt>&lt;</tt>).
+		 */
+		boolean startsTag(byte[] name) throws IOException {
+			if (!fill(name.length + 1) || !matches(name))
+				return false;
+			byte c = buf[pos + name.length];
+			return c == '>' || c == '/' || c == ' ' || c == '\t' || c == '\n' || c == '\r';
+		}
+
+		/**
+		 * Reads the tag starting at pos into {@link #tag}, up to and including
+		 * the closing <tt>&gt;</tt>.
+		 *
+		 * @return The tag buffer; its length is in {@link #tagLength}
+		 */
+		byte[] readTag() throws IOException {
+			tagLength = 0;
+			byte quote = 0;
+			while (true) {
+				if (pos == lim && !fill(1))
+					throw new EOFException("Unterminated tag at offset " + offset());
+				int i = pos;
+				boolean done = false;
+				for (; i < lim; i++) {
+					byte c = buf[i];
+					if (quote != 0) {
+						if (c == quote)
+							quote = 0;
+					} else if (c == '"' || c == '\'') {
+						quote = c;
+					} else if (c == '>') {
+						i++;
+						done = true;
+						break;
+					}
+				}
+				int n = i - pos;
+				if (tagLength + n > tag.length) {
+					byte[] t = new byte[Math.max(tag.length * 2, tagLength + n)];
+					System.arraycopy(tag, 0, t, 0, tagLength);
+					tag = t;
+				}
+				System.arraycopy(buf, pos, tag, tagLength, n);
+				tagLength += n;
+				pos = i;
+				if (done)
+					return tag;
+			}
+		}
+
+		/**
+		 * Moves forward to the given offset, skipping whatever is not already
+		 * in the buffer.
+		 */
+		void skipTo(long target) throws IOException {
+			long skip = target - offset();
+			if (skip < 0)
+				throw new IllegalStateException("Cannot skip backwards to offset " + target + " from " + offset());
+			if (skip <= lim - pos) {
+				pos += (int)skip;
+				return;
+			}
+			skip -= lim - pos;
+			base += lim;
+			pos = lim = 0;
+			while (skip > 0) {
+				long s = in.skip(skip);
+				if (s <= 0) {
+					if (in.read() < 0)
+						throw new EOFException("Cannot skip to offset " + target);
+					s = 1;
+				}
+				skip -= s;
+				base += s;
+			}
+		}
+
+	}
+
+	/**
+	 * Stream which omits the <tt>&lt;files&gt;</tt> section, and indexes it.
+	 */
+	private class Filter extends InputStream {
+
+		final Scanner sc;
+		/** Whether the section has been passed */
+		boolean passed;
+
+		Filter(InputStream in) {
+			sc = new Scanner(in);
+		}
+
+		@Override public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return (n < 0) ? -1 : b[0] & 0xFF;
+		}
+
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int n = 0;
+			while (n < len) {
+				if (sc.pos == sc.lim) {
+					// don't block for more if we already have something to return
+					if (n > 0 || !sc.fill(1))
+						break;
+				}
+				int stop = sc.lim;
+				if (!passed) {
+					int lt = sc.indexOf((byte)'<', sc.pos);
+					if (lt == sc.pos) {
+						if (sc.startsTag(FILES_START)) {
+							passSection();
+							continue;
+						}
+						stop = sc.pos + 1;
+					} else if (lt > 0) {
+						stop = lt;
+					}
+				}
+				int k = Math.min(len - n, stop - sc.pos);
+				System.arraycopy(sc.buf, sc.pos, b, off + n, k);
+				sc.pos += k;
+				n += k;
+			}
+			return (n == 0) ? -1 : n;
+		}
+
+		@Override public void close() throws IOException {
+			sc.in.close();
+		}
+
+		/**
+		 * Consumes the section starting at the current position, indexing it
+		 * unless this has been done already.
+		 */
+		void passSection() throws IOException {
+			passed = true;
+			if (complete && start == sc.offset()) {
+				sc.skipTo(end);
+				return;
+			}
+
+			offsets.clear();
+			start = sc.offset();
+			byte[] tag = sc.readTag();
+			String count = parseAttributes(tag, sc.tagLength).get("totalFileCount");
+			if (count != null) {
+				try {
+					totalFileCount = Integer.parseInt(count);
+				} catch (NumberFormatException e) {
+					totalFileCount = -1;
+				}
+			}
+
+			if (tag[sc.tagLength - 2] != '/') {
+				while (true) {
+					if (!sc.fill(1))
+						throw new EOFException("Unterminated <files> section");
+					int lt = sc.indexOf((byte)'<', sc.pos);
+					if (lt < 0) {
+						sc.pos = sc.lim;
+						continue;
+					}
+					sc.pos = lt;
+					sc.fill(FILES_END.length);
+					if (sc.matches(FILES_END)) {
+						sc.pos += FILES_END.length;
+						break;
+					}
+					if (sc.startsTag(FILE_START)) {
+						long at = sc.offset();
+						String id = parseAttributes(sc.readTag(), sc.tagLength).get("id");
+						if (id != null)
+							offsets.put(id, at);
+					} else {
+						sc.pos++;
+					}
+				}
+			}
+			end = sc.offset();
+			complete = true;
+		}
+
+	}
+
+	/**
+	 * Parses the attributes of a single start tag.
+	 *
+	 * @param tag The bytes of the tag, from <tt>&lt;</tt> to <tt>&gt;</tt>
+	 * @param len The length of the tag
+	 * @return A map of the attribute names to their (unescaped) values
+	 */
+	static Map<String, String> parseAttributes(byte[] tag, int len) throws IOException {
+		String s = new String(tag, 0, len, "UTF-8");
+		Map<String, String> attrs = new HashMap<String, String>();
+		int i = 1;
+		int n = s.length();
+		// skip the element name
+		while (i < n && !isSpace(s.charAt(i)) && s.charAt(i) != '>' && s.charAt(i) != '/')
+			i++;
+		while (true) {
+			while (i < n && isSpace(s.charAt(i)))
+				i++;
+			if (i >= n || s.charAt(i) == '>' || s.charAt(i) == '/')
+				return attrs;
+			int ns = i;
+			while (i < n && s.charAt(i) != '=' && !isSpace(s.charAt(i)))
+				i++;
+			String name = s.substring(ns, i);
+			while (i < n && isSpace(s.charAt(i)))
+				i++;
+			if (i >= n || s.charAt(i) != '=')
+				throw new IOException("Malformed attribute " + name + " in tag: " + s);
+			i++;
+			while (i < n && isSpace(s.charAt(i)))
+				i++;
+			if (i >= n)
+				throw new IOException("Malformed attribute " + name + " in tag: " + s);
+			char quote = s.charAt(i);
+			if (quote != '"' && quote != '\'')
+				throw new IOException("Unquoted attribute " + name + " in tag: " + s);
+			int vs = ++i;
+			i = s.indexOf(quote, vs);
+			if (i < 0)
+				throw new IOException("Unterminated attribute " + name + " in tag: " + s);
+			attrs.put(name, unescape(s.substring(vs, i)));
+			i++;
+		}
+	}
+
+	/**
+	 * Replaces entity and character references in an attribute value, and
+	 * normalises whitespace, as an XML parser would.
+	 */
+	static String unescape(String v) throws IOException {
+		if (v.indexOf('&') < 0 && v.indexOf('\t') < 0 && v.indexOf('\n') < 0 && v.indexOf('\r') < 0)
+			return v;
+		StringBuilder sb = new StringBuilder(v.length());
+		for (int i = 0; i < v.length(); i++) {
+			char c = v.charAt(i);
+			if (c == '&') {
+				int semi = v.indexOf(';', i);
+				if (semi < 0)
+					throw new IOException("Unterminated reference in attribute value: " + v);
+				String ref = v.substring(i + 1, semi);
+				if (ref.equals("amp"))
+					sb.append('&');
+				else if (ref.equals("lt"))
+					sb.append('<');
+				else if (ref.equals("gt"))
+					sb.append('>');
+				else if (ref.equals("quot"))
+					sb.append('"');
+				else if (ref.equals("apos"))
+					sb.append('\'');
+				else if (ref.startsWith("#x"))
+					sb.appendCodePoint(parseCodePoint(ref.substring(2), 16, v));
+				else if (ref.startsWith("#"))
+					sb.appendCodePoint(parseCodePoint(ref.substring(1), 10, v));
+				else
+					throw new IOException("Unknown entity &" + ref + "; in attribute value: " + v);
+				i = semi;
+			} else if (c == '\t' || c == '\n') {
+				sb.append(' ');
+			} else if (c == '\r') {
+				// a CRLF pair is a single line break
+				sb.append(' ');
+				if (i + 1 < v.length() && v.charAt(i + 1) == '\n')
+					i++;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int parseCodePoint(String s, int radix, String v) throws IOException {
+		try {
+			return Integer.parseInt(s, radix);
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad character reference in attribute value: " + v);
+		}
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+}
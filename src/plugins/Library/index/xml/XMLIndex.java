@@ -6,15 +6,18 @@ package plugins.Library.index.xml;
 import plugins.Library.Library;
 import plugins.Library.Index;
 import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermEntryCache;
 import plugins.Library.index.TermPageEntry;
 import plugins.Library.index.URIEntry;
 import plugins.Library.search.InvalidSearchException;
+import plugins.Library.util.concurrent.BoundedExecutor;
+import plugins.Library.util.concurrent.Executors;
 import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.TaskAbortException;
 
 import com.db4o.ObjectContainer;
 
-import freenet.support.Fields;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.io.FileBucket;
@@ -31,7 +34,6 @@ import freenet.node.RequestClient;
 import freenet.keys.FreenetURI;
 
 import freenet.pluginmanager.PluginRespirator;
-import freenet.support.Executor;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -42,13 +44,9 @@ import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.File;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.logging.Level;
 import java.util.ArrayList;
@@ -61,6 +59,11 @@ import java.util.List;
 import java.util.TreeMap;
 import java.util.SortedMap;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -73,7 +76,6 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 	final public static String DEFAULT_FILE = "index.xml";
 
 	private PluginRespirator pr;
-	private Executor executor;
 	private ClientGetter rootGetter;
 	private int fetchFailures = 0;
 	public enum FetchStatus{UNFETCHED, FETCHING, FETCHED, FAILED}
@@ -106,6 +108,83 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 		Logger.registerClass(XMLIndex.class);
 	}
 
+	/**
+	 * Maximum number of fetched subindexes waiting to be parsed, by all
+	 * XMLIndexes.
+	 */
+	final public static int PARSE_QUEUE_MAX = 0x10;
+
+	/**
+	 * Executor shared by all XMLIndexes for parsing subindexes, which is
+	 * CPU-bound, so there is no point in running more parses at once than
+	 * there are processors. Fetches do not run on this. Each subindex waiting
+	 * in its queue holds on to its fetched data, so the queue is bounded; when
+	 * it is full, the subindex is parsed on a fetch thread instead, which holds
+	 * back further fetches. It is never parsed on a search thread.
+	 */
+	final static ThreadPoolExecutor PARSE_EXECUTOR = new ThreadPoolExecutor(
+		Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 1, TimeUnit.SECONDS,
+		new ArrayBlockingQueue<Runnable>(PARSE_QUEUE_MAX),
+		new ThreadFactory() {
+			/*@Override**/ public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "XMLIndex subindex parser");
+				t.setDaemon(true);
+				return t;
+			}
+		},
+		new ThreadPoolExecutor.AbortPolicy()
+	);
+
+	static {
+		// the parser threads are not needed between searches
+		PARSE_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Maximum number of subindexes fetched at once, by all XMLIndexes.
+	 */
+	final public static int FETCH_MAX = 0x10;
+
+	/**
+	 * Executor shared by all XMLIndexes for fetching subindexes. Fetches wait
+	 * in its queue rather than being run by the caller when there are too many,
+	 * since they are started from node callbacks which must not block.
+	 */
+	static volatile BoundedExecutor FETCH_EXECUTOR = newFetchExecutor(null);
+
+	/**
+	 * Run subindex fetches on the given executor, eg. the node's, from now on
+	 */
+	public static void setup(Executor executor){
+		FETCH_EXECUTOR = newFetchExecutor(executor);
+	}
+
+	/**
+	 * Make the executor for fetching subindexes, whose fetches run on the
+	 * given executor, or on their own threads if it is null or {@link
+	 * Executors#VIRTUAL_THREADS} is set
+	 */
+	private static BoundedExecutor newFetchExecutor(final Executor executor){
+		java.util.concurrent.Executor threads;
+		if(executor==null || Executors.VIRTUAL_THREADS)
+			threads = Executors.newThreadPerTaskExecutor("XMLIndex subindex fetcher");
+		else
+			threads = new java.util.concurrent.Executor(){
+				public void execute(Runnable r){
+					executor.execute(r, "XMLIndex subindex fetcher");
+				}
+			};
+		return new BoundedExecutor(threads, FETCH_MAX, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the executor that fetches subindexes, eg. to see how many are
+	 * waiting for it.
+	 */
+	public static BoundedExecutor getFetchExecutor() {
+		return FETCH_EXECUTOR;
+	}
+
 	/**
 	 * Create an XMLIndex from a URI
 	 * @param baseURI
@@ -116,8 +195,6 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 		this.origEdition = edition;
 		this.updateHook = hook;
 		this.updateContext = context;
-		if (pr!=null)
-			executor = pr.getNode().executor;
 
 		if (baseURI.endsWith(DEFAULT_FILE))
 			baseURI = baseURI.replace(DEFAULT_FILE, "");
@@ -330,12 +407,20 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 	}
 
 	/**
-	 * Find the term in this Index
+	 * Find the term in this Index. The result is shared with (and may come
+	 * from) other lookups of the same term in this edition of the index; see
+	 * {@link TermEntryCache}.
 	 */
 	public synchronized Execution<Set<TermEntry>> getTermEntries(String term){
 		try {
+			// indexuri includes the edition, and changes if a newer one is found
+			TermEntryCache cache = TermEntryCache.getDefault();
+			Execution<Set<TermEntry>> cached = cache.get(indexuri, indexuri, term);
+			if (cached != null)
+				return cached;
 			FindRequest request = new FindRequest(term);
 			setdependencies(request);
+			cache.put(indexuri, indexuri, request);
 			notifyAll();
 			return request;
 		} catch (FetchException ex) {
@@ -369,14 +454,29 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 			SubIndex subindex = getSubIndex(request.getSubject());
 			subindex.addRequest(request);
 //			Logger.normal(this, "STarting "+getSubIndex(request.getSubject())+" to look for "+request.getSubject());
-			if(executor!=null)
-				executor.execute(subindex, "Subindex:"+subindex.getFileName());
-			else
-				(new Thread(subindex, "Subindex:"+subindex.getFileName())).start();
+			subindex.schedule();
 		}
 	}
 
 
+	/**
+	 * Rough estimate of the memory used by this index: the fetched subindexes
+	 * and the tables of their files sections.
+	 */
+	public long estimateBytes(){
+		SortedMap<String, SubIndex> subs = subIndice;
+		if(subs == null)
+			return 0;
+		long bytes = 0;
+		for(SubIndex sub : subs.values()){
+			Bucket b = sub.bucket;
+			if(b != null)
+				bytes += b.size();
+			bytes += (long)sub.files.size() * FileTable.ENTRY_BYTES;
+		}
+		return bytes;
+	}
+
 	/**
 	 * @return the uri of this index prefixed with "xml:" to show what type it is
 	 */
@@ -392,6 +492,10 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 		HighLevelSimpleClient hlsc;
 		Bucket bucket;
 		Exception error;
+		/** Index of the files section of the fetched bucket */
+		final FileTable files = new FileTable();
+		/** Whether a run of this subindex is queued or in progress; guarded by waitingOnSubindex */
+		private boolean scheduled;
 
 		/**
 		 * Listens for progress on a subIndex fetch
@@ -447,28 +551,61 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 		}
 
 
+		/**
+		 * Schedule this subindex to handle the requests waiting on it, unless
+		 * it is already doing so. The fetch runs on {@link #FETCH_EXECUTOR},
+		 * since it blocks on the network; parsing runs on {@link #PARSE_EXECUTOR},
+		 * or on a fetch thread when its queue is full.
+		 */
+		void schedule(){
+			synchronized(waitingOnSubindex){
+				if(scheduled)
+					return;
+				scheduled = true;
+			}
+			if(fetchStatus==FetchStatus.FETCHED){
+				try{
+					PARSE_EXECUTOR.execute(this);
+					return;
+				}catch(RejectedExecutionException e){
+					// the parse queue is full; leave it to a fetch thread rather
+					// than parsing on the caller, which may be a search thread
+				}
+			}
+			FETCH_EXECUTOR.execute(this);
+		}
+
 		public synchronized void run(){
 			try{
-				while(waitingOnSubindex.size()>0){
-					if(fetchStatus==FetchStatus.UNFETCHED || fetchStatus == FetchStatus.FAILED){
-						try {
-							fetchStatus = FetchStatus.FETCHING;
-							// TODO tidy the fetch stuff
-							bucket = Util.fetchBucket(indexuri + filename, hlsc);
-							fetchStatus = FetchStatus.FETCHED;
-
-						} catch (Exception e) {		// TODO tidy the exceptions
-							//java.net.MalformedURLException
-							//freenet.client.FetchException
-							String msg = indexuri + filename + " could not be opened: " + e.toString();
-							Logger.error(this, msg, e);
-							throw new TaskAbortException(msg, e);
+				if(fetchStatus==FetchStatus.UNFETCHED || fetchStatus == FetchStatus.FAILED){
+					try {
+						fetchStatus = FetchStatus.FETCHING;
+						// TODO tidy the fetch stuff
+						bucket = Util.fetchBucket(indexuri + filename, hlsc);
+						fetchStatus = FetchStatus.FETCHED;
+					} catch (Exception e) {		// TODO tidy the exceptions
+						//java.net.MalformedURLException
+						//freenet.client.FetchException
+						String msg = indexuri + filename + " could not be opened: " + e.toString();
+						Logger.error(this, msg, e);
+						throw new TaskAbortException(msg, e);
+					}
+					// hand over to the parser pool, rather than parsing on the fetch thread
+					try{
+						PARSE_EXECUTOR.execute(this);
+						return;
+					}catch(RejectedExecutionException e){
+						// the parse queue is full, so parse it here, which holds back further fetches
+					}
+				}
+				while(true){
+					synchronized(waitingOnSubindex){
+						if(waitingOnSubindex.isEmpty()){
+							scheduled = false;
+							return;
 						}
-					}else if(fetchStatus==FetchStatus.FETCHED){
-						parseSubIndex();
-					} else {
-						break;
 					}
+					parseSubIndex();
 				}
 			} catch (TaskAbortException e) {
 				fetchStatus = FetchStatus.FAILED;
@@ -476,11 +613,23 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 				Logger.error(this, "Dropping from subindex run loop", e);
 				for (FindRequest r : parsingSubindex)
 					r.setError(e);
-				for (FindRequest r : waitingOnSubindex)
-					r.setError(e);
+				parsingSubindex.clear();
+				synchronized(waitingOnSubindex){
+					for (FindRequest r : waitingOnSubindex)
+						r.setError(e);
+					waitingOnSubindex.clear();
+					scheduled = false;
+				}
 			}
 		}
-		
+
+		/**
+		 * Resolve all the requests waiting on this subindex, in one pass over
+		 * its keywords. The <tt>&lt;files&gt;</tt> section is left out of that
+		 * pass by {@link FileTable}, which indexes it on the way (the first
+		 * time only); the <tt>&lt;file&gt;</tt> tags of the matches are then
+		 * read back directly.
+		 */
 		public void parseSubIndex() throws TaskAbortException {
 			synchronized(parsingSubindex){
 				// Transfer all requests waiting on this subindex to the parsing list
@@ -491,120 +640,47 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 				// Set status of all those about to be parsed to PARSE
 				for(FindRequest r : parsingSubindex)
 					r.setStage(FindRequest.Stages.PARSE);
-				
-				// Multi-stage parse to minimise memory usage.
-				
-				// Stage 1: Extract the declaration (first tag), copy everything before "<files " to one bucket, plus everything after "</files>".
-				// Copy the declaration, plus everything between the two (inclusive) to another bucket.
-				
-				Bucket mainBucket, filesBucket;
-				
+
 				try {
-				InputStream is = bucket.getInputStream();
-				mainBucket = pr.getNode().clientCore.tempBucketFactory.makeBucket(-1);
-				filesBucket = pr.getNode().clientCore.tempBucketFactory.makeBucket(-1);
-				OutputStream mainOS = new BufferedOutputStream(mainBucket.getOutputStream());
-				OutputStream filesOS = new BufferedOutputStream(filesBucket.getOutputStream());
-				//OutputStream mainOS = new BufferedOutputStream(new FileOutputStream("main.tmp"));
-				//OutputStream filesOS = new BufferedOutputStream(new FileOutputStream("files.tmp"));
-				
-				BufferedInputStream bis = new BufferedInputStream(is);
+					SAXParserFactory factory = SAXParserFactory.newInstance();
+					factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+					SAXParser saxParser = factory.newSAXParser();
 
-				byte greaterThan = ">".getBytes("UTF-8")[0];
-				byte[] filesPrefix = "<files ".getBytes("UTF-8");
-				byte[] filesPrefixAlt = "<files>".getBytes("UTF-8");
-				assert(filesPrefix.length == filesPrefixAlt.length);
-				byte[] filesEnd = "</files>".getBytes("UTF-8");
-				
-				final int MODE_SEEKING_DECLARATION = 1;
-				final int MODE_SEEKING_FILES = 2;
-				final int MODE_COPYING_FILES = 3;
-				final int MODE_COPYING_REST = 4;
-				int mode = MODE_SEEKING_DECLARATION;
-				int b;
-				byte[] declarationBuf = new byte[100];
-				int declarationPtr = 0;
-				byte[] prefixBuffer = new byte[filesPrefix.length];
-				int prefixPtr = 0;
-				byte[] endBuffer = new byte[filesEnd.length];
-				int endPtr = 0;
-				while((b = bis.read()) != -1) {
-					if(mode == MODE_SEEKING_DECLARATION) {
-						if(declarationPtr == declarationBuf.length)
-							throw new TaskAbortException("Could not split up XML: declaration too long", null);
-						declarationBuf[declarationPtr++] = (byte)b;
-						mainOS.write(b);
-						filesOS.write(b);
-						if(b == greaterThan) {
-							mode = MODE_SEEKING_FILES;
+					InputStream is = files.filter(bucket.getInputStream());
+					KeywordHandler keywordHandler = new KeywordHandler();
+					try {
+						saxParser.parse(is, keywordHandler);
+					} catch (ParseComplete e) {
+						// the rest of the keywords are not needed
+					} finally {
+						is.close();
+					}
+					if(logMINOR) Logger.minor(this, "Finished keyword parse of "+filename+", "+files.size()+" files indexed");
+
+					Map<String, ArrayList<FileMatch>> idToFileMatches = keywordHandler.idToFileMatches;
+					if(!idToFileMatches.isEmpty()) {
+						is = bucket.getInputStream();
+						Map<String, Map<String, String>> fileAttrs;
+						try {
+							fileAttrs = files.lookup(is, idToFileMatches.keySet());
+						} finally {
+							is.close();
 						}
-					} else if(mode == MODE_SEEKING_FILES) {
-						if(prefixPtr != prefixBuffer.length) {
-							prefixBuffer[prefixPtr++] = (byte)b;
-						} else {
-							if(Fields.byteArrayEqual(filesPrefix, prefixBuffer)
-									|| Fields.byteArrayEqual(filesPrefixAlt, prefixBuffer)) {
-								mode = MODE_COPYING_FILES;
-								filesOS.write(prefixBuffer);
-								filesOS.write(b);
-							} else {
-								mainOS.write(prefixBuffer[0]);
-								System.arraycopy(prefixBuffer, 1, prefixBuffer, 0, prefixBuffer.length-1);
-								prefixBuffer[prefixBuffer.length-1] = (byte)b;
+						for (Map.Entry<String, ArrayList<FileMatch>> en : idToFileMatches.entrySet()) {
+							Map<String, String> attrs = fileAttrs.get(en.getKey());
+							if(attrs == null) {
+								Logger.error(this, "File id "+en.getKey()+" not found in "+filename);
+								continue;
 							}
-						}
-					} else if(mode == MODE_COPYING_FILES) {
-						if(endPtr != endBuffer.length) {
-							endBuffer[endPtr++] = (byte)b;
-						} else {
-							if(Fields.byteArrayEqual(filesEnd, endBuffer)) {
-								mode = MODE_COPYING_REST;
-								filesOS.write(endBuffer);
-								mainOS.write(b);
-							} else {
-								filesOS.write(endBuffer[0]);
-								System.arraycopy(endBuffer, 1, endBuffer, 0, endBuffer.length-1);
-								endBuffer[endBuffer.length-1] = (byte)b;
+							try {
+								addFileMatches(en.getValue(), attrs);
+							} catch (Exception e) {
+								// one bad <file> tag should not fail the whole subindex
+								Logger.error(this, "File id and key could not be retrieved. May be due to format clash", e);
 							}
 						}
-					} else if(mode == MODE_COPYING_REST) {
-						mainOS.write(b);
 					}
-				}
-				
-				if(mode != MODE_COPYING_REST)
-					throw new TaskAbortException("Could not split up XML: Last mode was "+mode, null);
-				
-				mainOS.close();
-				filesOS.close();
-				} catch (IOException e) {
-					throw new TaskAbortException("Could not split XML: ", e);
-				}
-				
-				if(logMINOR) Logger.minor(this, "Finished splitting XML");
-				
-				try {
-				
-					SAXParserFactory factory = SAXParserFactory.newInstance();
-					factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-					SAXParser saxParser = factory.newSAXParser();
-					
-					// Stage 2: Parse the first bucket, find the keyword we want, find the file id's.
-					
-					InputStream is = mainBucket.getInputStream();
-					StageTwoHandler stageTwoHandler = new StageTwoHandler();
-					saxParser.parse(is, stageTwoHandler);
-					if(logMINOR) Logger.minor(this, "Finished stage two XML parse");
-					is.close();
-				
-					// Stage 3: Parse the second bucket, extract the <file>'s for the specific ID's.
-					
-					is = filesBucket.getInputStream();
-					StageThreeHandler stageThreeHandler = new StageThreeHandler();
-					saxParser.parse(is, stageThreeHandler);
-					if(logMINOR) Logger.minor(this, "Finished stage three XML parse");
-					is.close();
-					
+
 					Logger.minor(this, "parsing finished "+ parsingSubindex.toString());
 					for (FindRequest findRequest : parsingSubindex) {
 						findRequest.setFinished();
@@ -616,7 +692,46 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 				}
 			}
 		}
-		
+
+		/**
+		 * Add a result to each request matching the given file
+		 * @param matches the word matches for the file
+		 * @param attrs the attributes of the file's tag
+		 */
+		private void addFileMatches(List<FileMatch> matches, Map<String, String> attrs) throws MalformedURLException {
+			String key = attrs.get("key");
+			String title = attrs.get("title");
+			int wordCount = -1;
+			String wordCountString = attrs.get("wordCount");
+			if(wordCountString != null) {
+				try {
+					wordCount = Integer.parseInt(wordCountString);
+				} catch (NumberFormatException e) {
+					//Logger.minor(this, "No wordcount found " + e.toString(), e);
+				}
+			}
+			int totalFileCount = files.getTotalFileCount();
+			FreenetURI uri = new FreenetURI(key);
+
+			for(FileMatch match : matches) {
+				for(FindRequest req : match.word.searches) {
+					Set<TermPageEntry> result = req.getUnfinishedResult();
+					float relevance = 0;
+
+					if(logDEBUG) Logger.debug(this, "termcount "+(match.termpositions == null ? 0 : match.termpositions.size())+" filewordcount = "+wordCount);
+					if(match.termpositions!=null && match.termpositions.size()>0 && wordCount>0 ){
+						relevance = (float)(match.termpositions.size()/(float)wordCount);
+						if( totalFileCount > 0 && match.word.inWordFileCount > 0)
+							relevance *=  Math.log( (float)totalFileCount/(float)match.word.inWordFileCount);
+						if(logDEBUG) Logger.debug(this, "Set relevance of "+title+" to "+relevance+" - "+key);
+					}
+
+					TermPageEntry pageEntry = new TermPageEntry(req.getSubject(), relevance, uri, title, match.termpositions);
+					result.add(pageEntry);
+				}
+			}
+		}
+
 		class WordMatch {
 			public WordMatch(ArrayList<FindRequest> searches, int inWordFileCount) {
 				this.searches = searches;
@@ -637,13 +752,20 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 			final WordMatch word;
 		}
 		
-		Map<String, ArrayList<FileMatch>> idToFileMatches = new HashMap<String, ArrayList<FileMatch>>();
-		
-		int totalFileCount = -1;
-		
-		// Parse the main XML file, including the keywords list.
-		// We do not see the files list.
-		class StageTwoHandler extends DefaultHandler {
+		/**
+		 * Thrown by {@link KeywordHandler} to stop the parse early
+		 */
+		class ParseComplete extends SAXException {
+			ParseComplete() {
+				super("All requests resolved");
+			}
+		}
+
+		// Parse the keywords list, matching the words against all the requests
+		// being parsed. The files list is filtered out by FileTable.
+		class KeywordHandler extends DefaultHandler {
+
+			final Map<String, ArrayList<FileMatch>> idToFileMatches = new HashMap<String, ArrayList<FileMatch>>();
 			
 			private boolean processingWord;
 			
@@ -664,7 +786,7 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 			
 			private WordMatch thisWordMatch;
 
-			StageTwoHandler() {
+			KeywordHandler() {
 				this.requests = new ArrayList(parsingSubindex);
 				for (FindRequest r : parsingSubindex){
 					r.setResult(new HashSet<TermPageEntry>());
@@ -747,7 +869,11 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 			}
 			
 			@Override
-			public void endElement(String namespaceURI, String localName, String qName) {
+			public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+				// words are unique within a subindex, so once every request has
+				// had its word, there is nothing left to find
+				if(processingWord && qName.equals("word") && requests.isEmpty())
+					throw new ParseComplete();
 				if(processingWord && wordMatches != null && qName.equals("file")){
 					HashMap<Integer, String> termpositions = null;
 					if(characters!=null){
@@ -777,93 +903,7 @@ public class XMLIndex implements Index, ClientGetCallback, RequestClient{
 			}
 			
 		}
-		
-		class StageThreeHandler extends DefaultHandler {
-			
-			@Override public void setDocumentLocator(Locator value) {
-
-			}
-
-			@Override public void endDocument() throws SAXException {
-			}
-
-			@Override public void startElement(String nameSpaceURI, String localName, String rawName, Attributes attrs)
-	        throws SAXException {
-				
-				if(idToFileMatches.isEmpty())
-					return;
-				if (rawName == null) {
-					rawName = localName;
-				}
-				String elt_name = rawName;
-
-				if (elt_name.equals("files")){
-					String fileCount = attrs.getValue("", "totalFileCount");
-					if(fileCount != null)
-						totalFileCount = Integer.parseInt(fileCount);
-					Logger.minor(this, "totalfilecount = "+totalFileCount);
-				}
-
-				if (elt_name.equals("file")) {
-					try {
-						String id = attrs.getValue("id");
-						
-						ArrayList<FileMatch> matches = idToFileMatches.get(id);
-						
-						if(matches != null) {
-							
-							for(FileMatch match : matches) {
-								
-								String key = attrs.getValue("key");
-								int l = attrs.getLength();
-								String title = null;
-								int wordCount = -1;
-								if (l >= 3) {
-									try {
-										title = attrs.getValue("title");
-									} catch (Exception e) {
-										Logger.error(this, "Index Format not compatible " + e.toString(), e);
-									}
-									try {
-										String wordCountString = attrs.getValue("wordCount");
-										if(wordCountString != null) {
-											wordCount = Integer.parseInt(attrs.getValue("wordCount"));
-										}
-									} catch (Exception e) {
-										//Logger.minor(this, "No wordcount found " + e.toString(), e);
-									}
-								}
-								
-								for(FindRequest req : match.word.searches) {
-									
-									Set<TermPageEntry> result = req.getUnfinishedResult();
-									float relevance = 0;
-									
-									if(logDEBUG) Logger.debug(this, "termcount "+(match.termpositions == null ? 0 : match.termpositions.size())+" filewordcount = "+wordCount);
-									if(match.termpositions!=null && match.termpositions.size()>0 && wordCount>0 ){
-										relevance = (float)(match.termpositions.size()/(float)wordCount);
-										if( totalFileCount > 0 && match.word.inWordFileCount > 0)
-											relevance *=  Math.log( (float)totalFileCount/(float)match.word.inWordFileCount);
-										if(logDEBUG) Logger.debug(this, "Set relevance of "+title+" to "+relevance+" - "+key);
-									}
-									
-									TermPageEntry pageEntry = new TermPageEntry(req.getSubject(), relevance, new FreenetURI(key), title, match.termpositions);
-									result.add(pageEntry);
-									//Logger.minor(this, "added "+inFileURI+ " to "+ match);
-								}
-								
-							}
-						}
-						
-					}
-					catch (Exception e) {
-						Logger.error(this, "File id and key could not be retrieved. May be due to format clash", e);
-					}
-				}
-			}
 
-		}
-		
 	}
 
 }
@@ -0,0 +1,445 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import plugins.Library.io.serial.Packer;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.PositionMap;
+import plugins.Library.index.TermIndexEntry;
+import plugins.Library.index.TermTermEntry;
+import plugins.Library.index.URIEntry;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Date;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+** Converts between an object and a compact binary stream. This handles the
+** same object graphs that {@link YamlReaderWriter} is used for, ie. those
+** built from {@link Map}s, {@link List}s, {@link Set}s, strings, numbers,
+** {@link Date}s, {@link FreenetURI}s, {@link Packer.BinInfo}s, {@link
+** TermEntry}s and {@link URIEntry}s.
+**
+** The format is a tagged tree of values. Lengths and integers are written as
+** variable-length integers; strings are written once per stream and are then
+** referred to by their position in a string table, so that repeated terms and
+** map keys cost only a byte or two; {@link FreenetURI}s are written in their
+** binary form. Unlike YAML, the exact numeric types are preserved, but shared
+** references are not - an object that occurs twice is written twice.
+*/
+public class BinaryReaderWriter
+implements ObjectStreamReader, ObjectStreamWriter {
+
+	final public static String MIME_TYPE = "application/x-freenet-library-bin";
+	final public static String FILE_EXTENSION = ".bin";
+
+	/**
+	** Written at the start of every stream.
+	*/
+	final public static int MAGIC = 0x4c69624e; // "LibN"
+	final public static int VERSION = 1;
+
+	final protected static int T_NULL = 0x00;
+	final protected static int T_FALSE = 0x01;
+	final protected static int T_TRUE = 0x02;
+	final protected static int T_INT = 0x03;
+	final protected static int T_LONG = 0x04;
+	final protected static int T_FLOAT = 0x05;
+	final protected static int T_DOUBLE = 0x06;
+	final protected static int T_STRING = 0x07;
+	final protected static int T_DATE = 0x08;
+	final protected static int T_URI = 0x09;
+	final protected static int T_MAP = 0x10;
+	final protected static int T_LIST = 0x11;
+	final protected static int T_SET = 0x12;
+	final protected static int T_BININFO = 0x20;
+	final protected static int T_TERM_TERM = 0x21;
+	final protected static int T_TERM_INDEX = 0x22;
+	final protected static int T_TERM_PAGE = 0x23;
+	final protected static int T_URIENTRY = 0x24;
+
+	/*@Override**/ public Object readObject(InputStream is) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+		int magic = dis.readInt();
+		if (magic != MAGIC) {
+			throw new DataFormatException("Not a binary library stream", null, magic);
+		}
+		int version = dis.readUnsignedByte();
+		if (version != VERSION) {
+			throw new DataFormatException("Unsupported binary format version", null, version);
+		}
+		return new Decoder(dis).readValue();
+	}
+
+	/*@Override**/ public void writeObject(Object o, OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		new Encoder(dos).writeValue(o);
+		dos.flush();
+	}
+
+	/************************************************************************
+	** Writes values to a stream, keeping track of the strings written so far.
+	*/
+	protected static class Encoder {
+
+		final protected DataOutputStream dos;
+		final protected Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		protected Encoder(DataOutputStream d) {
+			dos = d;
+		}
+
+		public void writeValue(Object o) throws IOException {
+			if (o == null) {
+				dos.writeByte(T_NULL);
+			} else if (o instanceof String) {
+				dos.writeByte(T_STRING);
+				writeString((String)o);
+			} else if (o instanceof Integer) {
+				dos.writeByte(T_INT);
+				writeVarint(dos, zigzag((Integer)o));
+			} else if (o instanceof Long) {
+				dos.writeByte(T_LONG);
+				writeVarlong(dos, zigzag((Long)o));
+			} else if (o instanceof Boolean) {
+				dos.writeByte(((Boolean)o)? T_TRUE: T_FALSE);
+			} else if (o instanceof Float) {
+				dos.writeByte(T_FLOAT);
+				dos.writeFloat((Float)o);
+			} else if (o instanceof Double) {
+				dos.writeByte(T_DOUBLE);
+				dos.writeDouble((Double)o);
+			} else if (o instanceof Date) {
+				dos.writeByte(T_DATE);
+				writeVarlong(dos, zigzag(((Date)o).getTime()));
+			} else if (o instanceof FreenetURI) {
+				dos.writeByte(T_URI);
+				((FreenetURI)o).writeFullBinaryKeyWithLength(dos);
+			} else if (o instanceof Map) {
+				Map<?, ?> map = (Map<?, ?>)o;
+				dos.writeByte(T_MAP);
+				writeVarint(dos, map.size());
+				for (Map.Entry<?, ?> en: map.entrySet()) {
+					writeValue(en.getKey());
+					writeValue(en.getValue());
+				}
+			} else if (o instanceof Collection) {
+				Collection<?> col = (Collection<?>)o;
+				dos.writeByte((o instanceof Set)? T_SET: T_LIST);
+				writeVarint(dos, col.size());
+				for (Object e: col) {
+					writeValue(e);
+				}
+			} else if (o instanceof Packer.BinInfo) {
+				Packer.BinInfo inf = (Packer.BinInfo)o;
+				dos.writeByte(T_BININFO);
+				writeValue(inf.getID());
+				writeVarint(dos, inf.getWeight());
+			} else if (o instanceof TermEntry) {
+				writeTermEntry((TermEntry)o);
+			} else if (o instanceof URIEntry) {
+				URIEntry en = (URIEntry)o;
+				dos.writeByte(T_URIENTRY);
+				writeValue(en.getSubject());
+				dos.writeFloat(en.getQuality());
+				Set<String> terms = en.getTerms();
+				writeVarint(dos, terms.size());
+				for (String t: terms) {
+					writeString(t);
+				}
+			} else {
+				throw new DataFormatException("Cannot write object of type " + o.getClass().getName(), null, o);
+			}
+		}
+
+		protected void writeTermEntry(TermEntry en) throws IOException {
+			switch (en.entryType()) {
+			case TERM:
+				dos.writeByte(T_TERM_TERM);
+				writeString(en.subj);
+				dos.writeFloat(en.rel);
+				writeString(((TermTermEntry)en).term);
+				return;
+			case INDEX:
+				dos.writeByte(T_TERM_INDEX);
+				writeString(en.subj);
+				dos.writeFloat(en.rel);
+				((TermIndexEntry)en).index.writeFullBinaryKeyWithLength(dos);
+				return;
+			case PAGE:
+				TermPageEntry enn = (TermPageEntry)en;
+				dos.writeByte(T_TERM_PAGE);
+				writeString(en.subj);
+				dos.writeFloat(en.rel);
+				enn.page.writeFullBinaryKeyWithLength(dos);
+				writeString(enn.title);
+				// positions are written in ascending order, as deltas
+				PositionMap pos = enn.positions();
+				writeVarint(dos, pos.size());
+				int last = 0;
+				for (int j=0; j<pos.size(); ++j) {
+					int i = pos.positionAt(j);
+					writeVarint(dos, zigzag(i - last));
+					writeString(pos.fragmentAt(j));
+					last = i;
+				}
+				return;
+			default:
+				throw new DataFormatException("Cannot write entry of type " + en.entryType(), null, en);
+			}
+		}
+
+		/**
+		** Writes a reference to a string: 0 for {@code null}, 1 if the string
+		** follows inline, or 2 + its index in the string table.
+		*/
+		protected void writeString(String s) throws IOException {
+			if (s == null) {
+				writeVarint(dos, 0);
+				return;
+			}
+			Integer ref = strings.get(s);
+			if (ref != null) {
+				writeVarint(dos, ref + 2);
+				return;
+			}
+			strings.put(s, strings.size());
+			byte[] b = s.getBytes("UTF-8");
+			writeVarint(dos, 1);
+			writeVarint(dos, b.length);
+			dos.write(b);
+		}
+
+	}
+
+	/************************************************************************
+	** Reads values from a stream, keeping track of the strings read so far.
+	*/
+	protected static class Decoder {
+
+		final protected DataInputStream dis;
+		final protected List<String> strings = new ArrayList<String>();
+
+		protected Decoder(DataInputStream d) {
+			dis = d;
+		}
+
+		public Object readValue() throws IOException {
+			int tag = dis.readUnsignedByte();
+			switch (tag) {
+			case T_NULL:
+				return null;
+			case T_FALSE:
+				return Boolean.FALSE;
+			case T_TRUE:
+				return Boolean.TRUE;
+			case T_INT:
+				return unzigzag(readVarint(dis));
+			case T_LONG:
+				return unzigzag(readVarlong(dis));
+			case T_FLOAT:
+				return dis.readFloat();
+			case T_DOUBLE:
+				return dis.readDouble();
+			case T_STRING:
+				return readString();
+			case T_DATE:
+				return new Date(unzigzag(readVarlong(dis)));
+			case T_URI:
+				return FreenetURI.readFullBinaryKeyWithLength(dis);
+			case T_MAP:
+				int msize = readSize();
+				Map<Object, Object> map = new LinkedHashMap<Object, Object>(capacityFor(msize));
+				for (int i=0; i<msize; ++i) {
+					Object k = readValue();
+					map.put(k, readValue());
+				}
+				return map;
+			case T_LIST:
+				int lsize = readSize();
+				List<Object> list = new ArrayList<Object>(Math.min(lsize, 0x1000));
+				for (int i=0; i<lsize; ++i) {
+					list.add(readValue());
+				}
+				return list;
+			case T_SET:
+				int ssize = readSize();
+				Set<Object> set = new LinkedHashSet<Object>(capacityFor(ssize));
+				for (int i=0; i<ssize; ++i) {
+					set.add(readValue());
+				}
+				return set;
+			case T_BININFO:
+				Object id = readValue();
+				return new Packer.BinInfo(id, readVarint(dis));
+			case T_TERM_TERM:
+				return new TermTermEntry(readString(), dis.readFloat(), readString());
+			case T_TERM_INDEX:
+				return new TermIndexEntry(readString(), dis.readFloat(), FreenetURI.readFullBinaryKeyWithLength(dis));
+			case T_TERM_PAGE:
+				String subj = readString();
+				float rel = dis.readFloat();
+				FreenetURI page = FreenetURI.readFullBinaryKeyWithLength(dis);
+				String title = readString();
+				int psize = readSize();
+				// don't trust psize until we've read that many positions
+				int[] pos = new int[Math.min(psize, 0x1000)];
+				String[] frag = new String[pos.length];
+				int last = 0;
+				for (int i=0; i<psize; ++i) {
+					if (i == pos.length) {
+						int[] p = new int[i<<1]; System.arraycopy(pos, 0, p, 0, i); pos = p;
+						String[] f = new String[i<<1]; System.arraycopy(frag, 0, f, 0, i); frag = f;
+					}
+					last += unzigzag(readVarint(dis));
+					pos[i] = last;
+					frag[i] = readString();
+				}
+				if (pos.length != psize) {
+					int[] p = new int[psize]; System.arraycopy(pos, 0, p, 0, psize); pos = p;
+					String[] f = new String[psize]; System.arraycopy(frag, 0, f, 0, psize); frag = f;
+				}
+				return new TermPageEntry(subj, rel, page, title, PositionMap.fromArrays(pos, frag));
+			case T_URIENTRY:
+				Object subject = readValue();
+				if (subject != null && !(subject instanceof FreenetURI)) {
+					throw new DataFormatException("Bad subject for URIEntry", null, subject);
+				}
+				URIEntry en = new URIEntry((FreenetURI)subject);
+				en.setQuality(dis.readFloat());
+				int tsize = readSize();
+				Set<String> terms = new HashSet<String>(capacityFor(tsize));
+				for (int i=0; i<tsize; ++i) {
+					terms.add(readString());
+				}
+				en.setTerms(terms);
+				return en;
+			default:
+				throw new DataFormatException("Unrecognised tag in binary stream", null, tag);
+			}
+		}
+
+		protected String readString() throws IOException {
+			int ref = readVarint(dis);
+			switch (ref) {
+			case 0:
+				return null;
+			case 1:
+				int len = readSize();
+				byte[] b = new byte[len];
+				dis.readFully(b);
+				String s = new String(b, "UTF-8");
+				strings.add(s);
+				return s;
+			default:
+				ref -= 2;
+				if (ref < 0 || ref >= strings.size()) {
+					throw new DataFormatException("Bad string reference in binary stream", null, ref);
+				}
+				return strings.get(ref);
+			}
+		}
+
+		protected int readSize() throws IOException {
+			int size = readVarint(dis);
+			if (size < 0) {
+				throw new DataFormatException("Bad size in binary stream", null, size);
+			}
+			return size;
+		}
+
+		/**
+		** Initial capacity for a hash table of the given size. This is capped,
+		** so that a corrupt size can't make us allocate a huge table.
+		*/
+		protected static int capacityFor(int size) {
+			return Math.min(size, 0x1000) * 4 / 3 + 1;
+		}
+
+	}
+
+	/*========================================================================
+	  variable-length integers
+	 ========================================================================*/
+
+	/**
+	** Writes the given int as an unsigned variable-length integer, 7 bits at
+	** a time, least significant first.
+	*/
+	public static void writeVarint(DataOutputStream dos, int i) throws IOException {
+		while ((i & ~0x7F) != 0) {
+			dos.writeByte((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		dos.writeByte(i);
+	}
+
+	public static void writeVarlong(DataOutputStream dos, long i) throws IOException {
+		while ((i & ~0x7FL) != 0) {
+			dos.writeByte(((int)i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		dos.writeByte((int)i);
+	}
+
+	public static int readVarint(DataInputStream dis) throws IOException {
+		int i = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = dis.readUnsignedByte();
+			i |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { return i; }
+		}
+		throw new DataFormatException("Malformed varint in binary stream", null, i);
+	}
+
+	public static long readVarlong(DataInputStream dis) throws IOException {
+		long i = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = dis.readUnsignedByte();
+			i |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { return i; }
+		}
+		throw new DataFormatException("Malformed varint in binary stream", null, i);
+	}
+
+	/**
+	** Maps signed integers to unsigned ones so that values close to zero have
+	** short encodings.
+	*/
+	public static int zigzag(int i) {
+		return (i << 1) ^ (i >> 31);
+	}
+
+	public static long zigzag(long i) {
+		return (i << 1) ^ (i >> 63);
+	}
+
+	public static int unzigzag(int i) {
+		return (i >>> 1) ^ -(i & 1);
+	}
+
+	public static long unzigzag(long i) {
+		return (i >>> 1) ^ -(i & 1);
+	}
+
+}
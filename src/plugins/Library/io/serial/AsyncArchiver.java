@@ -0,0 +1,53 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import plugins.Library.util.func.Tuples.X2;
+
+/**
+** A {@link LiveArchiver} that can also start a {@link Serialiser.Task} without
+** waiting for it to complete. Instead of blocking a thread until the IO has
+** finished, the caller is notified through a callback.
+*/
+public interface AsyncArchiver<T, P extends Progress> extends LiveArchiver<T, P> {
+
+	/**
+	** Starts a {@link PullTask} and returns without waiting for it to finish.
+	** The progress object is updated as for {@link #pullLive(PullTask,
+	** Progress)}.
+	**
+	** When the task completes, {@code done} is invoked exactly once, with the
+	** task and either {@code null} or the {@link TaskAbortException} that
+	** caused it to abort. This may happen in any thread, including the calling
+	** thread before this method returns. Implementations must not throw;
+	** errors must be passed to the callback instead.
+	**
+	** @param task The task to execute
+	** @param p The progress object to update
+	** @param done The callback to invoke upon completion
+	*/
+	public void pullAsync(PullTask<T> task, P p, SafeClosure<X2<PullTask<T>, TaskAbortException>> done);
+
+	/**
+	** Starts a {@link PushTask} and returns without waiting for it to finish.
+	** The progress object is updated as for {@link #pushLive(PushTask,
+	** Progress)}.
+	**
+	** When the task completes, {@code done} is invoked exactly once, with the
+	** task and either {@code null} or the {@link TaskAbortException} that
+	** caused it to abort. This may happen in any thread, including the calling
+	** thread before this method returns. Implementations must not throw;
+	** errors must be passed to the callback instead.
+	**
+	** @param task The task to execute
+	** @param p The progress object to update
+	** @param done The callback to invoke upon completion
+	*/
+	public void pushAsync(PushTask<T> task, P p, SafeClosure<X2<PushTask<T>, TaskAbortException>> done);
+
+}
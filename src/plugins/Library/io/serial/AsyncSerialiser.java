@@ -0,0 +1,220 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.concurrent.ObjectProcessor;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.exec.TaskInProgressException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+** A {@link ParallelSerialiser} whose jobs start their IO through the {@link
+** AsyncArchiver} methods and return immediately, rather than holding onto an
+** executor thread until the IO has finished. This allows many more tasks to
+** be outstanding at once, so the {@link ObjectProcessor}s returned by {@link
+** #pullSchedule} and {@link #pushSchedule} are allowed {@link
+** #ASYNC_CONCURRENCY} tasks in flight, as long as the jobs really are
+** {@linkplain #isAsync() asynchronous}.
+**
+** To implement this class, the programmer must implement the {@link
+** AsyncArchiver#pullAsync(Serialiser.PullTask, Progress, SafeClosure)} and
+** {@link AsyncArchiver#pushAsync(Serialiser.PushTask, Progress, SafeClosure)}
+** methods. The blocking methods are implemented in terms of these. Composite
+** serialisers can use {@link #pullChild} and {@link #pushChild} to pass tasks
+** on to their child, which need not itself be asynchronous.
+*/
+public abstract class AsyncSerialiser<T, P extends Progress>
+extends ParallelSerialiser<T, P>
+implements AsyncArchiver<T, P> {
+
+	/**
+	** Maximum number of tasks that a scheduler may have in flight at once.
+	*/
+	final public static int ASYNC_CONCURRENCY = 0x200;
+
+	public AsyncSerialiser(ProgressTracker<T, P> k) {
+		super(k);
+	}
+
+	/**
+	** Creates a job that starts the given task and returns without waiting
+	** for it to complete. {@code post} is invoked from the callback.
+	**
+	** @see ParallelSerialiser#createPullJob(Serialiser.PullTask, SafeClosure)
+	*/
+	@Override protected Runnable createPullJob(final PullTask<T> task, final SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
+		try {
+			final P prog = (post != null)? tracker.addPullProgress(task): tracker.getPullProgress(task);
+			return new Runnable() {
+				public void run() {
+					pullAsync(task, prog, (post != null)? post: new Waiter<PullTask<T>>());
+				}
+			};
+		} catch (final TaskInProgressException e) {
+			return createJoinRunnable(task, e, post);
+		}
+	}
+
+	/**
+	** Creates a job that starts the given task and returns without waiting
+	** for it to complete. {@code post} is invoked from the callback.
+	**
+	** @see ParallelSerialiser#createPushJob(Serialiser.PushTask, SafeClosure)
+	*/
+	@Override protected Runnable createPushJob(final PushTask<T> task, final SafeClosure<X2<PushTask<T>, TaskAbortException>> post) {
+		try {
+			final P prog = (post != null)? tracker.addPushProgress(task): tracker.getPushProgress(task);
+			return new Runnable() {
+				public void run() {
+					pushAsync(task, prog, (post != null)? post: new Waiter<PushTask<T>>());
+				}
+			};
+		} catch (final TaskInProgressException e) {
+			return createJoinRunnable(task, e, post);
+		}
+	}
+
+	/**
+	** Whether jobs return without waiting for their IO to finish. A {@link
+	** Serialiser.Composite} that passes tasks on with {@link #pullChild} and
+	** {@link #pushChild} is only asynchronous if its child is an {@link
+	** AsyncArchiver}; otherwise each job holds onto an executor thread like
+	** any other {@link ParallelSerialiser} job, and the schedulers must keep
+	** to the default {@link ObjectProcessor#maxconc}.
+	*/
+	public boolean isAsync() {
+		if (this instanceof Serialiser.Composite) {
+			return ((Serialiser.Composite<?>)this).getChildSerialiser() instanceof AsyncArchiver;
+		}
+		return true;
+	}
+
+	/*========================================================================
+	  public interface LiveArchiver
+	 ========================================================================*/
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation starts the task with {@link #pullAsync} and waits
+	** for its callback.
+	*/
+	/*@Override**/ public void pullLive(PullTask<T> task, P p) throws TaskAbortException {
+		Waiter<PullTask<T>> w = new Waiter<PullTask<T>>();
+		pullAsync(task, p, w);
+		w.await();
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation starts the task with {@link #pushAsync} and waits
+	** for its callback.
+	*/
+	/*@Override**/ public void pushLive(PushTask<T> task, P p) throws TaskAbortException {
+		Waiter<PushTask<T>> w = new Waiter<PushTask<T>>();
+		pushAsync(task, p, w);
+		w.await();
+	}
+
+	/*========================================================================
+	  public interface ScheduledSerialiser
+	 ========================================================================*/
+
+	@Override public <E> ObjectProcessor<PullTask<T>, E, TaskAbortException> pullSchedule(
+		BlockingQueue<PullTask<T>> input,
+		BlockingQueue<X2<PullTask<T>, TaskAbortException>> output,
+		Map<PullTask<T>, E> deposit
+	) {
+		ObjectProcessor<PullTask<T>, E, TaskAbortException> proc = super.pullSchedule(input, output, deposit);
+		if (isAsync()) { proc.setConcurrency(ASYNC_CONCURRENCY); }
+		return proc;
+	}
+
+	@Override public <E> ObjectProcessor<PushTask<T>, E, TaskAbortException> pushSchedule(
+		BlockingQueue<PushTask<T>> input,
+		BlockingQueue<X2<PushTask<T>, TaskAbortException>> output,
+		Map<PushTask<T>, E> deposit
+	) {
+		ObjectProcessor<PushTask<T>, E, TaskAbortException> proc = super.pushSchedule(input, output, deposit);
+		if (isAsync()) { proc.setConcurrency(ASYNC_CONCURRENCY); }
+		return proc;
+	}
+
+	/*========================================================================
+	  static helpers
+	 ========================================================================*/
+
+	/**
+	** Passes a {@link PullTask} on to the given archiver, asynchronously if it
+	** is an {@link AsyncArchiver}, and otherwise by calling {@link
+	** LiveArchiver#pullLive(Serialiser.PullTask, Progress)} in the current
+	** thread. Either way, {@code done} is invoked exactly once.
+	*/
+	public static <T, P extends Progress> void pullChild(LiveArchiver<T, P> arx, PullTask<T> task, P p, SafeClosure<X2<PullTask<T>, TaskAbortException>> done) {
+		if (arx instanceof AsyncArchiver) {
+			((AsyncArchiver<T, P>)arx).pullAsync(task, p, done);
+			return;
+		}
+		TaskAbortException ex = null;
+		try { arx.pullLive(task, p); }
+		catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+		catch (TaskAbortException e) { ex = e; }
+		done.invoke(X2(task, ex));
+	}
+
+	/**
+	** Passes a {@link PushTask} on to the given archiver, asynchronously if it
+	** is an {@link AsyncArchiver}, and otherwise by calling {@link
+	** LiveArchiver#pushLive(Serialiser.PushTask, Progress)} in the current
+	** thread. Either way, {@code done} is invoked exactly once.
+	*/
+	public static <T, P extends Progress> void pushChild(LiveArchiver<T, P> arx, PushTask<T> task, P p, SafeClosure<X2<PushTask<T>, TaskAbortException>> done) {
+		if (arx instanceof AsyncArchiver) {
+			((AsyncArchiver<T, P>)arx).pushAsync(task, p, done);
+			return;
+		}
+		TaskAbortException ex = null;
+		try { arx.pushLive(task, p); }
+		catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+		catch (TaskAbortException e) { ex = e; }
+		done.invoke(X2(task, ex));
+	}
+
+	/**
+	** A callback that lets a thread block until it has been invoked.
+	*/
+	public static class Waiter<K> implements SafeClosure<X2<K, TaskAbortException>> {
+
+		protected boolean done;
+		protected TaskAbortException error;
+
+		/*@Override**/ public synchronized void invoke(X2<K, TaskAbortException> res) {
+			error = res._1;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		** Wait until the callback has been invoked, and throw the exception
+		** that it was invoked with, if any.
+		*/
+		public synchronized void await() throws TaskAbortException {
+			try {
+				while (!done) { wait(); }
+			} catch (InterruptedException e) {
+				throw new TaskAbortException("Waiting for task was interrupted", e, true);
+			}
+			if (error != null) { throw error; }
+		}
+
+	}
+
+}
@@ -0,0 +1,358 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.io.ObjectStreamReader;
+import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+
+import freenet.keys.FreenetURI;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+** A {@link LiveArchiver} that keeps a local copy of everything it transfers
+** to or from a {@link FreenetURI} of type CHK, and serves later pulls of the
+** same key from that copy. Since CHKs are immutable, a copy never goes stale,
+** so every B-tree node and bin that has been fetched once can be loaded from
+** disk from then on. Other keys are passed straight through to the child.
+**
+** The copies are kept in a {@link Store}, which can be shared between
+** several archivers. Failures of the store are never fatal; the task is just
+** passed on to the child as if the data was not cached.
+*/
+public class CachingArchiver<T>
+implements AsyncArchiver<T, SimpleProgress> {
+
+	final protected LiveArchiver<T, SimpleProgress> subarx;
+	final protected ObjectStreamReader reader;
+	final protected ObjectStreamWriter writer;
+	final protected Store store;
+
+	/**
+	** @param arx The archiver to pass uncached tasks to
+	** @param r Reader to decode cached data with
+	** @param w Writer to encode data for the cache with
+	** @param s The store to keep data in
+	*/
+	public CachingArchiver(LiveArchiver<T, SimpleProgress> arx, ObjectStreamReader r, ObjectStreamWriter w, Store s) {
+		if (arx == null || r == null || w == null || s == null) {
+			throw new NullPointerException();
+		}
+		subarx = arx;
+		reader = r;
+		writer = w;
+		store = s;
+	}
+
+	public <S extends ObjectStreamWriter & ObjectStreamReader> CachingArchiver(LiveArchiver<T, SimpleProgress> arx, S rw, Store s) {
+		this(arx, rw, rw, s);
+	}
+
+	/**
+	** Returns the name under which data for the given metadata is cached, or
+	** {@code null} if it must not be cached.
+	*/
+	protected String keyFor(Object meta) {
+		if (!(meta instanceof FreenetURI)) { return null; }
+		FreenetURI uri = (FreenetURI)meta;
+		if (!"CHK".equals(uri.getKeyType())) { return null; }
+		return Store.hash(uri.toString());
+	}
+
+	/**
+	** Attempts to load the task's data from the cache.
+	**
+	** @return whether the data was found
+	*/
+	protected boolean pullCached(PullTask<T> task, String key) {
+		if (key == null) { return false; }
+		byte[] buf = store.get(key);
+		if (buf == null) { return false; }
+		try {
+			task.data = (T)reader.readObject(new ByteArrayInputStream(buf));
+			return true;
+		} catch (IOException e) {
+			store.remove(key);
+		} catch (RuntimeException e) {
+			store.remove(key);
+		}
+		return false;
+	}
+
+	/**
+	** Adds the task's data to the cache, if its metadata allows it.
+	*/
+	protected void putCached(Task<T> task) {
+		String key = keyFor(task.meta);
+		if (key == null || task.data == null || store.contains(key)) { return; }
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			writer.writeObject(task.data, bos);
+			store.put(key, bos.toByteArray());
+		} catch (IOException e) {
+			// the cache is only an optimisation
+		} catch (RuntimeException e) {
+			// the cache is only an optimisation
+		}
+	}
+
+	/*========================================================================
+	  public interface LiveArchiver
+	 ========================================================================*/
+
+	/*@Override**/ public void pull(PullTask<T> task) throws TaskAbortException {
+		if (pullCached(task, keyFor(task.meta))) { return; }
+		subarx.pull(task);
+		putCached(task);
+	}
+
+	/*@Override**/ public void push(PushTask<T> task) throws TaskAbortException {
+		subarx.push(task);
+		putCached(task);
+	}
+
+	/*@Override**/ public void pullLive(PullTask<T> task, SimpleProgress p) throws TaskAbortException {
+		if (pullCached(task, keyFor(task.meta))) {
+			if (p != null) { p.addPartKnown(0, true); }
+			return;
+		}
+		subarx.pullLive(task, p);
+		putCached(task);
+	}
+
+	/*@Override**/ public void pushLive(PushTask<T> task, SimpleProgress p) throws TaskAbortException {
+		subarx.pushLive(task, p);
+		putCached(task);
+	}
+
+	/*========================================================================
+	  public interface AsyncArchiver
+	 ========================================================================*/
+
+	/*@Override**/ public void pullAsync(PullTask<T> task, SimpleProgress p, final SafeClosure<X2<PullTask<T>, TaskAbortException>> done) {
+		try {
+			if (pullCached(task, keyFor(task.meta))) {
+				if (p != null) { p.addPartKnown(0, true); }
+				done.invoke(X2(task, (TaskAbortException)null));
+				return;
+			}
+		} catch (RuntimeException e) {
+			done.invoke(X2(task, new TaskAbortException("Failed to complete task: ", e)));
+			return;
+		}
+		AsyncSerialiser.pullChild(subarx, task, p, new SafeClosure<X2<PullTask<T>, TaskAbortException>>() {
+			/*@Override**/ public void invoke(X2<PullTask<T>, TaskAbortException> res) {
+				if (res._1 == null) { putCached(res._0); }
+				done.invoke(res);
+			}
+		});
+	}
+
+	/*@Override**/ public void pushAsync(PushTask<T> task, SimpleProgress p, final SafeClosure<X2<PushTask<T>, TaskAbortException>> done) {
+		AsyncSerialiser.pushChild(subarx, task, p, new SafeClosure<X2<PushTask<T>, TaskAbortException>>() {
+			/*@Override**/ public void invoke(X2<PushTask<T>, TaskAbortException> res) {
+				if (res._1 == null) { putCached(res._0); }
+				done.invoke(res);
+			}
+		});
+	}
+
+	/**
+	** A content-addressed store of byte arrays in a directory on disk, with a
+	** limit on its total size. When the limit is exceeded, the least recently
+	** used entries are deleted. The access order is kept in the modification
+	** times of the files, so it survives restarts.
+	**
+	** Names must be valid file names; {@link #hash(String)} can be used to
+	** make them from arbitrary strings. This class is thread-safe.
+	*/
+	public static class Store {
+
+		final protected static String TEMP_PREFIX = "tmp-";
+
+		final protected File dir;
+		final protected long max_bytes;
+
+		/**
+		** Sizes of the entries, least recently used first.
+		*/
+		final protected LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0x100, 0.75f, true);
+		protected long total_bytes;
+
+		/**
+		** Opens the store in the given directory, creating it if necessary.
+		** Entries already present are kept, up to the size limit.
+		**
+		** @param d Directory to keep entries in
+		** @param max Maximum total size of entries, in bytes
+		** @throws IOException if the directory can't be created
+		*/
+		public Store(File d, long max) throws IOException {
+			if (max <= 0) {
+				throw new IllegalArgumentException("Store must have a positive size limit");
+			}
+			if (!d.isDirectory() && !d.mkdirs()) {
+				throw new IOException("Could not create directory " + d);
+			}
+			dir = d;
+			max_bytes = max;
+
+			File[] files = d.listFiles();
+			if (files == null) {
+				throw new IOException("Could not list directory " + d);
+			}
+			Arrays.sort(files, new Comparator<File>() {
+				/*@Override**/ public int compare(File f1, File f2) {
+					long t1 = f1.lastModified(), t2 = f2.lastModified();
+					return (t1 < t2)? -1: (t1 > t2)? 1: 0;
+				}
+			});
+			synchronized (this) {
+				for (File f: files) {
+					if (f.getName().startsWith(TEMP_PREFIX)) {
+						f.delete(); // left over from an interrupted put()
+					} else if (f.isFile()) {
+						entries.put(f.getName(), f.length());
+						total_bytes += f.length();
+					}
+				}
+				evict();
+			}
+		}
+
+		/**
+		** Returns a hex SHA-256 digest of the given string, for use as a name.
+		*/
+		public static String hash(String s) {
+			try {
+				byte[] d = MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+				StringBuilder buf = new StringBuilder(d.length << 1);
+				for (byte b: d) {
+					buf.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+				}
+				return buf.toString();
+			} catch (NoSuchAlgorithmException e) {
+				throw new AssertionError(e); // every JVM must support SHA-256
+			} catch (java.io.UnsupportedEncodingException e) {
+				throw new AssertionError(e); // every JVM must support UTF-8
+			}
+		}
+
+		public synchronized boolean contains(String name) {
+			return entries.containsKey(name);
+		}
+
+		public synchronized long size() {
+			return total_bytes;
+		}
+
+		/**
+		** Returns the data stored under the given name, or {@code null} if
+		** there is none or it could not be read.
+		*/
+		public byte[] get(String name) {
+			Long size;
+			synchronized (this) {
+				size = entries.get(name); // also marks it as recently used
+			}
+			if (size == null) { return null; }
+			File f = new File(dir, name);
+			InputStream is = null;
+			try {
+				is = new FileInputStream(f);
+				byte[] buf = new byte[(int)(long)size];
+				int off = 0;
+				while (off < buf.length) {
+					int n = is.read(buf, off, buf.length - off);
+					if (n < 0) { throw new IOException("File truncated: " + f); }
+					off += n;
+				}
+				f.setLastModified(System.currentTimeMillis());
+				return buf;
+			} catch (IOException e) {
+				remove(name);
+				return null;
+			} finally {
+				if (is != null) { try { is.close(); } catch (IOException e) { } }
+			}
+		}
+
+		/**
+		** Stores data under the given name, replacing anything already there.
+		** The data is written to a temporary file first, so that an entry is
+		** never seen half-written. Entries that are too large are ignored.
+		*/
+		public void put(String name, byte[] data) throws IOException {
+			if (data.length > max_bytes) { return; }
+			File tmp = File.createTempFile(TEMP_PREFIX, null, dir);
+			OutputStream os = null;
+			try {
+				os = new FileOutputStream(tmp);
+				os.write(data);
+				os.close(); os = null;
+				synchronized (this) {
+					File f = new File(dir, name);
+					if (!tmp.renameTo(f)) {
+						// some platforms won't rename over an existing file
+						f.delete();
+						if (!tmp.renameTo(f)) {
+							throw new IOException("Could not rename " + tmp + " to " + f);
+						}
+					}
+					Long old = entries.put(name, (long)data.length);
+					if (old != null) { total_bytes -= old; }
+					total_bytes += data.length;
+					evict();
+				}
+			} finally {
+				if (os != null) { try { os.close(); } catch (IOException e) { } }
+				tmp.delete();
+			}
+		}
+
+		/**
+		** Removes the data stored under the given name, if any.
+		*/
+		public synchronized void remove(String name) {
+			Long size = entries.remove(name);
+			if (size != null) { total_bytes -= size; }
+			new File(dir, name).delete();
+		}
+
+		/**
+		** Deletes the least recently used entries until the store is within
+		** its size limit.
+		*/
+		protected synchronized void evict() {
+			Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+			while (total_bytes > max_bytes && it.hasNext()) {
+				Map.Entry<String, Long> en = it.next();
+				it.remove();
+				total_bytes -= en.getValue();
+				new File(dir, en.getKey()).delete();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,146 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.io.File;
+
+/**
+** An in-memory cache of decoded low-level objects (ie. the {@code Map}s that
+** come out of an {@link plugins.Library.io.ObjectStreamReader}), keyed by the
+** metadata they were pulled from. This lets several trees (eg. the same index
+** loaded by concurrent searches) share the work of fetching and decoding the
+** same node, without sharing the (mutable) skeleton objects built from it.
+**
+** Only immutable metadata is accepted as a key; currently this means a
+** {@link FreenetURI} of type CHK, or a {@link File}. The total size of the
+** cache is bounded by a rough count of the elements it holds (see {@link
+** #weigh(Object)}); when this is exceeded, the least recently used objects
+** are dropped.
+**
+** Objects are wrapped in {@link Collections#unmodifiableMap(Map)} before they
+** are stored, but their contents are not copied, so callers must not modify
+** any part of what they get back. In particular, this cache must not be used
+** for a translator that keeps parts of its input as-is (such as a {@code
+** NodeTranslator} without a map-translator). This class is thread-safe.
+*/
+public class DecodedCache {
+
+	final protected int max_weight;
+
+	/**
+	** Cached objects, least recently used first, and their weights.
+	*/
+	final protected LinkedHashMap<Object, Map<String, Object>> objects = new LinkedHashMap<Object, Map<String, Object>>(0x100, 0.75f, true);
+	final protected Map<Object, Integer> weights = new HashMap<Object, Integer>(0x100);
+	protected int total_weight;
+
+	/**
+	** @param max Maximum total weight of cached objects
+	*/
+	public DecodedCache(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("Cache must have a positive size limit");
+		}
+		max_weight = max;
+	}
+
+	/**
+	** Whether objects pulled from the given metadata can be cached, ie.
+	** whether the metadata always refers to the same data.
+	*/
+	public static boolean isImmutable(Object meta) {
+		if (meta instanceof FreenetURI) {
+			return "CHK".equals(((FreenetURI)meta).getKeyType());
+		}
+		return meta instanceof File;
+	}
+
+	/**
+	** Returns a rough count of the elements held by a decoded object. This
+	** counts the elements of maps and collections down to two levels below
+	** the object itself, which covers the entries of a B-tree node, and of
+	** each root node in a bin of them.
+	*/
+	public static int weigh(Object o) {
+		return weigh(o, 2);
+	}
+
+	private static int weigh(Object o, int depth) {
+		Collection<?> c;
+		if (o instanceof Map) {
+			c = ((Map<?, ?>)o).values();
+		} else if (o instanceof Collection) {
+			c = (Collection<?>)o;
+		} else {
+			return 1;
+		}
+		if (depth == 0) { return 1 + c.size(); }
+		int w = 1;
+		for (Object e: c) { w += weigh(e, depth-1); }
+		return w;
+	}
+
+	/**
+	** Returns the object cached for the given metadata, or {@code null} if
+	** there is none. The returned object must not be modified.
+	*/
+	public synchronized Map<String, Object> get(Object meta) {
+		if (meta == null) { return null; }
+		return objects.get(meta); // also marks it as recently used
+	}
+
+	/**
+	** Caches an object for the given metadata, if the metadata is immutable.
+	** The object must not be modified afterwards.
+	*/
+	public void put(Object meta, Map<String, Object> data) {
+		if (data == null || !isImmutable(meta)) { return; }
+		int w = weigh(data);
+		if (w > max_weight) { return; }
+		Map<String, Object> ro = Collections.unmodifiableMap(data);
+		synchronized (this) {
+			objects.put(meta, ro);
+			Integer old = weights.put(meta, w);
+			if (old != null) { total_weight -= old; }
+			total_weight += w;
+			evict();
+		}
+	}
+
+	public synchronized int size() {
+		return objects.size();
+	}
+
+	public synchronized int weight() {
+		return total_weight;
+	}
+
+	public synchronized void clear() {
+		objects.clear();
+		weights.clear();
+		total_weight = 0;
+	}
+
+	/**
+	** Drops the least recently used objects until the cache is within its
+	** size limit.
+	*/
+	protected synchronized void evict() {
+		Iterator<Object> it = objects.keySet().iterator();
+		while (total_weight > max_weight && it.hasNext()) {
+			Object meta = it.next();
+			it.remove();
+			total_weight -= weights.remove(meta);
+		}
+	}
+
+}
@@ -72,6 +72,23 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 	final protected ObjectStreamReader reader;
 	final protected ObjectStreamWriter writer;
 
+	/**
+	** Monitors that guard the {@link FileLock}s we take. File locks are held
+	** on behalf of the whole JVM, so a second lock on a file that is already
+	** locked by another thread here throws {@link
+	** java.nio.channels.OverlappingFileLockException} rather than waiting. We
+	** hold the monitor for a file's stripe whilst we hold its lock, so that
+	** concurrent tasks on the same file wait for each other instead.
+	*/
+	final private static Object[] file_locks = new Object[0x40];
+	static {
+		for (int i=0; i<file_locks.length; ++i) { file_locks[i] = new Object(); }
+	}
+
+	protected static Object getFileMonitor(File file) {
+		return file_locks[(file.getAbsoluteFile().hashCode() & 0x7FFFFFFF) % file_locks.length];
+	}
+
 	public <S extends ObjectStreamWriter & ObjectStreamReader> FileArchiver(S rw, String pre, String suf, String ext) {
 		this(rw, rw, pre, suf, ext);
 	}
@@ -133,11 +150,13 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		try {
 			FileInputStream is = new FileInputStream(file);
 			try {
-				FileLock lock = is.getChannel().lock(0L, Long.MAX_VALUE, true); // shared lock for reading
-				try {
-					t.data = (T)reader.readObject(is);
-				} finally {
-					lock.release();
+				synchronized (getFileMonitor(file)) {
+					FileLock lock = is.getChannel().lock(0L, Long.MAX_VALUE, true); // shared lock for reading
+					try {
+						t.data = (T)reader.readObject(is);
+					} finally {
+						lock.release();
+					}
 				}
 			} finally {
 				try { is.close(); } catch (IOException f) { }
@@ -155,11 +174,13 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		try {
 			FileOutputStream os = new FileOutputStream(file);
 			try {
-				FileLock lock = os.getChannel().lock();
-				try {
-					writer.writeObject(t.data, os);
-				} finally {
-					lock.release();
+				synchronized (getFileMonitor(file)) {
+					FileLock lock = os.getChannel().lock();
+					try {
+						writer.writeObject(t.data, os);
+					} finally {
+						lock.release();
+					}
 				}
 			} finally {
 				try { os.close(); } catch (IOException f) { }
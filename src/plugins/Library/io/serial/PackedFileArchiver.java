@@ -0,0 +1,312 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.io.ObjectStreamReader;
+import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+** Converts between an object and a record in a single packed file on disk.
+** This is meant for large local indexes, where storing every node in its own
+** file (as {@link FileArchiver} does) means that most of the time taken by a
+** pull is spent opening and closing files.
+**
+** Records are only ever appended to the data file; each push adds a new one
+** and sets {@link Task#meta} to its number. The end offset of each record is
+** appended to an offset table, kept in a second file with the extension
+** {@link #TABLE_EXTENSION}. The data is written before the table entry, so an
+** interrupted push only leaves some unreachable data at the end of the file,
+** which is ignored.
+**
+** Pulls read the data through a {@link MappedByteBuffer}, so they don't make
+** any system calls or copies; each pull decodes directly from a slice of the
+** mapping. The file is mapped in segments of up to {@link #SEGMENT_SIZE}
+** bytes, each starting at a record boundary, so records can't be larger than
+** this. A segment that ends before a newly pushed record is remapped to cover
+** it, so there are only about as many segments as the file needs. Any number of pulls may run concurrently, but only one process may use
+** a given file at a time.
+**
+** This class expects {@link Task#meta} to be an {@link Integer} (or any other
+** {@link Number}, since some formats don't preserve the exact type).
+*/
+public class PackedFileArchiver<T>
+implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
+
+	final public static String TABLE_EXTENSION = ".idx";
+
+	/**
+	** Maximum size of each mapping. This is below the 2GB limit of {@link
+	** ByteBuffer}, and small enough to find address space for on 32-bit VMs.
+	*/
+	final public static int SEGMENT_SIZE = 0x10000000;
+
+	final protected ObjectStreamReader reader;
+	final protected ObjectStreamWriter writer;
+
+	final protected File data_file;
+	final protected File table_file;
+
+	protected RandomAccessFile data;
+	protected RandomAccessFile table;
+
+	/**
+	** End offsets of each record. Only the first {@link #records} elements
+	** are used.
+	*/
+	protected long[] ends;
+	protected int records;
+
+	/**
+	** Mapped segments of the data file, by their offset in the file.
+	*/
+	final protected TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+
+	public <S extends ObjectStreamWriter & ObjectStreamReader> PackedFileArchiver(S rw, File f) {
+		this(rw, rw, f);
+	}
+
+	/**
+	** Constructs a new archiver for the given file. The file is opened (and
+	** created if necessary) on first use.
+	**
+	** @param r Reader to decode records with
+	** @param w Writer to encode records with
+	** @param f The data file; the offset table is kept next to it
+	*/
+	public PackedFileArchiver(ObjectStreamReader r, ObjectStreamWriter w, File f) {
+		reader = r;
+		writer = w;
+		data_file = f;
+		table_file = new File(f.getPath() + TABLE_EXTENSION);
+	}
+
+	/**
+	** Opens the files, if they aren't already, and reads the offset table.
+	*/
+	protected synchronized void open() throws IOException {
+		if (data != null) { return; }
+		RandomAccessFile d = new RandomAccessFile(data_file, "rw");
+		RandomAccessFile t = null;
+		try {
+			t = new RandomAccessFile(table_file, "rw");
+			int n = (int)(t.length() >> 3);
+			long[] e = new long[Math.max(n, 0x100)];
+			long length = d.length(), last = 0;
+			ByteBuffer buf = ByteBuffer.allocate(n << 3);
+			t.getChannel().read(buf, 0);
+			buf.flip();
+			int i = 0;
+			for (; i<n; ++i) {
+				long end = buf.getLong();
+				if (end < last || end > length) { break; } // rest of the table is from an interrupted push
+				e[i] = last = end;
+			}
+			t.setLength((long)i << 3);
+			ends = e;
+			records = i;
+			data = d;
+			table = t;
+		} catch (IOException x) {
+			d.close();
+			if (t != null) { t.close(); }
+			throw x;
+		}
+	}
+
+	/**
+	** Closes the files. The archiver will reopen them if it is used again.
+	*/
+	public synchronized void close() throws IOException {
+		if (data == null) { return; }
+		segments.clear();
+		try {
+			data.close();
+		} finally {
+			table.close();
+			data = table = null;
+			ends = null;
+		}
+	}
+
+	/**
+	** Returns the number of records in the file.
+	*/
+	public synchronized int size() throws IOException {
+		open();
+		return records;
+	}
+
+	/**
+	** Returns a buffer containing exactly the given record, sharing its
+	** content with the mapping of the file.
+	*/
+	protected synchronized ByteBuffer getRecord(int id) throws IOException {
+		open();
+		if (id < 0 || id >= records) {
+			throw new IOException("No such record " + id + " in " + data_file);
+		}
+		long start = (id == 0)? 0: ends[id-1];
+		int length = (int)(ends[id] - start);
+
+		SortedMap<Long, MappedByteBuffer> before = segments.headMap(start + 1);
+		Long seg_start = before.isEmpty()? null: before.lastKey();
+		if (seg_start == null || start + length > seg_start + segments.get(seg_start).capacity()) {
+			if (length > SEGMENT_SIZE) {
+				throw new IOException("Record " + id + " in " + data_file + " is too large to map");
+			}
+			// records pushed since the segment before this one was mapped are
+			// usually just past its end, so remap that segment to cover them
+			// rather than starting a new one for each record
+			if (seg_start == null || start + length > seg_start + SEGMENT_SIZE) {
+				seg_start = start;
+			}
+			// map as much as we can, since more records will usually be read from the same area
+			long size = Math.min(SEGMENT_SIZE, ends[records-1] - seg_start);
+			// drop any segments that the new one covers
+			for (Iterator<Map.Entry<Long, MappedByteBuffer>> it = segments.subMap(seg_start, seg_start + size).entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Long, MappedByteBuffer> en = it.next();
+				if (en.getKey() + en.getValue().capacity() <= seg_start + size) { it.remove(); }
+			}
+			segments.put(seg_start, data.getChannel().map(FileChannel.MapMode.READ_ONLY, seg_start, size));
+		}
+
+		ByteBuffer buf = segments.get(seg_start).duplicate();
+		int off = (int)(start - seg_start);
+		buf.limit(off + length).position(off);
+		return buf.slice();
+	}
+
+	protected static int getID(Object meta) {
+		if (!(meta instanceof Number)) {
+			throw new IllegalArgumentException("PackedFileArchiver does not support such metadata: " + meta);
+		}
+		return ((Number)meta).intValue();
+	}
+
+	/*========================================================================
+	  public interface LiveArchiver
+	 ========================================================================*/
+
+	/*@Override**/ public void pull(PullTask<T> t) throws TaskAbortException {
+		try {
+			t.data = (T)reader.readObject(new ByteBufferInputStream(getRecord(getID(t.meta))));
+		} catch (IOException e) {
+			throw new TaskAbortException("PackedFileArchiver could not complete pull on " + data_file + ": " + t.meta, e, true);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("PackedFileArchiver could not complete pull on " + data_file + ": " + t.meta, e);
+		}
+	}
+
+	/*@Override**/ public void push(PushTask<T> t) throws TaskAbortException {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			writer.writeObject(t.data, bos);
+			byte[] rec = bos.toByteArray();
+
+			synchronized (this) {
+				open();
+				long start = (records == 0)? 0: ends[records-1];
+				data.seek(start);
+				data.write(rec);
+
+				table.seek((long)records << 3);
+				table.write(ByteBuffer.allocate(8).putLong(start + rec.length).array());
+
+				if (records == ends.length) {
+					long[] e = new long[ends.length << 1];
+					System.arraycopy(ends, 0, e, 0, records);
+					ends = e;
+				}
+				ends[records] = start + rec.length;
+				t.meta = records++;
+			}
+		} catch (IOException e) {
+			throw new TaskAbortException("PackedFileArchiver could not complete push on " + data_file, e, true);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("PackedFileArchiver could not complete push on " + data_file, e);
+		}
+	}
+
+	/*@Override**/ public void pullLive(PullTask<T> t, SimpleProgress p) throws TaskAbortException {
+		try {
+			pull(t);
+			p.addPartKnown(0, true);
+		} catch (TaskAbortException e) {
+			p.abort(e);
+		}
+	}
+
+	/*@Override**/ public void pushLive(PushTask<T> t, SimpleProgress p) throws TaskAbortException {
+		try {
+			push(t);
+			p.addPartKnown(0, true);
+		} catch (TaskAbortException e) {
+			p.abort(e);
+		}
+	}
+
+	/**
+	** An {@link InputStream} that reads from a {@link ByteBuffer}.
+	*/
+	protected static class ByteBufferInputStream extends InputStream {
+
+		final protected ByteBuffer buf;
+
+		public ByteBufferInputStream(ByteBuffer b) {
+			buf = b;
+		}
+
+		@Override public int read() {
+			return buf.hasRemaining()? buf.get() & 0xFF: -1;
+		}
+
+		@Override public int read(byte[] b, int off, int len) {
+			if (len == 0) { return 0; }
+			if (!buf.hasRemaining()) { return -1; }
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		@Override public long skip(long n) {
+			int k = (int)Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position() + k);
+			return k;
+		}
+
+		@Override public int available() {
+			return buf.remaining();
+		}
+
+		@Override public boolean markSupported() {
+			return true;
+		}
+
+		@Override public void mark(int limit) {
+			buf.mark();
+		}
+
+		@Override public void reset() {
+			buf.reset();
+		}
+
+	}
+
+}
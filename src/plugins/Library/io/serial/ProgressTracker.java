@@ -172,6 +172,17 @@ public class ProgressTracker<T, P extends Progress> {
 		}
 	}
 
+	/**
+	** Stops keeping track of the pull progress for the given task, once it has
+	** finished. Otherwise, pulling the same metadata again before the task is
+	** garbage collected would throw {@link TaskInProgressException}.
+	*/
+	public P remPullProgress(PullTask<T> task) {
+		synchronized (pullProgress) {
+			return pullProgress.remove(task);
+		}
+	}
+
 	/**
 	** Creates a new push progress and keeps track of it. If there is already a
 	** progress for the metadata, throws {@link TaskInProgressException}. This
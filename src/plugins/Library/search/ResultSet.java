@@ -7,6 +7,8 @@ import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermIndexEntry;
 import plugins.Library.index.TermTermEntry;
 import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.RelevanceComparator;
+import plugins.Library.index.PositionMap;
 import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.TaskAbortException;
 
@@ -14,10 +16,14 @@ import freenet.support.Logger;
 
 import java.util.Iterator;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
 
 /**
  * Unmodifiable Set which makes sure all data in results being combined is
@@ -30,9 +36,9 @@ import java.util.HashMap;
  */
 public class ResultSet implements Set<TermEntry>, Runnable{
 	private ResultOperation resultOperation;
-	private boolean done = false;
+	private volatile boolean done = false;
 	private Set<TermEntry>[] subresults;
-	private RuntimeException exception;
+	private volatile RuntimeException exception;
 
 	/**
 	 * What should be done with the results of subsearches\n
@@ -48,6 +54,17 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	private HashMap<TermEntry, TermEntry> internal;
 	private final String subject;
 
+	/**
+	 * Maximum number of entries to keep, or 0 to keep all of them
+	 */
+	private final int maxResults;
+	/**
+	 * The entries in internal, least relevant first, so the least relevant
+	 * entry can be dropped when a better one arrives. Only used if maxResults
+	 * is set.
+	 */
+	private PriorityQueue<TermEntry> ranking;
+
 	/**
 	 * @param subject The subject for each of the entries in the Set
 	 * @param resultOperation {@link ResultOperation} to be performed on each of the given Sets
@@ -57,6 +74,21 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * TODO reevaluate relevance for all combinations, and find a way to calculate relevance of phrases
 	 */
 	ResultSet(String subject, ResultOperation resultOperation, List<Execution<Set<TermEntry>>> subRequests) throws TaskAbortException {
+		this(subject, resultOperation, subRequests, 0);
+	}
+
+	/**
+	 * Creates a ResultSet which only keeps the maxResults most relevant
+	 * entries of the result, as they are combined. Its memory use is bounded
+	 * by maxResults rather than by the size of the result.
+	 *
+	 * @param subject The subject for each of the entries in the Set
+	 * @param resultOperation {@link ResultOperation} to be performed on each of the given Sets
+	 * @param subRequests List of subrequests to test each getResult()
+	 * @param maxResults maximum number of entries to keep, 0 to keep all
+	 * @throws TaskAbortException if thrown from a higher getResult() method
+	 */
+	ResultSet(String subject, ResultOperation resultOperation, List<Execution<Set<TermEntry>>> subRequests, int maxResults) throws TaskAbortException {
 		if(resultOperation==ResultOperation.SINGLE && subRequests.size()!=1)
 			throw new IllegalArgumentException(subRequests.size() + " requests supplied with SINGLE operation");
 		if(resultOperation==ResultOperation.REMOVE && subRequests.size()!=2)
@@ -67,11 +99,16 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 					|| resultOperation == ResultOperation.DIFFERENTINDEXES )
 				&& subRequests.size()<2)
 			throw new IllegalArgumentException(resultOperation.toString() + " operations need more than one term");
+		if(maxResults < 0)
+			throw new IllegalArgumentException("maxResults cannot be negative");
 
 
 		this.subject = subject;
 		internal = new HashMap();
 		this.resultOperation = resultOperation;
+		this.maxResults = maxResults;
+		if(maxResults > 0)
+			ranking = new PriorityQueue<TermEntry>(maxResults, Collections.reverseOrder(RelevanceComparator.comparator));
 
 		// Make sure any TaskAbortExceptions are found here and not when it's run
 		subresults = getResultSets(subRequests);
@@ -117,6 +154,7 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	private ResultSet(String subject, Collection<? extends TermEntry> copy) {
 		this.subject = subject;
 		internal = new HashMap();
+		maxResults = 0;
 		addAllToEmptyInternal(copy);
 	}
 
@@ -213,6 +251,17 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	// TODO relevences, metadata extra, check copy constructors
 
 	private void addInternal(TermEntry entry) {
+		if(ranking == null || internal.containsKey(entry)){
+			internal.put(entry, entry);
+			return;
+		}
+		if(ranking.size() >= maxResults){
+			// RelevanceComparator puts more relevant entries first
+			if(RelevanceComparator.comparator.compare(entry, ranking.peek()) >= 0)
+				return;
+			internal.remove(ranking.poll());
+		}
+		ranking.add(entry);
 		internal.put(entry, entry);
 	}
 
@@ -233,101 +282,130 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * Add all entries in the first collection but not in the second
 	 */
 	private void exclude(Collection<? extends TermEntry> add, Collection<? extends TermEntry> subtract) {
+		Map<Target, TermEntry> subtractIndex = indexByTarget(subtract);
 		for (TermEntry termEntry : add){
-			if(getIgnoreSubject(termEntry, subtract)==null)
+			if(getIgnoreSubject(termEntry, subtractIndex)==null)
 				addInternal(termEntry);
 		}
 	}
 
 	/**
-	 * Iterate over all the collections adding and merging all their entries
+	 * Iterate over all the collections adding and merging all their entries.
+	 * Entries with the same target are merged, whatever their relevance.
 	 * @param collections to be merged into this collection
 	 * TODO proper relevance calculating here, currently i think the relevance of the first one added will have less impact than the others, the other 3 types are more important i believe
 	 */
 	private void unite(Collection<? extends TermEntry>... collections) {
+		Map<Target, TermEntry> merged = new LinkedHashMap<Target, TermEntry>();
 		for(Collection<? extends TermEntry> c : collections)
 			if(c==null)
 				Logger.error(this, "the result was null");
 			else
 				for (TermEntry termEntry : c) {
 					TermEntry entry = convertEntry(termEntry);
-					if(contains(entry))
-						addInternal(mergeEntries(internal.get(entry), entry));
-					else
-						addInternal(entry);
+					Target target = new Target(entry);
+					TermEntry existing = merged.get(target);
+					merged.put(target, (existing == null)? entry: mergeEntries(existing, entry));
 				}
+		for (TermEntry entry : merged.values())
+			addInternal(entry);
 	}
 
 	/**
-	 * Iterate over the first collection adding those elements which exist in all the other collections
+	 * Add those elements of the first collection which exist in all the other
+	 * collections. This is a hash join: every collection but the smallest is
+	 * indexed by target, and the smallest is probed against the indexes.
 	 * @param collections a bunch of collections to intersect
 	 */
 	private void intersect(Collection<? extends TermEntry>... collections) {
-		Collection<? extends TermEntry> firstCollection = collections[0];
-		// Iterate over it
-		for (Iterator<? extends TermEntry> it = firstCollection.iterator(); it.hasNext();) {
-			TermEntry termEntry = it.next();
-			// if term entry is contained in all the other collections add it
-			float combinedrelevance = termEntry.rel;
+		int smallest = 0;
+		for (int i = 1; i < collections.length; i++)
+			if (collections[i].size() < collections[smallest].size())
+				smallest = i;
 
-			int i;
-			for (i = 1; i < collections.length; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
-				// See if collection contains termEntry
+		List<Map<Target, TermEntry>> indexes = new ArrayList<Map<Target, TermEntry>>(collections.length);
+		for (int i = 0; i < collections.length; i++)
+			indexes.add((i == smallest)? null: indexByTarget(collections[i]));
 
-				TermEntry termEntry2 = getIgnoreSubject(termEntry, collection);
-				if ( termEntry2 == null )
-					break;
-				else	// add to combined relevance
-					combinedrelevance += termEntry2.rel;
-			}
-			if (i==collections.length){
-				TermEntry newEntry = convertEntry(termEntry, combinedrelevance/collections.length);
-				addInternal(newEntry);
+		TermEntry[] matches = new TermEntry[collections.length];
+		probe: for (TermEntry termEntry : collections[smallest]) {
+			// if term entry is contained in all the other collections add it
+			for (int i = 0; i < collections.length; i++) {
+				matches[i] = (i == smallest)? termEntry: getIgnoreSubject(termEntry, indexes.get(i));
+				if (matches[i] == null)
+					continue probe;
 			}
+			// sum in the order of the collections, so the combined relevance
+			// does not depend on which collection was the smallest
+			float combinedrelevance = matches[0].rel;
+			for (int i = 1; i < collections.length; i++)
+				combinedrelevance += matches[i].rel;
+			TermEntry newEntry = convertEntry(matches[0], combinedrelevance/collections.length);
+			addInternal(newEntry);
 		}
 	}
 
 	/**
 	 * Iterate over the first collection, and the termpositions of each entry,
 	 * keeping those positions which are followed in the other collections. Keeps
-	 * those entries which have positions remaingin after this process
+	 * those entries which have positions remaingin after this process. As the
+	 * positions are sorted, following is checked by merging them.
 	 * @param collections
 	 */
 	private void phrase(Collection<? extends TermEntry>... collections) {
 		Collection<? extends TermEntry> firstCollection = collections[0];
+		List<Map<Target, TermEntry>> indexes = new ArrayList<Map<Target, TermEntry>>(collections.length);
+		// the same word may appear several times in a phrase, so only skip the
+		// first collection by position, not by identity
+		for (int i = 0; i < collections.length; i++)
+			indexes.add((i == 0)? null: indexByTarget(collections[i]));
 		// Iterate over it
 		for (TermEntry termEntry : firstCollection) {
 			if(!(termEntry instanceof TermPageEntry))
 				continue;
 			// if term entry is followed in all the others, add it to this
 			TermPageEntry termPageEntry = (TermPageEntry)termEntry;
-			if(termPageEntry.pos == null)
-				continue;
-			Map<Integer, String> positions = new HashMap(termPageEntry.pos);
+			PositionMap first = termPageEntry.positions();
+			// indexes into first of the positions which are still followed
+			int[] remaining = new int[first.size()];
+			int nremaining = first.size();
+			for (int j = 0; j < nremaining; j++)
+				remaining[j] = j;
 
 			int i;	// Iterate over the other collections, checking for following
-			for (i = 1; positions != null && i < collections.length && positions.size() > 0; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
-				if(collection == null)
+			for (i = 1; i < collections.length && nremaining > 0; i++) {
+				Map<Target, TermEntry> index = indexes.get(i);
+				if(index == null)
 					continue;	// Treat stop words as blanks, dont check
 				// See if collection follows termEntry
-				TermPageEntry termPageEntry1 = (TermPageEntry)getIgnoreSubject(termPageEntry, collection);
-				if(termPageEntry1==null || termPageEntry1.pos==null)	// If collection doesnt contain this termpageentry or has not positions, it does not follow
-					positions = null;
-				else{
-					for (Iterator<Integer> it = positions.keySet().iterator(); it.hasNext();) {
-						int posi = it.next();
-						if ( !termPageEntry1.pos.containsKey(posi+i) )
-							it.remove();
-						else
-							Logger.minor(this, termPageEntry.page + "["+positions.keySet()+"] is followed by "+termPageEntry1.page+"["+termPageEntry1.pos.keySet()+"] +"+i);
+				TermPageEntry termPageEntry1 = (TermPageEntry)getIgnoreSubject(termPageEntry, index);
+				if(termPageEntry1==null){	// If collection doesnt contain this termpageentry, it does not follow
+					nremaining = 0;
+					break;
+				}
+				PositionMap next = termPageEntry1.positions();
+				int kept = 0;
+				for (int j = 0, k = 0; j < nremaining && k < next.size(); ) {
+					// keep first position p if p+i is in next; compare as longs to avoid overflow
+					long want = (long)first.positionAt(remaining[j]) + i;
+					int have = next.positionAt(k);
+					if (have < want)
+						k++;
+					else if (have > want)
+						j++;
+					else {
+						remaining[kept++] = remaining[j];
+						j++;
+						k++;
 					}
 				}
+				nremaining = kept;
 			}
 			// if this termentry has any positions remaining, add it
-			if(positions != null && positions.size() > 0)
-				addInternal(new TermPageEntry(subject, termPageEntry.rel, termPageEntry.page, termPageEntry.title, positions));
+			if(nremaining > 0){
+				Logger.minor(this, termPageEntry.page + " contains the phrase " + subject + " " + nremaining + " times");
+				addInternal(new TermPageEntry(subject, termPageEntry.rel, termPageEntry.page, termPageEntry.title, first.subset(remaining, nremaining)));
+			}
 		}
 	}
 
@@ -441,25 +519,84 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	}
 
 	/**
-	 * Gets a TermEntry from the collection which is equal to entry ignoring subject
+	 * Gets a TermEntry from the index which is equal to entry ignoring subject
 	 * @param entry
-	 * @param collection
+	 * @param index made by {@link #indexByTarget(Collection)}
 	 */
-	private TermEntry getIgnoreSubject(TermEntry entry, Collection<? extends TermEntry> collection){
-		TermEntry result = null;
-			for (TermEntry termEntry : collection) {
-				if (entry.equalsTarget(termEntry)){
-					result = termEntry;
-					break;
-				}
-			}
-		return result;
+	private TermEntry getIgnoreSubject(TermEntry entry, Map<Target, TermEntry> index){
+		return index.get(new Target(entry));
+	}
+
+	/**
+	 * Index a collection by the targets of its entries. Where several entries
+	 * have the same target, the first one is kept.
+	 * @param collection to index, may be null
+	 * @return the index, or null if collection is null
+	 */
+	private static Map<Target, TermEntry> indexByTarget(Collection<? extends TermEntry> collection){
+		if(collection == null)
+			return null;
+		Map<Target, TermEntry> index = new HashMap<Target, TermEntry>(collection.size()*4/3+1);
+		for (TermEntry termEntry : collection) {
+			Target target = new Target(termEntry);
+			if(!index.containsKey(target))
+				index.put(target, termEntry);
+		}
+		return index;
+	}
+
+	/**
+	 * Wraps a TermEntry so that it is equal to any other with the same target,
+	 * ie. {@link TermEntry#equalsTarget(TermEntry)}, ignoring subject and relevance
+	 */
+	private static final class Target {
+		final TermEntry entry;
+		final int hash;
+
+		Target(TermEntry entry) {
+			this.entry = entry;
+			if (entry instanceof TermPageEntry)
+				hash = ((TermPageEntry)entry).page.hashCode();
+			else if (entry instanceof TermIndexEntry)
+				hash = ((TermIndexEntry)entry).index.hashCode();
+			else if (entry instanceof TermTermEntry)
+				hash = ((TermTermEntry)entry).term.hashCode();
+			else
+				throw new UnsupportedOperationException("The TermEntry type " + entry.getClass().getName() + " is not currently supported in ResultSet");
+		}
+
+		@Override public int hashCode() {
+			return hash;
+		}
+
+		@Override public boolean equals(Object o) {
+			return o instanceof Target && entry.equalsTarget(((Target)o).entry);
+		}
 	}
 
 	@Override public String toString(){
 		return internal.keySet().toString();
 	}
 
+	/**
+	 * Returns the entries in this Set, most relevant first
+	 * @throws RuntimeException if a RuntimeException was caught while generating the Set
+	 */
+	public List<TermEntry> getRanking(){
+		if(exception != null)
+			throw new RuntimeException("RuntimeException thrown in ResultSet thread", exception);
+		List<TermEntry> list = new ArrayList<TermEntry>(internal.keySet());
+		Collections.sort(list, RelevanceComparator.comparator);
+		return list;
+	}
+
+	/**
+	 * @return the maximum number of entries kept by this Set, or 0 if it keeps all of them
+	 */
+	public int getMaxResults(){
+		return maxResults;
+	}
+
 	/**
 	 * Returns true if the ResultSet has completed its operations
 	 * @throws RuntimeException if a RuntimeException was caught while generating the Set
@@ -3,7 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.search;
 
+import plugins.Library.Index;
 import plugins.Library.Library;
+import plugins.Library.PrefixIndex;
 import plugins.Library.index.TermEntry;
 import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.AbstractExecution;
@@ -13,6 +15,8 @@ import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.ui.ResultNodeGenerator;
 import plugins.Library.search.ResultSet.ResultOperation;
+import plugins.Library.util.concurrent.BoundedExecutor;
+import plugins.Library.util.concurrent.Executors;
 
 import freenet.support.Executor;
 import freenet.support.HTMLNode;
@@ -37,7 +41,16 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				implements CompositeProgress, Execution<Set<TermEntry>> {
 
 	private static Library library;
-	private static Executor executor;
+
+	/** Maximum number of searches whose results are combined or formatted at once */
+	final public static int WORKERS_MAX = Runtime.getRuntime().availableProcessors();
+	/** Maximum number of searches waiting to have their results combined or formatted */
+	final public static int WORKERS_QUEUED = 0x40;
+	/**
+	 * Combines and formats the results of searches. If too many are waiting,
+	 * the thread checking on a search does it itself.
+	 */
+	private static BoundedExecutor workers = newWorkers(null);
 
 	private ResultOperation resultOperation;
 
@@ -52,6 +65,22 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private static HashMap<Integer,Search> searchhashes = new HashMap<Integer, Search>();
 	private ResultSet resultset;
 
+	/**
+	 * Maximum number of results to keep, or 0 to keep all of them. See {@link #setMaxResults(int)}
+	 */
+	private int maxResults = 0;
+	/** Whether this Search is a subsearch of another, so its result must be complete */
+	private boolean subsearch = false;
+
+	/**
+	 * The latest provisional ranking to be combined, see {@link #getProvisionalResult()}
+	 */
+	private List<TermEntry> provisionalRanking;
+	/** The provisional ranking being combined by the workers, or null */
+	private ResultSet provisionalSet;
+	/** How many subsearches were complete when the last provisional ranking was started */
+	private int provisionalStep = 0;
+
 	/**
 	 * Settings for producing result nodes, if true a HTMLNode of the results will be generated after the results are complete which can be accessed via getResultNode()
 	 */
@@ -76,6 +105,15 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		searchhashes.remove(search.hashCode());
 	}
 
+	/**
+	 * Stop a search from being returned by {@link #startSearch(String, String)}
+	 * so it isn't used by other searches, but can still be found by hashCode
+	 */
+	private static synchronized void unshareSearch(Search search) {
+		if(allsearches.get(search.subject) == search)
+			allsearches.remove(search.subject);
+	}
+
 	/**
 	 * Creates a search for any number of indices, starts and returns the associated Request object
 	 * TODO startSearch with array of indexes
@@ -91,8 +129,9 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			throw new InvalidSearchException("Blank search");
 
 		// See if the same search exists
-		if (hasSearch(search, indexuri))
-			return getSearch(search, indexuri);
+		Search existing = getSearch(search, indexuri);
+		if (existing != null)
+			return existing;
 
 		Logger.minor(Search.class, "Starting new search for "+search+" in "+indexuri);
 
@@ -126,7 +165,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @param resultOperation Which set operation to do on the results of the subrequests
 	 * @throws InvalidSearchException if the search is invalid
 	 **/
-	private Search(String query, String indexURI, List<? extends Execution<Set<TermEntry>>> requests, ResultOperation resultOperation)
+	Search(String query, String indexURI, List<? extends Execution<Set<TermEntry>>> requests, ResultOperation resultOperation)
 	throws InvalidSearchException{
 		super(makeString(query, indexURI));
 		if(resultOperation==ResultOperation.SINGLE && requests.size()!=1)
@@ -145,6 +184,8 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		// Create a temporary list of sub searches then make it unmodifiable
 		List<Execution<Set<TermEntry>>> tempsubsearches = new ArrayList();
 		for (Execution<Set<TermEntry>> request : requests) {
+			if(request instanceof Search)
+				((Search)request).setSubsearch();
 			if(request != null || resultOperation == ResultOperation.PHRASE)
 				tempsubsearches.add(request);
 			else
@@ -199,6 +240,15 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @throws InvalidSearchException if search query is invalid
 	 */
 	private static Search splitQuery(String query, String indexuri) throws InvalidSearchException, TaskAbortException{
+		if(query.matches("\\A[\\w\\d]+\\*\\Z")) {
+			// every term starting with a prefix, eg. "free*"
+			Index index = library.getIndex(indexuri);
+			if(!(index instanceof PrefixIndex))
+				throw new InvalidSearchException("Prefix searches are not supported by the index \""+indexuri+"\"");
+			String prefix = query.substring(0, query.length()-1);
+			return new Search(query, indexuri, ((PrefixIndex)index).getTermEntriesForPrefix(prefix));
+		}
+
 		if(query.matches("\\A[\\w\\d]*\\Z")) {
 			// single search term
 			// return null if stopword
@@ -342,10 +392,36 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 */
 	public static void setup(Library library, Executor executor){
 		Search.library = library;
-		Search.executor = executor;
+		Search.workers = newWorkers(executor);
 		Search.allsearches = new HashMap<String, Search>();
 	}
 
+	/**
+	 * Make the executor for combining and formatting results, whose workers
+	 * run on the given executor, or on their own threads if it is null or
+	 * {@link Executors#VIRTUAL_THREADS} is set
+	 */
+	private static BoundedExecutor newWorkers(final Executor executor){
+		java.util.concurrent.Executor threads;
+		if(executor==null || Executors.VIRTUAL_THREADS)
+			threads = Executors.newThreadPerTaskExecutor("Library.Search worker");
+		else
+			threads = new java.util.concurrent.Executor(){
+				public void execute(Runnable r){
+					executor.execute(r, "Library.Search worker");
+				}
+			};
+		return new BoundedExecutor(threads, WORKERS_MAX, WORKERS_QUEUED);
+	}
+
+	/**
+	 * Returns the executor that combines and formats results, eg. to see how
+	 * many searches are waiting for it
+	 */
+	public static BoundedExecutor getWorkers(){
+		return workers;
+	}
+
 	/**
 	 * Gets a Search from the Map
 	 * @param search
@@ -472,11 +548,8 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				if(!isSubRequestsComplete())	// If combining first and subsearches still haven't completed, remain
 					return;
 				// If subrequests have completed start process to combine results
-				resultset = new ResultSet(subject, resultOperation, subsearches);
-				if(executor!=null)
-					executor.execute(resultset, "Library.Search : combining results");
-				else
-					(new Thread(resultset, "Library.Search : combining results")).start();
+				resultset = new ResultSet(subject, resultOperation, subsearches, maxResults);
+				workers.execute(resultset);
 				status = SearchStatus.Combining_Last;
 			case Combining_Last :	// for when this is combining
 				if(!resultset.isDone())
@@ -486,10 +559,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				if(formatResult){
 					// resultset doesn't exist but subrequests are complete so we can start up a resultset
 					resultNodeGenerator = new ResultNodeGenerator(resultset, htmlgroupusk, htmlshowold, htmljs);
-					if(executor!=null)
-						executor.execute(resultNodeGenerator, "Library.Search : formatting results");
-					else
-						(new Thread(resultNodeGenerator, "Library.Search : formatting results")).start();
+					workers.execute(resultNodeGenerator);
 					status = SearchStatus.Formatting;	// status -> Formatting
 				}else			// If not asked to format output, status -> done
 					status = SearchStatus.Done;
@@ -556,6 +626,101 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		htmljs = js;
 	}
 
+	/**
+	 * Only keep the most relevant results of this search, so memory use is
+	 * bounded by maxResults rather than by the number of results. As the
+	 * result is then incomplete, the search will no longer be returned by
+	 * {@link #startSearch(String, String)} for use by other searches. This has
+	 * no effect if the search is already a subsearch of another or if its
+	 * results have already been combined.
+	 *
+	 * @param maxResults maximum number of results, 0 to keep all of them
+	 * @return whether the limit will be used
+	 */
+	public synchronized boolean setMaxResults(int maxResults){
+		if(maxResults < 0)
+			throw new IllegalArgumentException("maxResults cannot be negative");
+		if(subsearch || resultset != null)
+			return false;
+		this.maxResults = maxResults;
+		if(maxResults > 0)
+			unshareSearch(this);
+		return true;
+	}
+
+	/**
+	 * Mark this as a subsearch of another search, so its result is kept whole
+	 */
+	private synchronized void setSubsearch(){
+		subsearch = true;
+		maxResults = 0;
+	}
+
+	/**
+	 * Returns a provisional ranking of the results, made from those
+	 * subsearches which have completed so far, before the whole search has
+	 * finished. For unions this is a subset of the final result, and for
+	 * intersections it is a set of candidates, some of which may be removed
+	 * by later subsearches. Relevances may change as more results arrive. If
+	 * {@link #setMaxResults(int)} is used, at most that many are returned.
+	 *
+	 * The ranking is combined by the workers, once each time another
+	 * subsearch completes, so this returns straight away with the latest
+	 * ranking that has been combined, which may lag behind the subsearches.
+	 *
+	 * @return the provisional results, most relevant first, the final results
+	 * if the search has been combined, or null if there is nothing ranked yet
+	 * or this type of search can't be ranked until it is complete
+	 */
+	public List<TermEntry> getProvisionalResult() throws TaskAbortException {
+		ResultSet start;
+		synchronized(this){
+			if(resultset != null && resultset.isDone())
+				return resultset.getRanking();
+			if(provisionalSet != null && provisionalSet.isDone()){
+				provisionalRanking = provisionalSet.getRanking();
+				provisionalSet = null;
+			}
+			start = (resultset == null && provisionalSet == null)? startProvisional(): null;
+			if(start != null)
+				provisionalSet = start;
+		}
+		// outside the lock, as the workers may make this thread do it itself
+		if(start != null)
+			workers.execute(start);
+		return provisionalRanking;
+	}
+
+	/**
+	 * Make a ResultSet combining the subsearches which have completed, if
+	 * more have completed since the last provisional ranking was started
+	 * @return the ResultSet to run, or null if there is nothing new to rank
+	 */
+	private ResultSet startProvisional() throws TaskAbortException {
+		if(subsearches == null)
+			return null;
+		switch(resultOperation){
+			case SINGLE:
+			case UNION:
+			case DIFFERENTINDEXES:
+			case INTERSECTION:
+				break;
+			default:	// PHRASE needs every word, REMOVE needs both sides
+				return null;
+		}
+
+		List<Execution<Set<TermEntry>>> done = new ArrayList<Execution<Set<TermEntry>>>();
+		for(Execution<Set<TermEntry>> request : subsearches)
+			if(request.isDone())
+				done.add(request);
+		if(done.size() <= provisionalStep)
+			return null;
+		provisionalStep = done.size();
+
+		ResultOperation operation = (done.size() == 1)? ResultOperation.SINGLE: resultOperation;
+		return new ResultSet(subject, operation, done, maxResults);
+	}
+
 	@Override
 	public ProgressParts getParts() throws TaskAbortException {
 		if(subsearches==null)
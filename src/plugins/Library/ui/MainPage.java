@@ -4,6 +4,7 @@
 package plugins.Library.ui;
 
 import plugins.Library.Library;
+import plugins.Library.index.TermEntry;
 import plugins.Library.search.InvalidSearchException;
 import plugins.Library.search.Search;
 import plugins.Library.util.exec.ChainedProgress;
@@ -25,6 +26,8 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Generates the main search page
@@ -34,6 +37,8 @@ import java.util.Iterator;
 class MainPage {
 	/** map of search hashes to pages on them */
 	private static final HashMap<Integer, MainPage> searchPages = new HashMap();
+	/** maximum number of results to show for a search, only the most relevant are kept */
+	static final int MAX_RESULTS = 1000;
 
 	private synchronized static void addpage(int hashCode, MainPage page) {
 		searchPages.put(hashCode, page);
@@ -194,6 +199,7 @@ class MainPage {
 					page.messages.append("Stopwords too prominent in search term, try removing words like 'the', 'and' and 'that' and any words less than 3 characters");
 				else{
 					page.search.setMakeResultNode(page.groupusk, page.showold, true);	// for the moment js will always be on for results, js detecting isnt being used
+					page.search.setMaxResults(MAX_RESULTS);
 
 					// at this point pages is in a state ready to be saved
 					addpage(page.search.hashCode(), page);
@@ -295,7 +301,14 @@ class MainPage {
 							exceptions.add(ex);
 						}
 				} else {
-					contentNode.addChild("div", "id", "results").addChild("#");
+					// show the best results found so far while waiting for the rest
+					List<TermEntry> provisional = search.getProvisionalResult();
+					if(provisional != null && provisional.size() > 0){
+						ResultNodeGenerator nodegenerator = new ResultNodeGenerator(new LinkedHashSet<TermEntry>(provisional), groupusk, showold, true);
+						nodegenerator.run();
+						contentNode.addChild(nodegenerator.getPageEntryNode());
+					}else
+						contentNode.addChild("div", "id", "results").addChild("#");
 				}
 			}
 
@@ -9,6 +9,7 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
+import plugins.Library.index.RelevanceComparator;
 import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermPageEntry;
 
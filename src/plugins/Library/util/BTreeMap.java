@@ -11,6 +11,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Collection;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.Map;
 import java.util.AbstractSet;
@@ -106,8 +107,9 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	**
 	** Additionally, each node has a Node._size field which is a cache for
 	** Node.totalSize(), which calculates the number of entries in it and all
-	** its children. To invalidate the cache, set Node._size to -1. This must
-	** be done whenever an operation has >0 chance of changing the total size.
+	** its children. To invalidate the cache, call Node.invalidate(). This must
+	** be done whenever an operation has >0 chance of changing the total size,
+	** or the contents of the node.
 	**
 	** FIXME LOW atm there is a slight bug in this implementation that causes
 	** indeterminate behaviour when used with a comparator that admits null
@@ -185,6 +187,34 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		this(null, node_min);
 	}
 
+	/**
+	** Creates a new map, sorted according to the given comparator, and bulk-
+	** loads it with the given entries. See {@link #bulkLoad(Iterator)} for
+	** details.
+	**
+	** @param cmp The comparator for the tree, or {@code null} to use the keys'
+	**            {@link Comparable natural} ordering.
+	** @param node_min Minimum number of subnodes in each node
+	** @param it Iterator over the entries, in strictly ascending key order
+	** @throws IllegalArgumentException if the keys are not strictly ascending
+	*/
+	public BTreeMap(Comparator<? super K> cmp, int node_min, Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+		this(cmp, node_min);
+		bulkLoad(it);
+	}
+
+	/**
+	** Creates a new map with the same ordering as the given map, and bulk-
+	** loads it with the map's entries. See {@link #bulkLoad(Iterator)} for
+	** details.
+	**
+	** @param node_min Minimum number of subnodes in each node
+	** @param map The entries to load
+	*/
+	public BTreeMap(int node_min, SortedMap<K, ? extends V> map) {
+		this(map.comparator(), node_min, map.entrySet().iterator());
+	}
+
 	/**
 	** Returns the subset of the given {@link SortedSet}, exclusively between
 	** the given keys.
@@ -364,7 +394,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		** @param lf Whether to create a leaf node
 		*/
 		protected Node(K lk, K rk, boolean lf) {
-			this(lk, rk, lf, new TreeMap<K, V>(comparator));
+			this(lk, rk, lf, new SortedArrayMap<K, V>(comparator));
 		}
 
 		/**
@@ -435,6 +465,16 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			return _size;
 		}
 
+		/**
+		** Invalidate the cache for {@link #totalSize()}. This must be called
+		** whenever an operation has >0 chance of changing the contents of the
+		** node or its subnodes. Subclasses may override this to drop any other
+		** information derived from the contents.
+		*/
+		protected void invalidate() {
+			_size = -1;
+		}
+
 		/**
 		** Returns the greatest subnode smaller than the given node.
 		**
@@ -1003,8 +1043,8 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	** eg. we can proceed even when the values have not been loaded (such as
 	** in a {@link SkeletonBTreeMap}).
 	**
-	** FIXME HIGH do this for everything in the class. ATM only Node.split()
-	** uses it.
+	** FIXME HIGH do this for everything in the class. ATM it is used by the
+	** split, merge and rotate operations, but not by Node.merge().
 	*/
 	protected void swapKey(K key, Node src, Node dst) {
 		V val = src.entries.remove(key);
@@ -1039,7 +1079,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			parent = root = newNode(null, null, false);
 			parent.addChildNode(child);
 		}
-		parent._size = child._size = -1;
+		parent.invalidate(); child.invalidate();
 
 		Node lnode = newNode(null, null, child.isLeaf());
 		K mkey;
@@ -1047,38 +1087,30 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		if (child.isLeaf()) {
 			// this is just the same as the code in the else block, but with leaf
 			// references to rnodes and lnodes removed (since they are null)
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
 			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
+				K key = child.entries.firstKey();
+				swapKey(key, child, lnode);
 			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
+			mkey = child.entries.firstKey();
 
 			lnode.lkey = child.lkey;
 			lnode.rkey = child.lkey = mkey;
 
 			parent.rnodes.put(lnode.lkey, lnode);
 			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
+			swapKey(mkey, child, parent);
 			parent.rnodes.put(mkey, child);
 			parent.lnodes.put(mkey, lnode);
 
 		} else {
 			lnode.rnodes.put(child.lkey, child.rnodes.remove(child.lkey));
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
 			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
+				K key = child.entries.firstKey();
+				swapKey(key, child, lnode);
 				lnode.lnodes.put(key, child.lnodes.remove(key));
 				lnode.rnodes.put(key, child.rnodes.remove(key));
 			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
+			mkey = child.entries.firstKey();
 			lnode.lnodes.put(mkey, child.lnodes.remove(mkey));
 
 			lnode.lkey = child.lkey;
@@ -1086,7 +1118,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 			parent.rnodes.put(lnode.lkey, lnode);
 			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
+			swapKey(mkey, child, parent);
 			parent.rnodes.put(mkey, child);
 			parent.lnodes.put(mkey, lnode);
 		}
@@ -1124,7 +1156,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		                      || parent.nodeSize() > ENT_MIN);
 		assert(!parent.isLeaf() && parent.rnodes.get(lnode.rkey) == rnode
 		                      && parent.lnodes.get(rnode.lkey) == lnode);
-		parent._size = lnode._size = rnode._size = -1;
+		parent.invalidate(); lnode.invalidate(); rnode.invalidate();
 
 		K mkey = rnode.lkey; // same as lnode.rkey;
 
@@ -1133,7 +1165,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			// references to rnodes and lnodes removed (since they are null)
 			rnode.entries.putAll(lnode.entries);
 
-			rnode.entries.put(mkey, parent.entries.remove(mkey));
+			swapKey(mkey, parent, rnode);
 			rnode.lkey = lnode.lkey;
 
 			parent.rnodes.remove(mkey);
@@ -1145,7 +1177,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			rnode.lnodes.putAll(lnode.lnodes);
 			rnode.rnodes.putAll(lnode.rnodes);
 
-			rnode.entries.put(mkey, parent.entries.remove(mkey));
+			swapKey(mkey, parent, rnode);
 			rnode.lnodes.put(mkey, lnode.lnodes.get(mkey));
 			rnode.rnodes.put(lnode.lkey, lnode.rnodes.get(lnode.lkey));
 			rnode.lkey = lnode.lkey;
@@ -1196,13 +1228,13 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		assert(rnode.nodeSize() > ENT_MIN);
 		assert(!parent.isLeaf() && parent.rnodes.get(lnode.rkey) == rnode
 		                      && parent.lnodes.get(rnode.lkey) == lnode);
-		parent._size = lnode._size = rnode._size = -1;
+		parent.invalidate(); lnode.invalidate(); rnode.invalidate();
 
 		K mkey = rnode.lkey;
 		K skey = rnode.entries.firstKey();
 
-		lnode.entries.put(mkey, parent.entries.remove(mkey));
-		parent.entries.put(skey, rnode.entries.remove(skey));
+		swapKey(mkey, parent, lnode);
+		swapKey(skey, rnode, parent);
 		parent.rnodes.put(skey, parent.rnodes.remove(mkey));
 		parent.lnodes.put(skey, parent.lnodes.remove(mkey));
 
@@ -1247,13 +1279,13 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		assert(lnode.nodeSize() > ENT_MIN);
 		assert(!parent.isLeaf() && parent.rnodes.get(lnode.rkey) == rnode
 		                      && parent.lnodes.get(rnode.lkey) == lnode);
-		parent._size = lnode._size = rnode._size = -1;
+		parent.invalidate(); lnode.invalidate(); rnode.invalidate();
 
 		K mkey = lnode.rkey;
 		K skey = lnode.entries.lastKey();
 
-		rnode.entries.put(mkey, parent.entries.remove(mkey));
-		parent.entries.put(skey, lnode.entries.remove(skey));
+		swapKey(mkey, parent, rnode);
+		swapKey(skey, lnode, parent);
 		parent.lnodes.put(skey, parent.lnodes.remove(mkey));
 		parent.rnodes.put(skey, parent.rnodes.remove(mkey));
 
@@ -1479,7 +1511,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		Node node = root, parent = null;
 
 		for (;;) {
-			node._size = -1; // pre-emptively invalidate node size cache
+			node.invalidate(); // pre-emptively invalidate node size cache
 
 			if (node.nodeSize() == ENT_MAX) {
 				K median = split(parent, node);
@@ -1559,7 +1591,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		Node node = root, parent = null;
 
 		for (;;) {
-			node._size = -1; // pre-emptively invalidate node size cache
+			node.invalidate(); // pre-emptively invalidate node size cache
 
 			if (node != root && node.nodeSize() == ENT_MIN) {
 				Node lnode = parent.nodeL(node), rnode = parent.nodeR(node);
@@ -1644,6 +1676,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		} else if (t == this || isEmpty() && t instanceof SortedMap) {
 			SortedMap<K, V> map = (SortedMap<K, V>)t, nextmap;
 			Map<K, Node> lnodes = null, nextlnodes;
+			int s = map.size();
 
 			if (!(comparator == null && map.comparator() == null || comparator.equals(map.comparator()))) {
 				super.putAll(map);
@@ -1672,7 +1705,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 			assert(lnodes.size() == 1);
 			root = lnodes.get(null);
-			size = map.size();
+			size = s;
 
 		} else {
 			super.putAll(t);
@@ -1732,6 +1765,105 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		return next;
 	}
 
+	/**
+	** Builds the tree bottom-up from a stream of entries in ascending key
+	** order, in a single pass. This is used by the bulk-loading constructors.
+	**
+	** Unlike the algorithm in {@link #putAll(Map)}, this does not need to know
+	** the number of entries in advance, and only holds one partially-built
+	** node per level of the tree at any one time. Every node except those on
+	** the right edge of the tree is filled to exactly {@link #ENT_MAX}
+	** entries. Afterwards, the right edge is fixed up by rotating entries
+	** into it from its left siblings, so that it satisfies {@link #ENT_MIN}.
+	**
+	** Since the nodes are full, the first insert into each of them will cause
+	** a split. If many inserts are expected afterwards, {@link #restructure()}
+	** will spread the entries out more evenly.
+	**
+	** It is '''assumed''' that the tree is empty; it is up to the caller to
+	** ensure that this holds.
+	**
+	** @param it Iterator over the entries, in strictly ascending key order
+	** @throws IllegalArgumentException if the keys are not strictly ascending
+	*/
+	protected void bulkLoad(Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+		assert(size == 0 && root.isLeaf() && root.nodeSize() == 0);
+		// the node at index h is the partially-built node at height h
+		List<Node> open = new ArrayList<Node>();
+		open.add(root);
+		int s = 0;
+		K prevkey = null;
+
+		while (it.hasNext()) {
+			Map.Entry<? extends K, ? extends V> en = it.next();
+			K key = en.getKey();
+			if (s > 0 && compare(prevkey, key) >= 0) {
+				throw new IllegalArgumentException("Input is not sorted: " + prevkey + " followed by " + key);
+			}
+			bulkAppend(open, 0, key, en.getValue(), null);
+			prevkey = key;
+			++s;
+		}
+
+		// attach the last node of each level as the greatest child of its parent
+		for (int h=1; h<open.size(); ++h) {
+			Node node = open.get(h), child = open.get(h-1);
+			K last = node.entries.isEmpty()? node.lkey: node.entries.lastKey();
+			node.rnodes.put(last, child);
+			node.lnodes.put(null, child);
+		}
+		root = open.get(open.size()-1);
+		size = s;
+
+		// every level below the root has at least one full node, so the last node
+		// can take entries from its left sibling until it has enough
+		for (Node parent = root; !parent.isLeaf();) {
+			Node rnode = parent.lnodes.get(null);
+			if (rnode.nodeSize() < ENT_MIN) {
+				Node lnode = parent.lnodes.get(rnode.lkey);
+				for (int i=rnode.nodeSize(); i<ENT_MIN; ++i) {
+					rotateR(parent, lnode, rnode);
+				}
+			}
+			parent = rnode;
+		}
+	}
+
+	/**
+	** Helper method for the streaming bulk-loading algorithm. Adds an entry
+	** to the partially-built node at the given height, or if that is already
+	** full, closes the node off and passes the entry up to its parent as a
+	** separator.
+	**
+	** @param open The partially-built node at each height
+	** @param h Height of the node to add the entry to
+	** @param key The key of the entry
+	** @param val The value of the entry
+	** @param child The completed node immediately smaller than {@code key},
+	**        or {@code null} if {@code h} is 0
+	*/
+	private void bulkAppend(List<Node> open, int h, K key, V val, Node child) {
+		if (h == open.size()) {
+			// the tree has grown by a level. this is the leftmost node of the level
+			open.add(newNode(null, null, false));
+		}
+		Node node = open.get(h);
+
+		if (child != null) {
+			K last = node.entries.isEmpty()? node.lkey: node.entries.lastKey();
+			node.rnodes.put(last, child);
+			node.lnodes.put(key, child);
+		}
+
+		if (node.nodeSize() < ENT_MAX) {
+			node.entries.put(key, val);
+		} else {
+			node.rkey = key;
+			open.set(h, newNode(key, null, h == 0));
+			bulkAppend(open, h+1, key, val, node);
+		}
+	}
+
 	/**
 	** Restructures the tree, distributing the entries evenly between the leaf
 	** nodes. This method merely calls {@link #putAll(Map)} with {@code this}.
@@ -1914,6 +2046,237 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		}
 	}
 
+	/**
+	** Returns the greatest key less than or equal to the given key, or {@code
+	** null} if there is no such key. This only descends a single path of the
+	** tree.
+	**
+	** JDK6 NavigableMap
+	*/
+	public K floorKey(K key) {
+		return lowerKey(key, true);
+	}
+
+	/**
+	** Returns the greatest key strictly less than the given key, or {@code
+	** null} if there is no such key. This only descends a single path of the
+	** tree.
+	**
+	** JDK6 NavigableMap
+	*/
+	public K lowerKey(K key) {
+		return lowerKey(key, false);
+	}
+
+	/**
+	** Returns the least key greater than or equal to the given key, or {@code
+	** null} if there is no such key. This only descends a single path of the
+	** tree.
+	**
+	** JDK6 NavigableMap
+	*/
+	public K ceilingKey(K key) {
+		return higherKey(key, true);
+	}
+
+	/**
+	** Returns the least key strictly greater than the given key, or {@code
+	** null} if there is no such key. This only descends a single path of the
+	** tree.
+	**
+	** JDK6 NavigableMap
+	*/
+	public K higherKey(K key) {
+		return higherKey(key, false);
+	}
+
+	/**
+	** Descend the tree towards the given key, and return the greatest key less
+	** than it (or equal to it, if {@code inclusive}).
+	**
+	** If we reach a leaf without finding the key, then the answer is either
+	** in the leaf, or is the leaf's {@link Node#lkey} (which is the greatest
+	** key less than every key in the leaf). If we find the key in an internal
+	** node, then the answer is the last key of the subtree to its left.
+	*/
+	protected K lowerKey(K key, boolean inclusive) {
+		if (key == null) { throw new NullPointerException(); }
+		Node node = root;
+		for (;;) {
+			if (node.isLeaf()) {
+				if (inclusive && node.entries.containsKey(key)) { return key; }
+				SortedMap<K, V> head = node.entries.headMap(key);
+				return (head.isEmpty())? node.lkey: head.lastKey();
+			}
+
+			Node nextnode = node.selectNode(key);
+			if (nextnode == null) {
+				if (inclusive) { return key; }
+				node = node.lnodes.get(key);
+				while (!node.isLeaf()) { node = node.rnodes.get(node.entries.lastKey()); }
+				return node.entries.lastKey();
+			}
+
+			node = nextnode;
+		}
+	}
+
+	/**
+	** Descend the tree towards the given key, and return the least key greater
+	** than it (or equal to it, if {@code inclusive}). This is the mirror image
+	** of {@link #lowerKey(Object, boolean)}.
+	*/
+	protected K higherKey(K key, boolean inclusive) {
+		if (key == null) { throw new NullPointerException(); }
+		Node node = root;
+		for (;;) {
+			if (node.isLeaf()) {
+				// at most two iterations, since keys are unique
+				for (K k: node.entries.tailMap(key).keySet()) {
+					if (inclusive || compare(k, key) > 0) { return k; }
+				}
+				return node.rkey;
+			}
+
+			Node nextnode = node.selectNode(key);
+			if (nextnode == null) {
+				if (inclusive) { return key; }
+				node = node.rnodes.get(key);
+				while (!node.isLeaf()) { node = node.lnodes.get(node.entries.firstKey()); }
+				return node.entries.firstKey();
+			}
+
+			node = nextnode;
+		}
+	}
+
+	/**
+	** Returns an iterable over the entries with keys in the given range, in
+	** ascending order. Unlike {@link #subMap(Object, Object)}, this is just a
+	** one-off iteration rather than a view; but it only visits the nodes whose
+	** ranges overlap the given range, so it can be used on a partially-loaded
+	** {@link SkeletonBTreeMap} without loading the rest of the tree.
+	**
+	** The iterator throws {@link DataNotLoadedException} if it reaches a node
+	** that is not loaded, or (through {@link Map.Entry#getValue()}) an entry
+	** whose value is not loaded. It is left unchanged when this happens, so it
+	** can be resumed after the data is loaded. The iterator does not support
+	** {@link Iterator#remove()}.
+	**
+	** @param lo Lowest key (inclusive), or {@code null} for no lower bound
+	** @param hi Highest key (exclusive), or {@code null} for no upper bound
+	*/
+	public Iterable<Map.Entry<K, V>> range(final K lo, final K hi) {
+		return new Iterable<Map.Entry<K, V>>() {
+			/*@Override**/ public Iterator<Map.Entry<K, V>> iterator() {
+				return new RangeIterator(lo, hi);
+			}
+		};
+	}
+
+	/**
+	** Iterates over a range of entries. See {@link #range(Object, Object)}.
+	**
+	** We keep a stack of the nodes on the path to the current entry, along with
+	** an iterator over the in-range entries of each node. Descending into a
+	** subnode is deferred until the next call to {@link #hasNext()}, and the
+	** subnode is looked up through its parent every time, so that the descent
+	** can be retried after the parent has inflated a {@link
+	** SkeletonBTreeMap.GhostNode} in its place.
+	*/
+	protected class RangeIterator implements Iterator<Map.Entry<K, V>> {
+
+		final K lo;
+		final K hi;
+
+		final Stack<Node> nodestack = new Stack<Node>();
+		final Stack<Iterator<Map.Entry<K, V>>> itstack = new Stack<Iterator<Map.Entry<K, V>>>();
+
+		/**
+		** Whether we still need to descend from the top of the stack.
+		*/
+		boolean descend = true;
+
+		/**
+		** Whether we are descending towards {@link #lo}, rather than down the
+		** left edge of the subtree to the right of {@link #dkey}.
+		*/
+		boolean bounded;
+
+		/**
+		** The {@link Node#lkey} of the next node to descend into, if not {@link
+		** #bounded}.
+		*/
+		K dkey;
+
+		Map.Entry<K, V> next;
+
+		protected RangeIterator(K lo, K hi) {
+			this.lo = lo;
+			this.hi = hi;
+			bounded = (lo != null);
+			if (lo != null && hi != null && compare(lo, hi) >= 0) { descend = false; }
+		}
+
+		protected void descend() {
+			while (descend) {
+				Node node = (nodestack.isEmpty())? root:
+				            (bounded)? nodestack.peek().selectNode(lo):
+				            nodestack.peek().rnodes.get(dkey);
+				if (node == null || hi != null && node.lkey != null && compare(node.lkey, hi) >= 0) {
+					// no subnode, or it is entirely out of range
+					descend = false;
+					break;
+				}
+
+				boolean leaf = node.isLeaf();
+				SortedMap<K, V> ent = node.entries;
+				if (bounded) {
+					ent = (hi == null)? ent.tailMap(lo): ent.subMap(lo, hi);
+				} else if (hi != null) {
+					ent = ent.headMap(hi);
+				}
+				nodestack.push(node);
+				itstack.push(ent.entrySet().iterator());
+
+				if (leaf) { descend = false; }
+				else if (!bounded) { dkey = node.lkey; }
+			}
+		}
+
+		/*@Override**/ public boolean hasNext() {
+			if (next != null) { return true; }
+			for (;;) {
+				descend();
+				if (itstack.isEmpty()) { return false; }
+				Iterator<Map.Entry<K, V>> it = itstack.peek();
+				if (it.hasNext()) {
+					next = it.next();
+					if (!nodestack.peek().isLeaf()) {
+						descend = true;
+						bounded = false;
+						dkey = next.getKey();
+					}
+					return true;
+				}
+				nodestack.pop();
+				itstack.pop();
+			}
+		}
+
+		/*@Override**/ public Map.Entry<K, V> next() {
+			if (!hasNext()) { throw new NoSuchElementException(); }
+			Map.Entry<K, V> en = next;
+			next = null;
+			return en;
+		}
+
+		/*@Override**/ public void remove() {
+			throw new UnsupportedOperationException("not implemented");
+		}
+
+	}
+
 	/**
 	** {@inheritDoc}
 	**
@@ -0,0 +1,336 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+** Keeps track of the parts of {@link SkeletonBTreeMap}s that have been pulled
+** in on demand (eg. whilst handling a {@link DataNotLoadedException} during a
+** search), and ghosts the least-recently-used ones back once there are too
+** many of them, so that memory use does not keep growing as more of an index
+** is accessed.
+**
+** Two types of object are tracked:
+**
+** * {@link SkeletonBTreeMap.SkeletonNode}s, which are registered by their
+**   tree when they are pulled or visited by {@link SkeletonBTreeMap#get(Object)}.
+**   Evicting a node ghosts it and all of its loaded subnodes.
+** * {@link SkeletonBTreeSet} values of a {@link SkeletonBTreeMap}, which are
+**   registered by the caller with {@link #touchValue(SkeletonBTreeMap, Object,
+**   SkeletonBTreeSet)}. Evicting a set ghosts the value in the map.
+**
+** Only data that has not been modified since it was pulled is ever evicted;
+** it is ghosted back to the metadata it was pulled with, rather than being
+** pushed again. Modified data is simply dropped from the manager, and must be
+** deflated as normal.
+**
+** Note that changes made through {@link Map.Entry#setValue(Object)} on the
+** tree's entry set are not detected; this is only intended for trees which
+** are read (or updated through {@link SkeletonBTreeMap#update}).
+**
+** One manager may be shared between any number of trees, in which case the
+** bounds apply to all of them together.
+**
+** Marking an object that is already registered as used does not take any
+** lock, since this happens on every {@link SkeletonBTreeMap#get(Object)}.
+** Instead of strict least-recently-used order, each object has a "used" flag,
+** and when the bounds are exceeded, objects are evicted in the order they
+** were registered, except that those that were used since they were last
+** passed over get a second chance ("CLOCK").
+**
+** Objects are only evicted whilst no other thread is reading or inflating
+** their tree (see {@link SkeletonBTreeMap#access}); objects of trees that
+** are in use are passed over too, and only forgotten if there is nothing
+** else left to evict.
+*/
+public class ResidencyManager {
+
+	/**
+	** Rough estimate of the memory used by a node, excluding its entries.
+	*/
+	final public static int NODE_BYTES = 0x100;
+
+	/**
+	** Rough estimate of the memory used by an entry of a node or set.
+	*/
+	final public static int ENTRY_BYTES = 0x80;
+
+	/**
+	** Maximum number of resident objects.
+	*/
+	final protected int max_items;
+
+	/**
+	** Maximum estimated size of all resident objects, in bytes.
+	*/
+	final protected long max_bytes;
+
+	/**
+	** Estimated size of all resident objects, in bytes.
+	*/
+	protected long bytes;
+
+	/**
+	** Resident objects. This may be read without holding the lock.
+	*/
+	final protected ConcurrentMap<Ref, Resident> residents = new ConcurrentHashMap<Ref, Resident>();
+
+	/**
+	** Resident objects, in the order they are to be considered for eviction.
+	** This may contain objects that have been {@linkplain Resident#gone
+	** dropped} since they were added, which are skipped.
+	*/
+	final protected Queue<Resident> queue = new LinkedList<Resident>();
+
+	/**
+	** Create a new manager with the given bounds. Use {@link Integer#MAX_VALUE}
+	** or {@link Long#MAX_VALUE} to not bound the respective quantity.
+	**
+	** @param items Maximum number of nodes and sets to keep resident
+	** @param size Maximum estimated size of the nodes and sets to keep
+	**        resident, in bytes
+	** @throws IllegalArgumentException if either bound is not positive
+	*/
+	public ResidencyManager(int items, long size) {
+		if (items < 1 || size < 1) {
+			throw new IllegalArgumentException("Bounds must be positive: " + items + ", " + size);
+		}
+		max_items = items;
+		max_bytes = size;
+	}
+
+	/**
+	** Estimate the memory used by the given node, not including its subnodes.
+	*/
+	protected long estimateBytes(SkeletonBTreeMap<?, ?>.SkeletonNode node) {
+		return NODE_BYTES + (long)node.nodeSize() * ENTRY_BYTES;
+	}
+
+	/**
+	** Estimate the memory used by the given set.
+	*/
+	protected long estimateBytes(SkeletonBTreeSet<?> set) {
+		return NODE_BYTES + (long)set.size() * ENTRY_BYTES;
+	}
+
+	/**
+	** Mark the given node as recently used, registering it if necessary,
+	** in which case old objects are then evicted until the bounds are met.
+	**
+	** @param tree The tree the node belongs to
+	** @param node The node
+	*/
+	public <K> void touch(SkeletonBTreeMap<K, ?> tree, SkeletonBTreeMap<K, ?>.SkeletonNode node) {
+		Ref ref = new Ref(node);
+		Resident res = residents.get(ref);
+		if (res != null) {
+			res.used = true;
+			return;
+		}
+		register(new NodeResident<K>(ref, tree, node, estimateBytes(node)));
+	}
+
+	/**
+	** Mark the given set as recently used, registering it if necessary,
+	** in which case old objects are then evicted until the bounds are met.
+	**
+	** @param tree The tree that the set is a value of
+	** @param key The key for the set in the tree
+	** @param set The set
+	*/
+	public <K> void touchValue(SkeletonBTreeMap<K, ?> tree, K key, SkeletonBTreeSet<?> set) {
+		Ref ref = new Ref(set);
+		Resident res = residents.get(ref);
+		if (res != null) {
+			res.used = true;
+			return;
+		}
+		register(new ValueResident<K>(ref, tree, key, set, estimateBytes(set)));
+	}
+
+	protected synchronized void register(Resident res) {
+		if (residents.putIfAbsent(res.ref, res) != null) { return; }
+		queue.add(res);
+		bytes += res.bytes;
+		trim();
+	}
+
+	/**
+	** Forget about a resident object, without evicting it.
+	*/
+	protected synchronized void drop(Resident res) {
+		if (res.gone) { return; }
+		res.gone = true;
+		residents.remove(res.ref);
+		bytes -= res.bytes;
+	}
+
+	/**
+	** Evict old objects until the bounds are met. Objects which cannot be
+	** evicted are just forgotten.
+	*/
+	public synchronized void trim() {
+		// give each object at most one second chance per call
+		int passes = queue.size();
+		while ((residents.size() > max_items || bytes > max_bytes) && !queue.isEmpty()) {
+			Resident res = queue.remove();
+			if (res.gone) { continue; }
+			if ((res.used || res.isBusy()) && passes-- > 0) {
+				res.used = false;
+				queue.add(res);
+				continue;
+			}
+			drop(res);
+			List<Object> gone = new ArrayList<Object>();
+			if (res.evict(gone)) {
+				// subnodes and values were ghosted along with the node
+				for (Object o: gone) {
+					Resident sub = residents.get(new Ref(o));
+					if (sub != null) { drop(sub); }
+				}
+			}
+		}
+	}
+
+	/**
+	** Forget about all resident objects, without evicting them.
+	*/
+	public synchronized void clear() {
+		for (Resident res: residents.values()) { res.gone = true; }
+		residents.clear();
+		queue.clear();
+		bytes = 0;
+	}
+
+	/**
+	** @return Number of resident objects
+	*/
+	public int size() {
+		return residents.size();
+	}
+
+	/**
+	** @return Estimated size of all resident objects, in bytes
+	*/
+	public synchronized long estimatedBytes() {
+		return bytes;
+	}
+
+
+	/************************************************************************
+	** Identity reference to a resident object, since {@link SkeletonBTreeSet}
+	** compares by value.
+	*/
+	final protected static class Ref {
+
+		final Object obj;
+
+		protected Ref(Object o) {
+			obj = o;
+		}
+
+		@Override public boolean equals(Object o) {
+			return o instanceof Ref && ((Ref)o).obj == obj;
+		}
+
+		@Override public int hashCode() {
+			return System.identityHashCode(obj);
+		}
+
+	}
+
+	/************************************************************************
+	** A resident object.
+	*/
+	abstract protected static class Resident {
+
+		final Ref ref;
+		final long bytes;
+
+		/**
+		** Whether the object was used since it was last passed over for
+		** eviction. This starts off set, so that an object which has just been
+		** registered is not evicted before its caller gets to use it.
+		*/
+		volatile boolean used = true;
+
+		/**
+		** Whether the object has been dropped from the manager.
+		*/
+		boolean gone;
+
+		protected Resident(Ref r, long b) {
+			ref = r;
+			bytes = b;
+		}
+
+		/**
+		** Whether the object cannot be evicted right now, because another
+		** thread is using it.
+		*/
+		abstract protected boolean isBusy();
+
+		/**
+		** Ghost the object.
+		**
+		** @param gone Collection to add any other objects to, that were also
+		**        ghosted as a result
+		** @return Whether the object was ghosted
+		*/
+		abstract protected boolean evict(List<Object> gone);
+
+	}
+
+	protected static class NodeResident<K> extends Resident {
+
+		final SkeletonBTreeMap<K, ?> tree;
+		final SkeletonBTreeMap<K, ?>.SkeletonNode node;
+
+		protected NodeResident(Ref r, SkeletonBTreeMap<K, ?> t, SkeletonBTreeMap<K, ?>.SkeletonNode n, long b) {
+			super(r, b);
+			tree = t;
+			node = n;
+		}
+
+		@Override protected boolean isBusy() {
+			return tree.isInUse();
+		}
+
+		@Override protected boolean evict(List<Object> gone) {
+			return ((SkeletonBTreeMap<K, Object>)tree).evict((SkeletonBTreeMap<K, Object>.SkeletonNode)node, gone);
+		}
+
+	}
+
+	protected static class ValueResident<K> extends Resident {
+
+		final SkeletonBTreeMap<K, ?> tree;
+		final K key;
+		final SkeletonBTreeSet<?> set;
+
+		protected ValueResident(Ref r, SkeletonBTreeMap<K, ?> t, K k, SkeletonBTreeSet<?> s, long b) {
+			super(r, b);
+			tree = t;
+			key = k;
+			set = s;
+		}
+
+		@Override protected boolean isBusy() {
+			return tree.isInUse();
+		}
+
+		@Override protected boolean evict(List<Object> gone) {
+			return set.isClean() && tree.evictValue(key, set);
+		}
+
+	}
+
+}
@@ -0,0 +1,721 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import plugins.Library.io.DataFormatException;
+import plugins.Library.io.serial.IterableSerialiser;
+import plugins.Library.io.serial.MapSerialiser;
+import plugins.Library.io.serial.Translator;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.NoSuchElementException;
+
+/**
+** A B+-tree variant of {@link SkeletonBTreeMap}. Entries are kept only in
+** leaf pages, which are {@link SortedArrayMap}s holding between {@link
+** #LEAF_MIN} and {@link #LEAF_MAX} entries each. The pages are indexed by a
+** separator tree, a {@link SkeletonBTreeMap} from the lowest key of each page
+** (or a key lower than it) to the page itself; so its nodes carry only
+** separator keys and page pointers, and can fit many more of them than the
+** nodes of a B-tree whose entries hold the values too.
+**
+** The point of this is to make range and prefix scans sequential: iterating
+** over a range just walks from one page to the next, without going back up
+** and down the tree for each entry. The "sibling link" from a page to the
+** next one is the next separator in the tree, which is found using {@link
+** BTreeMap#higherKey(Object)}; this only touches the separator nodes that are
+** already on the path to the current page. We do not store the link in the
+** page itself, since pages are immutable once pushed to a content-addressed
+** store, and splitting a page would then mean re-pushing its neighbour too.
+**
+** Like {@link SkeletonBTreeMap}, any method that needs to read data which is
+** not loaded will throw {@link DataNotLoadedException}; use {@link
+** #inflate(Object)} or {@link #inflate(Object, Object)} to load the parts of
+** the structure needed for a key or a range.
+**
+** TODO NORM implement {@link SkeletonMap}; at the moment {@link
+** Skeleton#getSerialiser()} cannot be implemented as declared there, since
+** the values are serialised a page at a time rather than one by one.
+*/
+public class SkeletonBPlusTreeMap<K, V> extends AbstractMap<K, V>
+implements Map<K, V>, SortedMap<K, V> {
+
+	/**
+	** Minimum number of entries in each leaf page, except when there is only
+	** one page.
+	*/
+	final public int LEAF_MIN;
+
+	/**
+	** Maximum number of entries in each leaf page.
+	*/
+	final public int LEAF_MAX;
+
+	final protected Comparator<? super K> comparator;
+
+	/**
+	** Separator tree, mapping the lowest key of each leaf page to the page.
+	**
+	** Separators may be lower than the lowest key of their page (eg. after
+	** that key is removed) but never higher; so the page for any key is the
+	** one mapped to by the greatest separator not greater than the key, or
+	** the first page if there is no such separator.
+	*/
+	final protected SkeletonBTreeMap<K, SortedArrayMap<K, V>> index;
+
+	/**
+	** Number of entries currently in the map.
+	*/
+	protected int size = 0;
+
+	/**
+	** Creates a new empty map, sorted according to the given comparator.
+	**
+	** @param cmp The comparator for the tree, or {@code null} to use the keys'
+	**            {@link Comparable natural} ordering.
+	** @param node_min Minimum number of subnodes in each separator node
+	** @param leaf_min Minimum number of entries in each leaf page
+	*/
+	public SkeletonBPlusTreeMap(Comparator<? super K> cmp, int node_min, int leaf_min) {
+		this(cmp, leaf_min, new SkeletonBTreeMap<K, SortedArrayMap<K, V>>(cmp, node_min));
+	}
+
+	/**
+	** Creates a new empty map, sorted according to the keys' {@link Comparable
+	** natural} ordering.
+	**
+	** @param node_min Minimum number of subnodes in each separator node
+	** @param leaf_min Minimum number of entries in each leaf page
+	*/
+	public SkeletonBPlusTreeMap(int node_min, int leaf_min) {
+		this(null, node_min, leaf_min);
+	}
+
+	protected SkeletonBPlusTreeMap(Comparator<? super K> cmp, int leaf_min, SkeletonBTreeMap<K, SortedArrayMap<K, V>> idx) {
+		if (leaf_min < 1) {
+			throw new IllegalArgumentException("The minimum number of entries in a leaf must be set to at least 1");
+		}
+		comparator = cmp;
+		LEAF_MIN = leaf_min;
+		LEAF_MAX = leaf_min<<1;
+		index = idx;
+	}
+
+	public void setSerialiser(IterableSerialiser<SkeletonBTreeMap<K, SortedArrayMap<K, V>>.SkeletonNode> n, MapSerialiser<K, SortedArrayMap<K, V>> v) {
+		index.setSerialiser(n, v);
+	}
+
+	public void setResidencyManager(ResidencyManager r) {
+		index.setResidencyManager(r);
+	}
+
+	/**
+	** Returns the separator of the leaf page that the given key belongs in, or
+	** {@code null} if the map is empty.
+	*/
+	protected K leafKey(K key) {
+		if (index.isEmpty()) { return null; }
+		K sep = index.floorKey(key);
+		return (sep == null)? index.firstKey(): sep;
+	}
+
+	protected int compare(K key1, K key2) {
+		return index.compare(key1, key2);
+	}
+
+	/**
+	** Split the given leaf page into two halves, and put both halves into the
+	** separator tree.
+	*/
+	protected void split(K sep, SortedArrayMap<K, V> leaf) {
+		Iterator<K> it = leaf.keySet().iterator();
+		for (int i=leaf.size()>>1; i>0; --i) { it.next(); }
+		K mid = it.next();
+
+		SortedMap<K, V> tail = leaf.tailMap(mid);
+		SortedArrayMap<K, V> right = new SortedArrayMap<K, V>(comparator, LEAF_MAX);
+		right.putAll(tail);
+		tail.clear();
+
+		index.put(sep, leaf);
+		index.put(mid, right);
+	}
+
+	/**
+	** Merge two adjacent leaf pages, then split the result again if it is too
+	** big. The separator for the right page must already have been removed.
+	*/
+	protected void merge(K sep, SortedArrayMap<K, V> leaf, SortedArrayMap<K, V> right) {
+		leaf.putAll(right);
+		if (leaf.size() > LEAF_MAX) {
+			split(sep, leaf);
+		} else {
+			index.put(sep, leaf);
+		}
+	}
+
+	/**
+	** Returns an iterable over the entries with keys in the given range, in
+	** ascending order. This walks the leaf pages one after the other, and only
+	** ever touches the pages covering the range.
+	**
+	** The iterator throws {@link DataNotLoadedException} if it reaches a page
+	** (or separator node) that is not loaded. It is left unchanged when this
+	** happens, so it can be resumed after the data is loaded. Alternatively,
+	** use {@link #inflate(Object, Object)} to load the range beforehand.
+	**
+	** @param lo Lowest key (inclusive), or {@code null} for no lower bound
+	** @param hi Highest key (exclusive), or {@code null} for no upper bound
+	*/
+	public Iterable<Map.Entry<K, V>> range(final K lo, final K hi) {
+		return new Iterable<Map.Entry<K, V>>() {
+			/*@Override**/ public Iterator<Map.Entry<K, V>> iterator() {
+				return new EntryIterator(lo, hi);
+			}
+		};
+	}
+
+	/*========================================================================
+	  public interface Skeleton
+	 ========================================================================*/
+
+	public boolean isLive() {
+		return index.isLive();
+	}
+
+	public boolean isBare() {
+		return index.isBare();
+	}
+
+	public void deflate() throws TaskAbortException {
+		index.deflate();
+	}
+
+	public void inflate() throws TaskAbortException {
+		index.inflate();
+	}
+
+	/**
+	** Inflate the separator nodes and the leaf page needed to look up the
+	** given key.
+	*/
+	public void inflate(K key) throws TaskAbortException {
+		for (;;) {
+			try {
+				get(key);
+				break;
+			} catch (DataNotLoadedException e) {
+				e.getParent().inflate(e.getKey());
+			}
+		}
+	}
+
+	/**
+	** Inflate the separator nodes and the leaf pages needed to iterate over
+	** the given range. See {@link #range(Object, Object)}.
+	**
+	** @param lo Lowest key (inclusive), or {@code null} for no lower bound
+	** @param hi Highest key (exclusive), or {@code null} for no upper bound
+	*/
+	public void inflate(K lo, K hi) throws TaskAbortException {
+		K sep = null;
+		for (;;) {
+			try {
+				if (sep == null) {
+					sep = (lo == null)? (index.isEmpty()? null: index.firstKey()): leafKey(lo);
+					if (sep == null) { return; }
+				}
+				index.get(sep);
+				K nsep = index.higherKey(sep);
+				if (nsep == null || hi != null && compare(nsep, hi) >= 0) { return; }
+				sep = nsep;
+			} catch (DataNotLoadedException e) {
+				e.getParent().inflate(e.getKey());
+			}
+		}
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
+	}
+
+	@Override public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override public void clear() {
+		index.clear();
+		size = 0;
+	}
+
+	@Override public boolean containsKey(Object k) {
+		K key = (K) k;
+		K sep = leafKey(key);
+		return sep != null && index.get(sep).containsKey(key);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** OPT LOW this descends the separator tree twice, once to find the
+	** separator and once to get the page.
+	*/
+	@Override public V get(Object k) {
+		K key = (K) k;
+		K sep = leafKey(key);
+		return (sep == null)? null: index.get(sep).get(key);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation puts the entry into the appropriate leaf page, then
+	** splits the page if it has overflowed. If the key is lower than every key
+	** in the map, the first page is re-keyed so that its separator remains a
+	** lower bound for it.
+	*/
+	@Override public V put(K key, V value) {
+		if (key == null) { throw new UnsupportedOperationException("Sorry, this BTreeMap implementation can't handle null keys, even if the comparator supports it."); }
+		K sep = leafKey(key);
+		if (sep == null) {
+			SortedArrayMap<K, V> leaf = new SortedArrayMap<K, V>(comparator, LEAF_MAX);
+			leaf.put(key, value);
+			index.put(key, leaf);
+			++size;
+			return null;
+		}
+
+		SortedArrayMap<K, V> leaf = index.get(sep);
+		if (compare(key, sep) < 0) {
+			index.remove(sep);
+			sep = key;
+		}
+
+		int sz = leaf.size();
+		V v = leaf.put(key, value);
+		if (leaf.size() != sz) { ++size; }
+
+		// put the page back even if it did not change size, so that the
+		// separator tree knows its value has changed
+		if (leaf.size() > LEAF_MAX) {
+			split(sep, leaf);
+		} else {
+			index.put(sep, leaf);
+		}
+		return v;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation removes the entry from the appropriate leaf page,
+	** then merges the page with a neighbour if it has underflowed. The
+	** neighbour is retrieved before anything is changed, so if it is not
+	** loaded, this method can just be called again after loading it.
+	*/
+	@Override public V remove(Object k) {
+		K key = (K) k;
+		K sep = leafKey(key);
+		if (sep == null) { return null; }
+
+		SortedArrayMap<K, V> leaf = index.get(sep);
+		if (!leaf.containsKey(key)) { return null; }
+
+		if (leaf.size() > LEAF_MIN || index.size() == 1) {
+			V v = leaf.remove(key);
+			--size;
+			if (leaf.isEmpty()) {
+				index.remove(sep);
+			} else {
+				index.put(sep, leaf);
+			}
+			return v;
+		}
+
+		K lsep, rsep;
+		SortedArrayMap<K, V> lleaf, rleaf;
+		K nsep = index.higherKey(sep);
+		if (nsep == null) {
+			// last page, so merge with the one before it instead
+			lsep = index.lowerKey(sep);
+			lleaf = index.get(lsep);
+			rsep = sep;
+			rleaf = leaf;
+		} else {
+			lsep = sep;
+			lleaf = leaf;
+			rsep = nsep;
+			rleaf = index.get(nsep);
+		}
+
+		index.remove(rsep);
+		V v = leaf.remove(key);
+		--size;
+		merge(lsep, lleaf, rleaf);
+		return v;
+	}
+
+	private Set<Map.Entry<K, V>> entrySet = null;
+	/**
+	** {@inheritDoc}
+	**
+	** Note that changes made through {@link Map.Entry#setValue(Object)} are
+	** not seen by the separator tree, so the page will not be pushed again
+	** unless some other change is made to it.
+	*/
+	@Override public Set<Map.Entry<K, V>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+				@Override public int size() { return SkeletonBPlusTreeMap.this.size(); }
+
+				@Override public Iterator<Map.Entry<K, V>> iterator() {
+					return new EntryIterator(null, null);
+				}
+
+				@Override public void clear() {
+					SkeletonBPlusTreeMap.this.clear();
+				}
+
+			};
+		}
+		return entrySet;
+	}
+
+	/*========================================================================
+	  public interface SortedMap
+	 ========================================================================*/
+
+	/*@Override**/ public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/*@Override**/ public K firstKey() {
+		if (index.isEmpty()) { throw new NoSuchElementException(); }
+		return index.get(index.firstKey()).firstKey();
+	}
+
+	/*@Override**/ public K lastKey() {
+		if (index.isEmpty()) { throw new NoSuchElementException(); }
+		return index.get(index.lastKey()).lastKey();
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** See {@link SubMap} for the cost of the view's operations.
+	*/
+	/*@Override**/ public SortedMap<K, V> headMap(K rkey) {
+		if (rkey == null) { throw new NullPointerException(); }
+		return new SubMap(null, rkey);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** See {@link SubMap} for the cost of the view's operations.
+	*/
+	/*@Override**/ public SortedMap<K, V> tailMap(K lkey) {
+		if (lkey == null) { throw new NullPointerException(); }
+		return new SubMap(lkey, null);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** See {@link SubMap} for the cost of the view's operations.
+	*/
+	/*@Override**/ public SortedMap<K, V> subMap(K lkey, K rkey) {
+		if (lkey == null || rkey == null) { throw new NullPointerException(); }
+		return new SubMap(lkey, rkey);
+	}
+
+	/**
+	** Returns the greatest key in the given range, or {@code null} if there
+	** are no keys in it. This walks back from the page that {@code hi} would
+	** be in, so it only touches the last one or two pages of the range.
+	**
+	** @param lo Lowest key (inclusive), or {@code null} for no lower bound
+	** @param hi Highest key (exclusive), or {@code null} for no upper bound
+	*/
+	protected K lastKeyIn(K lo, K hi) {
+		if (index.isEmpty()) { return null; }
+		K sep = (hi == null)? index.lastKey(): leafKey(hi);
+		while (sep != null) {
+			SortedArrayMap<K, V> leaf = index.get(sep);
+			SortedMap<K, V> head = (hi == null)? leaf: leaf.headMap(hi);
+			if (!head.isEmpty()) {
+				K key = head.lastKey();
+				return (lo == null || compare(key, lo) >= 0)? key: null;
+			}
+			// every key in the pages before this one is lower than sep
+			if (lo != null && compare(sep, lo) <= 0) { return null; }
+			sep = index.lowerKey(sep);
+		}
+		return null;
+	}
+
+
+	/************************************************************************
+	** A view of the entries with keys in a given range, as returned by
+	** {@link #headMap(Object)}, {@link #tailMap(Object)} and {@link
+	** #subMap(Object, Object)}.
+	**
+	** Lookups, {@link #put(Object, Object) put()}, {@link #remove(Object)
+	** remove()}, {@link #firstKey()} and {@link #lastKey()} cost about as much
+	** as they do on the whole map. {@link #size()} has to walk the pages of
+	** the range, so it takes time linear in the size of the range.
+	**
+	** Like the rest of the map, this throws {@link DataNotLoadedException} if
+	** it needs data that is not loaded; use {@link
+	** SkeletonBPlusTreeMap#inflate(Object, Object)} to load the range first.
+	*/
+	protected class SubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+		/**
+		** Lowest key (inclusive), or {@code null} for no lower bound.
+		*/
+		final K lo;
+
+		/**
+		** Highest key (exclusive), or {@code null} for no upper bound.
+		*/
+		final K hi;
+
+		protected SubMap(K lo, K hi) {
+			if (lo != null && hi != null && compare(lo, hi) > 0) {
+				throw new IllegalArgumentException("Lower bound is greater than upper bound: " + lo + ", " + hi);
+			}
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected boolean inRange(K key) {
+			return (lo == null || compare(key, lo) >= 0) && (hi == null || compare(key, hi) < 0);
+		}
+
+		/**
+		** Check that the given key is a valid bound for a view of this view.
+		*/
+		protected void checkBound(K key) {
+			if (key == null) { throw new NullPointerException(); }
+			if (lo != null && compare(key, lo) < 0 || hi != null && compare(key, hi) > 0) {
+				throw new IllegalArgumentException("Key out of range: " + key);
+			}
+		}
+
+		@Override public int size() {
+			int n = 0;
+			for (Iterator<Map.Entry<K, V>> it = new EntryIterator(lo, hi); it.hasNext(); it.next()) { ++n; }
+			return n;
+		}
+
+		@Override public boolean isEmpty() {
+			return !new EntryIterator(lo, hi).hasNext();
+		}
+
+		@Override public boolean containsKey(Object k) {
+			return inRange((K)k) && SkeletonBPlusTreeMap.this.containsKey(k);
+		}
+
+		@Override public V get(Object k) {
+			return inRange((K)k)? SkeletonBPlusTreeMap.this.get(k): null;
+		}
+
+		@Override public V put(K key, V value) {
+			if (!inRange(key)) { throw new IllegalArgumentException("Key out of range: " + key); }
+			return SkeletonBPlusTreeMap.this.put(key, value);
+		}
+
+		@Override public V remove(Object k) {
+			return inRange((K)k)? SkeletonBPlusTreeMap.this.remove(k): null;
+		}
+
+		private Set<Map.Entry<K, V>> entrySet = null;
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			if (entrySet == null) {
+				entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+					@Override public int size() { return SubMap.this.size(); }
+
+					@Override public boolean isEmpty() { return SubMap.this.isEmpty(); }
+
+					@Override public Iterator<Map.Entry<K, V>> iterator() {
+						return new EntryIterator(lo, hi);
+					}
+
+				};
+			}
+			return entrySet;
+		}
+
+		/*@Override**/ public Comparator<? super K> comparator() {
+			return comparator;
+		}
+
+		/*@Override**/ public K firstKey() {
+			Iterator<Map.Entry<K, V>> it = new EntryIterator(lo, hi);
+			if (!it.hasNext()) { throw new NoSuchElementException(); }
+			return it.next().getKey();
+		}
+
+		/*@Override**/ public K lastKey() {
+			K key = lastKeyIn(lo, hi);
+			if (key == null) { throw new NoSuchElementException(); }
+			return key;
+		}
+
+		/*@Override**/ public SortedMap<K, V> headMap(K rkey) {
+			checkBound(rkey);
+			return new SubMap(lo, rkey);
+		}
+
+		/*@Override**/ public SortedMap<K, V> tailMap(K lkey) {
+			checkBound(lkey);
+			return new SubMap(lkey, hi);
+		}
+
+		/*@Override**/ public SortedMap<K, V> subMap(K lkey, K rkey) {
+			checkBound(lkey);
+			checkBound(rkey);
+			return new SubMap(lkey, rkey);
+		}
+
+	}
+
+
+	/************************************************************************
+	** Iterates over a range of entries, walking from each leaf page to the
+	** next. The next page is only fetched from the separator tree once the
+	** current one is exhausted, so a {@link DataNotLoadedException} leaves
+	** the iterator in a consistent state.
+	*/
+	protected class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		final K hi;
+
+		/**
+		** Separator of the current page.
+		*/
+		K sep;
+
+		/**
+		** Iterator over the rest of the current page.
+		*/
+		Iterator<Map.Entry<K, V>> it;
+
+		Map.Entry<K, V> next;
+		Map.Entry<K, V> last;
+		boolean done;
+
+		protected EntryIterator(K lo, K hi) {
+			this.hi = hi;
+			seek(lo);
+		}
+
+		/**
+		** Position the iterator just before the given key.
+		*/
+		protected void seek(K lo) {
+			if (index.isEmpty()) { done = true; return; }
+			sep = (lo == null)? index.firstKey(): leafKey(lo);
+			SortedArrayMap<K, V> leaf = index.get(sep);
+			it = ((lo == null)? leaf: leaf.tailMap(lo)).entrySet().iterator();
+		}
+
+		/*@Override**/ public boolean hasNext() {
+			if (next != null) { return true; }
+			if (done) { return false; }
+			for (;;) {
+				if (it.hasNext()) {
+					Map.Entry<K, V> en = it.next();
+					if (hi != null && compare(en.getKey(), hi) >= 0) { done = true; return false; }
+					next = en;
+					return true;
+				}
+				K nsep = index.higherKey(sep);
+				// don't fetch the next page if it is entirely out of range
+				if (nsep == null || hi != null && compare(nsep, hi) >= 0) { done = true; return false; }
+				SortedArrayMap<K, V> leaf = index.get(nsep);
+				sep = nsep;
+				it = leaf.entrySet().iterator();
+			}
+		}
+
+		/*@Override**/ public Map.Entry<K, V> next() {
+			if (!hasNext()) { throw new NoSuchElementException(); }
+			last = next;
+			next = null;
+			return last;
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** Since removing an entry may merge or split pages, this just removes
+		** the key from the map and then seeks back to where we were, which
+		** takes logarithmic rather than constant time.
+		*/
+		/*@Override**/ public void remove() {
+			if (last == null) { throw new IllegalStateException("Iteration has not yet begun, or the element has already been removed."); }
+			K resume = (next == null)? last.getKey(): next.getKey();
+			SkeletonBPlusTreeMap.this.remove(last.getKey());
+			last = null;
+			next = null;
+			if (!done) { seek(resume); }
+		}
+
+	}
+
+
+	/************************************************************************
+	** {@link Translator} with access to the members of {@link
+	** SkeletonBPlusTreeMap}.
+	**
+	** This implementation serialises the separator tree, along with the
+	** parameters of the leaf pages. The pages themselves are serialised by
+	** the value serialiser of the separator tree.
+	*/
+	public static class TreeTranslator<K, V> implements Translator<SkeletonBPlusTreeMap<K, V>, Map<String, Object>> {
+
+		final SkeletonBTreeMap.TreeTranslator<K, SortedArrayMap<K, V>> trans;
+
+		public TreeTranslator(Translator<K, ?> k, Translator<SkeletonTreeMap<K, SortedArrayMap<K, V>>, ?> m) {
+			trans = new SkeletonBTreeMap.TreeTranslator<K, SortedArrayMap<K, V>>(k, m);
+		}
+
+		/*@Override**/ public Map<String, Object> app(SkeletonBPlusTreeMap<K, V> tree) {
+			Map<String, Object> map = trans.app(tree.index);
+			map.put("leaf_min", tree.LEAF_MIN);
+			map.put("leaf_entries", tree.size);
+			return map;
+		}
+
+		/*@Override**/ public SkeletonBPlusTreeMap<K, V> rev(Map<String, Object> map) throws DataFormatException {
+			try {
+				SkeletonBTreeMap<K, SortedArrayMap<K, V>> idx = trans.rev(map);
+				SkeletonBPlusTreeMap<K, V> tree = new SkeletonBPlusTreeMap<K, V>(idx.comparator(), (Integer)map.get("leaf_min"), idx);
+				tree.size = (Integer)map.get("leaf_entries");
+				return tree;
+			} catch (ClassCastException e) {
+				throw new DataFormatException("Could not build SkeletonBPlusTreeMap from data", e, map, null, null);
+			} catch (NullPointerException e) {
+				throw new DataFormatException("Could not build SkeletonBPlusTreeMap from data", e, map, null, null);
+			}
+		}
+
+	}
+
+}
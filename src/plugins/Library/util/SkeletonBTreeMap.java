@@ -28,9 +28,11 @@ import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.BaseCompositeProgress;
@@ -45,8 +47,11 @@ import java.util.SortedMap;
 import java.util.TreeSet;
 import java.util.TreeMap;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
 import plugins.Library.util.Sorted;
 import plugins.Library.util.concurrent.ObjectProcessor;
+import plugins.Library.util.concurrent.Notifier;
 import plugins.Library.util.concurrent.Executors;
 import plugins.Library.util.event.TrackingSweeper;
 import plugins.Library.util.event.CountingSweeper;
@@ -126,6 +131,72 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	*/
 	protected MapSerialiser<K, V> vsrl;
 
+	/**
+	** Maximum number of nodes that {@link SkeletonNode#inflate()} will give to
+	** {@link #nsrl} at once. This caps the number of concurrent pulls when the
+	** serialiser executes a batch in parallel, as {@link
+	** plugins.Library.io.serial.ParallelSerialiser} does.
+	*/
+	protected int inflate_batch = 0x40;
+
+	public void setInflateBatch(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Batch size must be positive: " + n);
+		}
+		inflate_batch = n;
+	}
+
+	/**
+	** Tracks which nodes of this tree are loaded, and ghosts them back when
+	** memory is needed elsewhere. {@code null} means nodes are only ever
+	** ghosted by {@link #deflate()}.
+	*/
+	protected ResidencyManager residency;
+
+	/**
+	** Whether an {@link #update(SortedSet, SortedSet, SortedMap, Closure)} is
+	** in progress. {@link #residency} must not evict anything during this, as
+	** the update algorithm holds references to nodes that it has yet to visit.
+	*/
+	protected volatile boolean updating;
+
+	/**
+	** Pulls of ghost nodes that are in progress, by the ghost being pulled. A
+	** thread must claim a ghost here before pulling it, so that any other
+	** thread that wants the same node can wait for the pull to finish and use
+	** the node that was attached, rather than finding the ghost still there.
+	**
+	** @see #claimPull(SkeletonNode, GhostNode)
+	** @see #awaitPull(SkeletonNode, Object)
+	*/
+	final protected ConcurrentMap<GhostNode, CountDownLatch> pulling = new ConcurrentHashMap<GhostNode, CountDownLatch>();
+
+	/**
+	** Held for reading by threads that are reading or inflating the tree
+	** (whilst a {@link #residency} manager is set), and for writing whilst the
+	** manager evicts something from it, so that nothing is ghosted from under
+	** a search. Eviction only tries to take it, and leaves the tree alone if
+	** it is in use.
+	*/
+	final protected ReentrantReadWriteLock access = new ReentrantReadWriteLock();
+
+	/**
+	** Whether any thread is reading or inflating the tree.
+	**
+	** @see #access
+	*/
+	public boolean isInUse() {
+		return access.getReadLockCount() > 0;
+	}
+
+	public void setResidencyManager(ResidencyManager r) {
+		residency = r;
+	}
+
+	public ResidencyManager getResidencyManager() {
+		return residency;
+	}
+
 	public void setSerialiser(IterableSerialiser<SkeletonNode> n, MapSerialiser<K, V> v) {
 		if ((nsrl != null || vsrl != null) && !isLive()) {
 			throw new IllegalStateException("Cannot change the serialiser when the structure is not live.");
@@ -157,6 +228,23 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 		protected int ghosts = 0;
 
+		/**
+		** Whether this node is identical to its serialised form, ie. it was
+		** constructed by a {@link NodeTranslator} and has not been modified
+		** since. Any change to the node, or to the metadata of its children,
+		** clears this.
+		*/
+		protected boolean clean;
+
+		/**
+		** The metadata of the {@link GhostNode} this node was pulled from, or
+		** {@code null} if it was not pulled. Whilst the node is {@link #clean},
+		** a ghost with this metadata can be attached in its place without
+		** pushing the node again; see {@link SkeletonBTreeMap#evict(SkeletonNode,
+		** Collection)}.
+		*/
+		protected Object ghost_meta;
+
 		protected SkeletonNode(K lk, K rk, boolean lf, SkeletonTreeMap<K, V> map) {
 			super(lk, rk, lf, map);
 			setSerialiser();
@@ -216,6 +304,30 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 		/*@Override**/ public IterableSerialiser<SkeletonNode> getSerialiser() { return nsrl; }
 
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation also marks the node as no longer {@link #clean}.
+		*/
+		@Override protected void invalidate() {
+			super.invalidate();
+			clean = false;
+			ghost_meta = null;
+		}
+
+		/**
+		** Whether this node and all of its loaded subnodes are {@link #clean}.
+		*/
+		public boolean isClean() {
+			if (!clean) { return false; }
+			if (!isLeaf()) {
+				for (Node n: iterNodes()) {
+					if (!n.isGhost() && !((SkeletonNode)n).isClean()) { return false; }
+				}
+			}
+			return true;
+		}
+
 		/*@Override**/ public boolean isLive() {
 			if (ghosts > 0 || !((SkeletonTreeMap<K, V>)entries).isLive()) { return false; }
 			if (!isLeaf()) {
@@ -269,6 +381,8 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			ghost.parent = this;
 			setChildNode(ghost);
 			++ghosts;
+			// the child was pushed, so its metadata has probably changed
+			invalidate();
 		}
 
 		/**
@@ -278,9 +392,12 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		** place; the skeleton will replace it. It is up to the caller to
 		** ensure that this holds.
 		**
+		** Different children of a node may be attached by different threads at
+		** once, eg. by overlapping inflates, so this is synchronized.
+		**
 		** @param skel The SkeletonNode to attach
 		*/
-		protected void attachSkeleton(SkeletonNode skel) {
+		protected synchronized void attachSkeleton(SkeletonNode skel) {
 			assert(rnodes.get(skel.lkey).isGhost());
 			setChildNode(skel);
 			--ghosts;
@@ -310,17 +427,90 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			assert(isBare());
 		}
 
-		// OPT make this parallel
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation inflates the subtree one level at a time. All the
+		** ghost children of a level are given to {@link #nsrl} together, in
+		** batches of at most {@link #inflate_batch} tasks, so that their pulls
+		** can run in parallel. Children that another thread is already pulling
+		** (eg. when inflating overlapping subtrees) are left to that thread, and
+		** waited for after the rest of the level.
+		*/
 		/*@Override**/ public void inflate() throws TaskAbortException {
-			((SkeletonTreeMap<K, V>)entries).inflate();
-			if (!isLeaf()) {
-				for (Node node: iterNodes()) {
-					inflate(node.lkey, true);
-				}
+			access.readLock().lock();
+			try {
+				inflateLevels();
+			} finally {
+				access.readLock().unlock();
 			}
 			assert(isLive());
 		}
 
+		protected void inflateLevels() throws TaskAbortException {
+			List<SkeletonNode> level = Collections.singletonList(this);
+			while (!level.isEmpty()) {
+				List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+				List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>();
+				List<SkeletonNode> parents = new ArrayList<SkeletonNode>();
+
+				// children whose pulls were claimed by another thread, and their parents
+				List<K> waiting = new ArrayList<K>();
+				List<SkeletonNode> waiting_parents = new ArrayList<SkeletonNode>();
+
+				for (SkeletonNode node: level) {
+					// another thread may be inflating the same node, if the subtrees overlap
+					synchronized (node.entries) {
+						((SkeletonTreeMap<K, V>)node.entries).inflate();
+					}
+					if (node.isLeaf()) { continue; }
+					for (Node child: node.iterNodes()) {
+						if (!child.isGhost()) {
+							next.add((SkeletonNode)child);
+						} else if (claimPull(node, (GhostNode)child)) {
+							tasks.add(new PullTask<SkeletonNode>(child));
+							parents.add(node);
+						} else {
+							waiting.add(child.lkey);
+							waiting_parents.add(node);
+						}
+					}
+				}
+
+				for (int i=0; i<tasks.size(); i+=inflate_batch) {
+					int j = Math.min(i+inflate_batch, tasks.size());
+					try {
+						// pull() may remove tasks that are already in progress elsewhere, so
+						// give it a copy, and check for this below
+						nsrl.pull(new ArrayList<PullTask<SkeletonNode>>(tasks.subList(i, j)));
+						for (int k=i; k<j; ++k) {
+							PullTask<SkeletonNode> task = tasks.get(k);
+							SkeletonNode parent = parents.get(k);
+							GhostNode ghost = (GhostNode)task.meta;
+							try {
+								// if the data is null, the pull was taken by a bulk inflate() or
+								// an update(), which do not claim pulls; see pullClaimed()
+								next.add((task.data == null)? pullClaimed(parent, ghost): postPullTask(task, parent));
+							} catch (DataFormatException e) {
+								throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.getRange(), e);
+							} catch (RuntimeException e) {
+								throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.getRange(), e);
+							}
+						}
+					} finally {
+						for (int k=i; k<j; ++k) { releasePull((GhostNode)tasks.get(k).meta); }
+					}
+				}
+
+				// by now, the other threads have probably finished these
+				for (int k=0; k<waiting.size(); ++k) {
+					next.add(awaitPull(waiting_parents.get(k), waiting.get(k)));
+				}
+
+				level = next;
+			}
+		}
+
 		/*@Override**/ public void inflate(K key) throws TaskAbortException {
 			inflate(key, false);
 		}
@@ -364,22 +554,18 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		*/
 		public void inflate(K key, boolean auto) throws TaskAbortException {
 			if (isLeaf()) { return; }
-			Node node = rnodes.get(key);
-			if (!node.isGhost()) { return; }
+			if (!rnodes.get(key).isGhost()) { return; }
 
-			PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(node);
+			SkeletonNode node;
+			access.readLock().lock();
 			try {
-				nsrl.pull(task);
-				postPullTask(task, this);
-				if (auto) { task.data.inflate(); }
-
-			} catch (TaskCompleteException e) {
-				assert(!node.isGhost());
-			} catch (DataFormatException e) {
-				throw new TaskAbortException("Could not inflate BTreeMap Node " + node.getRange(), e);
-			} catch (RuntimeException e) {
-				throw new TaskAbortException("Could not inflate BTreeMap Node " + node.getRange(), e);
+				node = awaitPull(this, key);
+			} finally {
+				access.readLock().unlock();
 			}
+			// not whilst holding the lock, so that this can evict from this tree
+			if (residency != null) { residency.touch(SkeletonBTreeMap.this, node); }
+			if (auto) { node.inflate(); }
 		}
 
 	}
@@ -454,6 +640,23 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		super(node_min);
 	}
 
+	/**
+	** Creates a new live map, bulk-loaded with the given entries. The nodes
+	** can then be pushed in one go with {@link #deflate()}.
+	**
+	** @see BTreeMap#BTreeMap(Comparator, int, Iterator)
+	*/
+	public SkeletonBTreeMap(Comparator<? super K> cmp, int node_min, Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+		super(cmp, node_min, it);
+	}
+
+	/**
+	** @see BTreeMap#BTreeMap(int, SortedMap)
+	*/
+	public SkeletonBTreeMap(int node_min, SortedMap<K, ? extends V> map) {
+		super(node_min, map);
+	}
+
 	/**
 	** Post-processes a {@link PullTask} and returns the {@link SkeletonNode}
 	** pulled.
@@ -469,9 +672,94 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 
 		parent.attachSkeleton(node);
+		node.ghost_meta = node.clean? ghost.getMeta(): null;
 		return node;
 	}
 
+	/**
+	** Claims the pull of a ghost child of the given parent. If this returns
+	** {@code true}, the caller must pull the ghost and attach the result, and
+	** then call {@link #releasePull(GhostNode)}, even if the pull failed.
+	**
+	** @return Whether the pull was claimed; {@code false} if another thread
+	**         has claimed it, or the ghost is no longer attached to the parent
+	*/
+	protected boolean claimPull(SkeletonNode parent, GhostNode ghost) {
+		if (pulling.putIfAbsent(ghost, new CountDownLatch(1)) != null) { return false; }
+		// the previous owner may have attached the node just before we claimed it
+		if (parent.rnodes.get(ghost.lkey) != ghost) {
+			releasePull(ghost);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	** Releases a pull claimed by {@link #claimPull(SkeletonNode, GhostNode)},
+	** and wakes any threads waiting for it.
+	*/
+	protected void releasePull(GhostNode ghost) {
+		CountDownLatch latch = pulling.remove(ghost);
+		if (latch != null) { latch.countDown(); }
+	}
+
+	/**
+	** Returns the child of the given parent to the immediate right of the
+	** given key, pulling and attaching it first if it is a ghost. If another
+	** thread is already pulling it, this waits for that pull to finish; if the
+	** node was not attached by the end of it (eg. the pull failed), this pulls
+	** it itself.
+	*/
+	protected SkeletonNode awaitPull(SkeletonNode parent, K key) throws TaskAbortException {
+		for (;;) {
+			Node node = parent.rnodes.get(key);
+			if (!node.isGhost()) { return (SkeletonNode)node; }
+			GhostNode ghost = (GhostNode)node;
+			if (claimPull(parent, ghost)) {
+				try {
+					return pullClaimed(parent, ghost);
+				} finally {
+					releasePull(ghost);
+				}
+			}
+			CountDownLatch latch = pulling.get(ghost);
+			if (latch == null) { continue; }
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				throw new TaskAbortException("Interrupted whilst waiting for BTreeMap Node " + ghost.getRange(), e, true);
+			}
+		}
+	}
+
+	/**
+	** Pulls a ghost whose pull the current thread has claimed, and attaches
+	** it to the given parent.
+	**
+	** Bulk {@link #inflate()} and {@link #update(SortedSet, SortedSet,
+	** SortedMap, Closure)} pull through a {@link ScheduledSerialiser} and do
+	** not claim their pulls; if one of these is pulling the same node, this
+	** waits for that to complete, and fails if it was not attached by then.
+	*/
+	protected SkeletonNode pullClaimed(SkeletonNode parent, GhostNode ghost) throws TaskAbortException {
+		PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(ghost);
+		try {
+			nsrl.pull(task);
+			return postPullTask(task, parent);
+
+		} catch (TaskCompleteException e) {
+			Node node = parent.rnodes.get(ghost.lkey);
+			if (node.isGhost()) {
+				throw new TaskAbortException("BTreeMap Node " + ghost.getRange() + " was pulled elsewhere but not attached", e, true);
+			}
+			return (SkeletonNode)node;
+		} catch (DataFormatException e) {
+			throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.getRange(), e);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.getRange(), e);
+		}
+	}
+
 	/**
 	** Post-processes a {@link PushTask} and returns the {@link GhostNode}
 	** pushed.
@@ -489,10 +777,210 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		return new SkeletonNode(lk, rk, lf);
 	}
 
+	/**
+	** Ghost the given node, by attaching a {@link GhostNode} with the metadata
+	** it was pulled from in its place. Since the node has not changed since it was
+	** pulled, there is no need to push it again.
+	**
+	** This does nothing if the node is the root, is no longer attached to the
+	** tree, or if it or any of its loaded subnodes are not {@linkplain
+	** SkeletonNode#isClean() clean}, or if an update is in progress, or if
+	** another thread is reading or inflating the tree (see {@link #access}).
+	**
+	** @param node The node to ghost
+	** @param gone A collection to add the node and all of its loaded subnodes
+	**        to, if it was ghosted, along with their loaded values; may be
+	**        {@code null}
+	** @return Whether the node was ghosted
+	*/
+	protected synchronized boolean evict(SkeletonNode node, Collection<Object> gone) {
+		if (updating || node == root || node.ghost_meta == null) { return false; }
+		if (!access.writeLock().tryLock()) { return false; }
+		try {
+			return evictLocked(node, gone);
+		} finally {
+			access.writeLock().unlock();
+		}
+	}
+
+	protected boolean evictLocked(SkeletonNode node, Collection<Object> gone) {
+		if (!node.isClean()) { return false; }
+		SkeletonNode parent = findParent(node);
+		if (parent == null) { return false; }
+
+		if (gone != null) {
+			List<SkeletonNode> level = Collections.singletonList(node);
+			while (!level.isEmpty()) {
+				List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+				for (SkeletonNode n: level) {
+					gone.add(n);
+					for (SkeletonTreeMap.SkeletonValue<V> v: ((SkeletonTreeMap<K, V>)n.entries).skmap.values()) {
+						if (v.isLoaded && v.data != null) { gone.add(v.data); }
+					}
+					if (n.isLeaf()) { continue; }
+					for (Node c: n.iterNodes()) {
+						if (!c.isGhost()) { next.add((SkeletonNode)c); }
+					}
+				}
+				level = next;
+			}
+		}
+
+		reattachGhost(parent, node);
+		return true;
+	}
+
+	/**
+	** Attach a ghost with the metadata that the given clean node was pulled
+	** from in its place, without marking the parent as modified.
+	*/
+	protected void reattachGhost(SkeletonNode parent, SkeletonNode node) {
+		// don't use attachGhost(), since that marks the parent as modified. also,
+		// use a new GhostNode rather than the one the node was pulled from, since
+		// the serialiser's ProgressTracker will remember that one as completed
+		GhostNode ghost = node.makeGhost(node.ghost_meta);
+		ghost.parent = parent;
+		parent.setChildNode(ghost);
+		++parent.ghosts;
+	}
+
+	/**
+	** Ghost the value for the given key back to the metadata it was pulled
+	** with, without pushing it. This does nothing unless the node holding the
+	** key is loaded and {@linkplain SkeletonNode#clean clean}, the value
+	** for the key is (by identity) the given object, no update is in
+	** progress, and no other thread is reading or inflating the tree. It is up
+	** to the caller to make sure that the value itself has not been changed.
+	**
+	** @param key The key
+	** @param value The value expected to be loaded for the key
+	** @return Whether the value was ghosted
+	*/
+	protected synchronized boolean evictValue(K key, Object value) {
+		if (updating) { return false; }
+		if (!access.writeLock().tryLock()) { return false; }
+		try {
+			return evictValueLocked(key, value);
+		} finally {
+			access.writeLock().unlock();
+		}
+	}
+
+	protected boolean evictValueLocked(K key, Object value) {
+		Node node = root;
+		while (!node.entries.containsKey(key)) {
+			if (node.isLeaf()) { return false; }
+			node = node.selectNode(key);
+			if (node.isGhost()) { return false; }
+		}
+		if (!((SkeletonNode)node).clean) { return false; }
+		return ((SkeletonTreeMap<K, V>)node.entries).unload(key, value);
+	}
+
+	/**
+	** Find the parent of the given node, using only nodes that are already
+	** loaded.
+	**
+	** @return The parent, or {@code null} if the node is not attached to
+	**         the tree (or is the root).
+	*/
+	protected SkeletonNode findParent(SkeletonNode node) {
+		if (node.entries.isEmpty()) { return null; }
+		K key = node.entries.firstKey();
+		SkeletonNode parent = (SkeletonNode)root;
+		for (;;) {
+			if (parent.isLeaf()) { return null; }
+			Node child = parent.selectNode(key);
+			if (child == node) { return parent; }
+			if (child == null || child.isGhost()) { return null; }
+			parent = (SkeletonNode)child;
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If a {@link #residency} manager is set, this also marks the nodes that
+	** were visited as recently used.
+	*/
+	@Override public V get(Object k) {
+		ResidencyManager r = residency;
+		if (r == null) { return super.get(k); }
+
+		V v;
+		K key = (K)k;
+		List<SkeletonNode> path = new ArrayList<SkeletonNode>();
+		access.readLock().lock();
+		try {
+			v = super.get(k);
+			Node node = root;
+			while (node != null && !node.isGhost() && !node.isLeaf()) {
+				node = node.selectNode(key);
+				if (node != null && !node.isGhost()) { path.add((SkeletonNode)node); }
+			}
+		} finally {
+			access.readLock().unlock();
+		}
+		// touch the deepest first, so that ancestors are evicted last. this is
+		// done without the lock, so that the manager can evict from this tree
+		for (int i=path.size()-1; i>=0; --i) {
+			r.touch(this, path.get(i));
+		}
+		return v;
+	}
+
 	@Override protected void swapKey(K key, Node src, Node dst) {
 		SkeletonTreeMap.swapKey(key, (SkeletonTreeMap<K, V>)src.entries, (SkeletonTreeMap<K, V>)dst.entries);
 	}
 
+	/**
+	** Merges the children of the given node that lie exclusively between the
+	** given keys into the first of them, moving the separators between them
+	** down into the merged node. Unlike {@link BTreeMap.Node#merge(Object,
+	** Iterable, Object)}, this keeps the ghost counts and the parent's child
+	** maps consistent.
+	**
+	** It is '''assumed''' that the children are all loaded, and that both keys
+	** are local to the parent (or its lkey/rkey); it is up to the caller to
+	** ensure that this holds. The merged node may be under- or overfull.
+	**
+	** @param parent The parent of the children to merge
+	** @param lk The {@code lkey} of the first child
+	** @param rk The {@code rkey} of the last child
+	** @return The merged node
+	*/
+	protected SkeletonNode mergeChildren(SkeletonNode parent, K lk, K rk) {
+		Iterator<Node> it = parent.iterNodes(lk, rk).iterator();
+		SkeletonNode node = (SkeletonNode)it.next();
+		assert(node == parent.rnodes.get(lk));
+
+		while (it.hasNext()) {
+			SkeletonNode next = (SkeletonNode)it.next();
+			K sep = next.lkey;
+			assert(compare0(sep, node.rkey));
+
+			parent.lnodes.remove(sep);
+			parent.rnodes.remove(sep);
+			swapKey(sep, parent, node);
+			for (K key: new ArrayList<K>(next.entries.keySet())) {
+				swapKey(key, next, node);
+			}
+			node.rkey = next.rkey;
+
+			if (!node.isLeaf()) {
+				for (Node child: next.iterNodes()) {
+					if (child.isGhost()) { ((GhostNode)child).parent = node; }
+					node.addChildNode(child);
+				}
+			}
+		}
+
+		parent.lnodes.put(rk, node);
+		node.invalidate();
+		parent.invalidate();
+		return node;
+	}
+
 	/*========================================================================
 	  public interface SkeletonMap
 	 ========================================================================*/
@@ -511,10 +999,97 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		return ((SkeletonNode)root).isBare();
 	}
 
+	/**
+	** Whether the tree is unchanged since it was pulled, as far as the loaded
+	** nodes are concerned.
+	**
+	** @see SkeletonNode#isClean()
+	*/
+	public boolean isClean() {
+		return ((SkeletonNode)root).isClean();
+	}
+
 	/*@Override**/ public void deflate() throws TaskAbortException {
 		((SkeletonNode)root).deflate();
 	}
 
+	/**
+	** Makes the tree {@linkplain #isBare() bare}, like {@link #deflate()}, but
+	** only pushes what has changed since it was pulled. Every {@linkplain
+	** SkeletonNode#isClean() clean} node, every value of a clean node, and
+	** every clean B-tree value of a changed node, is ghosted back to the
+	** metadata it was pulled with instead, so data that was only loaded to be
+	** read (eg. by searches) keeps its metadata.
+	** {@link #update(SortedSet, SortedSet, SortedMap, Closure)} needs the
+	** tree to be bare before it starts.
+	*/
+	public void deflateChanged() throws TaskAbortException {
+		// don't ghost anything from under a thread that is reading the tree
+		access.writeLock().lock();
+		try {
+			synchronized (this) { reghost((SkeletonNode)root); }
+		} finally {
+			access.writeLock().unlock();
+		}
+		if (!isBare()) { deflate(); }
+	}
+
+	/**
+	** Ghost the clean loaded subnodes of the given node without pushing them.
+	** The values of a clean node are ghosted too; in a changed node, values
+	** that are clean B-trees are ghosted and any other B-trees are deflated,
+	** so that the node can be pushed afterwards.
+	*/
+	protected void reghost(SkeletonNode node) throws TaskAbortException {
+		if (!node.isLeaf()) {
+			List<SkeletonNode> loaded = new ArrayList<SkeletonNode>();
+			for (Node n: node.iterNodes()) {
+				if (!n.isGhost()) { loaded.add((SkeletonNode)n); }
+			}
+			for (SkeletonNode n: loaded) {
+				if (n.ghost_meta != null && n.isClean()) {
+					reattachGhost(node, n);
+				} else {
+					reghost(n);
+				}
+			}
+		}
+		SkeletonTreeMap<K, V> entries = (SkeletonTreeMap<K, V>)node.entries;
+		for (Map.Entry<K, SkeletonTreeMap.SkeletonValue<V>> en: new ArrayList<Map.Entry<K, SkeletonTreeMap.SkeletonValue<V>>>(entries.skmap.entrySet())) {
+			SkeletonTreeMap.SkeletonValue<V> v = en.getValue();
+			if (!v.isLoaded) { continue; }
+			if (node.clean || v.meta != null && isCleanTree(v.data)) {
+				entries.unload(en.getKey(), v.data);
+			} else {
+				// the node will be pushed, and its values must be bare for that
+				deflateTree(v.data);
+			}
+		}
+	}
+
+	/**
+	** Whether the given value is a B-tree which is unchanged since it was
+	** pulled, such as one that was only loaded to be read.
+	*/
+	protected static boolean isCleanTree(Object o) {
+		if (o instanceof SkeletonBTreeSet) { return ((SkeletonBTreeSet<?>)o).isClean(); }
+		if (o instanceof SkeletonBTreeMap) { return ((SkeletonBTreeMap<?, ?>)o).isClean(); }
+		return false;
+	}
+
+	/**
+	** Deflate the given value if it is a B-tree that is not yet bare.
+	*/
+	protected static void deflateTree(Object o) throws TaskAbortException {
+		if (o instanceof SkeletonBTreeSet) {
+			SkeletonBTreeSet<?> tree = (SkeletonBTreeSet<?>)o;
+			if (!tree.isBare()) { tree.deflate(); }
+		} else if (o instanceof SkeletonBTreeMap) {
+			SkeletonBTreeMap<?, ?> tree = (SkeletonBTreeMap<?, ?>)o;
+			if (!tree.isBare()) { tree.deflate(); }
+		}
+	}
+
 	// TODO NORM tidy this; this should proboably go in a serialiser
 	// and then we will access the Progress of a submap with a task whose
 	// metadata is (lkey, rkey), or something..(PROGRESS)
@@ -560,9 +1135,17 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			new LinkedBlockingQueue<X2<PullTask<SkeletonNode>, TaskAbortException>>(0x10),
 			new HashMap<PullTask<SkeletonNode>, SkeletonNode>()
 		);
+		final Notifier notifier = new Notifier();
+		proc_pull.setNotifier(notifier);
+		// ghosts whose pulls we have claimed but not yet released
+		final Set<GhostNode> claimed = new HashSet<GhostNode>();
+		// ghosts that another thread is pulling, and their parents
+		final List<K> waiting = new ArrayList<K>();
+		final List<SkeletonNode> waiting_parents = new ArrayList<SkeletonNode>();
 		//System.out.println("Using scheduler");
 		//int DEBUG_pushed = 0, DEBUG_popped = 0;
 
+		access.readLock().lock();
 		try {
 			nodequeue.add((SkeletonNode)root);
 
@@ -588,8 +1171,9 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						}
 						// retrieve the inflated SkeletonNode and add it to the queue...
 						GhostNode ghost = (GhostNode)task.meta;
-						// THREAD race condition here... if another thread has inflated the task
+						// THREAD race condition here... if an update() has inflated the task
 						// but not yet attached the inflated node to the tree, the assertion fails.
+						// other inflates claim their pulls, so they cannot get here.
 						// could check to see if the Progress for the Task still exists, but the
 						// performance of this depends on the GC freeing weak referents quickly...
 						assert(!parent.rnodes.get(ghost.lkey).isGhost());
@@ -598,6 +1182,9 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						SkeletonNode node = postPullTask(task, parent);
 						nodequeue.add(node);
 					}
+					// only release the claim once the node is attached
+					claimed.remove(task.meta);
+					releasePull((GhostNode)task.meta);
 					//++DEBUG_popped;
 				}
 
@@ -605,7 +1192,9 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				while (!nodequeue.isEmpty()) {
 					SkeletonNode node = nodequeue.remove();
 					// TODO HIGH this needs to be asynchronous
-					((SkeletonTreeMap<K, V>)node.entries).inflate(); // SUBMAP here
+					synchronized (node.entries) {
+						((SkeletonTreeMap<K, V>)node.entries).inflate(); // SUBMAP here
+					}
 
 					if (node.isLeaf()) { continue; }
 					for (Node next: node.iterNodes()) { // SUBMAP here
@@ -614,6 +1203,14 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 							if (!skel.isLive()) { nodequeue.add(skel); }
 							continue;
 						}
+						if (!claimPull(node, (GhostNode)next)) {
+							// another thread is pulling it. wait for that below, once we hold
+							// no claims, since the other thread may be waiting for one of ours
+							waiting.add(next.lkey);
+							waiting_parents.add(node);
+							continue;
+						}
+						claimed.add((GhostNode)next);
 						PullTask<SkeletonNode> task = new PullTask<SkeletonNode>((GhostNode)next);
 						if (ids != null) { ids.put(task, ntracker); }
 						ObjectProcessor.submitSafe(proc_pull, task, node);
@@ -621,11 +1218,18 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					}
 				}
 
-				Thread.sleep(0x40); // FIXME HIGH
-				// we really should put this higher, but BIndexTest tries to inflate a
-				// of trees in serial and with a 1 second-wait between each, this would
-				// take ages
-			} while (proc_pull.hasPending());
+				// wait for a pull to complete. this returns immediately if any have
+				// completed since we last drained proc_pull, so none are missed
+				if (proc_pull.hasPending()) {
+					notifier.waitUpdate(0x400);
+				} else {
+					for (int k=0; k<waiting.size(); ++k) {
+						nodequeue.add(awaitPull(waiting_parents.get(k), waiting.get(k)));
+					}
+					waiting.clear();
+					waiting_parents.clear();
+				}
+			} while (proc_pull.hasPending() || !nodequeue.isEmpty());
 
 			pr_inf.setEstimate(ProgressParts.TOTAL_FINALIZED);
 
@@ -635,6 +1239,8 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			throw new TaskAbortException("interrupted", e);
 		} finally {
 			proc_pull.close();
+			for (GhostNode ghost: claimed) { releasePull(ghost); }
+			access.readLock().unlock();
 			//System.out.println("pushed: " + DEBUG_pushed + "; popped: " + DEBUG_popped);
 			//assert(DEBUG_pushed == DEBUG_popped);
 		}
@@ -660,6 +1266,34 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 	}
 
+	/**
+	** Inflate the nodes and values needed to iterate over the given range, so
+	** that {@link #range(Object, Object)} will not throw {@link
+	** DataNotLoadedException}. Only the nodes whose ranges overlap the given
+	** range are pulled, so this costs about as much as a few calls to {@link
+	** #inflate(Object)}, rather than a full {@link #inflate()}.
+	**
+	** @param lo Lowest key (inclusive), or {@code null} for no lower bound
+	** @param hi Highest key (exclusive), or {@code null} for no upper bound
+	*/
+	public void inflate(K lo, K hi) throws TaskAbortException {
+		Iterator<Map.Entry<K, V>> it = range(lo, hi).iterator();
+		Map.Entry<K, V> en = null;
+		for (;;) {
+			try {
+				// retry the value of the last entry, in case that was not loaded
+				if (en != null) { en.getValue(); }
+				while (it.hasNext()) {
+					en = it.next();
+					en.getValue();
+				}
+				break;
+			} catch (DataNotLoadedException e) {
+				e.getParent().inflate(e.getKey());
+			}
+		}
+	}
+
 	/**
 	** @param putmap Entries to insert into this map
 	** @param remkey Keys to remove from this map
@@ -693,9 +1327,15 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	** Currently, this method assumes that the root.isBare(). TODO NORM enforce
 	** this..
 	**
-	** Note: {@code remkey} is not implemented yet.
+	** Removals are batched in the same way as puts; only the nodes on the
+	** paths to the affected keys are pulled and pushed back. A key removed
+	** from an internal node is moved down into the merge of its two adjacent
+	** children, until it reaches a leaf. Nodes left underfull are kept loaded
+	** until their parent has been through all its children, and then merged
+	** with (or redistributed into) a sibling; see {@code SplitNode}.
 	**
-	** @throws UnsupportedOperationException if {@code remkey} is not empty
+	** @throws IllegalArgumentException if a key is in both {@code putkey}
+	**         and {@code remkey}
 	*/
 	protected <X extends Exception> void update(
 		SortedSet<K> putkey, SortedSet<K> remkey,
@@ -711,9 +1351,15 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			assert(putmap == null);
 		}
 
-		if (remkey != null && !remkey.isEmpty()) {
-			throw new UnsupportedOperationException("SkeletonBTreeMap: update() currently only supports merge operations");
+		if (remkey == null) {
+			remkey = new TreeSet<K>(comparator);
 		}
+		for (K key: remkey) {
+			if (putkey.contains(key)) {
+				throw new IllegalArgumentException("SkeletonBTreeMap: update() cannot both put and remove the same key: " + key);
+			}
+		}
+		if (putkey.isEmpty() && remkey.isEmpty()) { return; }
 
 		/*
 		** The code below might seem confusing at first, because the action of
@@ -789,11 +1435,13 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		class DeflateNode extends TrackingSweeper<K, SortedSet<K>> implements Runnable, SafeClosure<Map.Entry<K, V>> {
 
 			final SkeletonNode node;
+			final SkeletonNode parent;
 			final CountingSweeper<SkeletonNode> parNClo;
 
-			protected DeflateNode(SkeletonNode n, CountingSweeper<SkeletonNode> pnc) {
+			protected DeflateNode(SkeletonNode n, SkeletonNode p, CountingSweeper<SkeletonNode> pnc) {
 				super(true, true, new TreeSet<K>(), null);
 				parNClo = pnc;
+				parent = p;
 				node = n;
 			}
 
@@ -802,8 +1450,17 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			** happens after all the node's local values have been obtained,
 			** '''and''' the node has passed through SplitNode (which closes
 			** this sweeper).
+			**
+			** If the node is underfull, or is the only child of its parent, it
+			** is not pushed; it is left loaded for the parent's SplitNode to
+			** merge with a sibling.
 			*/
 			public void run() {
+				if (parNClo != null && (node.nodeSize() < ENT_MIN || parent.nodeSize() == 0)) {
+					parNClo.release(node);
+					if (parNClo.isCleared()) { ((Runnable)parNClo).run(); }
+					return;
+				}
 				// FIXME HIGH make this asynchronous
 				try { ((SkeletonTreeMap<K, V>)node.entries).deflate(); } catch (TaskAbortException e) { throw new RuntimeException(e); }
 				assert(node.isBare());
@@ -838,6 +1495,45 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		// Dummy constant for SplitNode
 		final SortedMap<K, V> EMPTY_SORTEDMAP = new TreeMap<K, V>();
 
+		/**
+		** Deposit for a PullTask. The pulled node is attached to {@link #parent}
+		** before the deposit is invoked.
+		*/
+		abstract class PullDeposit implements SafeClosure<SkeletonNode> {
+
+			final SkeletonNode parent;
+
+			protected PullDeposit(SkeletonNode p) {
+				parent = p;
+			}
+
+		}
+
+		/**
+		** Deposit for a PullTask for the sibling of an underfull node
+		*/
+		class PullSibling extends PullDeposit {
+
+			final CountingSweeper<SkeletonNode> parNClo;
+
+			protected PullSibling(SkeletonNode p, CountingSweeper<SkeletonNode> pnc) {
+				super(p);
+				parNClo = pnc;
+			}
+
+			/**
+			** Inflate the sibling, and re-run the parent's SplitNode once all
+			** the siblings it asked for have been pulled.
+			*/
+			public void invoke(SkeletonNode node) {
+				// FIXME HIGH make this asynchronous
+				try { ((SkeletonTreeMap<K, V>)node.entries).inflate(); } catch (TaskAbortException e) { throw new RuntimeException(e); }
+				parNClo.release(node);
+				if (parNClo.isCleared()) { ((Runnable)parNClo).run(); }
+			}
+
+		}
+
 		/**
 		** Deposit for a PushTask
 		*/
@@ -864,7 +1560,10 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			** after all its children have been deflated.
 			*/
 			public void run() {
-				assert(node.ghosts == node.childCount());
+				if (!node.isLeaf() && !rebalance()) { return; }
+				// a node with no entries left keeps its only child loaded, for
+				// its own parent to merge
+				assert(node.ghosts == node.childCount() || node.nodeSize() == 0 && node.ghosts == 0);
 
 				// All subnodes have been deflated, so nothing else can possibly add keys
 				// to this node.
@@ -883,7 +1582,7 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					// similar stuff as for InflateChildNodes but no merging
 					parent = new SkeletonNode(null, null, false);
 					parent.addAll(EMPTY_SORTEDMAP, Collections.singleton(node));
-					parVClo = new DeflateNode(parent, null);
+					parVClo = new DeflateNode(parent, null, null);
 					parNClo = new SplitNode(parent, null, parVClo, null, null);
 					parNClo.acquire(node);
 					parNClo.close();
@@ -912,7 +1611,7 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				// pairs have been popped from value_complete
 				for (Node nn: nodes) {
 					SkeletonNode n = (SkeletonNode)nn;
-					DeflateNode vClo = new DeflateNode(n, parNClo);
+					DeflateNode vClo = new DeflateNode(n, parent, parNClo);
 
 					// reassign appropriate keys to the split-node's sweeper
 					SortedSet<K> subheld = subSet(held, n.lkey, n.rkey);
@@ -925,10 +1624,10 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					for (K key: subheld) {
 						reassignKeyToSweeper(key, vClo);
 					}
+					parNClo.acquire(n);
+
 					vClo.close();
 					if (vClo.isCleared()) { vClo.run(); } // if no keys were added
-
-					parNClo.acquire(n);
 				}
 
 				// original (unsplit) node had a ticket on the parNClo sweeper, release it
@@ -938,6 +1637,111 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				assert(!parNClo.isCleared()); // we always have at least one node to deflate
 			}
 
+			/**
+			** Merges each child that was left loaded because it is underfull (see
+			** DeflateNode) with an adjacent sibling, pulling the sibling first if
+			** necessary. Every loaded child then goes through its own SplitNode,
+			** which splits it again if the merge made it overfull (so that the
+			** entries are redistributed between the two), and pushes it.
+			**
+			** A cleared sweeper can't be opened again, so a new SplitNode for the
+			** same node waits for the pulls and pushes; when that is cleared, its
+			** {@link #run()} calls this method again, until no children are left
+			** loaded.
+			**
+			** @return Whether the node can now be closed and split
+			*/
+			private boolean rebalance() {
+				if (node.nodeSize() == 0) {
+					// this node is now underfull; its parent will merge it
+					if (node != root) { return true; }
+					// the root has no entries left, so its only child replaces it,
+					// whether or not the child is loaded. iterNodesK() can't be used
+					// to find the child, since the root's lkey and rkey are both null
+					Node only = node.iterNodes().iterator().next();
+					if (only.isGhost()) {
+						// WORKAROUND unnecessary cast here - bug in SunJDK6; works fine on OpenJDK6
+						ObjectProcessor.submitSafe(proc_pull, new PullTask<SkeletonNode>((GhostNode)only), (SafeClosure<SkeletonNode>)new PullDeposit(node) {
+							public void invoke(SkeletonNode child) { promoteRoot(child); }
+						});
+					} else {
+						promoteRoot((SkeletonNode)only);
+					}
+					return false;
+				}
+
+				List<X3<K, Node, K>> children = new ArrayList<X3<K, Node, K>>();
+				boolean loaded = false;
+				for (X3<K, Node, K> c: node.iterNodesK()) {
+					children.add(c);
+					if (!c._1.isGhost()) { loaded = true; }
+				}
+				if (!loaded) { return true; }
+
+				// pair each underfull child with an adjacent sibling, preferring the
+				// left one. if both are taken, the child is left for the next round
+				int n = children.size();
+				boolean[] used = new boolean[n];
+				List<X2<K, K>> merges = new ArrayList<X2<K, K>>();
+				List<GhostNode> pulls = new ArrayList<GhostNode>();
+				for (int i=0; i<n; ++i) {
+					Node c = children.get(i)._1;
+					if (used[i] || c.isGhost() || c.nodeSize() >= ENT_MIN) { continue; }
+					int j = (i > 0 && !used[i-1])? i-1: (i+1 < n && !used[i+1])? i+1: -1;
+					if (j < 0) { continue; }
+					used[i] = used[j] = true;
+					int l = Math.min(i, j);
+					merges.add(new X2<K, K>(children.get(l)._0, children.get(l+1)._2));
+					Node sib = children.get(j)._1;
+					if (sib.isGhost()) { pulls.add((GhostNode)sib); }
+				}
+
+				SplitNode next = new SplitNode(node, parent, nodeVClo, parNClo, parVClo);
+				if (!pulls.isEmpty()) {
+					for (GhostNode sib: pulls) {
+						next.acquire((SkeletonNode)null); // dirty hack, as in InflateChildNodes
+						ObjectProcessor.submitSafe(proc_pull, new PullTask<SkeletonNode>(sib), (SafeClosure<SkeletonNode>)new PullSibling(node, next));
+					}
+					next.close();
+					return false;
+				}
+
+				for (X2<K, K> kp: merges) {
+					mergeChildren(node, kp._0, kp._1);
+				}
+
+				// WORKAROUND unnecessary cast here - bug in SunJDK6; works fine on OpenJDK6
+				SortedSet<K> held = (SortedSet<K>)nodeVClo.view();
+				List<SplitNode> todo = new ArrayList<SplitNode>();
+				for (Node nn: node.iterNodes()) {
+					if (nn.isGhost()) { continue; }
+					SkeletonNode c = (SkeletonNode)nn;
+					DeflateNode vClo = new DeflateNode(c, node, next);
+					// separators moved down into the child are now tracked by its sweeper
+					for (K key: new ArrayList<K>(subSet(held, c.lkey, c.rkey))) {
+						reassignKeyToSweeper(key, vClo);
+						nodeVClo.release(key);
+					}
+					todo.add(new SplitNode(c, node, vClo, next, nodeVClo));
+					next.acquire(c);
+				}
+				next.close();
+				// the last of these may clear the new sweeper, and run() it
+				for (SplitNode nc: todo) { nc.run(); }
+				return false;
+			}
+
+			/**
+			** Makes the only child of an empty root the new root, and runs it
+			** through its own SplitNode, which deflates it (except for pushing
+			** it, since it is now the root).
+			*/
+			private void promoteRoot(SkeletonNode child) {
+				root = child;
+				DeflateNode vClo = new DeflateNode(child, null, null);
+				new SplitNode(child, null, vClo, null, null).run();
+			}
+
 			/**
 			** When we move a key to another node (eg. to the parent, or to a new node
 			** resulting from the split), we must deassign it from the original node's
@@ -963,22 +1767,35 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		/**
 		** Deposit for a PullTask
 		*/
-		class InflateChildNodes implements SafeClosure<SkeletonNode> {
+		class InflateChildNodes extends PullDeposit {
 
-			final SkeletonNode parent;
+			final K lkey;
+			final K rkey;
 			final SortedSet<K> putkey;
+			final SortedSet<K> remkey;
 			final SplitNode parNClo;
 			final DeflateNode parVClo;
 
-			protected InflateChildNodes(SkeletonNode p, SortedSet<K> ki, SplitNode pnc, DeflateNode pvc) {
-				parent = p;
-				putkey = ki;
+			/**
+			** Number of nodes still to be pulled. If this deposit is for more
+			** than one node, they are merged into one when they have all been
+			** pulled, and that is the node which is updated.
+			*/
+			int waiting;
+
+			protected InflateChildNodes(SkeletonNode p, K lk, K rk, int n, SortedSet<K> pk, SortedSet<K> dk, SplitNode pnc, DeflateNode pvc) {
+				super(p);
+				lkey = lk;
+				rkey = rk;
+				waiting = n;
+				putkey = pk;
+				remkey = dk;
 				parNClo = pnc;
 				parVClo = pvc;
 			}
 
-			protected InflateChildNodes(SortedSet<K> ki) {
-				this(null, ki, null, null);
+			protected InflateChildNodes(SortedSet<K> pk, SortedSet<K> dk) {
+				this(null, null, null, 1, pk, dk, null, null);
 			}
 
 			/**
@@ -986,25 +1803,28 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			** children. Runs whenever a node is popped from proc_pull.
 			*/
 			public void invoke(SkeletonNode node) {
-				assert(compareL(node.lkey, putkey.first()) < 0);
-				assert(compareR(putkey.last(), node.rkey) < 0);
+				if (--waiting > 0) { return; }
+				if (!compare0(node.lkey, lkey) || !compare0(node.rkey, rkey)) {
+					node = mergeChildren(parent, lkey, rkey);
+				}
+
+				assert(putkey.isEmpty() || compareL(node.lkey, putkey.first()) < 0 && compareR(putkey.last(), node.rkey) < 0);
+				assert(remkey.isEmpty() || compareL(node.lkey, remkey.first()) < 0 && compareR(remkey.last(), node.rkey) < 0);
 
 				// FIXME HIGH make this asynchronous
 				try { ((SkeletonTreeMap<K, V>)node.entries).inflate(); } catch (TaskAbortException e) { throw new RuntimeException(e); }
 
 				// closure to be called when all local values have been obtained
-				DeflateNode vClo = new DeflateNode(node, parNClo);
+				DeflateNode vClo = new DeflateNode(node, parent, parNClo);
 
 				// closure to be called when all subnodes have been handled
 				SplitNode nClo = new SplitNode(node, parent, vClo, parNClo, parVClo);
 
 				// invalidate every totalSize cache directly after we inflate it
-				node._size = -1;
-
-				// OPT LOW if putkey is empty then skip
+				node.invalidate();
 
 				// each key in putkey is either added to the local entries, or delegated to
-				// the the relevant child node.
+				// the the relevant child node. likewise for each key in remkey.
 				if (node.isLeaf()) {
 					// add all keys into the node, since there are no children.
 
@@ -1017,12 +1837,16 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						for (K key: putkey) { handleLocalPut(node, key, vClo); }
 					}
 
+					for (K key: remkey) { handleLocalRemove(node, key); }
+
 				} else {
 					// only add keys that already exist locally in the node. other keys
 					// are delegated to the relevant child node.
 
-					SortedSet<K> fkey = new TreeSet<K>();
-					Iterable<SortedSet<K>> range = Sorted.split(putkey, Sorted.keySet(node.entries), fkey);
+					SortedSet<K> fkey = new TreeSet<K>(comparator);
+					for (K key: putkey) {
+						if (node.entries.containsKey(key)) { fkey.add(key); }
+					}
 
 					if (proc_val == null) {
 						for (K key: fkey) { node.entries.put(key, putmap.get(key)); }
@@ -1030,14 +1854,32 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						for (K key: fkey) { handleLocalPut(node, key, vClo); }
 					}
 
-					for (SortedSet<K> rng: range) {
-						GhostNode n = (GhostNode)node.selectNode(rng.first());
-						PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(n);
-
-						// possibly re-design CountingSweeper to not care about types, or have acquire() instead
-						nClo.acquire((SkeletonNode)null); // dirty hack. FIXME LOW
-						// WORKAROUND unnecessary cast here - bug in SunJDK6; works fine on OpenJDK6
-						ObjectProcessor.submitSafe(proc_pull, task, (SafeClosure<SkeletonNode>)new InflateChildNodes(node, rng, nClo, vClo));
+					// a local key to be removed is moved down into the merge of its two
+					// adjacent children, where it is removed in turn. so each run of
+					// children separated by such keys is pulled as a group, and merged
+					// into one node when they have all arrived.
+					List<Node> group = new ArrayList<Node>();
+					K lk = node.lkey;
+					for (X3<K, Node, K> c: node.iterNodesK()) {
+						group.add(c._1);
+						K rk = c._2;
+						if (rk != null && remkey.contains(rk)) { continue; }
+
+						// copy these, since views of views can't take keys outside their range
+						SortedSet<K> pk = new TreeSet<K>(subSet(putkey, lk, rk));
+						SortedSet<K> dk = new TreeSet<K>(subSet(remkey, lk, rk));
+						if (group.size() > 1 || !pk.isEmpty() || !dk.isEmpty()) {
+							// possibly re-design CountingSweeper to not care about types, or have acquire() instead
+							nClo.acquire((SkeletonNode)null); // dirty hack. FIXME LOW
+							InflateChildNodes clo = new InflateChildNodes(node, lk, rk, group.size(), pk, dk, nClo, vClo);
+							for (Node n: group) {
+								PullTask<SkeletonNode> task = new PullTask<SkeletonNode>((GhostNode)n);
+								// WORKAROUND unnecessary cast here - bug in SunJDK6; works fine on OpenJDK6
+								ObjectProcessor.submitSafe(proc_pull, task, (SafeClosure<SkeletonNode>)clo);
+							}
+						}
+						group.clear();
+						lk = rk;
 					}
 				}
 
@@ -1064,8 +1906,16 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				ObjectProcessor.submitSafe(proc_val, $K(key, oldval), vClo);
 			}
 
-			private void handleLocalRemove(SkeletonNode n, K key, TrackingSweeper<K, SortedSet<K>> vClo) {
-				throw new UnsupportedOperationException("not implemented");
+			/**
+			** Handle a planned local remove from a leaf node. Keys which are not
+			** in the node are ignored. If this leaves the node underfull, it is
+			** fixed by the parent's SplitNode.
+			**
+			** @param n The node to remove the key from
+			** @param key The key
+			*/
+			private void handleLocalRemove(SkeletonNode n, K key) {
+				n.entries.remove(key);
 			}
 
 		}
@@ -1074,15 +1924,30 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		proc_push.setName("push");
 		if (proc_val != null) { proc_val.setName("val"); }
 
+		// all three processors signal the same notifier, so that the loop below
+		// wakes up as soon as any task completes, rather than polling them
+		final Notifier notifier = new Notifier();
+		proc_pull.setNotifier(notifier);
+		proc_push.setNotifier(notifier);
+		if (proc_val != null) { proc_val.setNotifier(notifier); }
+
+		// wait for any eviction in progress, and prevent any more
+		synchronized (this) { updating = true; }
+
 		try {
 
-			(new InflateChildNodes(putkey)).invoke((SkeletonNode)root);
+			(new InflateChildNodes(putkey, remkey)).invoke((SkeletonNode)root);
 
 			// FIXME HIGH make a copy of the deflated root so that we can restore it if the
 			// operation fails
 			int olds = size;
 
-			do {
+			while (proc_pull.hasPending() || proc_push.hasPending() || (proc_val != null && proc_val.hasPending())) {
+
+				// block until at least one task has completed. if any completed since
+				// the last time round, this returns immediately, so none are missed.
+				// the timeout is just a safety net; no work is lost if it expires
+				notifier.waitUpdate(0x400);
 
 				while (proc_pull.hasCompleted()) {
 					X3<PullTask<SkeletonNode>, SafeClosure<SkeletonNode>, TaskAbortException> res = proc_pull.accept();
@@ -1094,7 +1959,7 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						throw new UnsupportedOperationException("SkeletonBTreeMap.update(): PullTask aborted; handler not implemented yet", ex);
 					}
 
-					SkeletonNode node = postPullTask(task, ((InflateChildNodes)clo).parent);
+					SkeletonNode node = postPullTask(task, ((PullDeposit)clo).parent);
 					clo.invoke(node);
 				}
 
@@ -1117,7 +1982,6 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 				//System.out.println(System.identityHashCode(this) + " " + proc_push + " " + ((proc_val == null)? "": proc_val+ " ") + proc_pull);
 
-				Thread.sleep(0x400);
 				if (proc_val == null) { continue; }
 
 				while (proc_val.hasCompleted()) {
@@ -1135,9 +1999,9 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					if (sw.isCleared()) { sw.run(); }
 				}
 
-				System.out.println(/*System.identityHashCode(this) + " " + */proc_val + " " + proc_pull + " " + proc_push);
+				//System.out.println(/*System.identityHashCode(this) + " " + */proc_val + " " + proc_pull + " " + proc_push);
 
-			} while (proc_pull.hasPending() || proc_push.hasPending() || (proc_val != null && proc_val.hasPending()));
+			}
 
 			size = root.totalSize();
 
@@ -1148,6 +2012,7 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		} catch (InterruptedException e) {
 			throw new TaskAbortException("interrupted", e);
 		} finally {
+			updating = false;
 			proc_pull.close();
 			proc_push.close();
 			if (proc_val != null) { proc_val.close(); }
@@ -1243,6 +2108,7 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				if (!node.isBare()) {
 					throw new IllegalStateException("map-translator did not produce a bare SkeletonTreeMap: " + mtr);
 				}
+				node.clean = true;
 
 				verifyNodeIntegrity(node);
 				return node;
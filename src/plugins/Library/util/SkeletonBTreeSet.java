@@ -58,6 +58,10 @@ public class SkeletonBTreeSet<E> extends BTreeSet<E> /*implements Skeleton<E, Ma
 		return ((SkeletonBTreeMap<E, E>)bkmap).isLive();
 	}
 
+	public boolean isClean() {
+		return ((SkeletonBTreeMap<E, E>)bkmap).isClean();
+	}
+
 	public void deflate() throws TaskAbortException {
 		((SkeletonBTreeMap<E, E>)bkmap).deflate();
 	}
@@ -43,8 +43,12 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	** {@link SkeletonValue} for a given key is never overwritten; only its
 	** contents are. This ensures correct behaviour for the {@link
 	** UnwrappingIterator} class.
+	**
+	** This is a {@link SortedArrayMap} rather than a {@link TreeMap}, since
+	** these maps hold the entries of {@link SkeletonBTreeMap} nodes, and many
+	** of them may be loaded at once.
 	*/
-	final protected TreeMap<K, SkeletonValue<V>> skmap;
+	final protected SortedArrayMap<K, SkeletonValue<V>> skmap;
 
 	/**
 	** The meta data for this skeleton.
@@ -57,25 +61,25 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	protected transient int ghosts;
 
 	public SkeletonTreeMap() {
-		skmap = new TreeMap<K, SkeletonValue<V>>();
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>();
 	}
 
 	public SkeletonTreeMap(Comparator<? super K> c) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(c);
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(c);
 	}
 
 	public SkeletonTreeMap(Map<? extends K,? extends V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>();
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>();
 		putAll(m);
 	}
 
 	public SkeletonTreeMap(SortedMap<K,? extends V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(m.comparator());
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(m.comparator());
 		putAll(m);
 	}
 
 	public SkeletonTreeMap(SkeletonTreeMap<K, V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(m.comparator());
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(m.comparator(), m.size());
 		for (Map.Entry<K, SkeletonValue<V>> en: m.skmap.entrySet()) {
 			skmap.put(en.getKey(), en.getValue().clone());
 		}
@@ -148,6 +152,25 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 		return sk.setGhost(o);
 	}
 
+	/**
+	** Ghost the value for the given key back to the metadata it was pulled
+	** with, without pushing it. It is up to the caller to make sure that the
+	** value has not been changed since then.
+	**
+	** @param key The key
+	** @param data The value that is expected to be loaded for the key
+	** @return Whether the value was ghosted; this is {@code false} if it was
+	**         not loaded, was not (by identity) {@code data}, or had no
+	**         metadata to ghost it with.
+	*/
+	public boolean unload(K key, Object data) {
+		SkeletonValue<V> sk = skmap.get(key);
+		if (sk == null || !sk.isLoaded || sk.data != data || sk.meta == null) { return false; }
+		sk.setGhost(sk.meta);
+		++ghosts;
+		return true;
+	}
+
 	protected MapSerialiser<K, V> serialiser;
 	public void setSerialiser(MapSerialiser<K, V> s) {
 		if (serialiser != null && !isLive()) {
@@ -0,0 +1,695 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+** A mutable {@link SortedMap} backed by a pair of parallel sorted arrays, one
+** for the keys and one for the values. Lookups are done by binary search.
+**
+** This is intended as the entry store of {@link BTreeMap} nodes, where it is
+** a lot more compact than {@link java.util.TreeMap} (which needs a separate
+** entry object, with parent/left/right pointers and a colour bit, for every
+** mapping) and has much better locality of reference. Insertions and
+** removals are O(n) since they need to shift part of the arrays, but the
+** arrays are double-ended, so only the shorter side is ever shifted, and
+** adding or removing at either end is O(1) amortised. This matches the way
+** {@link BTreeMap} splits, merges and rotates its nodes.
+**
+** {@link #putAll(Map)}, when given another {@link SortedMap} with the same
+** ordering, does a single linear splice-merge rather than inserting each
+** mapping separately.
+**
+** The {@link Map.Entry} objects returned by the iterators are not part of the
+** data structure; they look up their key when accessed, so remain valid (as
+** views of the current value) whilst the map is modified, and will retain
+** the last value seen if their key is removed.
+**
+** Like {@link java.util.TreeMap}, this class is not thread-safe, and the
+** iterators are fail-fast.
+*/
+public class SortedArrayMap<K, V> extends AbstractMap<K, V>
+implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>*/, Cloneable {
+
+	/**
+	** Default initial capacity of the backing arrays.
+	*/
+	final public static int DEFAULT_CAPACITY = 8;
+
+	/**
+	** The comparator used to sort the keys, or {@code null} for {@linkplain
+	** Comparable natural ordering}.
+	*/
+	final protected Comparator<? super K> comparator;
+
+	/**
+	** The backing key array. Only the part from {@link #off} (inclusive) to
+	** {@link #off}+{@link #size} (exclusive) is in use; everything else is
+	** {@code null}.
+	*/
+	protected K[] keys;
+
+	/**
+	** The backing value array, parallel to {@link #keys}.
+	*/
+	protected V[] vals;
+
+	/**
+	** Index of the first mapping in the backing arrays.
+	*/
+	protected int off;
+
+	/**
+	** Number of mappings in the map.
+	*/
+	protected int size;
+
+	/**
+	** Number of structural modifications made to the map. Used by iterators
+	** to detect concurrent modification.
+	*/
+	protected transient int modCount;
+
+	public SortedArrayMap() {
+		this((Comparator<? super K>)null);
+	}
+
+	public SortedArrayMap(Comparator<? super K> cmp) {
+		this(cmp, DEFAULT_CAPACITY);
+	}
+
+	/**
+	** Construct a new empty map with the given comparator and initial
+	** capacity.
+	**
+	** @param cmp The comparator to use, or {@code null} for {@linkplain
+	**        Comparable natural ordering}.
+	** @param cap The initial capacity of the backing arrays
+	** @throws IllegalArgumentException if {@code cap} is negative
+	*/
+	public SortedArrayMap(Comparator<? super K> cmp, int cap) {
+		if (cap < 0) { throw new IllegalArgumentException("Capacity must be non-negative: " + cap); }
+		comparator = cmp;
+		keys = (K[])new Object[cap];
+		vals = (V[])new Object[cap];
+	}
+
+	/**
+	** Construct a new map with the same mappings and ordering as the given
+	** sorted map.
+	*/
+	public SortedArrayMap(SortedMap<K, ? extends V> m) {
+		this(m.comparator(), m.size());
+		putAll(m);
+	}
+
+	/**
+	** Compare two keys using the map's comparator, or their {@linkplain
+	** Comparable natural ordering} if that is {@code null}.
+	*/
+	protected int compare(Object k1, Object k2) {
+		return (comparator == null)? ((Comparable<Object>)k1).compareTo(k2): comparator.compare((K)k1, (K)k2);
+	}
+
+	/**
+	** Binary search for a key amongst the given range of the backing array.
+	**
+	** JDK6 use Arrays.binarySearch(Object[], int, int, Object, Comparator)
+	**
+	** @param key The key to search for
+	** @param lo Left index, inclusive
+	** @param hi Right index, exclusive
+	** @return The index of the key, if it is present; otherwise {@code
+	**         (-(insertion point) - 1)}, like {@link java.util.Arrays#binarySearch}
+	** @throws NullPointerException if the key is {@code null} and the
+	**         comparator does not allow this
+	*/
+	protected int find(Object key, int lo, int hi) {
+		if (key == null && comparator == null) { throw new NullPointerException(); }
+		--hi;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(keys[mid], key);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	/**
+	** Returns the index of the first key in the backing array which is not
+	** less than the given key.
+	*/
+	protected int ceiling(Object key) {
+		int i = find(key, off, off+size);
+		return (i < 0)? -(i + 1): i;
+	}
+
+	/**
+	** Insert a mapping at the given index of the backing array, shifting the
+	** shorter side of the array to make room. The index must be the correct
+	** insertion point for the key.
+	*/
+	protected void insertAt(int i, K key, V val) {
+		int cap = keys.length;
+		int l = i - off, r = off + size - i;
+		if (size == cap) {
+			int ncap = cap + (cap >> 1) + 1;
+			K[] nkeys = (K[])new Object[ncap];
+			V[] nvals = (V[])new Object[ncap];
+			System.arraycopy(keys, off, nkeys, 0, l);
+			System.arraycopy(vals, off, nvals, 0, l);
+			System.arraycopy(keys, i, nkeys, l+1, r);
+			System.arraycopy(vals, i, nvals, l+1, r);
+			keys = nkeys;
+			vals = nvals;
+			off = 0;
+			i = l;
+		} else if (off > 0 && (l < r || off + size == cap)) {
+			System.arraycopy(keys, off, keys, off-1, l);
+			System.arraycopy(vals, off, vals, off-1, l);
+			--off; --i;
+		} else {
+			System.arraycopy(keys, i, keys, i+1, r);
+			System.arraycopy(vals, i, vals, i+1, r);
+		}
+		keys[i] = key;
+		vals[i] = val;
+		++size;
+		++modCount;
+	}
+
+	/**
+	** Remove the mapping at the given index of the backing array, shifting
+	** the shorter side of the array to close the gap.
+	*/
+	protected void removeAt(int i) {
+		int l = i - off, r = off + size - i - 1;
+		if (l < r) {
+			System.arraycopy(keys, off, keys, off+1, l);
+			System.arraycopy(vals, off, vals, off+1, l);
+			keys[off] = null;
+			vals[off] = null;
+			++off;
+		} else {
+			System.arraycopy(keys, i+1, keys, i, r);
+			System.arraycopy(vals, i+1, vals, i, r);
+			keys[off+size-1] = null;
+			vals[off+size-1] = null;
+		}
+		if (--size == 0) { off = 0; }
+		++modCount;
+	}
+
+	/**
+	** Remove all mappings between the given indexes of the backing array.
+	**
+	** @param lo Left index, inclusive
+	** @param hi Right index, exclusive
+	*/
+	protected void removeRange(int lo, int hi) {
+		int n = hi - lo;
+		if (n <= 0) { return; }
+		int l = lo - off, r = off + size - hi;
+		if (l < r) {
+			System.arraycopy(keys, off, keys, off+n, l);
+			System.arraycopy(vals, off, vals, off+n, l);
+			for (int i=off; i<off+n; ++i) { keys[i] = null; vals[i] = null; }
+			off += n;
+		} else {
+			System.arraycopy(keys, hi, keys, lo, r);
+			System.arraycopy(vals, hi, vals, lo, r);
+			for (int i=lo+r; i<off+size; ++i) { keys[i] = null; vals[i] = null; }
+		}
+		if ((size -= n) == 0) { off = 0; }
+		++modCount;
+	}
+
+	/**
+	** Shrink the backing arrays to the number of mappings in the map.
+	*/
+	public void trimToSize() {
+		if (keys.length == size) { return; }
+		K[] nkeys = (K[])new Object[size];
+		V[] nvals = (V[])new Object[size];
+		System.arraycopy(keys, off, nkeys, 0, size);
+		System.arraycopy(vals, off, nvals, 0, size);
+		keys = nkeys;
+		vals = nvals;
+		off = 0;
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
+	}
+
+	@Override public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override public boolean containsKey(Object key) {
+		return find(key, off, off+size) >= 0;
+	}
+
+	@Override public V get(Object key) {
+		int i = find(key, off, off+size);
+		return (i < 0)? null: vals[i];
+	}
+
+	@Override public V put(K key, V value) {
+		int i = find(key, off, off+size);
+		if (i >= 0) {
+			V old = vals[i];
+			vals[i] = value;
+			return old;
+		}
+		insertAt(-(i + 1), key, value);
+		return null;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If the given map is a {@link SortedMap} with the same ordering as this
+	** one, the mappings are spliced into the backing arrays in one pass,
+	** taking O(m+n) time rather than O(m*n).
+	*/
+	@Override public void putAll(Map<? extends K, ? extends V> m) {
+		int n = m.size();
+		if (n == 0) { return; }
+		if (n == 1 || !(m instanceof SortedMap)) {
+			super.putAll(m);
+			return;
+		}
+		Comparator<?> cmp = ((SortedMap<? extends K, ? extends V>)m).comparator();
+		if (!(comparator == null && cmp == null || comparator != null && comparator.equals(cmp))) {
+			super.putAll(m);
+			return;
+		}
+
+		// copy out first, in case m is a view of this map
+		K[] mkeys = (K[])new Object[n];
+		V[] mvals = (V[])new Object[n];
+		int j = 0;
+		for (Map.Entry<? extends K, ? extends V> en: m.entrySet()) {
+			mkeys[j] = en.getKey();
+			mvals[j] = en.getValue();
+			++j;
+		}
+
+		if (size == 0 || compare(keys[off+size-1], mkeys[0]) < 0) {
+			// append
+			ensureCapacity(n, false);
+			System.arraycopy(mkeys, 0, keys, off+size, n);
+			System.arraycopy(mvals, 0, vals, off+size, n);
+			size += n;
+		} else if (compare(mkeys[n-1], keys[off]) < 0) {
+			// prepend
+			ensureCapacity(n, true);
+			off -= n;
+			System.arraycopy(mkeys, 0, keys, off, n);
+			System.arraycopy(mvals, 0, vals, off, n);
+			size += n;
+		} else {
+			// merge
+			int cap = Math.max(keys.length, size + n);
+			K[] nkeys = (K[])new Object[cap];
+			V[] nvals = (V[])new Object[cap];
+			int i = off, e = off + size, k = 0;
+			j = 0;
+			while (i < e && j < n) {
+				int c = compare(keys[i], mkeys[j]);
+				if (c < 0) {
+					nkeys[k] = keys[i]; nvals[k++] = vals[i++];
+				} else {
+					if (c == 0) { ++i; }
+					nkeys[k] = mkeys[j]; nvals[k++] = mvals[j++];
+				}
+			}
+			for (; i<e; ++i, ++k) { nkeys[k] = keys[i]; nvals[k] = vals[i]; }
+			for (; j<n; ++j, ++k) { nkeys[k] = mkeys[j]; nvals[k] = mvals[j]; }
+			keys = nkeys;
+			vals = nvals;
+			off = 0;
+			size = k;
+		}
+		++modCount;
+	}
+
+	/**
+	** Make sure there is room for {@code n} more mappings at the given end
+	** of the backing arrays, reallocating them if necessary.
+	*/
+	private void ensureCapacity(int n, boolean front) {
+		if (front? off >= n: keys.length - off - size >= n) { return; }
+		int cap = keys.length;
+		int ncap = Math.max(cap + (cap >> 1) + 1, size + n);
+		K[] nkeys = (K[])new Object[ncap];
+		V[] nvals = (V[])new Object[ncap];
+		int noff = front? ncap - size: 0;
+		System.arraycopy(keys, off, nkeys, noff, size);
+		System.arraycopy(vals, off, nvals, noff, size);
+		keys = nkeys;
+		vals = nvals;
+		off = noff;
+	}
+
+	@Override public V remove(Object key) {
+		int i = find(key, off, off+size);
+		if (i < 0) { return null; }
+		V old = vals[i];
+		removeAt(i);
+		return old;
+	}
+
+	@Override public void clear() {
+		for (int i=off; i<off+size; ++i) { keys[i] = null; vals[i] = null; }
+		off = size = 0;
+		++modCount;
+	}
+
+	private transient Set<Map.Entry<K, V>> entries;
+	@Override public Set<Map.Entry<K, V>> entrySet() {
+		if (entries == null) {
+			entries = new EntrySet(null);
+		}
+		return entries;
+	}
+
+	@Override public SortedArrayMap<K, V> clone() {
+		try {
+			SortedArrayMap<K, V> map = (SortedArrayMap<K, V>)super.clone();
+			map.keys = keys.clone();
+			map.vals = vals.clone();
+			map.entries = null;
+			map.modCount = 0;
+			return map;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/*========================================================================
+	  public interface SortedMap
+	 ========================================================================*/
+
+	/*@Override**/ public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/*@Override**/ public K firstKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return keys[off];
+	}
+
+	/*@Override**/ public K lastKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return keys[off+size-1];
+	}
+
+	/*@Override**/ public SortedMap<K, V> headMap(K to) {
+		return new SubMap(null, true, to, false);
+	}
+
+	/*@Override**/ public SortedMap<K, V> tailMap(K fr) {
+		return new SubMap(fr, false, null, true);
+	}
+
+	/*@Override**/ public SortedMap<K, V> subMap(K fr, K to) {
+		if (compare(fr, to) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+		return new SubMap(fr, false, to, false);
+	}
+
+
+	/************************************************************************
+	** A range view of the map. Changes in either are reflected in the other.
+	*/
+	protected class SubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+		final K lo, hi;
+		final boolean fromStart, toEnd;
+
+		protected SubMap(K l, boolean fs, K h, boolean te) {
+			lo = l; fromStart = fs;
+			hi = h; toEnd = te;
+		}
+
+		protected boolean tooLow(Object key) {
+			return !fromStart && compare(key, lo) < 0;
+		}
+
+		protected boolean tooHigh(Object key) {
+			return !toEnd && compare(key, hi) >= 0;
+		}
+
+		protected boolean inRange(Object key) {
+			return !tooLow(key) && !tooHigh(key);
+		}
+
+		/**
+		** Index of the first mapping of this view in the backing arrays.
+		*/
+		protected int loIndex() {
+			return fromStart? off: ceiling(lo);
+		}
+
+		/**
+		** Index after the last mapping of this view in the backing arrays.
+		*/
+		protected int hiIndex() {
+			return toEnd? off+size: ceiling(hi);
+		}
+
+		@Override public int size() {
+			return Math.max(0, hiIndex() - loIndex());
+		}
+
+		@Override public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override public boolean containsKey(Object key) {
+			return inRange(key) && SortedArrayMap.this.containsKey(key);
+		}
+
+		@Override public V get(Object key) {
+			return inRange(key)? SortedArrayMap.this.get(key): null;
+		}
+
+		@Override public V put(K key, V value) {
+			if (!inRange(key)) { throw new IllegalArgumentException("Key out of range: " + key); }
+			return SortedArrayMap.this.put(key, value);
+		}
+
+		@Override public V remove(Object key) {
+			return inRange(key)? SortedArrayMap.this.remove(key): null;
+		}
+
+		@Override public void clear() {
+			removeRange(loIndex(), hiIndex());
+		}
+
+		private transient Set<Map.Entry<K, V>> entries;
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			if (entries == null) {
+				entries = new EntrySet(this);
+			}
+			return entries;
+		}
+
+		/*@Override**/ public Comparator<? super K> comparator() {
+			return comparator;
+		}
+
+		/*@Override**/ public K firstKey() {
+			int i = loIndex();
+			if (i >= hiIndex()) { throw new NoSuchElementException(); }
+			return keys[i];
+		}
+
+		/*@Override**/ public K lastKey() {
+			int i = hiIndex();
+			if (i <= loIndex()) { throw new NoSuchElementException(); }
+			return keys[i-1];
+		}
+
+		/*@Override**/ public SortedMap<K, V> headMap(K to) {
+			if (tooLow(to) || !toEnd && compare(to, hi) > 0) { throw new IllegalArgumentException("Key out of range: " + to); }
+			return new SubMap(lo, fromStart, to, false);
+		}
+
+		/*@Override**/ public SortedMap<K, V> tailMap(K fr) {
+			if (!inRange(fr)) { throw new IllegalArgumentException("Key out of range: " + fr); }
+			return new SubMap(fr, false, hi, toEnd);
+		}
+
+		/*@Override**/ public SortedMap<K, V> subMap(K fr, K to) {
+			if (!inRange(fr)) { throw new IllegalArgumentException("Key out of range: " + fr); }
+			if (tooLow(to) || !toEnd && compare(to, hi) > 0) { throw new IllegalArgumentException("Key out of range: " + to); }
+			if (compare(fr, to) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+			return new SubMap(fr, false, to, false);
+		}
+
+	}
+
+
+	/************************************************************************
+	** Entry set of the map, or of a {@link SubMap} of it.
+	*/
+	protected class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+		/**
+		** The view this is the entry set of, or {@code null} for the whole map.
+		*/
+		final SubMap view;
+
+		protected EntrySet(SubMap v) {
+			view = v;
+		}
+
+		@Override public int size() {
+			return (view == null)? size: view.size();
+		}
+
+		@Override public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry<K, V> en = (Map.Entry<K, V>)o;
+			Object key = en.getKey();
+			if (view != null && !view.inRange(key)) { return false; }
+			int i = find(key, off, off+size);
+			if (i < 0) { return false; }
+			Object v = en.getValue();
+			return (v == null)? vals[i] == null: v.equals(vals[i]);
+		}
+
+		@Override public boolean remove(Object o) {
+			if (!contains(o)) { return false; }
+			SortedArrayMap.this.remove(((Map.Entry<K, V>)o).getKey());
+			return true;
+		}
+
+		@Override public void clear() {
+			if (view == null) { SortedArrayMap.this.clear(); } else { view.clear(); }
+		}
+
+		@Override public Iterator<Map.Entry<K, V>> iterator() {
+			return new Iterator<Map.Entry<K, V>>() {
+				// positions relative to off, which remain correct whichever
+				// side of the arrays removeAt() decides to shift
+				int next = (view == null)? 0: view.loIndex() - off;
+				int end = (view == null)? size: view.hiIndex() - off;
+				int last = -1;
+				int expected = modCount;
+
+				/*@Override**/ public boolean hasNext() {
+					return next < end;
+				}
+
+				/*@Override**/ public Map.Entry<K, V> next() {
+					if (next >= end) { throw new NoSuchElementException(); }
+					if (modCount != expected) { throw new ConcurrentModificationException(); }
+					last = next++;
+					return new ArrayEntry(keys[off+last], vals[off+last], last);
+				}
+
+				/*@Override**/ public void remove() {
+					if (last < 0) { throw new IllegalStateException(); }
+					if (modCount != expected) { throw new ConcurrentModificationException(); }
+					removeAt(off+last);
+					expected = modCount;
+					next = last;
+					--end;
+					last = -1;
+				}
+			};
+		}
+
+	}
+
+
+	/************************************************************************
+	** A {@link Map.Entry} of the map. This keeps a hint of where its key is in
+	** the backing arrays, and falls back to searching for it if the map has
+	** since been changed.
+	*/
+	protected class ArrayEntry implements Map.Entry<K, V> {
+
+		final K key;
+		V value;
+		int hint;
+
+		protected ArrayEntry(K k, V v, int h) {
+			key = k;
+			value = v;
+			hint = h;
+		}
+
+		/**
+		** Returns the current index of the key in the backing arrays, or -1
+		** if it has been removed.
+		*/
+		protected int index() {
+			if (hint < size && keys[off+hint] == key) { return off+hint; }
+			int i = find(key, off, off+size);
+			if (i < 0) { return -1; }
+			hint = i - off;
+			return i;
+		}
+
+		/*@Override**/ public K getKey() {
+			return key;
+		}
+
+		/*@Override**/ public V getValue() {
+			int i = index();
+			if (i >= 0) { value = vals[i]; }
+			return value;
+		}
+
+		/*@Override**/ public V setValue(V v) {
+			int i = index();
+			V old = (i >= 0)? vals[i]: value;
+			if (i >= 0) { vals[i] = v; }
+			value = v;
+			return old;
+		}
+
+		@Override public int hashCode() {
+			V v = getValue();
+			return (key==null? 0: key.hashCode()) ^ (v==null? 0: v.hashCode());
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry<K, V> en = (Map.Entry<K, V>)o;
+			V v = getValue();
+			return (key==null? en.getKey()==null: key.equals(en.getKey())) &&
+			       (v==null? en.getValue()==null: v.equals(en.getValue()));
+		}
+
+		@Override public String toString() {
+			return key + "=" + getValue();
+		}
+
+	}
+
+}
@@ -19,8 +19,8 @@ import java.util.AbstractSet;
 **
 ** DOCUMENT
 **
-** OPT LOW make a SortedArrayMap out of this, and make the BTreeMap node
-** use that (or a SortedArrayTripleMap<K, V, L, R>) instead of TreeMap
+** OPT LOW the BTreeMap node now uses {@link SortedArrayMap}; perhaps make
+** a SortedArrayTripleMap<K, V, L, R> to hold the child nodes too
 **
 ** @author infinity0
 */
@@ -0,0 +1,173 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+/**
+** A limit on the number of tasks that may run at once, which adapts to how
+** long the tasks take. This is used by {@link ObjectProcessor}, since over
+** Freenet the best number of fetches to run in parallel varies a lot with
+** network conditions.
+**
+** The limit grows as long as tasks complete about as fast as the fastest
+** that have been seen recently, and the limit is actually being used; and it
+** shrinks when they become much slower, or fail. This is additive-increase,
+** multiplicative-decrease (AIMD), as in TCP:
+**
+** * Until the first decrease, the limit grows by 1 for each task that
+**   completes, ie. it doubles for every limit's worth of tasks.
+** * After that, it grows by 1 for every limit's worth of tasks.
+** * It decreases by a factor of {@link #BACKOFF} when a task fails, or when
+**   the average latency goes over {@link #TOLERANCE} times the baseline
+**   latency; but at most once for every (old) limit's worth of tasks, so
+**   that a burst of slow tasks only counts once.
+**
+** The baseline is the lowest latency seen, except that it creeps up towards
+** the latency of each task, so that it follows a network that has become
+** slower for good.
+*/
+public class AdaptiveLimit {
+
+	/**
+	** Factor by which the limit is decreased.
+	*/
+	final public static double BACKOFF = 0.75;
+
+	/**
+	** Ratio of average to baseline latency, above which the limit is
+	** decreased.
+	*/
+	final public static double TOLERANCE = 2.0;
+
+	/**
+	** Weight given to each task in the average latency.
+	*/
+	final public static double AVG_WEIGHT = 1.0/8;
+
+	/**
+	** Fraction of the difference between a task's latency and the baseline,
+	** that the baseline moves up by.
+	*/
+	final public static double BASELINE_CREEP = 1.0/0x100;
+
+	final protected int min;
+	protected int max;
+
+	protected double limit;
+
+	/**
+	** Whether the limit has not been decreased yet.
+	*/
+	protected boolean slow_start = true;
+
+	/**
+	** Number of tasks left before the limit may be decreased again.
+	*/
+	protected double cooldown;
+
+	/**
+	** Lowest recent latency, in nanoseconds, or a negative number if there
+	** have been no samples yet.
+	*/
+	protected double baseline = -1;
+
+	/**
+	** Average latency, in nanoseconds.
+	*/
+	protected double average;
+
+	protected long samples;
+	protected long failures;
+
+	/**
+	** @param initial Starting limit
+	** @param lo Lowest limit
+	** @param hi Highest limit
+	*/
+	public AdaptiveLimit(int initial, int lo, int hi) {
+		if (lo < 1 || hi < lo || initial < lo || initial > hi) {
+			throw new IllegalArgumentException("Bad limits: " + initial + " in [" + lo + ", " + hi + "]");
+		}
+		min = lo;
+		max = hi;
+		limit = initial;
+	}
+
+	/**
+	** Returns the current limit.
+	*/
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	public synchronized int getMax() {
+		return max;
+	}
+
+	/**
+	** Set the highest limit. If the current limit is higher, it is lowered to
+	** this; otherwise, it is left to grow towards it.
+	**
+	** @throws IllegalArgumentException if {@code hi} is less than the lowest
+	**         limit
+	*/
+	public synchronized void setMax(int hi) {
+		if (hi < min) { throw new IllegalArgumentException("Highest limit must be at least " + min + ": " + hi); }
+		max = hi;
+		if (limit > max) { limit = max; }
+	}
+
+	/**
+	** Average latency of recent tasks, in milliseconds.
+	*/
+	public synchronized double getAverageLatency() {
+		return average / 1000000;
+	}
+
+	/**
+	** Baseline latency, in milliseconds.
+	*/
+	public synchronized double getBaselineLatency() {
+		return baseline / 1000000;
+	}
+
+	/**
+	** Adjusts the limit after a task completes.
+	**
+	** @param latency How long the task took, in nanoseconds
+	** @param failed Whether the task failed
+	** @param running How many tasks were running when this one completed,
+	**        including itself
+	*/
+	public synchronized void sample(long latency, boolean failed, int running) {
+		++samples;
+		if (latency < 0) { latency = 0; }
+		if (baseline < 0) {
+			baseline = average = latency;
+		} else {
+			baseline = (latency < baseline)? latency: baseline + (latency - baseline) * BASELINE_CREEP;
+			average += (latency - average) * AVG_WEIGHT;
+		}
+		if (cooldown > 0) { --cooldown; }
+
+		if (failed) { ++failures; }
+		if (failed || average > baseline * TOLERANCE) {
+			if (cooldown > 0) { return; }
+			slow_start = false;
+			// the tasks already running were started under the old limit
+			cooldown = limit;
+			limit = Math.max(min, limit * BACKOFF);
+			return;
+		}
+
+		// only grow if the limit is actually what is holding things back
+		if (running * 2 < (int)limit) { return; }
+		limit = Math.min(max, limit + (slow_start? 1: 1 / limit));
+	}
+
+	@Override public synchronized String toString() {
+		return "limit " + (int)limit + " in [" + min + ", " + max + "], latency " + (long)getAverageLatency()
+		  + "ms (baseline " + (long)getBaselineLatency() + "ms), " + failures + "/" + samples + " failed";
+	}
+
+}
@@ -0,0 +1,183 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+** An {@link Executor} that runs at most a given number of tasks at once on a
+** backing executor, and queues the rest. Each worker runs tasks from the
+** queue until it is empty, so the backing executor is only asked for a new
+** thread when there are fewer workers than the limit.
+**
+** Once the queue is full, further tasks are run in the thread that submits
+** them (like {@link java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy}),
+** which slows down whoever is submitting them. To never do this (eg. if the
+** callers must not block), use a queue size of {@link Integer#MAX_VALUE}.
+*/
+public class BoundedExecutor implements Executor {
+
+	/**
+	** The executor to run the workers on.
+	*/
+	final protected Executor backing;
+
+	/**
+	** Maximum number of tasks to run at once.
+	*/
+	final protected int max_running;
+
+	/**
+	** Maximum number of tasks to queue.
+	*/
+	final protected int max_queued;
+
+	/**
+	** Tasks waiting for a worker.
+	*/
+	final protected Queue<Runnable> queue = new LinkedList<Runnable>();
+
+	/**
+	** Number of workers.
+	*/
+	protected int running;
+
+	/**
+	** Largest size that {@link #queue} has reached.
+	*/
+	protected int peak_queued;
+
+	/**
+	** Number of tasks that were run by their callers since the queue was full.
+	*/
+	protected long caller_runs;
+
+	/**
+	** @param x The executor to run workers on
+	** @param threads Maximum number of tasks to run at once
+	** @param queued Maximum number of tasks to queue
+	*/
+	public BoundedExecutor(Executor x, int threads, int queued) {
+		if (x == null) { throw new NullPointerException(); }
+		if (threads < 1 || queued < 0) {
+			throw new IllegalArgumentException("Bad bounds: " + threads + ", " + queued);
+		}
+		backing = x;
+		max_running = threads;
+		max_queued = queued;
+	}
+
+	/*@Override**/ public void execute(Runnable r) {
+		if (r == null) { throw new NullPointerException(); }
+		boolean start;
+		synchronized (this) {
+			if (running < max_running) {
+				++running;
+				start = true;
+			} else if (queue.size() < max_queued) {
+				queue.add(r);
+				if (queue.size() > peak_queued) { peak_queued = queue.size(); }
+				return;
+			} else {
+				++caller_runs;
+				start = false;
+			}
+		}
+		if (!start) {
+			r.run();
+			return;
+		}
+		try {
+			backing.execute(new Worker(r));
+		} catch (RuntimeException e) {
+			synchronized (this) { --running; }
+			throw e;
+		}
+	}
+
+	/**
+	** Returns the next queued task, or {@code null} and retires the calling
+	** worker if there are none.
+	*/
+	protected synchronized Runnable next() {
+		Runnable r = queue.poll();
+		if (r == null) { --running; }
+		return r;
+	}
+
+	/**
+	** Number of tasks waiting for a worker.
+	*/
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	** Largest number of tasks that have been waiting for a worker at once.
+	*/
+	public synchronized int getPeakQueueDepth() {
+		return peak_queued;
+	}
+
+	/**
+	** Number of tasks being run by workers.
+	*/
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	** Number of tasks that were run by their callers, because the queue was
+	** full.
+	*/
+	public synchronized long getCallerRuns() {
+		return caller_runs;
+	}
+
+	@Override public synchronized String toString() {
+		return "running " + running + "/" + max_running + ", queued " + queue.size() + "/" + max_queued
+		  + " (peak " + peak_queued + "), run by caller " + caller_runs;
+	}
+
+	protected class Worker implements Runnable {
+
+		protected Runnable task;
+
+		Worker(Runnable r) {
+			task = r;
+		}
+
+		/*@Override**/ public void run() {
+			boolean done = false;
+			try {
+				do {
+					task.run();
+				} while ((task = next()) != null);
+				done = true;
+			} finally {
+				// the task threw; don't lose the worker
+				if (!done) { restart(); }
+			}
+		}
+
+	}
+
+	/**
+	** Replaces a worker whose task threw an exception, if there are still
+	** queued tasks.
+	*/
+	protected void restart() {
+		Runnable r = next();
+		if (r == null) { return; }
+		try {
+			backing.execute(new Worker(r));
+		} catch (RuntimeException e) {
+			// leave it for the next worker
+			synchronized (this) { queue.add(r); --running; }
+		}
+	}
+
+}
@@ -7,6 +7,7 @@ import plugins.Library.util.func.SafeClosure;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy; // WORKAROUND javadoc bug #4464323
 import java.util.concurrent.LinkedBlockingQueue;
@@ -59,6 +60,59 @@ public class Executors {
 		}
 	};
 
+	/**
+	** Whether {@link #newThreadPerTaskExecutor(String)} should run tasks on
+	** virtual threads, on JVMs that have them. Set by the system property
+	** {@code plugins.Library.virtualThreads}.
+	*/
+	final public static boolean VIRTUAL_THREADS = Boolean.getBoolean("plugins.Library.virtualThreads");
+
+	/**
+	** Returns an executor that runs each task in a new thread with the given
+	** name. This is meant to back a {@link BoundedExecutor}, which reuses each
+	** thread for as long as it has tasks queued.
+	**
+	** If {@link #VIRTUAL_THREADS} is set and the JVM supports them (Java 21
+	** and later), the threads are virtual threads; otherwise they are daemon
+	** platform threads.
+	*/
+	public static Executor newThreadPerTaskExecutor(final String name) {
+		if (VIRTUAL_THREADS) {
+			final ThreadFactory virtual = newVirtualThreadFactory(name);
+			if (virtual != null) {
+				return new Executor() {
+					/*@Override**/ public void execute(Runnable r) {
+						virtual.newThread(r).start();
+					}
+				};
+			}
+		}
+		return new Executor() {
+			/*@Override**/ public void execute(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				t.start();
+			}
+		};
+	}
+
+	/**
+	** Returns {@code Thread.ofVirtual().name(name).factory()}, or {@code null}
+	** if the JVM does not have virtual threads. This is done by reflection,
+	** since we are compiled for older JVMs.
+	*/
+	protected static ThreadFactory newVirtualThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> cls = Class.forName("java.lang.Thread$Builder");
+			builder = cls.getMethod("name", String.class).invoke(builder, name);
+			return (ThreadFactory)cls.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// NoSuchMethodException on older JVMs; the rest shouldn't happen
+			return null;
+		}
+	}
+
 	public static synchronized void setDefaultExecutor(Executor e) {
 		default_exec = e;
 	}
@@ -0,0 +1,50 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+/**
+** A simple level-triggered signal, for threads that want to sleep until
+** something interesting happens elsewhere, rather than polling.
+**
+** Producers call {@link #notifyUpdate()} whenever an event occurs, and the
+** consumer calls {@link #waitUpdate(long)} to block until the next one. An
+** event that occurs whilst the consumer is not waiting is remembered, so the
+** next call to {@code waitUpdate} returns immediately; this means that the
+** usual "check state, then wait" loop does not lose any wakeups.
+**
+** Multiple events between two waits are coalesced into one; consumers should
+** re-check all of their state after waking up.
+*/
+public class Notifier {
+
+	protected boolean notified;
+
+	/**
+	** Signal that an event has occurred, waking any waiting threads.
+	*/
+	public synchronized void notifyUpdate() {
+		notified = true;
+		notifyAll();
+	}
+
+	/**
+	** Wait until an event has occurred since the last call to this method,
+	** or until the given timeout expires, whichever is sooner.
+	**
+	** @param timeout Maximum time to wait, in milliseconds
+	** @return Whether an event occurred (ie. we did not time out)
+	** @throws InterruptedException if interrupted whilst waiting
+	*/
+	public synchronized boolean waitUpdate(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (!notified) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) { return false; }
+			wait(left);
+		}
+		notified = false;
+		return true;
+	}
+
+}
@@ -3,13 +3,16 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.util.concurrent;
 
+import plugins.Library.util.exec.TaskCompleteException;
 import plugins.Library.util.func.Closure;
 import plugins.Library.util.func.SafeClosure;
 import static plugins.Library.util.func.Tuples.X2; // also imports the class
 import static plugins.Library.util.func.Tuples.X3; // also imports the class
 
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -41,17 +44,66 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	protected int dispatched = 0;
 	protected int completed = 0;
 
-	// TODO NORM make a more intelligent way of adjusting this
+	/**
+	** Notified whenever an item is put onto the {@link #out output queue}.
+	*/
+	protected volatile Notifier notifier;
+
+	/**
+	** Completed items that did not fit onto the {@link #out output queue}.
+	** {@link #postProcess} is often invoked from an IO callback, whose thread
+	** must not block waiting for the submitter to {@link #accept()}, so items
+	** are held here until there is room; see {@link #handOff}.
+	*/
+	final protected LinkedList<X2<T, X>> overflow = new LinkedList<X2<T, X>>();
+
+	/**
+	** Default highest limit on the number of items that may be dispatched but
+	** not yet completed. This must stay below the size of any thread pool
+	** that is shared between processors whose jobs wait on each other; see
+	** {@link plugins.Library.util.SkeletonBTreeMap#update}.
+	*/
 	final public static int maxconc = 0x28;
 
+	/**
+	** Default starting limit on the number of items that may be dispatched
+	** but not yet completed.
+	*/
+	final public static int initconc = 0x4;
+
+	/**
+	** Limit on the number of items that may be dispatched but not yet
+	** completed. This adapts to how long items take to process, and whether
+	** they fail; see {@link AdaptiveLimit}.
+	*/
+	final protected AdaptiveLimit concurrency = new AdaptiveLimit(initconc, 1, maxconc);
+
+	/**
+	** When each dispatched item was dispatched, from {@link System#nanoTime()}.
+	*/
+	final protected Map<T, Long> started = new HashMap<T, Long>();
+
 	final protected SafeClosure<X2<T, X>> postProcess = new SafeClosure<X2<T, X>>() {
 		/*@Override**/ public void invoke(X2<T, X> res) {
-			try {
-				out.put(res);
-				synchronized(ObjectProcessor.this) { ++completed; }
-			} catch (InterruptedException e) {
-				throw new UnsupportedOperationException();
+			long now = System.nanoTime();
+			Long start;
+			int running;
+			synchronized(ObjectProcessor.this) {
+				start = started.remove(res._0);
+				running = dispatched - completed;
 			}
+			if (start != null) {
+				// TaskCompleteException means another task did the work, so
+				// it isn't a failure
+				boolean failed = res._1 != null && !(res._1 instanceof TaskCompleteException);
+				concurrency.sample(now - start, failed, running);
+			}
+			handOff(res);
+			synchronized(ObjectProcessor.this) { ++completed; }
+			Notifier n = notifier;
+			if (n != null) { n.notifyUpdate(); }
+			// a slot has been freed up, so the autohandler can dispatch more
+			autonotifier.notifyUpdate();
 		}
 	};
 
@@ -59,6 +111,8 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	final private static ConcurrentMap<ObjectProcessor, Boolean> pending = new ConcurrentHashMap<ObjectProcessor, Boolean>();
 	// This must only be modified in a static synchronized block
 	private static Thread auto = null;
+	// Wakes up the autohandler when there might be something for it to do
+	final private static Notifier autonotifier = new Notifier();
 
 	/**
 	** Constructs a new processor. The processor itself will be thread-safe
@@ -116,6 +170,7 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 
 		dep.put(item, deposit);
 		in.put(item);
+		autonotifier.notifyUpdate();
 	}
 
 	/**
@@ -138,9 +193,87 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	** Retrieved a processed item, along with its deposit and any exception
 	** that caused processing to abort.
 	*/
-	public synchronized X3<T, E, X> accept() throws InterruptedException {
+	public X3<T, E, X> accept() throws InterruptedException {
+		// don't hold the lock whilst waiting, since postProcess needs it
+		drainOverflow();
 		X2<T, X> item = out.take();
-		return X3(item._0, dep.remove(item._0), item._1);
+		drainOverflow();
+		synchronized(this) {
+			return X3(item._0, dep.remove(item._0), item._1);
+		}
+	}
+
+	/**
+	** Puts a completed item onto the {@link #out output queue} without
+	** blocking, or onto the {@link #overflow} if the queue is full. Items
+	** already in the overflow go first, so that none are held there for ever.
+	*/
+	protected void handOff(X2<T, X> res) {
+		synchronized(overflow) {
+			overflow.add(res);
+			drainOverflow();
+		}
+	}
+
+	/**
+	** Moves as many items from the {@link #overflow} onto the {@link #out
+	** output queue} as will fit.
+	*/
+	protected void drainOverflow() {
+		synchronized(overflow) {
+			while (!overflow.isEmpty() && out.offer(overflow.getFirst())) {
+				overflow.removeFirst();
+			}
+		}
+	}
+
+	/**
+	** Set a {@link Notifier} to be notified whenever an item has finished
+	** being processed. This lets the submitter block until there is something
+	** to {@link #accept()}, rather than polling {@link #hasCompleted()}.
+	**
+	** The same notifier may be shared between several processors, so that a
+	** single thread can wait on all of them at once.
+	*/
+	public void setNotifier(Notifier n) {
+		notifier = n;
+	}
+
+	/**
+	** Set the highest limit on the number of items that may be dispatched but
+	** not yet completed; the actual limit adapts to how fast items are being
+	** processed, up to this. The default is {@link #maxconc}, which suits jobs
+	** that keep an executor thread busy until they complete; jobs that merely
+	** start asynchronous IO and return can use a much higher value.
+	**
+	** @throws IllegalArgumentException if {@code n} is less than 1
+	*/
+	public void setConcurrency(int n) {
+		if (n < 1) { throw new IllegalArgumentException("ObjectProcessor: concurrency must be positive"); }
+		concurrency.setMax(n);
+		autonotifier.notifyUpdate();
+	}
+
+	/**
+	** Current limit on the number of items that may be dispatched but not yet
+	** completed.
+	*/
+	public int getConcurrency() {
+		return concurrency.getLimit();
+	}
+
+	/**
+	** Returns the adaptive limit, eg. to see its latency statistics.
+	*/
+	public AdaptiveLimit getConcurrencyLimit() {
+		return concurrency;
+	}
+
+	/**
+	** Number of items that have been dispatched but not yet completed.
+	*/
+	public synchronized int getInFlight() {
+		return dispatched - completed;
 	}
 
 	/**
@@ -155,6 +288,7 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	** Whether there are any completed items that have not yet been retrieved.
 	*/
 	public synchronized boolean hasCompleted() {
+		drainOverflow();
 		return !out.isEmpty();
 	}
 
@@ -196,9 +330,10 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	** @return Whether a task was retrieved and executed
 	*/
 	public synchronized boolean dispatchPoll() {
-		if (dispatched - completed >= maxconc) { return false; }
+		if (dispatched - completed >= concurrency.getLimit()) { return false; }
 		T item = in.poll();
 		if (item == null) { return false; }
+		started.put(item, System.nanoTime());
 		exec.execute(createJobFor(item));
 		++dispatched;
 		return true;
@@ -251,9 +386,9 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 						}
 					}
 					try {
-						// sleep 2^10ms for every 2^10 processors
-						// TODO NORM more intelligent waiting
-						Thread.sleep(((pending.size()-1)>>10)+1<<10);
+						// wait until something is submitted or completed, but no more than
+						// 2^10ms for every 2^10 processors
+						autonotifier.waitUpdate(((pending.size()-1)>>10)+1<<10);
 					} catch (InterruptedException e) {
 						// TODO LOW log this somewhere
 					}
@@ -315,7 +450,7 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		name = n;
 	}
 	@Override public String toString() {
-		return "ObjProc-" + name + ":{" + size() + "|" + dispatched + "|" + completed + "}";
+		return "ObjProc-" + name + ":{" + size() + "|" + dispatched + "|" + completed + "|" + concurrency.getLimit() + "}";
 	}
 
 }
@@ -169,8 +169,8 @@ public abstract class AbstractExecution<V> implements Execution<V> {
 		accept.add(acc);
 		// trigger the event if the task is already done/aborted
 		if (start != null) { offerStarted(acc); }
-		if (error != null) { offerDone(acc); }
-		if (result != null) { offerAborted(acc); }
+		if (error != null) { offerAborted(acc); }
+		if (result != null) { offerDone(acc); }
 	}
 
 }
@@ -160,10 +160,19 @@ public class SimpleProgress implements Progress {
 	}
 
 	public synchronized void abort(TaskAbortException e) throws TaskAbortException {
+		throw fail(e);
+	}
+
+	/**
+	** Aborts the task like {@link #abort(TaskAbortException)}, but returns
+	** the exception rather than throwing it. This is for completion callbacks,
+	** which must pass the exception on instead.
+	*/
+	public synchronized TaskAbortException fail(TaskAbortException e) {
 		abort = e;
 		inprogress = false;
 		notifyAll();
-		throw e;
+		return e;
 	}
 
 	public void setSubject(String s) {
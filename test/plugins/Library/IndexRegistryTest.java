@@ -0,0 +1,159 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.URIEntry;
+import plugins.Library.search.InvalidSearchException;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Set;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IndexRegistryTest extends TestCase {
+
+	final static Executor SYNC = new Executor() {
+		/*@Override**/ public void execute(Runnable r) { r.run(); }
+	};
+
+	static class DummyIndex implements Index {
+		final String uri;
+		DummyIndex(String u) { uri = u; }
+		/*@Override**/ public Execution<Set<TermEntry>> getTermEntries(String term) { return null; }
+		/*@Override**/ public Execution<URIEntry> getURIEntry(FreenetURI uri) { return null; }
+	}
+
+	/**
+	** Counts loads, and blocks each one until {@link #release} is counted down.
+	*/
+	static class CountingLoader implements IndexRegistry.Loader {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch release;
+		CountingLoader(CountDownLatch r) { release = r; }
+		/*@Override**/ public Index load(String indexuri, String name) throws InvalidSearchException, TaskAbortException {
+			loads.incrementAndGet();
+			try { release.await(); } catch (InterruptedException e) { throw new TaskAbortException("interrupted", e); }
+			if (indexuri.startsWith("bad")) { throw new InvalidSearchException("bad index " + indexuri); }
+			return new DummyIndex(indexuri);
+		}
+	}
+
+	public void testCoalescedLoad() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountingLoader loader = new CountingLoader(release);
+		final IndexRegistry reg = new IndexRegistry(loader, SYNC, 0x10, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		final List<Index> got = new ArrayList<Index>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i=0; i<8; ++i) {
+			Thread t = new Thread() {
+				@Override public void run() {
+					try {
+						Index index = reg.get("CHK@a", null);
+						synchronized (got) { got.add(index); }
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread t: threads) { t.join(); }
+
+		assertEquals(1, loader.loads.get());
+		assertEquals(8, got.size());
+		for (Index index: got) { assertSame(got.get(0), index); }
+		assertSame(got.get(0), reg.get("CHK@a", null));
+		assertEquals(1, loader.loads.get());
+	}
+
+	public void testFailedLoadIsRetried() throws Exception {
+		CountingLoader loader = new CountingLoader(new CountDownLatch(0));
+		IndexRegistry reg = new IndexRegistry(loader, SYNC, 0x10, Long.MAX_VALUE, Long.MAX_VALUE);
+		for (int i=0; i<2; ++i) {
+			try {
+				reg.get("bad", null);
+				fail("load should have failed");
+			} catch (InvalidSearchException e) { }
+		}
+		assertEquals(2, loader.loads.get());
+		assertEquals(0, reg.size());
+	}
+
+	public void testEviction() throws Exception {
+		CountingLoader loader = new CountingLoader(new CountDownLatch(0));
+		IndexRegistry reg = new IndexRegistry(loader, SYNC, 4, Long.MAX_VALUE, Long.MAX_VALUE);
+		for (int i=0; i<4; ++i) {
+			reg.get("CHK@" + i, null);
+			Thread.sleep(2);
+		}
+		// touch the first, so that the second is the least recently used
+		reg.get("CHK@0", null);
+		reg.get("CHK@4", null);
+		assertEquals(4, reg.size());
+		assertEquals(5, loader.loads.get());
+		reg.get("CHK@0", null);
+		assertEquals(5, loader.loads.get());
+		reg.get("CHK@1", null);
+		assertEquals(6, loader.loads.get());
+
+		reg = new IndexRegistry(loader, SYNC, 0x10, 3 * IndexRegistry.INDEX_BYTES, Long.MAX_VALUE);
+		for (int i=0; i<5; ++i) { reg.get("CHK@" + i, null); }
+		assertEquals(3, reg.size());
+		assertEquals(3 * IndexRegistry.INDEX_BYTES, reg.estimatedBytes());
+
+		reg = new IndexRegistry(loader, SYNC, 0x10, Long.MAX_VALUE, 1);
+		reg.get("CHK@a", null);
+		Thread.sleep(5);
+		reg.trim();
+		assertEquals(0, reg.size());
+	}
+
+	public void testRefresh() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		final CountingLoader loader = new CountingLoader(release);
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		IndexRegistry reg = new IndexRegistry(new IndexRegistry.Loader() {
+			/*@Override**/ public Index load(String indexuri, String name) throws InvalidSearchException, TaskAbortException {
+				return (indexuri.endsWith("/1"))? new DummyIndex(indexuri): loader.load(indexuri, name);
+			}
+		}, new Executor() {
+			/*@Override**/ public void execute(Runnable r) { queued.add(r); }
+		}, 0x10, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		// nothing to refresh if the old edition was never loaded
+		reg.refresh("USK@x/0", "USK@x/1", "x");
+		assertTrue(queued.isEmpty());
+
+		Index old = reg.get("USK@x/1", "x");
+		reg.refresh("USK@x/1", "USK@x/2", "x");
+		assertEquals(1, queued.size());
+		// the new edition is not ready yet, so the old one is served
+		assertSame(old, reg.get("USK@x/2", "x"));
+		assertEquals(0, loader.loads.get());
+
+		Thread t = new Thread(queued.get(0));
+		t.start();
+		release.countDown();
+		t.join();
+		assertEquals(1, loader.loads.get());
+		Index index = reg.get("USK@x/2", "x");
+		assertNotSame(old, index);
+		assertEquals("USK@x/2", ((DummyIndex)index).uri);
+		assertEquals(1, reg.size());
+	}
+
+}
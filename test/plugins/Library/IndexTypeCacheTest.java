@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.ProtoIndex;
+import plugins.Library.index.xml.XMLIndex;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IndexTypeCacheTest extends TestCase {
+
+	final static Executor SYNC = new Executor() {
+		/*@Override**/ public void execute(Runnable r) { r.run(); }
+	};
+
+	/**
+	** Counts probes, and returns {@link #next} for each one.
+	*/
+	static class CountingProber implements IndexTypeCache.Prober {
+		final AtomicInteger probes = new AtomicInteger();
+		volatile IndexTypeCache.Entry next;
+		volatile boolean fail;
+		/*@Override**/ public IndexTypeCache.Entry probe(FreenetURI uri) {
+			probes.incrementAndGet();
+			if (fail) { throw new UnsupportedOperationException("Could not find appropriate data for index"); }
+			return next;
+		}
+	}
+
+	public void testEntryString() {
+		IndexTypeCache.Entry en = new IndexTypeCache.Entry(ProtoIndex.class, ProtoIndex.DEFAULT_FILE, 1234);
+		assertEquals("ProtoIndex:1234:" + ProtoIndex.DEFAULT_FILE, en.toString());
+		IndexTypeCache.Entry parsed = IndexTypeCache.Entry.parse(en.toString());
+		assertTrue(parsed.sameAs(en));
+		assertEquals(1234, parsed.checked);
+
+		en = new IndexTypeCache.Entry(XMLIndex.class, null, 0);
+		assertEquals("XMLIndex:0", en.toString());
+		parsed = IndexTypeCache.Entry.parse(en.toString());
+		assertSame(XMLIndex.class, parsed.type);
+		assertNull(parsed.file);
+
+		// an empty file is kept apart from no file, and a file may contain ':'
+		assertEquals("", IndexTypeCache.Entry.parse(new IndexTypeCache.Entry(ProtoIndex.class, "", 0).toString()).file);
+		assertEquals("a:b", IndexTypeCache.Entry.parse("ProtoIndex:5:a:b").file);
+
+		for (String bad: new String[]{"ProtoIndex", "Index:0", "ProtoIndex:x", ""}) {
+			try {
+				IndexTypeCache.Entry.parse(bad);
+				fail("malformed entry: " + bad);
+			} catch (IllegalArgumentException e) { }
+		}
+		try {
+			new IndexTypeCache.Entry(String.class, null);
+			fail("not an index type");
+		} catch (IllegalArgumentException e) { }
+	}
+
+	public void testKeyFor() throws java.net.MalformedURLException {
+		// the edition of a USK is left out
+		FreenetURI usk = new FreenetURI("USK@abc,def,AQACAAE/index/5");
+		assertEquals(IndexTypeCache.keyFor(usk), IndexTypeCache.keyFor(new FreenetURI("USK@abc,def,AQACAAE/index/7")));
+		assertFalse(IndexTypeCache.keyFor(usk).equals(IndexTypeCache.keyFor(new FreenetURI("USK@abc,def,AQACAAE/other/5"))));
+		FreenetURI chk = new FreenetURI("CHK@abc,def,AAIC--8/");
+		assertEquals(chk.toString(), IndexTypeCache.keyFor(chk));
+	}
+
+	public void testRevalidate() throws Exception {
+		CountingProber prober = new CountingProber();
+		prober.next = new IndexTypeCache.Entry(ProtoIndex.class, null);
+		IndexTypeCache cache = new IndexTypeCache(prober, SYNC);
+		final AtomicInteger changes = new AtomicInteger();
+		cache.setOnChange(new Runnable() {
+			/*@Override**/ public void run() { changes.incrementAndGet(); }
+		});
+		FreenetURI uri = new FreenetURI("USK@abc,def,AQACAAE/index/5");
+
+		// a miss probes; a fresh hit, even for another edition, does not
+		assertSame(prober.next, cache.get(uri));
+		assertEquals(1, prober.probes.get());
+		assertEquals(1, changes.get());
+		assertSame(prober.next, cache.get(new FreenetURI("USK@abc,def,AQACAAE/index/6")));
+		assertEquals(1, prober.probes.get());
+
+		// a stale entry is still returned, and probed again in the background
+		Map<String, String> stale = new HashMap<String, String>();
+		stale.put(IndexTypeCache.keyFor(uri), "XMLIndex:0");
+		cache.fromStrings(stale);
+		prober.next = new IndexTypeCache.Entry(ProtoIndex.class, ProtoIndex.DEFAULT_FILE);
+		assertSame(XMLIndex.class, cache.get(uri).type);
+		assertEquals(2, prober.probes.get());
+		assertEquals(2, changes.get());
+		assertSame(prober.next, cache.get(uri));
+		assertEquals(2, prober.probes.get());
+		assertTrue(cache.revalidating.isEmpty());
+
+		// if the probe fails, the stale entry is kept
+		cache.fromStrings(stale);
+		prober.fail = true;
+		assertSame(XMLIndex.class, cache.get(uri).type);
+		assertEquals(3, prober.probes.get());
+		assertSame(XMLIndex.class, cache.get(uri).type);
+		assertEquals(4, prober.probes.get());
+		assertTrue(cache.revalidating.isEmpty());
+
+		// an invalidated entry is probed again, straight away
+		prober.fail = false;
+		cache.invalidate(uri);
+		assertSame(prober.next, cache.get(uri));
+		assertEquals(5, prober.probes.get());
+
+		// the stored form reads back the same
+		IndexTypeCache copy = new IndexTypeCache(prober, SYNC);
+		copy.fromStrings(cache.toStrings());
+		assertTrue(copy.get(uri).sameAs(prober.next));
+		assertEquals(5, prober.probes.get());
+	}
+
+}
@@ -8,6 +8,7 @@ import junit.framework.TestCase;
 import plugins.Library.util.*;
 import plugins.Library.util.func.*;
 import plugins.Library.util.exec.*;
+import plugins.Library.io.DataFormatException;
 import plugins.Library.io.serial.*;
 import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.index.*;
@@ -41,6 +42,9 @@ public class BIndexTest extends TestCase {
 	// this could be done in the same test as the progress test
 	final public static boolean disabled_progress = true;
 
+	// run the update latency benchmark; set with ant -Dbenchmark=true
+	final public static boolean benchmark = Boolean.getBoolean("benchmark");
+
 	static {
 		ProtoIndex.BTREE_NODE_MIN = node_size;
 		System.out.println("ProtoIndex B-tree node_min set to " + ProtoIndex.BTREE_NODE_MIN);
@@ -215,7 +219,7 @@ public class BIndexTest extends TestCase {
 			}
 			tree.addAll(en.getValue());
 		}
-		System.out.println("validating merge. this will take a few minutes, mostly due to Thread.sleep(). just be patient :-)");
+		System.out.println("validating merge. this may take a few minutes. just be patient :-)");
 		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
 			// FIXME HIGH make some way of doing this in parallel, maybe
 			entries.inflate();
@@ -289,6 +293,232 @@ public class BIndexTest extends TestCase {
 	}
 
 
+	/**
+	** Partially inflates an index with only a few nodes allowed to be resident
+	** at once, and checks that nodes evicted along the way can be pulled again.
+	*/
+	public void testResidency() throws TaskAbortException {
+		newTestSkeleton();
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		for (int i=0; i<index_size<<2; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			fillEntrySet(key, entries);
+			sizes.put(key, entries.size());
+			idx.ttab.put(key, entries);
+		}
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		assertTrue(idx.ttab.isBare());
+		System.out.print(sizes.size() + " keys generated and deflated in " + timeDiff() + " ms, ");
+
+		ResidencyManager residency = new ResidencyManager(4, Long.MAX_VALUE);
+		idx.ttab.setResidencyManager(residency);
+		for (int i=0; i<2; ++i) {
+			for (Map.Entry<String, Integer> en: sizes.entrySet()) {
+				idx.ttab.inflate(en.getKey());
+				SkeletonBTreeSet<TermEntry> entries = idx.ttab.get(en.getKey());
+				entries.inflate();
+				assertTrue(entries.size() == en.getValue());
+				residency.touchValue(idx.ttab, en.getKey(), entries);
+				assertTrue(residency.size() <= 4);
+			}
+		}
+		assertFalse(idx.ttab.isLive());
+		System.out.print("inflated all terms separately in " + timeDiff() + " ms, ");
+
+		idx.ttab.inflate();
+		assertTrue(idx.ttab.isLive());
+		assertTrue(idx.ttab.size() == sizes.size());
+		System.out.println("re-inflated in " + timeDiff() + " ms");
+	}
+
+	/**
+	** Looks up every term under some random prefixes in a deflated index, and
+	** checks that only part of the index was pulled to do so.
+	*/
+	public void testPrefix() throws TaskAbortException, InterruptedException {
+		newTestSkeleton();
+		SortedMap<String, Integer> sizes = new TreeMap<String, Integer>();
+		for (int i=0; i<index_size<<2; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			sizes.put(key, fillEntrySet(key, entries));
+			idx.ttab.put(key, entries);
+		}
+		// two terms that share a page, which should come back as one entry
+		TermPageEntry shared = Generators.rndEntry("shareda");
+		SkeletonBTreeSet<TermEntry> sharedset = makeEntryTree();
+		sharedset.add(shared);
+		sharedset.add(Generators.rndEntry("shareda"));
+		idx.ttab.put("shareda", sharedset);
+		sharedset = makeEntryTree();
+		sharedset.add(new TermPageEntry("sharedb", shared.rel/2, shared.page, null));
+		idx.ttab.put("sharedb", sharedset);
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		assertTrue(idx.ttab.isBare());
+		System.out.print(sizes.size() + " keys generated and deflated in " + timeDiff() + " ms, ");
+
+		for (int i=0; i<0x10; ++i) {
+			String prefix = Generators.rndKey().substring(0, 2);
+			int max = rand.nextInt(4) + 1;
+			Execution<Set<TermEntry>> request = idx.getTermEntriesForPrefix(prefix, max);
+			request.join();
+
+			int expected = 0, terms = 0;
+			for (Map.Entry<String, Integer> en: sizes.tailMap(prefix).entrySet()) {
+				if (!en.getKey().startsWith(prefix) || terms == max) { break; }
+				expected += en.getValue();
+				++terms;
+			}
+			assertTrue(request.getResult().size() == expected);
+		}
+
+		Execution<Set<TermEntry>> request = idx.getTermEntriesForPrefix("shared");
+		request.join();
+		assertEquals(2, request.getResult().size());
+		boolean found = false;
+		for (TermEntry en: request.getResult()) {
+			assertEquals("shared*", en.subj);
+			if (en.equalsTarget(shared)) {
+				assertEquals(shared.rel, en.rel);
+				found = true;
+			}
+		}
+		assertTrue(found);
+		assertFalse(idx.ttab.isLive());
+		System.out.println("looked up prefixes in " + timeDiff() + " ms");
+	}
+
+	/**
+	** Removes about half of the remaining terms in each round, along with some
+	** terms that aren't in the index, and removes half of the entries of some
+	** other terms. The last round removes every term, which should collapse
+	** the tree back down to an empty root.
+	*/
+	public void testBatchedRemove() throws TaskAbortException {
+		newTestSkeleton();
+		fillRootTree(idx.ttab);
+		final Map<String, SortedSet<TermEntry>> origtrees = new TreeMap<String, SortedSet<TermEntry>>();
+		for (Map.Entry<String, SkeletonBTreeSet<TermEntry>> en: idx.ttab.entrySet()) {
+			origtrees.put(en.getKey(), new TreeSet<TermEntry>(en.getValue()));
+		}
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		assertTrue(idx.ttab.isBare());
+
+		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo = new
+		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> entry) throws TaskAbortException {
+				SortedSet<TermEntry> orig = origtrees.get(entry.getKey());
+				SortedSet<TermEntry> rem = new TreeSet<TermEntry>();
+				int i = 0;
+				for (TermEntry e: orig) {
+					if ((i++ & 1) == 0) { rem.add(e); }
+				}
+				orig.removeAll(rem);
+				SkeletonBTreeSet<TermEntry> tree = entry.getValue();
+				tree.update(new TreeSet<TermEntry>(), rem);
+				assertTrue(tree.isBare());
+			}
+		};
+
+		for (int r=0; r<4; ++r) {
+			SortedSet<String> putkey = new TreeSet<String>();
+			SortedSet<String> remkey = new TreeSet<String>();
+			for (String key: origtrees.keySet()) {
+				if (r == 3 || rand.nextInt(2) == 0) {
+					remkey.add(key);
+				} else if (rand.nextInt(4) == 0) {
+					putkey.add(key);
+				}
+			}
+			for (int i=0; i<0x10; ++i) {
+				String key = Generators.rndKey();
+				if (!origtrees.containsKey(key)) { remkey.add(key); }
+			}
+			origtrees.keySet().removeAll(remkey);
+
+			idx.ttab.update(putkey, remkey, clo);
+			assertTrue(idx.ttab.isBare());
+			assertEquals(origtrees.size(), idx.ttab.size());
+			PushTask<ProtoIndex> task1 = new PushTask<ProtoIndex>(idx);
+			srl.push(task1);
+			System.out.print(remkey.size() + " terms removed in " + timeDiff() + " ms, ");
+
+			PullTask<ProtoIndex> task2 = new PullTask<ProtoIndex>(task1.meta);
+			srl.pull(task2);
+			ProtoIndex copy = task2.data;
+			copy.ttab.inflate();
+			for (SkeletonBTreeSet<TermEntry> entries: copy.ttab.values()) {
+				entries.inflate();
+			}
+			assertTrue(origtrees.equals(copy.ttab));
+			System.out.println(copy.ttab.size() + " terms left.");
+		}
+		assertTrue(idx.ttab.isEmpty());
+	}
+
+	/**
+	** Times small merges into trees of increasing height. Each update adds the
+	** same number of keys, so any growth in the time taken is due to the extra
+	** levels of the tree that need to be pulled and pushed.
+	*/
+	public void testUpdateLatency() throws TaskAbortException {
+		if (!benchmark) { return; }
+		final int rounds = 4;
+		final int update_size = 0x08;
+
+		System.out.println("Benchmarking update() latency against tree height, " + rounds + " rounds of " + update_size + " keys per tree");
+		for (int n=node_size<<1; n<=index_size<<4; n<<=2) {
+			newTestSkeleton();
+			for (int i=0; i<n; ++i) {
+				String key = Generators.rndKey();
+				SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+				entries.add(Generators.rndEntry(key));
+				idx.ttab.put(key, entries);
+			}
+			for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+				entries.deflate();
+			}
+			idx.ttab.deflate();
+			assertTrue(idx.ttab.isBare());
+			int height = idx.ttab.heightEstimate();
+
+			Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo = new
+			Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+				/*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> entry) throws TaskAbortException {
+					SkeletonBTreeSet<TermEntry> tree = entry.getValue();
+					if (tree == null) {
+						entry.setValue(tree = makeEntryTree());
+					}
+					SortedSet<TermEntry> add = new TreeSet<TermEntry>();
+					add.add(Generators.rndEntry(entry.getKey()));
+					tree.update(add, null);
+				}
+			};
+
+			timeDiff();
+			for (int r=0; r<rounds; ++r) {
+				SortedSet<String> putkey = new TreeSet<String>();
+				for (int i=0; i<update_size; ++i) {
+					putkey.add(Generators.rndKey());
+				}
+				idx.ttab.update(putkey, null, clo);
+				assertTrue(idx.ttab.isBare());
+			}
+			long t = timeDiff();
+			System.out.println("height " + height + " (" + idx.ttab.size() + " keys): " + (t/rounds) + " ms per update");
+		}
+	}
+
 	public void testProgress() throws TaskAbortException {
 		if (disabled_progress) { return; }
 		newTestSkeleton();
@@ -353,4 +583,81 @@ public class BIndexTest extends TestCase {
 
 	}
 
+	/**
+	** Adds entries through {@link ProtoIndex.UpdateHandler} in a few rounds,
+	** searching for earlier terms whilst each update runs, and checks the
+	** index pushed by each round.
+	*/
+	public void testUpdateHandler() throws TaskAbortException, InterruptedException {
+		newTestSkeleton();
+		Map<String, SortedSet<TermEntry>> origtrees = new TreeMap<String, SortedSet<TermEntry>>();
+		for (int r=0; r<3; ++r) {
+			List<TermEntry> put = new ArrayList<TermEntry>();
+			for (int i=0; i<index_size; ++i) {
+				String key = Generators.rndKey();
+				SortedSet<TermEntry> entries = new TreeSet<TermEntry>();
+				fillEntrySet(key, entries);
+				put.addAll(entries);
+			}
+			Map<String, Set<TermEntry>> before = new HashMap<String, Set<TermEntry>>();
+			for (String key: origtrees.keySet()) {
+				if (rand.nextInt(4) == 0) { before.put(key, new TreeSet<TermEntry>(origtrees.get(key))); }
+			}
+
+			ProtoIndex.UpdateHandler update = (ProtoIndex.UpdateHandler)idx.putTermEntries(put);
+			Map<String, Execution<Set<TermEntry>>> searches = new HashMap<String, Execution<Set<TermEntry>>>();
+			for (String key: before.keySet()) { searches.put(key, idx.getTermEntries(key)); }
+			update.join();
+			assertNotNull(update.getRootMeta());
+
+			for (TermEntry en: put) {
+				SortedSet<TermEntry> entries = origtrees.get(en.subj);
+				if (entries == null) { origtrees.put(en.subj, entries = new TreeSet<TermEntry>()); }
+				entries.add(en);
+			}
+			// searches see the index from either before or after the update
+			for (Map.Entry<String, Execution<Set<TermEntry>>> en: searches.entrySet()) {
+				en.getValue().join();
+				Set<TermEntry> result = en.getValue().getResult();
+				assertTrue(result.containsAll(before.get(en.getKey())));
+				assertTrue(origtrees.get(en.getKey()).containsAll(result));
+			}
+
+			PullTask<ProtoIndex> task = new PullTask<ProtoIndex>(update.getRootMeta());
+			srl.pull(task);
+			ProtoIndex copy = task.data;
+			copy.ttab.inflate();
+			for (SkeletonBTreeSet<TermEntry> entries: copy.ttab.values()) {
+				entries.inflate();
+			}
+			assertTrue(origtrees.equals(copy.ttab));
+			System.out.println(put.size() + " entries added in " + timeDiff() + " ms, " + copy.ttab.size() + " terms in index.");
+		}
+	}
+
+	/**
+	** Reads the local entries of a node of a B-tree of the uri table, written
+	** with the {@link FreenetURI}s themselves as keys by older versions.
+	*/
+	public void testOldURIFormat() throws DataFormatException, java.net.MalformedURLException {
+		FreenetURI uri = new FreenetURI("CHK@yeah");
+		URIEntry entry = new URIEntry(uri);
+		Map<Object, Object> old = new LinkedHashMap<Object, Object>();
+		old.put(uri, entry);
+		SkeletonTreeMap<FreenetURI, URIEntry> map = ProtoIndexComponentSerialiser.uri_data_mtr.rev((Map)old);
+		assertTrue(map.containsKey(uri));
+		assertEquals(1, map.size());
+
+		// it is written back with the string form of the key, which reads the same
+		Map<String, Object> intm = ProtoIndexComponentSerialiser.uri_data_mtr.app(map);
+		assertEquals(Collections.singleton(uri.toString()), intm.keySet());
+		assertEquals(map.keySet(), ProtoIndexComponentSerialiser.uri_data_mtr.rev(intm).keySet());
+
+		old.put(Integer.valueOf(0), entry);
+		try {
+			ProtoIndexComponentSerialiser.uri_data_mtr.rev((Map)old);
+			fail("key is neither a FreenetURI nor a String");
+		} catch (DataFormatException e) { }
+	}
+
 }
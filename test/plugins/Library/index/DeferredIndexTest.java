@@ -0,0 +1,132 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.Index;
+import plugins.Library.PrefixIndex;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+
+public class DeferredIndexTest extends TestCase {
+
+	static class Task<V> extends AbstractExecution<V> {
+		Task(String subj) { super(subj); }
+		void finish(V result) { setResult(result); }
+		void abort() { setError(new TaskAbortException("aborted", null)); }
+		@Override public String getStatus() { return "Running"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(0, 1); }
+	}
+
+	/**
+	** Records the lookups made on it, without finishing them.
+	*/
+	static class TestIndex implements PrefixIndex {
+		final List<Task<Set<TermEntry>>> lookups = new ArrayList<Task<Set<TermEntry>>>();
+		/*@Override**/ public Execution<Set<TermEntry>> getTermEntries(String term) {
+			Task<Set<TermEntry>> lookup = new Task<Set<TermEntry>>(term);
+			lookups.add(lookup);
+			return lookup;
+		}
+		/*@Override**/ public Execution<Set<TermEntry>> getTermEntriesForPrefix(String prefix) {
+			return getTermEntries(prefix + "*");
+		}
+		/*@Override**/ public Execution<URIEntry> getURIEntry(FreenetURI uri) {
+			throw new UnsupportedOperationException("not implemented");
+		}
+	}
+
+	public Set<TermEntry> makeEntries(String term) {
+		Set<TermEntry> entries = new HashSet<TermEntry>();
+		entries.add(new TermTermEntry(term, 1.0f, "related"));
+		return entries;
+	}
+
+	public void testQueuedUntilRoot() throws TaskAbortException {
+		Task<TestIndex> root = new Task<TestIndex>("root");
+		DeferredIndex<TestIndex> index = new DeferredIndex<TestIndex>(root);
+		Execution<Set<TermEntry>> req = index.getTermEntries("freenet");
+		Execution<Set<TermEntry>> preq = index.getTermEntriesForPrefix("free");
+		assertFalse(req.isDone());
+		assertNull(index.getIndex());
+		assertTrue(req.getStatus().startsWith("Loading index"));
+
+		// the queued requests are passed on once the root arrives
+		TestIndex real = new TestIndex();
+		root.finish(real);
+		assertSame(real, index.getIndex());
+		assertEquals(2, real.lookups.size());
+		assertEquals("freenet", real.lookups.get(0).getSubject());
+		assertEquals("free*", real.lookups.get(1).getSubject());
+		assertFalse(req.isDone());
+		assertEquals("Running", req.getStatus());
+
+		Set<TermEntry> entries = makeEntries("freenet");
+		real.lookups.get(0).finish(entries);
+		assertTrue(req.isDone());
+		assertEquals(entries, req.getResult());
+		assertFalse(preq.isDone());
+
+		// requests made after the root arrives are passed on straight away
+		Execution<Set<TermEntry>> late = index.getTermEntries("privacy");
+		assertEquals(3, real.lookups.size());
+		real.lookups.get(2).abort();
+		try {
+			late.getResult();
+			fail("lookup was aborted");
+		} catch (TaskAbortException e) { }
+	}
+
+	public void testFailOnRootAbort() {
+		Task<TestIndex> root = new Task<TestIndex>("root");
+		DeferredIndex<TestIndex> index = new DeferredIndex<TestIndex>(root);
+		Execution<Set<TermEntry>> req = index.getTermEntries("freenet");
+		Execution<Set<TermEntry>> preq = index.getTermEntriesForPrefix("free");
+		root.abort();
+
+		for (Execution<Set<TermEntry>> r: new Execution[]{req, preq, index.getTermEntries("privacy")}) {
+			try {
+				r.isDone();
+				fail("root was aborted");
+			} catch (TaskAbortException e) { }
+			try {
+				r.getParts();
+				fail("root was aborted");
+			} catch (TaskAbortException e) { }
+		}
+		try {
+			index.getIndex();
+			fail("root was aborted");
+		} catch (TaskAbortException e) { }
+	}
+
+	public void testPrefixOnPlainIndex() {
+		Task<Index> root = new Task<Index>("root");
+		DeferredIndex<Index> index = new DeferredIndex<Index>(root);
+		Execution<Set<TermEntry>> preq = index.getTermEntriesForPrefix("free");
+		root.finish(new Index() {
+			/*@Override**/ public Execution<Set<TermEntry>> getTermEntries(String term) {
+				throw new UnsupportedOperationException("not implemented");
+			}
+			/*@Override**/ public Execution<URIEntry> getURIEntry(FreenetURI uri) {
+				throw new UnsupportedOperationException("not implemented");
+			}
+		});
+		try {
+			preq.getResult();
+			fail("index does not support prefix queries");
+		} catch (TaskAbortException e) { }
+	}
+
+}
@@ -0,0 +1,89 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class PositionMapTest extends TestCase {
+
+	final Random rand = new Random();
+
+	public void testCopyOf() {
+		for (int n=0; n<0x100; n+=7) {
+			Map<Integer, String> m = new HashMap<Integer, String>();
+			for (int i=0; i<n; ++i) {
+				m.put(rand.nextInt(0x1000) - 0x100, (rand.nextInt(3) == 0)? "frag" + i: null);
+			}
+			PositionMap p = PositionMap.copyOf(m);
+			assertEquals(m, p);
+			assertEquals(p, m);
+			assertEquals(m.hashCode(), p.hashCode());
+			assertEquals(new ArrayList<Integer>(new TreeMap<Integer, String>(m).keySet()), new ArrayList<Integer>(p.keySet()));
+			for (int i=-0x100; i<0xF00; ++i) {
+				assertEquals(m.containsKey(i), p.containsKey(i));
+				assertEquals(m.get(i), p.get(i));
+			}
+			assertSame(p, PositionMap.copyOf(p));
+		}
+		assertSame(PositionMap.EMPTY, PositionMap.copyOf(null));
+	}
+
+	public void testFromArrays() {
+		PositionMap p = PositionMap.fromArrays(new int[]{5, 3, 5, 1, 3}, null);
+		assertEquals(3, p.size());
+		assertEquals(1, p.positionAt(0));
+		assertEquals(3, p.positionAt(1));
+		assertEquals(5, p.positionAt(2));
+		assertFalse(p.hasFragments());
+
+		// last one wins, as for Map.put
+		p = PositionMap.fromArrays(new int[]{5, 3, 5}, new String[]{"a", "b", "c"});
+		assertEquals(2, p.size());
+		assertEquals("b", p.get(3));
+		assertEquals("c", p.get(5));
+
+		// all-null fragments are dropped
+		p = PositionMap.fromArrays(new int[]{1, 2}, new String[]{null, null});
+		assertFalse(p.hasFragments());
+		assertTrue(p.containsKey(2));
+		assertNull(p.get(2));
+	}
+
+	public void testSubset() {
+		PositionMap p = PositionMap.fromArrays(new int[]{2, 4, 6, 8}, new String[]{"a", null, "c", null});
+		PositionMap q = p.subset(new int[]{1, 3}, 2);
+		assertEquals(2, q.size());
+		assertEquals(4, q.positionAt(0));
+		assertEquals(8, q.positionAt(1));
+		assertFalse(q.hasFragments());
+		q = p.subset(new int[]{0, 2}, 2);
+		assertEquals("c", q.get(6));
+		assertEquals(-1, p.indexOf(1));
+		assertEquals(-5, p.indexOf(9));
+		assertEquals(3, p.indexOf(8));
+	}
+
+	public void testImmutable() {
+		PositionMap p = PositionMap.fromArrays(new int[]{1}, null);
+		try {
+			p.put(2, null);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			p.entrySet().iterator().next().setValue("x");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.Set;
+import java.util.HashSet;
+
+public class TermEntryCacheTest extends TestCase {
+
+	static class Lookup extends AbstractExecution<Set<TermEntry>> {
+		Lookup(String term) { super(term); }
+		void finish(Set<TermEntry> entries) { setResult(entries); }
+		void abort() { setError(new TaskAbortException("aborted", null)); }
+		@Override public String getStatus() { return "Looking up"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(0, 1); }
+	}
+
+	public Set<TermEntry> makeEntries(String term, int n) {
+		Set<TermEntry> entries = new HashSet<TermEntry>();
+		for (int i=0; i<n; ++i) {
+			entries.add(new TermTermEntry(term, 1.0f/(i+1), "related" + i));
+		}
+		return entries;
+	}
+
+	public void testSharedLookup() throws TaskAbortException {
+		TermEntryCache cache = new TermEntryCache(0x10, Long.MAX_VALUE);
+		assertNull(cache.get("USK@x/1", "0", "freenet"));
+
+		Lookup req = new Lookup("freenet");
+		cache.put("USK@x/1", "0", req);
+		// running lookups are shared
+		assertSame(req, cache.get("USK@x/1", "0", "freenet"));
+		assertNull(cache.get("USK@x/1", "0", "privacy"));
+		assertNull(cache.get("USK@x/2", "0", "freenet"));
+
+		Set<TermEntry> entries = makeEntries("freenet", 8);
+		req.finish(entries);
+		Execution<Set<TermEntry>> hit = cache.get("USK@x/1", "0", "freenet");
+		assertNotSame(req, hit);
+		assertTrue(hit.isDone());
+		assertEquals(entries, hit.getResult());
+		assertEquals(1, cache.size());
+
+		// a different edition of the same index misses, and drops the old result
+		assertNull(cache.get("USK@x/1", "1", "freenet"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.estimatedBytes());
+	}
+
+	public void testAbortedLookupIsNotCached() {
+		TermEntryCache cache = new TermEntryCache(0x10, Long.MAX_VALUE);
+		Lookup req = new Lookup("freenet");
+		cache.put("CHK@a", "0", req);
+		req.abort();
+		assertNull(cache.get("CHK@a", "0", "freenet"));
+		assertEquals(0, cache.size());
+	}
+
+	public void testEviction() {
+		TermEntryCache cache = new TermEntryCache(4, Long.MAX_VALUE);
+		for (int i=0; i<4; ++i) {
+			Lookup req = new Lookup("term" + i);
+			cache.put("CHK@a", "0", req);
+			req.finish(makeEntries("term" + i, 1));
+		}
+		// touch the first, so that the second is the least recently used
+		assertNotNull(cache.get("CHK@a", "0", "term0"));
+		Lookup req = new Lookup("term4");
+		cache.put("CHK@a", "0", req);
+		req.finish(makeEntries("term4", 1));
+		assertEquals(4, cache.size());
+		assertNotNull(cache.get("CHK@a", "0", "term0"));
+		assertNull(cache.get("CHK@a", "0", "term1"));
+
+		long one = TermEntryCache.RESULT_BYTES + 4 * TermEntryCache.ENTRY_BYTES;
+		cache = new TermEntryCache(0x10, 2 * one);
+		for (int i=0; i<3; ++i) {
+			req = new Lookup("term" + i);
+			cache.put("CHK@a", "0", req);
+			req.finish(makeEntries("term" + i, 4));
+		}
+		assertEquals(2, cache.size());
+		assertEquals(2 * one, cache.estimatedBytes());
+		assertNull(cache.get("CHK@a", "0", "term0"));
+
+		cache.invalidate("CHK@a");
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.estimatedBytes());
+	}
+
+}
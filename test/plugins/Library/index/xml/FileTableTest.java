@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+public class FileTableTest extends TestCase {
+
+	final Random rand = new Random();
+
+	/**
+	** Builds a subindex in the format written by XMLSpider, with a {@code
+	** <files>} section big enough to span several buffers.
+	*/
+	public byte[] makeSubIndex(int files) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sub_index>\n");
+		sb.append("<entries value=\"2\"/>\n<header><title>test &amp; index</title></header>\n");
+		sb.append("<files totalFileCount=\"").append(files * 10).append("\">\n");
+		for (int i=0; i<files; ++i) {
+			sb.append("<file id=\"").append(i).append("\" key=\"CHK@").append(Integer.toHexString(rand.nextInt()))
+			  .append(",x/page").append(i).append(".html\" title=\"Page &lt;").append(i).append("&gt; \u00e9 > &#x41;\" wordCount=\"")
+			  .append(i + 1).append("\"/>\n");
+		}
+		sb.append("</files>\n<keywords>\n<word v=\"test\" fileCount=\"2\"><file id=\"3\">1,5</file><file id=\"7\">2</file></word>\n");
+		sb.append("</keywords>\n</sub_index>\n");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	public String read(InputStream is, int chunk) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[chunk];
+		int n;
+		while ((n = is.read(buf, 0, chunk)) >= 0) {
+			out.write(buf, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+
+	public void testFilterAndLookup() throws IOException {
+		byte[] xml = makeSubIndex(0x1000);
+		String full = new String(xml, "UTF-8");
+		String expect = full.substring(0, full.indexOf("<files ")) + full.substring(full.indexOf("</files>") + 8);
+
+		for (int chunk: new int[]{1, 7, 0x1000}) {
+			FileTable table = new FileTable();
+			assertEquals(expect, read(table.filter(new ByteArrayInputStream(xml)), chunk));
+			assertTrue(table.isComplete());
+			assertEquals(0x1000, table.size());
+			assertEquals(0x1000 * 10, table.getTotalFileCount());
+			// second pass skips the already-indexed section
+			assertEquals(expect, read(table.filter(new ByteArrayInputStream(xml)), chunk));
+			assertEquals(0x1000, table.size());
+		}
+
+		FileTable table = new FileTable();
+		read(table.filter(new ByteArrayInputStream(xml)), 0x100);
+		Map<String, Map<String, String>> found = table.lookup(new ByteArrayInputStream(xml), Arrays.asList("3", "4000", "no such id", "7"));
+		assertEquals(3, found.size());
+		assertEquals("Page <3> \u00e9 > A", found.get("3").get("title"));
+		assertEquals("8", found.get("7").get("wordCount"));
+		assertTrue(found.get("4000").get("key").endsWith(",x/page4000.html"));
+	}
+
+	public void testNoFiles() throws IOException {
+		byte[] xml = "<?xml version=\"1.0\"?><sub_index><files/><keywords/></sub_index>".getBytes("UTF-8");
+		FileTable table = new FileTable();
+		assertEquals("<?xml version=\"1.0\"?><sub_index><keywords/></sub_index>", read(table.filter(new ByteArrayInputStream(xml)), 0x10));
+		assertTrue(table.isComplete());
+		assertEquals(0, table.size());
+		assertEquals(-1, table.getTotalFileCount());
+	}
+
+	public void testParseAttributes() throws IOException {
+		byte[] tag = "<file id='1' key = \"a'b\"\ttitle=\"x&amp;&#65;&quot;\r\ny\"/>".getBytes("UTF-8");
+		Map<String, String> attrs = FileTable.parseAttributes(tag, tag.length);
+		assertEquals(3, attrs.size());
+		assertEquals("1", attrs.get("id"));
+		assertEquals("a'b", attrs.get("key"));
+		assertEquals("x&A\" y", attrs.get("title"));
+	}
+
+}
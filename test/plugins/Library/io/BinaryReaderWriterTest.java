@@ -0,0 +1,102 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.serial.Packer;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.TermIndexEntry;
+import plugins.Library.index.TermTermEntry;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Date;
+import java.util.Random;
+import java.io.*;
+
+public class BinaryReaderWriterTest extends TestCase {
+
+	final BinaryReaderWriter rw = new BinaryReaderWriter();
+
+	public Object roundTrip(Object o) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		rw.writeObject(o, bo);
+		return rw.readObject(new ByteArrayInputStream(bo.toByteArray()));
+	}
+
+	public void testNode() throws IOException {
+		FreenetURI u1 = new FreenetURI("CHK@9eDo5QWLQcgSuDh1meTm96R4oE7zpoMBuV15jLiZTps,3HJaHbdW~-MtC6YsSkKn6I0DTG9Z1gKDGgtENhHx82I,AAIC--8");
+		FreenetURI u2 = new FreenetURI("CHK@MIh5-viJQrPkde5gmRZzqjBrqOuh~Wbjg02uuXJUzgM,rKDavdwyVF9Z0sf5BMRZsXj7yiWPFUuewoe0CPesvXE,AAIC--8");
+
+		Map<Integer, String> pos = new HashMap<Integer, String>();
+		pos.put(3, "some"); pos.put(170, "context"); pos.put(16, "some");
+		List<TermEntry> entries = new ArrayList<TermEntry>();
+		entries.add(new TermTermEntry("test", 0.8f, "lol"));
+		entries.add(new TermIndexEntry("test", 0.5f, u2));
+		entries.add(new TermPageEntry("test", 0.25f, u1, pos));
+		entries.add(new TermPageEntry("test", 0.25f, u2, "title", null));
+
+		Map<Object, Object> subnodes = new LinkedHashMap<Object, Object>();
+		subnodes.put(u1, 1000);
+		subnodes.put(u2, 2000);
+
+		Map<String, Object> node = new LinkedHashMap<String, Object>();
+		node.put("lkey", "aardvark");
+		node.put("rkey", null);
+		node.put("entries", entries);
+		node.put("subnodes", subnodes);
+		node.put("bin", new Packer.BinInfo(u1, 123));
+		node.put("serialVersionUID", 0xF23194B7F015560CL);
+		node.put("modified", new Date(1234567890123L));
+		node.put("extra", Arrays.asList(-1, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, 1.5, 2.5f, true, false));
+
+		Object o = roundTrip(node);
+		assertEquals(node, o);
+		// order of maps must be preserved, as for YAML
+		assertEquals(new ArrayList<String>(node.keySet()), new ArrayList<Object>(((Map)o).keySet()));
+		assertEquals(new ArrayList<Object>(subnodes.keySet()), new ArrayList<Object>(((Map)((Map)o).get("subnodes")).keySet()));
+		TermPageEntry p = (TermPageEntry)((List)((Map)o).get("entries")).get(2);
+		assertEquals(pos, p.pos);
+		assertEquals("title", ((TermPageEntry)((List)((Map)o).get("entries")).get(3)).title);
+	}
+
+	public void testStringTable() throws IOException {
+		List<String> terms = new ArrayList<String>();
+		for (int i=0; i<0x100; ++i) { terms.add("repeated-term"); }
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		rw.writeObject(terms, bo);
+		// each repeat should only take a tag and a one-byte reference
+		assertTrue(bo.size() < 0x100 * 2 + 0x20);
+		assertEquals(terms, rw.readObject(new ByteArrayInputStream(bo.toByteArray())));
+	}
+
+	public void testVarints() throws IOException {
+		Random rand = new Random();
+		for (int i=0; i<0x1000; ++i) {
+			int n = rand.nextInt() >> rand.nextInt(32);
+			long m = rand.nextLong() >> rand.nextInt(64);
+			assertEquals(n, BinaryReaderWriter.unzigzag(BinaryReaderWriter.zigzag(n)));
+			assertEquals(m, BinaryReaderWriter.unzigzag(BinaryReaderWriter.zigzag(m)));
+			assertEquals(Arrays.asList(n, m), roundTrip(Arrays.asList(n, m)));
+		}
+	}
+
+	public void testBadStream() throws IOException {
+		try {
+			rw.readObject(new ByteArrayInputStream("lkey: aardvark\n".getBytes("UTF-8")));
+			fail();
+		} catch (DataFormatException e) {
+			// expected
+		}
+	}
+
+}
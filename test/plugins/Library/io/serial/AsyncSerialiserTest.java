@@ -0,0 +1,136 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.concurrent.ObjectProcessor;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2;
+import static plugins.Library.util.func.Tuples.X3;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class AsyncSerialiserTest extends TestCase {
+
+	/**
+	** Fills in each task with its own metadata.
+	*/
+	static class SyncArchiver implements LiveArchiver<Object, SimpleProgress> {
+		public void pull(PullTask<Object> t) { t.data = t.meta; }
+		public void push(PushTask<Object> t) { t.meta = t.data; }
+		public void pullLive(PullTask<Object> t, SimpleProgress p) { pull(t); }
+		public void pushLive(PushTask<Object> t, SimpleProgress p) { push(t); }
+	}
+
+	/**
+	** Fills in each task with its own metadata, from a separate thread, once
+	** {@link #release()} has been called, like a node completing requests.
+	*/
+	static class CallbackArchiver extends SyncArchiver implements AsyncArchiver<Object, SimpleProgress> {
+		final List<Thread> waiting = new ArrayList<Thread>();
+		final Object gate = new Object();
+		boolean released;
+		int started;
+
+		void release() {
+			synchronized (gate) { released = true; gate.notifyAll(); }
+		}
+
+		public void pullAsync(final PullTask<Object> t, SimpleProgress p, final SafeClosure<X2<PullTask<Object>, TaskAbortException>> done) {
+			synchronized (gate) { ++started; }
+			Thread th = new Thread() {
+				@Override public void run() {
+					synchronized (gate) {
+						while (!released) { try { gate.wait(); } catch (InterruptedException e) { } }
+					}
+					pull(t);
+					done.invoke(X2(t, (TaskAbortException)null));
+				}
+			};
+			synchronized (waiting) { waiting.add(th); }
+			th.start();
+		}
+		public void pushAsync(PushTask<Object> t, SimpleProgress p, SafeClosure<X2<PushTask<Object>, TaskAbortException>> done) {
+			push(t);
+			done.invoke(X2(t, (TaskAbortException)null));
+		}
+	}
+
+	/**
+	** Passes each task on to its child.
+	*/
+	static class PassSerialiser extends AsyncSerialiser<Object, SimpleProgress>
+	implements Serialiser.Composite<LiveArchiver<Object, SimpleProgress>> {
+		final LiveArchiver<Object, SimpleProgress> subsrl;
+		PassSerialiser(LiveArchiver<Object, SimpleProgress> s) {
+			super(new ProgressTracker<Object, SimpleProgress>(SimpleProgress.class));
+			subsrl = s;
+		}
+		public LiveArchiver<Object, SimpleProgress> getChildSerialiser() { return subsrl; }
+		public void pullAsync(PullTask<Object> task, SimpleProgress p, SafeClosure<X2<PullTask<Object>, TaskAbortException>> done) {
+			pullChild(subsrl, task, p, done);
+		}
+		public void pushAsync(PushTask<Object> task, SimpleProgress p, SafeClosure<X2<PushTask<Object>, TaskAbortException>> done) {
+			pushChild(subsrl, task, p, done);
+		}
+	}
+
+	public <E> ObjectProcessor<PullTask<Object>, E, TaskAbortException> makePullProcessor(AsyncSerialiser<Object, SimpleProgress> srl, int outsize) {
+		return srl.pullSchedule(
+			new LinkedBlockingQueue<PullTask<Object>>(),
+			new ArrayBlockingQueue<X2<PullTask<Object>, TaskAbortException>>(outsize),
+			new HashMap<PullTask<Object>, E>()
+		);
+	}
+
+	public void testConcurrencyFollowsChild() {
+		PassSerialiser sync = new PassSerialiser(new SyncArchiver());
+		assertFalse(sync.isAsync());
+		ObjectProcessor<PullTask<Object>, Object, TaskAbortException> proc = makePullProcessor(sync, 1);
+		assertEquals(ObjectProcessor.maxconc, proc.getConcurrencyLimit().getMax());
+		proc.close();
+
+		PassSerialiser async = new PassSerialiser(new CallbackArchiver());
+		assertTrue(async.isAsync());
+		proc = makePullProcessor(async, 1);
+		assertEquals(AsyncSerialiser.ASYNC_CONCURRENCY, proc.getConcurrencyLimit().getMax());
+		proc.close();
+	}
+
+	public void testCallbacksWithFullOutput() throws Exception {
+		CallbackArchiver child = new CallbackArchiver();
+		ObjectProcessor<PullTask<Object>, Integer, TaskAbortException> proc = makePullProcessor(new PassSerialiser(child), 1);
+		int n = ObjectProcessor.initconc;
+		for (int i=0; i<n; ++i) { proc.submit(new PullTask<Object>("meta" + i), i); }
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			synchronized (child.gate) { if (child.started == n) { break; } }
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+		// every callback completes before anything is accepted, without blocking
+		// on the full output queue
+		child.release();
+		for (Thread th: child.waiting) {
+			th.join(10000);
+			assertFalse(th.isAlive());
+		}
+
+		for (int i=0; i<n; ++i) {
+			X3<PullTask<Object>, Integer, TaskAbortException> res = proc.accept();
+			assertNull(res._2);
+			assertEquals("meta" + res._1, res._0.data);
+		}
+		assertFalse(proc.hasPending());
+		proc.close();
+	}
+
+}
@@ -0,0 +1,120 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.BinaryReaderWriter;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class CachingArchiverTest extends TestCase {
+
+	/**
+	** Serves the same data for every pull, and counts the pulls.
+	*/
+	static class CountingArchiver implements LiveArchiver<Map<String, Object>, SimpleProgress> {
+		int pulls;
+		public void pull(PullTask<Map<String, Object>> t) { ++pulls; t.data = dataFor(t.meta); }
+		public void push(PushTask<Map<String, Object>> t) { }
+		public void pullLive(PullTask<Map<String, Object>> t, SimpleProgress p) { pull(t); }
+		public void pushLive(PushTask<Map<String, Object>> t, SimpleProgress p) { push(t); }
+	}
+
+	static Map<String, Object> dataFor(Object meta) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("meta", meta.toString());
+		m.put("size", 0x100);
+		return m;
+	}
+
+	File dir;
+
+	@Override public void setUp() {
+		dir = new File(System.getProperty("java.io.tmpdir"), "CachingArchiverTest-" + System.nanoTime());
+	}
+
+	@Override public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) { for (File f: files) { f.delete(); } }
+		dir.delete();
+	}
+
+	public void testHits() throws IOException, TaskAbortException {
+		CountingArchiver child = new CountingArchiver();
+		CachingArchiver<Map<String, Object>> arx = new CachingArchiver<Map<String, Object>>(child, new BinaryReaderWriter(), new CachingArchiver.Store(dir, 0x10000));
+
+		FreenetURI chk = new FreenetURI("CHK@9eDo5QWLQcgSuDh1meTm96R4oE7zpoMBuV15jLiZTps,3HJaHbdW~-MtC6YsSkKn6I0DTG9Z1gKDGgtENhHx82I,AAIC--8");
+		for (int i=0; i<3; ++i) {
+			PullTask<Map<String, Object>> t = new PullTask<Map<String, Object>>(chk);
+			arx.pullLive(t, null);
+			assertEquals(dataFor(chk), t.data);
+		}
+		assertEquals(1, child.pulls);
+
+		// a new store on the same directory still has the data
+		arx = new CachingArchiver<Map<String, Object>>(child, new BinaryReaderWriter(), new CachingArchiver.Store(dir, 0x10000));
+		PullTask<Map<String, Object>> t = new PullTask<Map<String, Object>>(chk);
+		arx.pull(t);
+		assertEquals(dataFor(chk), t.data);
+		assertEquals(1, child.pulls);
+
+		// mutable keys are never cached
+		FreenetURI usk = new FreenetURI("USK@5hH~39FtjA7A9~VXWtBKI~prUDTuJZURudDG0xFn3KA,GDgRGt5f6xqbmo-WraQtU54x4H~871Sho9Hz6hC-0RA,AQACAAE/Search/24/index.yml");
+		for (int i=0; i<3; ++i) {
+			arx.pullLive(new PullTask<Map<String, Object>>(usk), null);
+		}
+		assertEquals(4, child.pulls);
+	}
+
+	public void testCorrupt() throws IOException, TaskAbortException {
+		CountingArchiver child = new CountingArchiver();
+		CachingArchiver.Store store = new CachingArchiver.Store(dir, 0x10000);
+		CachingArchiver<Map<String, Object>> arx = new CachingArchiver<Map<String, Object>>(child, new BinaryReaderWriter(), store);
+
+		FreenetURI chk = new FreenetURI("CHK@MIh5-viJQrPkde5gmRZzqjBrqOuh~Wbjg02uuXJUzgM,rKDavdwyVF9Z0sf5BMRZsXj7yiWPFUuewoe0CPesvXE,AAIC--8");
+		arx.pullLive(new PullTask<Map<String, Object>>(chk), null);
+		String name = CachingArchiver.Store.hash(chk.toString());
+		assertTrue(store.contains(name));
+
+		FileOutputStream os = new FileOutputStream(new File(dir, name));
+		os.write(new byte[(int)store.size()]);
+		os.close();
+
+		PullTask<Map<String, Object>> t = new PullTask<Map<String, Object>>(chk);
+		arx.pullLive(t, null);
+		assertEquals(dataFor(chk), t.data);
+		assertEquals(2, child.pulls);
+	}
+
+	public void testEviction() throws IOException {
+		CachingArchiver.Store store = new CachingArchiver.Store(dir, 0x1000);
+		byte[] data = new byte[0x400];
+		for (int i=0; i<4; ++i) { store.put("e" + i, data); }
+		assertEquals(0x1000, store.size());
+
+		// touch e0, so that e1 is evicted instead
+		assertNotNull(store.get("e0"));
+		store.put("e4", data);
+		assertEquals(0x1000, store.size());
+		assertTrue(store.contains("e0"));
+		assertFalse(store.contains("e1"));
+		assertFalse(new File(dir, "e1").exists());
+
+		// too large to store at all
+		store.put("big", new byte[0x1001]);
+		assertFalse(store.contains("big"));
+		assertEquals(4, dir.listFiles().length);
+	}
+
+}
@@ -0,0 +1,72 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.io.File;
+import java.net.MalformedURLException;
+
+public class DecodedCacheTest extends TestCase {
+
+	static Map<String, Object> node(int entries) {
+		List<Integer> l = new ArrayList<Integer>();
+		for (int i=0; i<entries; ++i) { l.add(i); }
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("lkey", null);
+		m.put("entries", l);
+		return m;
+	}
+
+	public void testImmutable() throws MalformedURLException {
+		DecodedCache cache = new DecodedCache(0x100);
+		FreenetURI chk = new FreenetURI("CHK@9eDo5QWLQcgSuDh1meTm96R4oE7zpoMBuV15jLiZTps,3HJaHbdW~-MtC6YsSkKn6I0DTG9Z1gKDGgtENhHx82I,AAIC--8");
+		FreenetURI usk = new FreenetURI("USK@5hH~39FtjA7A9~VXWtBKI~prUDTuJZURudDG0xFn3KA,GDgRGt5f6xqbmo-WraQtU54x4H~871Sho9Hz6hC-0RA,AQACAAE/Search/24/index.yml");
+		File file = new File("node.yml");
+
+		cache.put(chk, node(4));
+		cache.put(usk, node(4));
+		cache.put("random-id", node(4));
+		cache.put(file, node(4));
+		assertEquals(node(4), cache.get(new FreenetURI(chk.toString())));
+		assertNull(cache.get(usk));
+		assertNull(cache.get("random-id"));
+		assertEquals(node(4), cache.get(new File("node.yml")));
+		assertEquals(2, cache.size());
+
+		try {
+			cache.get(chk).put("lkey", "x");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	public void testEviction() {
+		int w = DecodedCache.weigh(node(10));
+		assertEquals(1 + 1 + 11, w);
+		DecodedCache cache = new DecodedCache(w * 4);
+		for (int i=0; i<4; ++i) { cache.put(new File("n" + i), node(10)); }
+		assertEquals(w * 4, cache.weight());
+
+		// touch n0, so that n1 is dropped instead
+		assertNotNull(cache.get(new File("n0")));
+		cache.put(new File("n4"), node(10));
+		assertEquals(4, cache.size());
+		assertNotNull(cache.get(new File("n0")));
+		assertNull(cache.get(new File("n1")));
+
+		// too large to cache at all
+		cache.put(new File("big"), node(w * 4));
+		assertNull(cache.get(new File("big")));
+		assertEquals(w * 4, cache.weight());
+	}
+
+}
@@ -0,0 +1,98 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.BinaryReaderWriter;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class PackedFileArchiverTest extends TestCase {
+
+	File file;
+
+	@Override public void setUp() throws IOException {
+		file = File.createTempFile("PackedFileArchiverTest", BinaryReaderWriter.FILE_EXTENSION);
+	}
+
+	@Override public void tearDown() {
+		file.delete();
+		new File(file.getPath() + PackedFileArchiver.TABLE_EXTENSION).delete();
+	}
+
+	static Map<String, Object> dataFor(int i) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("id", i);
+		List<String> l = new ArrayList<String>();
+		for (int j=0; j<i; ++j) { l.add("entry " + j); }
+		m.put("entries", l);
+		return m;
+	}
+
+	public void testPushPull() throws IOException, TaskAbortException {
+		PackedFileArchiver<Map<String, Object>> arx = new PackedFileArchiver<Map<String, Object>>(new BinaryReaderWriter(), file);
+		List<Object> metas = new ArrayList<Object>();
+		for (int i=0; i<0x40; ++i) {
+			PushTask<Map<String, Object>> t = new PushTask<Map<String, Object>>(dataFor(i));
+			arx.push(t);
+			metas.add(t.meta);
+			// interleave pulls, so that later records need a new mapping
+			PullTask<Map<String, Object>> p = new PullTask<Map<String, Object>>(metas.get(i >> 1));
+			arx.pull(p);
+			assertEquals(dataFor(i >> 1), p.data);
+		}
+		// the segment was remapped each time, rather than a new one added
+		assertEquals(1, arx.segments.size());
+		arx.close();
+
+		// reopen, with the ids as a different type of number
+		arx = new PackedFileArchiver<Map<String, Object>>(new BinaryReaderWriter(), file);
+		assertEquals(0x40, arx.size());
+		for (int i=0x3F; i>=0; --i) {
+			PullTask<Map<String, Object>> p = new PullTask<Map<String, Object>>(((Number)metas.get(i)).longValue());
+			arx.pull(p);
+			assertEquals(dataFor(i), p.data);
+		}
+
+		try {
+			arx.pull(new PullTask<Map<String, Object>>(0x40));
+			fail();
+		} catch (TaskAbortException e) {
+			// expected
+		}
+		arx.close();
+	}
+
+	public void testInterrupted() throws IOException, TaskAbortException {
+		PackedFileArchiver<Map<String, Object>> arx = new PackedFileArchiver<Map<String, Object>>(new BinaryReaderWriter(), file);
+		for (int i=0; i<4; ++i) { arx.push(new PushTask<Map<String, Object>>(dataFor(i))); }
+		arx.close();
+
+		// a table entry which points past the end of the data
+		RandomAccessFile t = new RandomAccessFile(file.getPath() + PackedFileArchiver.TABLE_EXTENSION, "rw");
+		t.seek(t.length());
+		t.writeLong(file.length() + 0x100);
+		t.close();
+
+		arx = new PackedFileArchiver<Map<String, Object>>(new BinaryReaderWriter(), file);
+		assertEquals(4, arx.size());
+		PushTask<Map<String, Object>> task = new PushTask<Map<String, Object>>(dataFor(7));
+		arx.push(task);
+		assertEquals(4, task.meta);
+		PullTask<Map<String, Object>> p = new PullTask<Map<String, Object>>(task.meta);
+		arx.pull(p);
+		assertEquals(dataFor(7), p.data);
+		arx.close();
+	}
+
+}
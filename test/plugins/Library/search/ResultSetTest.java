@@ -0,0 +1,101 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermTermEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.*;
+
+public class ResultSetTest extends TestCase {
+
+	static class Task extends AbstractExecution<Set<TermEntry>> {
+		Task(String subj) { super(subj); }
+		void finish(Set<TermEntry> result) { setResult(result); }
+		@Override public String getStatus() { return "Running"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(0, 1); }
+	}
+
+	final public static int sz0 = 0x100;
+
+	final static Random rand = new Random();
+
+	/**
+	** Makes a finished request with an entry for each of the given related
+	** terms, with random relevances.
+	*/
+	public static Task makeRequest(String subject, Collection<String> terms) {
+		Set<TermEntry> entries = new HashSet<TermEntry>();
+		for (String term: terms) { entries.add(new TermTermEntry(subject, rand.nextFloat(), term)); }
+		Task task = new Task(subject);
+		task.finish(entries);
+		return task;
+	}
+
+	public static List<String> makeTerms(int lo, int hi) {
+		List<String> terms = new ArrayList<String>();
+		for (int i=lo; i<hi; ++i) { terms.add("term" + i); }
+		return terms;
+	}
+
+	/**
+	** Check that the ranking of the bounded result is the head of the ranking
+	** of the complete one.
+	*/
+	public void checkTopK(ResultOperation op, List<Execution<Set<TermEntry>>> requests, int k) throws TaskAbortException {
+		ResultSet all = new ResultSet("test", op, requests);
+		all.run();
+		ResultSet top = new ResultSet("test", op, requests, k);
+		top.run();
+		assertTrue(top.isDone());
+		assertEquals(k, top.getMaxResults());
+
+		List<TermEntry> ranking = top.getRanking();
+		List<TermEntry> expected = all.getRanking();
+		assertEquals(Math.min(k, expected.size()), ranking.size());
+		assertEquals(ranking.size(), top.size());
+		for (int i=0; i<ranking.size(); ++i) {
+			assertTrue(ranking.get(i).equalsTarget(expected.get(i)));
+			assertEquals(expected.get(i).rel, ranking.get(i).rel);
+			assertTrue(top.contains(ranking.get(i)));
+			if (i > 0) { assertTrue(ranking.get(i-1).rel >= ranking.get(i).rel); }
+		}
+	}
+
+	public void testTopK() throws TaskAbortException {
+		for (int k: new int[]{1, 0x10, sz0, sz0<<1}) {
+			List<Execution<Set<TermEntry>>> single = new ArrayList<Execution<Set<TermEntry>>>();
+			single.add(makeRequest("a", makeTerms(0, sz0)));
+			checkTopK(ResultOperation.SINGLE, single, k);
+
+			List<Execution<Set<TermEntry>>> requests = new ArrayList<Execution<Set<TermEntry>>>();
+			requests.add(makeRequest("a", makeTerms(0, sz0)));
+			requests.add(makeRequest("b", makeTerms(sz0>>1, sz0+(sz0>>1))));
+			checkTopK(ResultOperation.UNION, requests, k);
+			checkTopK(ResultOperation.INTERSECTION, requests, k);
+		}
+	}
+
+	public void testUnboundedKeepsAll() throws TaskAbortException {
+		List<Execution<Set<TermEntry>>> requests = new ArrayList<Execution<Set<TermEntry>>>();
+		requests.add(makeRequest("a", makeTerms(0, sz0)));
+		ResultSet all = new ResultSet("test", ResultOperation.SINGLE, requests);
+		all.run();
+		assertEquals(0, all.getMaxResults());
+		assertEquals(sz0, all.size());
+		assertEquals(sz0, all.getRanking().size());
+		try {
+			new ResultSet("test", ResultOperation.SINGLE, requests, -1);
+			fail("negative maxResults");
+		} catch (IllegalArgumentException e) { }
+	}
+
+}
@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import static plugins.Library.search.ResultSetTest.*;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.*;
+
+public class SearchTest extends TestCase {
+
+	@Override public void setUp() {
+		Search.setup(null, null);
+	}
+
+	/**
+	** Waits for the workers to combine a provisional ranking other than the
+	** given one.
+	*/
+	public List<TermEntry> waitForRanking(Search search, List<TermEntry> old) throws TaskAbortException, InterruptedException {
+		for (int i=0; i<0x400; ++i) {
+			List<TermEntry> ranking = search.getProvisionalResult();
+			if (ranking != null && ranking != old) { return ranking; }
+			Thread.sleep(10);
+		}
+		fail("provisional ranking was not combined");
+		return null;
+	}
+
+	public void testProvisionalResult() throws Exception {
+		Task a = new Task("a"), b = new Task("b");
+		List<Execution<Set<TermEntry>>> requests = new ArrayList<Execution<Set<TermEntry>>>();
+		requests.add(a);
+		requests.add(b);
+		Search search = new Search("a b", "test", requests, ResultOperation.UNION);
+		assertTrue(search.setMaxResults(0x10));
+		assertNull(search.getProvisionalResult());
+
+		// the first subsearch is ranked once, and the ranking kept until the
+		// next one completes
+		Task full = makeRequest("a", makeTerms(0, sz0));
+		a.finish(full.getResult());
+		List<TermEntry> first = waitForRanking(search, null);
+		assertEquals(0x10, first.size());
+		for (int i=1; i<first.size(); ++i) { assertTrue(first.get(i-1).rel >= first.get(i).rel); }
+		for (int i=0; i<4; ++i) { assertSame(first, search.getProvisionalResult()); }
+
+		b.finish(makeRequest("b", makeTerms(sz0, sz0<<1)).getResult());
+		while (!search.isDone()) { Thread.sleep(10); }
+		List<TermEntry> last = search.getProvisionalResult();
+		assertEquals(0x10, last.size());
+		assertEquals(0x10, search.getResult().size());
+		for (TermEntry en: last) { assertTrue(search.getResult().contains(en)); }
+	}
+
+	public void testNoProvisionalPhrase() throws Exception {
+		Task a = new Task("a"), b = new Task("b");
+		List<Execution<Set<TermEntry>>> requests = new ArrayList<Execution<Set<TermEntry>>>();
+		requests.add(a);
+		requests.add(b);
+		Search search = new Search("\"a b\"", "test", requests, ResultOperation.PHRASE);
+		a.finish(makeRequest("a", makeTerms(0, sz0)).getResult());
+		for (int i=0; i<4; ++i) {
+			assertNull(search.getProvisionalResult());
+			Thread.sleep(10);
+		}
+	}
+
+}
@@ -64,11 +64,50 @@ public class BTreeMapTest extends SortedMapTestSkeleton {
 			BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
 			testmap.putAll(backmap);
 			testmap.verifyTreeIntegrity();
+			assertTrue(testmap.size() == n);
 			//if (n<10) { System.out.println(testmap.toTreeString()); }
 		}
 
 	}
 
+	public void testStreamingBulkLoad() {
+
+		for (int node_min=2; node_min<=5; ++node_min) {
+			for (int n=0; n<0x200; ++n) {
+				SortedMap<String, String> backmap = new TreeMap<String, String>();
+				for (int i=0; i<n; ++i) {
+					String k = Generators.rndKey(), v = Generators.rndStr();
+					backmap.put(k, v);
+				}
+
+				BTreeMap<String, String> testmap = new BTreeMap<String, String>(node_min, backmap);
+				testmap.verifyTreeIntegrity();
+				assertTrue(testmap.size() == backmap.size());
+				assertTrue(testmap.equals(backmap));
+
+				// the tree should still work normally after loading
+				String k = Generators.rndKey();
+				testmap.put(k, k);
+				backmap.put(k, k);
+				testmap.remove(backmap.firstKey());
+				backmap.remove(backmap.firstKey());
+				testmap.verifyTreeIntegrity();
+				assertTrue(testmap.equals(backmap));
+			}
+		}
+
+		List<Map.Entry<Integer, Integer>> unsorted = new ArrayList<Map.Entry<Integer, Integer>>();
+		unsorted.add(Maps.$(2, 2));
+		unsorted.add(Maps.$(1, 1));
+		try {
+			new BTreeMap<Integer, Integer>(null, 2, unsorted.iterator());
+			fail("bulk-loading unsorted input should throw IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+	}
+
 	public void testNumericIndexes() {
 
 		BTreeMap<Integer, Integer> testmap = new BTreeMap<Integer, Integer>(0x40);
@@ -94,4 +133,57 @@ public class BTreeMapTest extends SortedMapTestSkeleton {
 		assertTrue(ts.last().equals("9faea63f"));
 	}
 
+
+	public void testNavigation() {
+		BTreeMap<Integer, Integer> testmap = new BTreeMap<Integer, Integer>(2);
+		TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+		for (int i=0; i<sz0; ++i) {
+			int k = Generators.rand.nextInt(sz0<<1);
+			testmap.put(k, i);
+			backmap.put(k, i);
+		}
+		for (int k=-1; k<=sz0<<1; ++k) {
+			assertEquals(floor(backmap.headMap(k+1)), testmap.floorKey(k));
+			assertEquals(floor(backmap.headMap(k)), testmap.lowerKey(k));
+			assertEquals(ceiling(backmap.tailMap(k)), testmap.ceilingKey(k));
+			assertEquals(ceiling(backmap.tailMap(k+1)), testmap.higherKey(k));
+		}
+	}
+
+	public void testRange() {
+		for (int n=2; n<5; ++n) {
+			BTreeMap<Integer, Integer> testmap = new BTreeMap<Integer, Integer>(n);
+			TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+			for (int i=0; i<sz0; ++i) {
+				int k = Generators.rand.nextInt(sz0<<1);
+				testmap.put(k, i);
+				backmap.put(k, i);
+			}
+			for (int i=0; i<0x100; ++i) {
+				int lo = Generators.rand.nextInt(sz0<<1), hi = lo + Generators.rand.nextInt(0x40) - 4;
+				List<Map.Entry<Integer, Integer>> got = new ArrayList<Map.Entry<Integer, Integer>>();
+				for (Map.Entry<Integer, Integer> en: testmap.range(lo, hi)) { got.add(en); }
+				assertEquals(new ArrayList<Map.Entry<Integer, Integer>>((lo < hi)? backmap.subMap(lo, hi).entrySet(): Collections.<Map.Entry<Integer, Integer>>emptySet()), got);
+			}
+			List<Integer> keys = new ArrayList<Integer>();
+			for (Map.Entry<Integer, Integer> en: testmap.range(null, sz0)) { keys.add(en.getKey()); }
+			assertEquals(new ArrayList<Integer>(backmap.headMap(sz0).keySet()), keys);
+			keys.clear();
+			for (Map.Entry<Integer, Integer> en: testmap.range(sz0, null)) { keys.add(en.getKey()); }
+			assertEquals(new ArrayList<Integer>(backmap.tailMap(sz0).keySet()), keys);
+			keys.clear();
+			for (Map.Entry<Integer, Integer> en: testmap.range(null, null)) { keys.add(en.getKey()); }
+			assertEquals(new ArrayList<Integer>(backmap.keySet()), keys);
+		}
+		assertFalse(new BTreeMap<Integer, Integer>(2).range(null, null).iterator().hasNext());
+	}
+
+	private static Integer floor(SortedMap<Integer, Integer> head) {
+		return head.isEmpty()? null: head.lastKey();
+	}
+
+	private static Integer ceiling(SortedMap<Integer, Integer> tail) {
+		return tail.isEmpty()? null: tail.firstKey();
+	}
+
 }
@@ -0,0 +1,95 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import static plugins.Library.util.SkeletonBTreeMapTest.*;
+
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.*;
+
+public class ResidencyManagerTest extends TestCase {
+
+	final public static int sz0 = 0x10;
+
+	/**
+	** Makes a deflated tree of height 2, with the given values.
+	*/
+	public <V> SkeletonBTreeMap<Integer, V> makeDeflatedTree(List<V> values) throws TaskAbortException {
+		SkeletonBTreeMap<Integer, V> tree = makeTree(4, new MemoryNodeSerialiser<V>());
+		for (int i=0; i<values.size(); ++i) { tree.put(i, values.get(i)); }
+		tree.deflate();
+		assertTrue(tree.isBare());
+		return tree;
+	}
+
+	/**
+	** Returns the node holding the given key, or the ghost in its place.
+	*/
+	public BTreeMap<Integer, ?>.Node nodeOf(SkeletonBTreeMap<Integer, ?> tree, int key) {
+		BTreeMap<Integer, ?>.Node node = tree.root;
+		while (!node.isGhost() && !node.isLeaf() && !node.entries.containsKey(key)) { node = node.selectNode(key); }
+		return node;
+	}
+
+	public void testBusyTreeIsNotEvicted() throws TaskAbortException {
+		List<Integer> values = new ArrayList<Integer>();
+		for (int i=0; i<sz0; ++i) { values.add(i); }
+		SkeletonBTreeMap<Integer, Integer> tree = makeDeflatedTree(values);
+		ResidencyManager r = new ResidencyManager(2, Long.MAX_VALUE);
+		tree.setResidencyManager(r);
+
+		// a search is still reading the tree, so nothing is ghosted from under it
+		tree.access.readLock().lock();
+		try {
+			for (int i=0; i<sz0; ++i) { tree.inflate(i); }
+			assertTrue(r.size() <= 2);
+			for (int i=0; i<sz0; ++i) { assertEquals(i, (int)tree.get(i)); }
+		} finally {
+			tree.access.readLock().unlock();
+		}
+		assertTrue(tree.isLive());
+
+		// once it is done, old nodes are evicted again
+		r.clear();
+		for (int i=0; i<sz0; ++i) { tree.inflate(i); }
+		assertTrue(r.size() <= 2);
+		assertFalse(tree.isLive());
+		for (int i=0; i<sz0; ++i) {
+			tree.inflate(i);
+			assertEquals(i, (int)tree.get(i));
+		}
+	}
+
+	public void testValueDroppedWithNode() throws TaskAbortException {
+		List<SkeletonBTreeSet<Integer>> values = new ArrayList<SkeletonBTreeSet<Integer>>();
+		for (int i=0; i<sz0; ++i) {
+			SkeletonBTreeSet<Integer> set = new SkeletonBTreeSet<Integer>(2);
+			set.add(i);
+			values.add(set);
+		}
+		SkeletonBTreeMap<Integer, SkeletonBTreeSet<Integer>> tree = makeDeflatedTree(values);
+		ResidencyManager r = new ResidencyManager(2, Long.MAX_VALUE);
+		tree.setResidencyManager(r);
+
+		tree.inflate(0);
+		SkeletonBTreeSet<Integer> set = tree.get(0);
+		BTreeMap<Integer, ?>.Node leaf = nodeOf(tree, 0);
+		assertTrue(leaf != tree.root);
+		r.touchValue(tree, 0, set);
+		assertEquals(2, r.size());
+		assertTrue(r.residents.containsKey(new ResidencyManager.Ref(leaf)));
+
+		// pulling in another leaf evicts the first one, and the value with it
+		tree.inflate(sz0-1);
+		assertTrue(nodeOf(tree, 0).isGhost());
+		assertFalse(r.residents.containsKey(new ResidencyManager.Ref(leaf)));
+		assertFalse(r.residents.containsKey(new ResidencyManager.Ref(set)));
+		assertEquals(1, r.size());
+		assertEquals(ResidencyManager.NODE_BYTES + ((SkeletonBTreeMap.SkeletonNode)nodeOf(tree, sz0-1)).nodeSize() * ResidencyManager.ENTRY_BYTES, r.estimatedBytes());
+	}
+
+}
@@ -0,0 +1,148 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class SkeletonBPlusTreeMapTest extends SortedMapTestSkeleton {
+
+	@Override public SortedMap<String, Integer> makeTestMap() {
+		return new SkeletonBPlusTreeMap<String, Integer>(0x04, 0x10);
+	}
+
+	final public static int sz0 = 0x400;
+
+	public void testAgainstTreeMap() {
+		SkeletonBPlusTreeMap<String, Integer> testmap = new SkeletonBPlusTreeMap<String, Integer>(2, 2);
+		TreeMap<String, Integer> backmap = new TreeMap<String, Integer>();
+		for (int i=0; i<sz0<<3; ++i) {
+			String k = Generators.rndKey().substring(0, 3);
+			Integer v = Generators.rand.nextInt();
+			if (Generators.rand.nextInt(3) == 0) {
+				assertEquals(backmap.remove(k), testmap.remove(k));
+			} else {
+				assertEquals(backmap.put(k, v), testmap.put(k, v));
+			}
+			assertTrue(testmap.size() == backmap.size());
+			if (i % sz0 == 0) {
+				testmap.index.verifyTreeIntegrity();
+				verifyLeaves(testmap);
+			}
+		}
+		assertTrue(testmap.equals(backmap));
+		assertTrue(backmap.equals(testmap));
+		assertTrue(new ArrayList<String>(testmap.keySet()).equals(new ArrayList<String>(backmap.keySet())));
+		if (!backmap.isEmpty()) {
+			assertEquals(backmap.firstKey(), testmap.firstKey());
+			assertEquals(backmap.lastKey(), testmap.lastKey());
+		}
+	}
+
+	public void testRange() {
+		SkeletonBPlusTreeMap<Integer, Integer> testmap = new SkeletonBPlusTreeMap<Integer, Integer>(2, 4);
+		for (int i=0; i<sz0; i+=2) { testmap.put(i, i); }
+
+		for (int n=0; n<0x40; ++n) {
+			int lo = Generators.rand.nextInt(sz0+4) - 2, hi = lo + Generators.rand.nextInt(0x40);
+			int i = (lo < 0)? 0: lo + (lo & 1);
+			for (Map.Entry<Integer, Integer> en: testmap.range(lo, hi)) {
+				assertTrue(en.getKey() == i && en.getValue() == i);
+				i += 2;
+			}
+			assertTrue(i >= hi || i >= sz0);
+		}
+
+		int i = 0x100;
+		for (Map.Entry<Integer, Integer> en: testmap.range(0x100, null)) {
+			assertTrue(en.getKey() == i);
+			i += 2;
+		}
+		assertTrue(i == sz0);
+		assertFalse(testmap.range(sz0, null).iterator().hasNext());
+		assertFalse(new SkeletonBPlusTreeMap<Integer, Integer>(2, 4).range(null, null).iterator().hasNext());
+	}
+
+	public void testSubMap() {
+		SkeletonBPlusTreeMap<Integer, Integer> testmap = new SkeletonBPlusTreeMap<Integer, Integer>(2, 4);
+		TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+		for (int i=0; i<sz0; i+=2) { testmap.put(i, i); backmap.put(i, i); }
+
+		for (int n=0; n<0x40; ++n) {
+			int lo = Generators.rand.nextInt(sz0+4) - 2, hi = lo + Generators.rand.nextInt(0x40);
+			SortedMap<Integer, Integer> sub = testmap.subMap(lo, hi), subb = backmap.subMap(lo, hi);
+			assertEquals(subb, sub);
+			assertEquals(subb.size(), sub.size());
+			assertEquals(subb.isEmpty(), sub.isEmpty());
+			if (!subb.isEmpty()) {
+				assertEquals(subb.firstKey(), sub.firstKey());
+				assertEquals(subb.lastKey(), sub.lastKey());
+			}
+			assertEquals(backmap.headMap(hi), testmap.headMap(hi));
+			assertEquals(backmap.tailMap(lo), testmap.tailMap(lo));
+			if (hi > 0) { assertEquals(backmap.headMap(hi).lastKey(), testmap.headMap(hi).lastKey()); }
+			if (lo < sz0-1) { assertEquals(backmap.tailMap(lo).firstKey(), testmap.tailMap(lo).firstKey()); }
+			assertEquals(subb.get(lo+1), sub.get(lo+1));
+			assertNull(sub.get(hi));
+		}
+
+		// views are backed by the map
+		SortedMap<Integer, Integer> sub = testmap.subMap(0x100, 0x200);
+		assertEquals(0x80, sub.size());
+		assertNull(sub.put(0x101, 0));
+		assertTrue(testmap.containsKey(0x101));
+		assertEquals(0, (int)sub.remove(0x101));
+		assertNull(sub.remove(0x300));
+		assertTrue(testmap.containsKey(0x300));
+		for (Iterator<Integer> it = sub.keySet().iterator(); it.hasNext();) {
+			if (it.next() % 4 == 0) { it.remove(); }
+		}
+		assertEquals(0x40, sub.size());
+		assertEquals((sz0>>1) - 0x40, testmap.size());
+		assertFalse(testmap.containsKey(0x100));
+		assertTrue(testmap.containsKey(0xfc));
+		assertTrue(testmap.containsKey(0x200));
+		verifyLeaves(testmap);
+		assertEquals(0x102, (int)sub.firstKey());
+		assertEquals(0x1fe, (int)sub.lastKey());
+		assertEquals(0x20, sub.subMap(0x140, 0x1c0).size());
+		assertEquals(0x20, sub.headMap(0x180).size());
+		assertTrue(sub.tailMap(0x200).isEmpty());
+
+		try {
+			sub.put(0x200, 0);
+			fail("put out of range");
+		} catch (IllegalArgumentException e) { }
+		try {
+			sub.headMap(0x202);
+			fail("view out of range");
+		} catch (IllegalArgumentException e) { }
+		try {
+			testmap.subMap(2, 1);
+			fail("lower bound greater than upper bound");
+		} catch (IllegalArgumentException e) { }
+		try {
+			sub.tailMap(0x200).lastKey();
+			fail("last key of empty view");
+		} catch (NoSuchElementException e) { }
+	}
+
+	/**
+	** Check that every page is within bounds, and that every separator is a
+	** lower bound for its page and an upper bound for the page before it.
+	*/
+	protected static <K, V> void verifyLeaves(SkeletonBPlusTreeMap<K, V> testmap) {
+		K lastkey = null;
+		for (Map.Entry<K, SortedArrayMap<K, V>> en: testmap.index.entrySet()) {
+			SortedArrayMap<K, V> leaf = en.getValue();
+			assertTrue(testmap.index.size() == 1 || leaf.size() >= testmap.LEAF_MIN);
+			assertTrue(leaf.size() > 0 && leaf.size() <= testmap.LEAF_MAX);
+			assertTrue(testmap.compare(en.getKey(), leaf.firstKey()) <= 0);
+			assertTrue(lastkey == null || testmap.compare(lastkey, en.getKey()) < 0);
+			lastkey = leaf.lastKey();
+		}
+	}
+
+}
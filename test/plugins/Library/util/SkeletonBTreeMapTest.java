@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.DataFormatException;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.io.serial.MapSerialiser;
+import plugins.Library.io.serial.ParallelSerialiser;
+import plugins.Library.io.serial.ProgressTracker;
+import plugins.Library.io.serial.Translator;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SkeletonBTreeMapTest extends TestCase {
+
+	final public static Translator<Integer, String> ktr = new Translator<Integer, String>() {
+		/*@Override**/ public String app(Integer key) { return key.toString(); }
+		/*@Override**/ public Integer rev(String key) { return Integer.valueOf(key); }
+	};
+
+	public static <V> Translator<SkeletonTreeMap<Integer, V>, Map<String, Object>> makeEntriesTranslator() {
+		return new SkeletonTreeMap.TreeMapTranslator<Integer, V>() {
+			/*@Override**/ public Map<String, Object> app(SkeletonTreeMap<Integer, V> map) {
+				return app(map, new HashMap<String, Object>(), ktr);
+			}
+			/*@Override**/ public SkeletonTreeMap<Integer, V> rev(Map<String, Object> map) throws DataFormatException {
+				return rev(map, new SkeletonTreeMap<Integer, V>(), ktr);
+			}
+		};
+	}
+
+	/**
+	** Keeps each value as its own metadata.
+	*/
+	public static class MemoryValueSerialiser<V> implements MapSerialiser<Integer, V> {
+		/*@Override**/ public void pull(Map<Integer, PullTask<V>> tasks, Object mapmeta) {
+			for (PullTask<V> task: tasks.values()) {
+				if (task.meta != null) { task.data = (V)task.meta; }
+			}
+		}
+		/*@Override**/ public void push(Map<Integer, PushTask<V>> tasks, Object mapmeta) {
+			for (PushTask<V> task: tasks.values()) {
+				if (task.data != null) { task.meta = task.data; }
+			}
+		}
+	}
+
+	/**
+	** Keeps the translated form of each node in memory, and counts the pulls.
+	*/
+	public static class MemoryNodeSerialiser<V>
+	extends ParallelSerialiser<SkeletonBTreeMap<Integer, V>.SkeletonNode, SimpleProgress> {
+
+		final Map<Integer, Map<String, Object>> store = new ConcurrentHashMap<Integer, Map<String, Object>>();
+		final AtomicInteger ids = new AtomicInteger();
+		final AtomicInteger pulls = new AtomicInteger();
+		SkeletonBTreeMap<Integer, V>.NodeTranslator<?, ?> trans;
+
+		/**
+		** How long each pull takes, in milliseconds.
+		*/
+		volatile int delay;
+
+		public MemoryNodeSerialiser() {
+			super(new ProgressTracker<SkeletonBTreeMap<Integer, V>.SkeletonNode, SimpleProgress>(SimpleProgress.class));
+		}
+
+		/*@Override**/ public void pullLive(PullTask<SkeletonBTreeMap<Integer, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
+			p.enteredSerialiser();
+			try {
+				if (delay > 0) { Thread.sleep(delay); }
+				pulls.incrementAndGet();
+				SkeletonBTreeMap<Integer, V>.GhostNode ghost = (SkeletonBTreeMap.GhostNode)task.meta;
+				task.data = trans.rev(store.get(ghost.getMeta()));
+				p.addPartKnown(0, true);
+				p.exitingSerialiser();
+			} catch (InterruptedException e) {
+				p.abort(new TaskAbortException("Interrupted", e, true));
+			} catch (DataFormatException e) {
+				p.abort(new TaskAbortException("Could not pull node", e));
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not pull node", e));
+			}
+		}
+
+		/*@Override**/ public void pushLive(PushTask<SkeletonBTreeMap<Integer, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
+			p.enteredSerialiser();
+			try {
+				Integer id = ids.incrementAndGet();
+				store.put(id, trans.app(task.data));
+				task.meta = task.data.makeGhost(id);
+				p.addPartKnown(0, true);
+				p.exitingSerialiser();
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not push node", e));
+			}
+		}
+
+	}
+
+	public static <V> SkeletonBTreeMap<Integer, V> makeTree(int node_min, MemoryNodeSerialiser<V> nsrl) {
+		SkeletonBTreeMap<Integer, V> tree = new SkeletonBTreeMap<Integer, V>(node_min);
+		nsrl.trans = tree.makeNodeTranslator(null, SkeletonBTreeMapTest.<V>makeEntriesTranslator());
+		tree.setSerialiser(nsrl, new MemoryValueSerialiser<V>());
+		return tree;
+	}
+
+	final public static int sz0 = 0x200;
+
+	public void testConcurrentInflate() throws Throwable {
+		MemoryNodeSerialiser<Integer> nsrl = new MemoryNodeSerialiser<Integer>();
+		SkeletonBTreeMap<Integer, Integer> tree = makeTree(2, nsrl);
+		for (int i=0; i<sz0; ++i) { tree.put(i, i); }
+		tree.deflate();
+		assertTrue(tree.isBare());
+		// every node except the root was pushed once
+		int nodes = nsrl.store.size();
+		nsrl.delay = 2;
+		tree.setInflateBatch(4);
+
+		final SkeletonBTreeMap<Integer, Integer> map = tree;
+		final SkeletonBTreeMap<Integer, Integer>.SkeletonNode root = (SkeletonBTreeMap.SkeletonNode)tree.root;
+		final List<Integer> keys = new ArrayList<Integer>();
+		for (BTreeMap<Integer, Integer>.Node child: root.iterNodes()) { keys.add(child.lkey); }
+
+		// half the threads inflate the whole tree, either level by level or with
+		// the bulk inflate(); the rest inflate subtrees of it
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t=0; t<8; ++t) {
+			final int n = t;
+			threads.add(new Thread() {
+				@Override public void run() {
+					try {
+						if ((n & 3) == 0) {
+							map.inflate();
+						} else if ((n & 3) == 2) {
+							root.inflate();
+						} else {
+							root.inflate(keys.get((n>>1) % keys.size()), true);
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (Thread t: threads) { t.start(); }
+		for (Thread t: threads) { t.join(); }
+		if (!errors.isEmpty()) { throw errors.get(0); }
+
+		assertTrue(tree.isLive());
+		tree.verifyTreeIntegrity();
+		// each node was only pulled once, by whichever thread got there first
+		assertEquals(nodes, nsrl.pulls.get());
+		assertTrue(tree.pulling.isEmpty());
+		for (int i=0; i<sz0; ++i) { assertEquals(i, (int)tree.get(i)); }
+	}
+
+	public void testDeflateChanged() throws TaskAbortException {
+		MemoryNodeSerialiser<Integer> nsrl = new MemoryNodeSerialiser<Integer>();
+		SkeletonBTreeMap<Integer, Integer> tree = makeTree(2, nsrl);
+		for (int i=0; i<sz0; ++i) { tree.put(i, i); }
+		tree.deflate();
+		int nodes = nsrl.store.size();
+
+		// nodes that were only read are ghosted again without being pushed
+		tree.inflate();
+		assertTrue(tree.isLive());
+		tree.deflateChanged();
+		assertTrue(tree.isBare());
+		assertEquals(nodes, nsrl.store.size());
+
+		// only the path to a changed node is pushed again
+		tree.inflate();
+		tree.put(sz0>>1, -1);
+		tree.deflateChanged();
+		assertTrue(tree.isBare());
+		int pushed = nsrl.store.size() - nodes;
+		assertTrue(pushed > 0 && pushed <= tree.heightEstimate());
+
+		tree.inflate();
+		tree.verifyTreeIntegrity();
+		for (int i=0; i<sz0; ++i) { assertEquals((i == sz0>>1)? -1: i, (int)tree.get(i)); }
+	}
+
+	/**
+	** Makes a copy of a bare tree from its translated root, which pulls its
+	** nodes from the same store.
+	*/
+	public static <V> SkeletonBTreeMap<Integer, V> reloadTree(SkeletonBTreeMap<Integer, V> tree, MemoryNodeSerialiser<V> nsrl) throws DataFormatException {
+		SkeletonBTreeMap.TreeTranslator<Integer, V> ttr = new SkeletonBTreeMap.TreeTranslator<Integer, V>(null, SkeletonBTreeMapTest.<V>makeEntriesTranslator());
+		SkeletonBTreeMap<Integer, V> copy = ttr.rev(ttr.app(tree));
+		MemoryNodeSerialiser<V> csrl = new MemoryNodeSerialiser<V>();
+		csrl.store.putAll(nsrl.store);
+		csrl.ids.set(nsrl.ids.get());
+		csrl.trans = copy.makeNodeTranslator(null, SkeletonBTreeMapTest.<V>makeEntriesTranslator());
+		copy.setSerialiser(csrl, new MemoryValueSerialiser<V>());
+		return copy;
+	}
+
+	public void testRandomUpdate() throws TaskAbortException, DataFormatException {
+		for (int node_min=2; node_min<=4; ++node_min) {
+			MemoryNodeSerialiser<Integer> nsrl = new MemoryNodeSerialiser<Integer>();
+			SkeletonBTreeMap<Integer, Integer> tree = makeTree(node_min, nsrl);
+			TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+
+			for (int r=0; r<0x20; ++r) {
+				// every fourth batch only removes keys
+				boolean remonly = (r & 3) == 3;
+				SortedMap<Integer, Integer> putmap = new TreeMap<Integer, Integer>();
+				SortedSet<Integer> remkey = new TreeSet<Integer>();
+				int n = Generators.rand.nextInt(sz0>>2) + 1;
+				for (int i=0; i<n; ++i) {
+					int k = Generators.rand.nextInt(sz0);
+					if (remonly || Generators.rand.nextInt(3) == 0) {
+						if (!putmap.containsKey(k)) { remkey.add(k); }
+					} else if (!remkey.contains(k)) {
+						putmap.put(k, Generators.rand.nextInt());
+					}
+				}
+
+				tree.update(putmap, remkey);
+				backmap.putAll(putmap);
+				backmap.keySet().removeAll(remkey);
+				assertTrue(tree.isBare());
+				assertEquals(backmap.size(), tree.size());
+
+				tree.inflate();
+				tree.verifyTreeIntegrity();
+				assertTrue(backmap.equals(tree));
+				tree.deflateChanged();
+				assertTrue(tree.isBare());
+			}
+
+			SkeletonBTreeMap<Integer, Integer> copy = reloadTree(tree, (MemoryNodeSerialiser<Integer>)nsrl);
+			copy.inflate();
+			copy.verifyTreeIntegrity();
+			assertTrue(backmap.equals(copy));
+
+			// removing every key collapses the tree back down to an empty root
+			copy.deflateChanged();
+			copy.update(new TreeMap<Integer, Integer>(), new TreeSet<Integer>(backmap.keySet()));
+			assertTrue(copy.isBare());
+			assertTrue(copy.isEmpty());
+			assertTrue(copy.root.isLeaf());
+			copy.verifyTreeIntegrity();
+		}
+	}
+
+}
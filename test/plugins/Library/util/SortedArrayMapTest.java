@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class SortedArrayMapTest extends SortedMapTestSkeleton {
+
+	@Override public SortedMap<String, Integer> makeTestMap() {
+		return new SortedArrayMap<String, Integer>();
+	}
+
+	final public static int sz0 = 0x400;
+
+	public void testAgainstTreeMap() {
+		SortedArrayMap<String, Integer> testmap = new SortedArrayMap<String, Integer>();
+		TreeMap<String, Integer> backmap = new TreeMap<String, Integer>();
+		for (int i=0; i<sz0<<2; ++i) {
+			String k = Generators.rndKey().substring(0, 3);
+			Integer v = Generators.rand.nextInt();
+			switch (Generators.rand.nextInt(4)) {
+			case 0:
+				assertEquals(backmap.remove(k), testmap.remove(k));
+				break;
+			case 1:
+				if (!backmap.isEmpty()) {
+					String f = (Generators.rand.nextBoolean())? backmap.firstKey(): backmap.lastKey();
+					assertEquals(backmap.remove(f), testmap.remove(f));
+				}
+				break;
+			default:
+				assertEquals(backmap.put(k, v), testmap.put(k, v));
+			}
+			assertTrue(testmap.size() == backmap.size());
+		}
+		assertTrue(testmap.equals(backmap));
+		assertTrue(backmap.equals(testmap));
+		assertTrue(new ArrayList<String>(testmap.keySet()).equals(new ArrayList<String>(backmap.keySet())));
+	}
+
+	public void testPutAllSplice() {
+		for (int n=0; n<0x40; ++n) {
+			SortedArrayMap<String, Integer> testmap = new SortedArrayMap<String, Integer>();
+			TreeMap<String, Integer> backmap = new TreeMap<String, Integer>();
+			TreeMap<String, Integer> putmap = new TreeMap<String, Integer>();
+			for (int i=0; i<n; ++i) {
+				String k = Generators.rndKey().substring(0, 2);
+				testmap.put(k, i);
+				backmap.put(k, i);
+			}
+			for (int i=0; i<n; ++i) {
+				putmap.put(Generators.rndKey().substring(0, 2), -i);
+			}
+			testmap.putAll(putmap);
+			backmap.putAll(putmap);
+			assertTrue(testmap.equals(backmap));
+
+			// disjoint ranges hit the append and prepend paths
+			SortedArrayMap<Integer, Integer> intmap = new SortedArrayMap<Integer, Integer>();
+			TreeMap<Integer, Integer> lo = new TreeMap<Integer, Integer>();
+			TreeMap<Integer, Integer> mid = new TreeMap<Integer, Integer>();
+			TreeMap<Integer, Integer> hi = new TreeMap<Integer, Integer>();
+			for (int i=0; i<n; ++i) { lo.put(i, i); mid.put(n+i, i); hi.put(2*n+i, i); }
+			intmap.putAll(mid);
+			intmap.putAll(hi);
+			intmap.putAll(lo);
+			assertTrue(intmap.size() == 3*n);
+			int j = 0;
+			for (Integer k: intmap.keySet()) { assertTrue(k == j++); }
+
+			// putting a view of the map into itself
+			SortedArrayMap<Integer, Integer> clone = intmap.clone();
+			intmap.putAll(intmap.headMap(n));
+			assertTrue(intmap.equals(clone));
+		}
+	}
+
+	public void testSubMaps() {
+		SortedArrayMap<Integer, Integer> testmap = new SortedArrayMap<Integer, Integer>();
+		for (int i=0; i<0x40; i+=2) { testmap.put(i, i); }
+
+		SortedMap<Integer, Integer> head = testmap.headMap(0x10);
+		SortedMap<Integer, Integer> tail = testmap.tailMap(0x30);
+		SortedMap<Integer, Integer> sub = testmap.subMap(0x11, 0x21);
+		assertTrue(head.size() == 8 && head.firstKey() == 0 && head.lastKey() == 0x0E);
+		assertTrue(tail.size() == 8 && tail.firstKey() == 0x30 && tail.lastKey() == 0x3E);
+		assertTrue(sub.size() == 8 && sub.firstKey() == 0x12 && sub.lastKey() == 0x20);
+
+		// views are backed by the map
+		testmap.put(0x13, 0);
+		assertTrue(sub.size() == 9 && sub.containsKey(0x13));
+		sub.remove(0x13);
+		assertFalse(testmap.containsKey(0x13));
+		assertTrue(sub.get(0x30) == null);
+		try {
+			sub.put(0x30, 0);
+			fail("submap accepted a key out of range");
+		} catch (IllegalArgumentException e) { }
+
+		SortedMap<Integer, Integer> subsub = sub.tailMap(0x18);
+		assertTrue(subsub.size() == 5 && subsub.firstKey() == 0x18);
+		try {
+			sub.headMap(0x30);
+			fail("submap made a view out of its range");
+		} catch (IllegalArgumentException e) { }
+
+		Iterator<Integer> it = sub.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next() % 4 == 0) { it.remove(); }
+		}
+		assertTrue(sub.size() == 4 && testmap.size() == 0x1C);
+
+		sub.clear();
+		assertTrue(sub.isEmpty() && testmap.size() == 0x18);
+		assertTrue(head.size() == 8 && tail.size() == 8);
+		head.clear();
+		tail.clear();
+		assertTrue(testmap.size() == 8);
+		assertTrue(testmap.firstKey() == 0x10 && testmap.lastKey() == 0x2E);
+	}
+
+	public void testEntriesSurviveShifts() {
+		SortedArrayMap<Integer, Integer> testmap = new SortedArrayMap<Integer, Integer>();
+		for (int i=0; i<0x20; ++i) { testmap.put(i<<1, i); }
+		List<Map.Entry<Integer, Integer>> ens = new ArrayList<Map.Entry<Integer, Integer>>(testmap.entrySet());
+		for (int i=0; i<0x20; ++i) { testmap.put((i<<1)+1, -i); }
+		testmap.remove(0);
+		for (Map.Entry<Integer, Integer> en: ens) {
+			if (en.getKey() == 0) { continue; }
+			en.setValue(en.getValue() + 1);
+		}
+		for (int i=1; i<0x20; ++i) {
+			assertTrue(testmap.get(i<<1) == i+1);
+			assertTrue(testmap.get((i<<1)+1) == -i);
+		}
+	}
+
+}
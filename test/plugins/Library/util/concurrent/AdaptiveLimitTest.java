@@ -0,0 +1,70 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+public class AdaptiveLimitTest extends TestCase {
+
+	final static long MS = 1000000;
+
+	/**
+	** Completes a limit's worth of tasks, all with the given latency.
+	*/
+	public void round(AdaptiveLimit lim, long latency, boolean failed) {
+		int n = lim.getLimit();
+		for (int i=0; i<n; ++i) { lim.sample(latency, failed, n); }
+	}
+
+	public void testGrowAndBackOff() {
+		AdaptiveLimit lim = new AdaptiveLimit(4, 1, 0x100);
+		// slow start doubles every round
+		round(lim, 100 * MS, false);
+		assertEquals(8, lim.getLimit());
+		round(lim, 100 * MS, false);
+		assertEquals(16, lim.getLimit());
+
+		// latency climbs: back off, but only once per round
+		round(lim, 1000 * MS, false);
+		assertEquals(12, lim.getLimit());
+		for (int i=0; i<0x10 && lim.getLimit() > 1; ++i) { round(lim, 1000 * MS, false); }
+		int low = lim.getLimit();
+		assertTrue(low < 12);
+
+		// latency recovers: grow again, but only linearly
+		for (int i=0; i<0x40; ++i) { round(lim, 100 * MS, false); }
+		assertTrue(lim.getLimit() > low);
+		assertTrue(lim.getLimit() <= low + 0x40);
+	}
+
+	public void testFailures() {
+		AdaptiveLimit lim = new AdaptiveLimit(0x20, 2, 0x20);
+		lim.sample(100 * MS, true, 0x20);
+		assertEquals(0x18, lim.getLimit());
+		// no further backoff until a limit's worth of tasks complete
+		lim.sample(100 * MS, true, 0x20);
+		assertEquals(0x18, lim.getLimit());
+		for (int i=0; i<0x40; ++i) { round(lim, 100 * MS, true); }
+		assertEquals(2, lim.getLimit());
+	}
+
+	public void testUnusedLimitDoesNotGrow() {
+		AdaptiveLimit lim = new AdaptiveLimit(0x10, 1, 0x100);
+		for (int i=0; i<0x100; ++i) { lim.sample(100 * MS, false, 2); }
+		assertEquals(0x10, lim.getLimit());
+	}
+
+	public void testSetMax() {
+		AdaptiveLimit lim = new AdaptiveLimit(0x10, 1, 0x100);
+		lim.setMax(8);
+		assertEquals(8, lim.getLimit());
+		for (int i=0; i<0x10; ++i) { round(lim, 100 * MS, false); }
+		assertEquals(8, lim.getLimit());
+		try {
+			new AdaptiveLimit(0, 1, 2);
+			fail("initial limit below lowest limit");
+		} catch (IllegalArgumentException e) { }
+	}
+
+}
@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BoundedExecutorTest extends TestCase {
+
+	/**
+	** Counts the threads it starts.
+	*/
+	static class CountingExecutor implements Executor {
+		final AtomicInteger threads = new AtomicInteger();
+		final List<Thread> started = new ArrayList<Thread>();
+		/*@Override**/ public void execute(Runnable r) {
+			threads.incrementAndGet();
+			Thread t = new Thread(r);
+			synchronized (started) { started.add(t); }
+			t.start();
+		}
+		void join() throws InterruptedException {
+			List<Thread> ts;
+			synchronized (started) { ts = new ArrayList<Thread>(started); }
+			for (Thread t: ts) { t.join(); }
+		}
+	}
+
+	public void testBounds() throws InterruptedException {
+		CountingExecutor backing = new CountingExecutor();
+		BoundedExecutor exec = new BoundedExecutor(backing, 2, 4);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger ran = new AtomicInteger();
+		Runnable blocked = new Runnable() {
+			/*@Override**/ public void run() {
+				try { release.await(); } catch (InterruptedException e) { }
+				ran.incrementAndGet();
+			}
+		};
+
+		for (int i=0; i<6; ++i) { exec.execute(blocked); }
+		assertEquals(2, backing.threads.get());
+		assertEquals(2, exec.getRunning());
+		assertEquals(4, exec.getQueueDepth());
+
+		// the queue is full, so this runs in this thread
+		final Thread caller = Thread.currentThread();
+		final boolean[] in_caller = new boolean[1];
+		exec.execute(new Runnable() {
+			/*@Override**/ public void run() { in_caller[0] = (Thread.currentThread() == caller); }
+		});
+		assertTrue(in_caller[0]);
+		assertEquals(1, exec.getCallerRuns());
+
+		release.countDown();
+		backing.join();
+		assertEquals(6, ran.get());
+		assertEquals(0, exec.getRunning());
+		assertEquals(0, exec.getQueueDepth());
+		assertEquals(4, exec.getPeakQueueDepth());
+		// queued tasks were run by the existing workers
+		assertEquals(2, backing.threads.get());
+	}
+
+	public void testTaskThrows() throws InterruptedException {
+		CountingExecutor backing = new CountingExecutor();
+		BoundedExecutor exec = new BoundedExecutor(backing, 1, 0x10);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger ran = new AtomicInteger();
+		exec.execute(new Runnable() {
+			/*@Override**/ public void run() {
+				try { release.await(); } catch (InterruptedException e) { }
+				throw new RuntimeException("test exception, please ignore");
+			}
+		});
+		exec.execute(new Runnable() {
+			/*@Override**/ public void run() { ran.incrementAndGet(); }
+		});
+		release.countDown();
+		backing.join();
+		backing.join();
+		assertEquals(1, ran.get());
+		assertEquals(0, exec.getRunning());
+		assertEquals(2, backing.threads.get());
+	}
+
+}
@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+import static plugins.Library.util.func.Tuples.X2;
+import static plugins.Library.util.func.Tuples.X3;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class ObjectProcessorTest extends TestCase {
+
+	/**
+	** Makes a processor whose jobs only record that they were started, like
+	** jobs that start some asynchronous IO, and whose output queue holds only
+	** one item.
+	*/
+	public ObjectProcessor<Integer, String, Exception> makeProcessor(final List<Integer> jobs) {
+		return new ObjectProcessor<Integer, String, Exception>(
+			new LinkedBlockingQueue<Integer>(),
+			new ArrayBlockingQueue<X2<Integer, Exception>>(1),
+			new HashMap<Integer, String>(),
+			null,
+			new Executor() {
+				/*@Override**/ public void execute(Runnable r) { r.run(); }
+			},
+			false
+		) {
+			@Override protected Runnable createJobFor(final Integer item) {
+				return new Runnable() {
+					/*@Override**/ public void run() { jobs.add(item); }
+				};
+			}
+		};
+	}
+
+	public void testCallbackDoesNotBlock() throws Throwable {
+		final List<Integer> started = new ArrayList<Integer>();
+		final ObjectProcessor<Integer, String, Exception> proc = makeProcessor(started);
+		int n = ObjectProcessor.initconc;
+		for (int i=0; i<n; ++i) { proc.submit(i, "dep" + i); }
+		while (proc.dispatchPoll());
+		assertEquals(n, started.size());
+		assertEquals(n, proc.getInFlight());
+
+		// the IO callbacks complete every item before the submitter accepts any
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread callback = new Thread() {
+			@Override public void run() {
+				try {
+					for (Integer i: started) { proc.postProcess.invoke(X2(i, (Exception)null)); }
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}
+		};
+		callback.start();
+		callback.join(10000);
+		// the callback thread must not block on the full output queue
+		assertFalse(callback.isAlive());
+		if (!errors.isEmpty()) { throw errors.get(0); }
+		assertEquals(0, proc.getInFlight());
+
+		Set<Integer> accepted = new HashSet<Integer>();
+		for (int i=0; i<n; ++i) {
+			assertTrue(proc.hasCompleted());
+			X3<Integer, String, Exception> res = proc.accept();
+			assertEquals("dep" + res._0, res._1);
+			assertNull(res._2);
+			accepted.add(res._0);
+		}
+		assertEquals(n, accepted.size());
+		assertFalse(proc.hasCompleted());
+		assertFalse(proc.hasPending());
+	}
+
+	public void testAcceptWaitsForCallback() throws Throwable {
+		final List<Integer> started = new ArrayList<Integer>();
+		final ObjectProcessor<Integer, String, Exception> proc = makeProcessor(started);
+		proc.submit(0, "dep0");
+		proc.submit(1, "dep1");
+		while (proc.dispatchPoll());
+
+		// both callbacks arrive while the submitter is waiting on the first
+		Thread callback = new Thread() {
+			@Override public void run() {
+				try { Thread.sleep(100); } catch (InterruptedException e) { }
+				proc.postProcess.invoke(X2(0, (Exception)null));
+				proc.postProcess.invoke(X2(1, (Exception)new Exception("failed")));
+			}
+		};
+		callback.start();
+		Map<Integer, X3<Integer, String, Exception>> results = new HashMap<Integer, X3<Integer, String, Exception>>();
+		for (int i=0; i<2; ++i) {
+			X3<Integer, String, Exception> res = proc.accept();
+			results.put(res._0, res);
+		}
+		callback.join();
+		assertNull(results.get(0)._2);
+		assertEquals("failed", results.get(1)._2.getMessage());
+		assertFalse(proc.hasPending());
+	}
+
+}